@@ -17,12 +17,28 @@ package net.amunak.bukkit.mineauction;
  * this program. If not, see <http://www.gnu.org/licenses/>.
  */
 import net.amunak.bukkit.mineauction.sign.SignInteractionListener;
-import java.sql.*;
+import java.io.IOException;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import net.amunak.bukkit.mineauction.actions.VirtualInventory;
+import net.amunak.bukkit.mineauction.actions.VirtualInventoryListener;
+import net.amunak.bukkit.mineauction.actions.WithdrawalCache;
+import net.amunak.bukkit.mineauction.database.ChangeFeed;
+import net.amunak.bukkit.mineauction.database.ConnectionPool;
+import net.amunak.bukkit.mineauction.database.DatabaseExecutor;
+import net.amunak.bukkit.mineauction.database.SchemaManager;
+import net.amunak.bukkit.mineauction.database.TransferLog;
+import net.amunak.bukkit.mineauction.market.AuctionEngine;
+import net.amunak.bukkit.mineauction.market.ExpiryWheel;
+import net.amunak.bukkit.mineauction.market.MarketStore;
+import net.amunak.bukkit.mineauction.market.PriceHistory;
+import net.amunak.bukkit.mineauction.market.SearchIndex;
 import net.amunak.bukkit.mineauction.sign.MineAuctionSign;
 import net.amunak.bukkit.mineauction.sign.SignType;
 import net.amunak.bukkit.mineauction.sign.SignStorage;
+import net.amunak.bukkit.mineauction.sign.SignTemplates;
+import net.amunak.bukkit.mineauction.sign.SignWorldListener;
 import org.bukkit.configuration.file.FileConfiguration;
 
 /**
@@ -33,10 +49,21 @@ import org.bukkit.configuration.file.FileConfiguration;
  */
 public final class MineAuction extends LoggableJavaPlugin {
 
-    protected Connection db;
+    protected ConnectionPool database;
+    protected DatabaseExecutor databaseExecutor;
+    protected SchemaManager schema;
+    protected TransferLog transferLog;
+    protected WithdrawalCache withdrawalCache;
+    protected ChangeFeed changeFeed;
+    protected AuctionEngine auctionEngine;
+    protected ExpiryWheel expiryWheel;
+    protected MarketStore marketStore;
+    protected PriceHistory priceHistory;
+    protected SearchIndex searchIndex;
     public FileConfiguration config;
     protected SignStorage signsStorage;
-    public final static int SQL_TIMEOUT = 0;
+    protected volatile int configRevision;
+    protected volatile SignTemplates signTemplates;
 
     @Override
     public void onEnable() {
@@ -52,7 +79,9 @@ public final class MineAuction extends LoggableJavaPlugin {
             CheckVersion.check(this);
         }
 
-        //checkDatabaseConnection();
+        if (!initDatabase()) {
+            log.warning("running without the database: virtual inventories and the market are not available");
+        }
 
         //load data
         if (this.config.getBoolean("options.signs.enable")) {
@@ -61,9 +90,11 @@ public final class MineAuction extends LoggableJavaPlugin {
         }
 
         //register listeners, run
-        //getCommand(null)
+        getCommand("ma").setExecutor(new MineAuctionCommandExecutor(this));
+        getServer().getPluginManager().registerEvents(new VirtualInventoryListener(this), this);
         if (this.config.getBoolean("options.signs.enable")) {
             getServer().getPluginManager().registerEvents(new SignInteractionListener(this), this);
+            getServer().getPluginManager().registerEvents(new SignWorldListener(this), this);
         }
     }
 
@@ -71,17 +102,17 @@ public final class MineAuction extends LoggableJavaPlugin {
     public void reloadConfig() {
         super.reloadConfig();
         this.config = this.getConfig();
+        this.configRevision++;
         log.raiseFineLevel = this.config.getBoolean("options.general.verboseLogging");
 
         log.fine("reloading config...");
 
-        if (!this.config.isString("database.url") || !this.config.isString("database.user")) {
+        boolean mysql = this.config.getString("database.backend", "mysql").equalsIgnoreCase("mysql");
+        if (mysql && (!this.config.isString("database.url") || !this.config.isString("database.user"))) {
             log.warning("Loading configuration failed: database url/user missing or invalid");
-            log.warning(">>>disabling plugin");
-            getPluginLoader().disablePlugin(this);
         }
 
-        if (this.config.getString("database.password").length() < 1) {
+        if (mysql && this.config.getString("database.password", "").length() < 1) {
             log.fine("Database password is empty");
         }
 
@@ -100,60 +131,260 @@ public final class MineAuction extends LoggableJavaPlugin {
 
             for (SignType signType : SignType.values()) {
                 tmpFullConfigurationNode = signTextsConfigurationNode + "types." + signType.getName();
-                if (!this.config.isList(tmpFullConfigurationNode)) {
+                if (!this.config.isList(tmpFullConfigurationNode)
+                        || this.config.getStringList(tmpFullConfigurationNode).size() != 2) {
                     log.warning(tmpFullConfigurationNode + " is not a list of 2 lines (items)");
                     log.warning("using placeholder warning for " + tmpFullConfigurationNode);
                     identifierWarning.clear();
                     identifierWarning.add(MineAuctionSign.VALID_SIGN_IDENTIFIER);
                     identifierWarning.add("<config error>");
-
+                    this.config.set(tmpFullConfigurationNode, identifierWarning);
                 }
             }
         }
+        this.signTemplates = SignTemplates.compile(this.config);
 
         log.fine("configuration reloaded");
     }
 
-    protected void checkDatabaseConnection() {
+    /**
+     * Connects to the database, creates everything that depends on it and
+     * schedules its tasks. If anything fails, whatever was created so far is
+     * shut down again and all of it is left null; the plugin keeps running
+     * without it (signs still work, everything that needs the database tells
+     * the player it is not available).
+     *
+     * @return true if the database subsystems are running
+     */
+    protected boolean initDatabase() {
         try {
-            this.db = DriverManager.getConnection(this.config.getString("database.url"), this.config.getString("database.user"), this.config.getString("database.password"));
-            if (this.db.isValid(SQL_TIMEOUT)) {
-                log.fine("database connection established successfully");
-            } else {
-                log.warning("database connection invalid: unknown error");
+            this.database = new ConnectionPool(this, this.config.getConfigurationSection("database"));
+            this.database.start();
+            this.schema = new SchemaManager(this, this.database, this.config.getString("database.prefix", "ma_"));
+            log.fine("database schema version " + this.schema.migrate());
+            this.databaseExecutor = new DatabaseExecutor(this, this.database, this.config.getConfigurationSection("database"));
+            this.transferLog = new TransferLog(this, this.database, this.schema, this.databaseExecutor, this.config.getConfigurationSection("database"));
+            this.transferLog.start();
+            this.withdrawalCache = new WithdrawalCache(this, this.config.getConfigurationSection("options.withdrawal.cache"));
+            this.changeFeed = new ChangeFeed(this, this.schema, this.databaseExecutor, this.config.getConfigurationSection("database"));
+            this.changeFeed.addListener(this.withdrawalCache);
+            this.auctionEngine = new AuctionEngine();
+            this.marketStore = new MarketStore(this, this.schema, this.databaseExecutor, this.auctionEngine);
+            this.auctionEngine.addListener(this.marketStore);
+            this.expiryWheel = new ExpiryWheel(this.auctionEngine);
+            this.auctionEngine.addListener(this.expiryWheel);
+            this.priceHistory = new PriceHistory(this, this.schema, this.databaseExecutor, this.config.getConfigurationSection("options.market.priceHistory"));
+            this.auctionEngine.addListener(this.priceHistory);
+            this.searchIndex = new SearchIndex();
+            this.auctionEngine.addListener(this.searchIndex);
+            this.changeFeed.addListener(this.marketStore);
+            log.fine("database connection established successfully (" + this.database.getBackend().getName()
+                    + ": " + this.database.getBackend().getLocation() + ")");
+        } catch (SQLException | IOException | IllegalArgumentException ex) {
+            shutdownDatabase(0);
+            log.warning("database connection failed: " + ex.getMessage());
+            if (this.config.getString("database.backend", "mysql").equalsIgnoreCase("mysql")) {
+                log.fine("url: '" + this.config.getString("database.url") + "'");
+                log.fine("user: '" + this.config.getString("database.user")
+                        + "' using password: " + ((this.config.getString("database.password", "").length() > 0) ? "yes" : "no"));
+                if (this.config.getString("database.password", "").length() < 1) {
+                    log.warning("Database password is empty"
+                            + "(that might be the cause of this problem - "
+                            + "fill your password in the config file)");
+                }
             }
+            return false;
+        }
 
-        } catch (SQLException ex) {
-            log.warning("database connection failed: " + ex.getMessage());
-            log.fine("url: '" + this.config.getString("database.url") + "'");
-            log.fine("user: '" + this.config.getString("database.user")
-                    + "' using password: " + ((this.config.getString("database.password").length() > 0) ? "yes" : "no"));
-            if (this.config.getString("database.password").length() < 1) {
-                log.warning("Database password is empty"
-                        + "(that might be the cause of this problem - "
-                        + "fill your password in the config file)");
+        getServer().getScheduler().runTaskTimer(this, new Runnable() {
+            @Override
+            public void run() {
+                withdrawalCache.expire();
+            }
+        }, 1200, 1200);
+        // expirations first, so they are written in the same tick
+        getServer().getScheduler().runTaskTimer(this, expiryWheel, 1, 1);
+        getServer().getScheduler().runTaskTimer(this, marketStore, 1, 1);
+        getServer().getScheduler().runTaskTimer(this, priceHistory, 0,
+                Math.max(1, this.config.getLong("options.market.priceHistory.flushInterval", 1200)));
+        if (!marketStore.load(new DatabaseExecutor.Callback<Long>() {
+            @Override
+            public void onSuccess(Long revision) {
+                changeFeed.start(revision);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                log.warning("loading auction listings failed, the market is closed: " + error.getMessage());
+                changeFeed.start();
             }
-            log.warning(">>>disabling plugin");
-            getPluginLoader().disablePlugin(this);
+        })) {
+            changeFeed.start();
         }
+        return true;
+    }
 
+    /**
+     * Stops and closes everything created by {@link #initDatabase()}, in
+     * the reverse order, skipping what was not created. Used both when the
+     * plugin is disabled and when initialization fails half way.
+     *
+     * @param timeout how long to wait for queued writes, in milliseconds
+     */
+    protected void shutdownDatabase(long timeout) {
+        if (changeFeed != null) {
+            changeFeed.stop();
+            log.fine("change feed stopped (" + changeFeed.getStatistics() + ")");
+        }
+        if (transferLog != null) {
+            VirtualInventory.closeDeposits(this);
+            transferLog.close(timeout);
+            log.fine("transfer log closed (" + transferLog.getStatistics() + ")");
+        }
+        if (marketStore != null) {
+            marketStore.close();
+            log.fine("market closed (" + marketStore.getStatistics() + ")");
+        }
+        if (expiryWheel != null) {
+            log.fine("expiry wheel dropped (" + expiryWheel.getStatistics() + ")");
+        }
+        if (priceHistory != null) {
+            priceHistory.close();
+            log.fine("price history saved (" + priceHistory.getStatistics() + ")");
+        }
+        if (withdrawalCache != null) {
+            log.fine("withdrawal cache dropped (" + withdrawalCache.getStatistics() + ")");
+        }
+        if (databaseExecutor != null) {
+            databaseExecutor.shutdown(timeout);
+            log.fine("database executor stopped (" + databaseExecutor.getStatistics() + ")");
+        }
+        if (database != null) {
+            database.close();
+            log.fine("database pool closed (" + database.getStatistics() + ")");
+        }
+        this.searchIndex = null;
+        this.priceHistory = null;
+        this.expiryWheel = null;
+        this.marketStore = null;
+        this.auctionEngine = null;
+        this.changeFeed = null;
+        this.withdrawalCache = null;
+        this.transferLog = null;
+        this.databaseExecutor = null;
+        this.schema = null;
+        this.database = null;
     }
 
     @Override
     public void onDisable() {
         log.fine("disabling plugin...");
-        if (db != null) {
-            try {
-                if (db.isValid(SQL_TIMEOUT)) {
-                    db.close();
-                }
-            } catch (SQLException ex) {
-                log.warning("could not close database connection: " + ex.getMessage());
-            }
+        if (signsStorage != null) {
+            signsStorage.close();
         }
+        shutdownDatabase(10000);
         log.fine("plugin disabled");
     }
 
+    /**
+     * Returns the database connection pool of this plugin
+     *
+     * @return the connection pool
+     */
+    public ConnectionPool getDatabase() {
+        return database;
+    }
+
+    /**
+     * Returns the schema manager, which compiles all the SQL statements
+     *
+     * @return the schema manager
+     */
+    public SchemaManager getSchema() {
+        return schema;
+    }
+
+    /**
+     * Returns the cache of players' virtual inventory contents
+     *
+     * @return the withdrawal cache
+     */
+    public WithdrawalCache getWithdrawalCache() {
+        return withdrawalCache;
+    }
+
+    /**
+     * Returns the feed of changes made through the web interface
+     *
+     * @return the change feed
+     */
+    public ChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    /**
+     * Returns the engine matching auction listings
+     *
+     * @return the auction engine
+     */
+    public AuctionEngine getAuctionEngine() {
+        return auctionEngine;
+    }
+
+    /**
+     * Returns the scheduler expiring auction listings
+     *
+     * @return the expiry wheel
+     */
+    public ExpiryWheel getExpiryWheel() {
+        return expiryWheel;
+    }
+
+    /**
+     * Returns the price statistics of all items
+     *
+     * @return the price history
+     */
+    public PriceHistory getPriceHistory() {
+        return priceHistory;
+    }
+
+    /**
+     * Returns the search index of the open listings
+     *
+     * @return the search index
+     */
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * Returns the store persisting the auction engine's listings and trades
+     *
+     * @return the market store
+     */
+    public MarketStore getMarketStore() {
+        return marketStore;
+    }
+
+    /**
+     * Returns the log through which all item transfers are written
+     *
+     * @return the transfer log
+     */
+    public TransferLog getTransferLog() {
+        return transferLog;
+    }
+
+    /**
+     * Returns the executor running database queries off the main thread
+     *
+     * @return the database executor
+     */
+    public DatabaseExecutor getDatabaseExecutor() {
+        return databaseExecutor;
+    }
+
     /**
      * Returns the SignsStorage of this plugin
      *
@@ -162,4 +393,22 @@ public final class MineAuction extends LoggableJavaPlugin {
     public SignStorage getSignsStorage() {
         return signsStorage;
     }
+
+    /**
+     * Returns the sign texts compiled from the current configuration
+     *
+     * @return the sign templates
+     */
+    public SignTemplates getSignTemplates() {
+        return signTemplates;
+    }
+
+    /**
+     * Returns the revision of the configuration, incremented on every reload
+     *
+     * @return the config revision, starting at 1
+     */
+    public int getConfigRevision() {
+        return configRevision;
+    }
 }
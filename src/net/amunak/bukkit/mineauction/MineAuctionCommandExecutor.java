@@ -0,0 +1,267 @@
+package net.amunak.bukkit.mineauction;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.List;
+import java.util.Locale;
+import net.amunak.bukkit.mineauction.sign.SignValidator;
+import net.amunak.bukkit.mineauction.market.Order;
+import net.amunak.bukkit.mineauction.market.Rollup;
+import net.amunak.bukkit.mineauction.market.SearchIndex;
+import org.bukkit.ChatColor;
+import org.bukkit.Material;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+/**
+ * Handles the /ma command and its subcommands
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class MineAuctionCommandExecutor implements CommandExecutor {
+
+    protected MineAuction plugin;
+    protected SignValidator validator;
+
+    public MineAuctionCommandExecutor(MineAuction p) {
+        this.plugin = p;
+    }
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        Player player = (sender instanceof Player) ? (Player) sender : null;
+        if (args.length == 0 || args[0].equalsIgnoreCase("help")) {
+            sender.sendMessage(plugin.log.playerPrefix + "/" + label + " validate [remove] [format] [loadchunks]"
+                    + ChatColor.GRAY + " - validates all MineAuction signs in the background");
+            sender.sendMessage(plugin.log.playerPrefix + "/" + label + " status"
+                    + ChatColor.GRAY + " - shows the state of the sign storage, database and caches");
+            sender.sendMessage(plugin.log.playerPrefix + "/" + label + " price [item]"
+                    + ChatColor.GRAY + " - shows the recent prices of an item (the one in hand by default)");
+            sender.sendMessage(plugin.log.playerPrefix + "/" + label + " search [item:<item>] [words]"
+                    + ChatColor.GRAY + " - finds the cheapest items on sale");
+            return true;
+        }
+        if (args[0].equalsIgnoreCase("validate")) {
+            if (!sender.hasPermission("mineauction.commands.validate")) {
+                plugin.log.warning(player, "insufficient permission");
+                return true;
+            }
+            validate(player, args);
+            return true;
+        }
+        if (args[0].equalsIgnoreCase("status")) {
+            if (!sender.hasPermission("mineauction.commands.status")) {
+                plugin.log.warning(player, "insufficient permission");
+                return true;
+            }
+            status(sender);
+            return true;
+        }
+        if (args[0].equalsIgnoreCase("price")) {
+            if (!sender.hasPermission("mineauction.commands.price")) {
+                plugin.log.warning(player, "insufficient permission");
+                return true;
+            }
+            price(sender, player, args);
+            return true;
+        }
+        if (args[0].equalsIgnoreCase("search")) {
+            if (!sender.hasPermission("mineauction.commands.search")) {
+                plugin.log.warning(player, "insufficient permission");
+                return true;
+            }
+            search(sender, player, args);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Shows statistics of the sign storage, the database connection, the
+     * caches, the market and the synchronization with the web interface
+     *
+     * @param sender who asked
+     */
+    protected void status(CommandSender sender) {
+        if (plugin.getSignsStorage() != null) {
+            sender.sendMessage(plugin.log.playerPrefix + "sign storage: " + ChatColor.GRAY + plugin.getSignsStorage().getStatistics());
+        }
+        if (plugin.getDatabase() == null) {
+            sender.sendMessage(plugin.log.playerPrefix + "not connected to the database");
+            return;
+        }
+        sender.sendMessage(plugin.log.playerPrefix + "database: " + ChatColor.GRAY + plugin.getDatabase().getStatistics());
+        sender.sendMessage(plugin.log.playerPrefix + "transfers: " + ChatColor.GRAY + plugin.getTransferLog().getStatistics());
+        sender.sendMessage(plugin.log.playerPrefix + "withdrawal cache: " + ChatColor.GRAY + plugin.getWithdrawalCache().getStatistics());
+        sender.sendMessage(plugin.log.playerPrefix + "market: " + ChatColor.GRAY
+                + (plugin.getMarketStore().isLoaded() ? plugin.getMarketStore().getStatistics() : "loading"));
+        sender.sendMessage(plugin.log.playerPrefix + "expiry: " + ChatColor.GRAY + plugin.getExpiryWheel().getStatistics());
+        sender.sendMessage(plugin.log.playerPrefix + "search index: " + ChatColor.GRAY + plugin.getSearchIndex().getStatistics());
+        sender.sendMessage(plugin.log.playerPrefix + "price history: " + ChatColor.GRAY + plugin.getPriceHistory().getStatistics());
+        sender.sendMessage(plugin.log.playerPrefix + "web sync: " + ChatColor.GRAY + plugin.getChangeFeed().getStatistics());
+    }
+
+    /**
+     * Shows the prices an item was recently traded for
+     *
+     * @param sender who asked
+     * @param player the player who asked (null for console)
+     * @param args command arguments; the item's name or id, the item in hand
+     * if missing
+     */
+    protected void price(CommandSender sender, Player player, String[] args) {
+        if (plugin.getPriceHistory() == null) {
+            sender.sendMessage(plugin.log.playerPrefix + "not connected to the database");
+            return;
+        }
+        Material material = null;
+        if (args.length > 1) {
+            material = Material.matchMaterial(args[1]);
+        } else if (player != null && player.getItemInHand() != null) {
+            material = player.getItemInHand().getType();
+        }
+        if (material == null || material == Material.AIR) {
+            plugin.log.warning(player, args.length > 1 ? "unknown item '" + args[1] + "'" : "name an item or hold it in hand");
+            return;
+        }
+        sender.sendMessage(plugin.log.playerPrefix + "prices of " + material.name() + ":");
+        sendPrices(sender, "last hour", plugin.getPriceHistory().getSummary(material.getId(), Rollup.Resolution.MINUTE, 60));
+        sendPrices(sender, "last day", plugin.getPriceHistory().getSummary(material.getId(), Rollup.Resolution.HOUR, 24));
+        sendPrices(sender, "last week", plugin.getPriceHistory().getSummary(material.getId(), Rollup.Resolution.DAY, 7));
+    }
+
+    protected void sendPrices(CommandSender sender, String period, Rollup summary) {
+        if (summary.getTrades() == 0) {
+            sender.sendMessage(plugin.log.playerPrefix + period + ": " + ChatColor.GRAY + "no trades");
+            return;
+        }
+        sender.sendMessage(plugin.log.playerPrefix + period + ": " + ChatColor.GRAY
+                + "median " + Order.fromCents(summary.getQuantile(0.5))
+                + ", 90% below " + Order.fromCents(summary.getQuantile(0.9))
+                + ", average " + Order.fromCents(summary.getVwap())
+                + ", range " + Order.fromCents(summary.getMin()) + " - " + Order.fromCents(summary.getMax())
+                + ", " + summary.getVolume() + " items in " + summary.getTrades() + " trades");
+    }
+
+    /**
+     * Lists the cheapest listings selling an item, or items named or
+     * described by the given words
+     *
+     * @param sender who asked
+     * @param player the player who asked (null for console)
+     * @param args command arguments; the item (optional; "item:" and its
+     * name, its id, or its exact name if it can't be taken for a word) and
+     * words (or their beginnings) of the name or lore of the item
+     */
+    protected void search(CommandSender sender, Player player, String[] args) {
+        if (plugin.getSearchIndex() == null) {
+            sender.sendMessage(plugin.log.playerPrefix + "not connected to the database");
+            return;
+        }
+        SearchIndex.Query query = new SearchIndex.Query();
+        query.side = Order.Side.SELL;
+        int first = 1;
+        if (args.length > 1) {
+            Material material;
+            if (args[1].regionMatches(true, 0, "item:", 0, 5)) {
+                material = Material.matchMaterial(args[1].substring(5));
+                if (material == null) {
+                    plugin.log.warning(player, "unknown item '" + args[1].substring(5) + "'");
+                    return;
+                }
+            } else {
+                material = parseMaterial(args[1]);
+            }
+            if (material != null) {
+                query.material = material.getId();
+                first = 2;
+            }
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = first; i < args.length; i++) {
+            text.append(args[i]).append(' ');
+        }
+        query.text = text.toString();
+        List<Order> results = plugin.getSearchIndex().search(query);
+        if (results.isEmpty()) {
+            sender.sendMessage(plugin.log.playerPrefix + "nothing found");
+            return;
+        }
+        for (Order order : results) {
+            Material material = Material.getMaterial(order.material);
+            sender.sendMessage(plugin.log.playerPrefix + "#" + order.id + " " + (material == null ? order.material : material.name())
+                    + " x" + order.getAmount() + ChatColor.GRAY + " for " + Order.fromCents(order.price) + " each, by " + order.player);
+        }
+    }
+
+    /**
+     * Reads an item given by its id or by its exact name, taking only names
+     * that can't be ordinary words (with an underscore or a digit), so that
+     * a search for e.g. "diamond" looks for the word
+     *
+     * @param arg the argument
+     * @return the item, null if the argument is not one
+     */
+    protected static Material parseMaterial(String arg) {
+        if (arg.matches("[0-9]{1,5}")) {
+            return Material.getMaterial(Integer.parseInt(arg));
+        }
+        if (arg.matches(".*[_0-9].*")) {
+            return Material.getMaterial(arg.toUpperCase(Locale.ENGLISH));
+        }
+        return null;
+    }
+
+    /**
+     * Starts a background validation of all signs, unless one is already
+     * running
+     *
+     * @param player the player who issued the command (null for console)
+     * @param args command arguments; "remove", "format" and "loadchunks" are
+     * recognized as options
+     */
+    protected void validate(Player player, String[] args) {
+        if (plugin.getSignsStorage() == null) {
+            plugin.log.warning(player, "MineAuction signs are disabled");
+            return;
+        }
+        if (this.validator != null && !this.validator.isFinished()) {
+            plugin.log.warning(player, "Sign validation is already running (" + this.validator.getProgress() + ")");
+            return;
+        }
+        boolean remove = false;
+        boolean format = false;
+        boolean loadChunks = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("remove")) {
+                remove = true;
+            } else if (args[i].equalsIgnoreCase("format")) {
+                format = true;
+            } else if (args[i].equalsIgnoreCase("loadchunks")) {
+                loadChunks = true;
+            } else {
+                plugin.log.warning(player, "unknown option '" + args[i] + "'");
+                return;
+            }
+        }
+        this.validator = new SignValidator(plugin, remove, true, format, loadChunks,
+                plugin.config.getDouble("options.signs.validation.tickBudget", 2), player);
+        this.validator.start();
+    }
+}
@@ -0,0 +1,248 @@
+package net.amunak.bukkit.mineauction.actions;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.Material;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+
+/**
+ * An item stack encoded by {@link ItemCodec}, decoded lazily: the material,
+ * amount and durability are read right away, enchantments, name and lore on
+ * first access, and the rest of the meta only when the item stack is built.
+ * Listing and searching items thus never pays for books' pages and the like.
+ *
+ * Not thread safe.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class EncodedItem {
+
+    protected final byte[] data;
+    protected final int material;
+    protected final int amount;
+    protected final short durability;
+    protected final int flags;
+    protected final int metaOffset;
+    protected int otherMetaOffset = -1;
+    protected Map<Integer, Integer> enchantments;
+    protected String name;
+    protected List<String> lore;
+
+    /**
+     * Reads the header of the encoded stack
+     *
+     * @param data the encoded stack, which must not be modified afterwards
+     * @throws IllegalArgumentException if the data is not an encoded stack
+     */
+    public EncodedItem(byte[] data) {
+        if (!ItemCodec.isEncoded(data)) {
+            throw new IllegalArgumentException("invalid item data: not an encoded item stack");
+        }
+        if (data[1] != ItemCodec.VERSION) {
+            throw new IllegalArgumentException("invalid item data: unsupported format version " + data[1]);
+        }
+        ItemCodec.Reader in = new ItemCodec.Reader(data, 2);
+        this.data = data;
+        this.material = in.readVarInt();
+        this.amount = in.readVarInt();
+        this.durability = (short) in.readSignedVarInt();
+        this.flags = in.readVarInt();
+        this.metaOffset = in.position;
+    }
+
+    public int getMaterialId() {
+        return this.material;
+    }
+
+    public int getAmount() {
+        return this.amount;
+    }
+
+    public short getDurability() {
+        return this.durability;
+    }
+
+    /**
+     * Returns the enchantments
+     *
+     * @return enchantment ids mapped to levels, empty if there are none
+     */
+    public Map<Integer, Integer> getEnchantments() {
+        this.decodeMeta();
+        return this.enchantments;
+    }
+
+    /**
+     * Returns the display name
+     *
+     * @return the display name or null if the item isn't renamed
+     */
+    public String getDisplayName() {
+        this.decodeMeta();
+        return this.name;
+    }
+
+    /**
+     * Returns the lore
+     *
+     * @return the lore lines, empty if there are none
+     */
+    public List<String> getLore() {
+        this.decodeMeta();
+        return this.lore;
+    }
+
+    /**
+     * Returns whether the item has meta other than enchantments, name and
+     * lore
+     *
+     * @return true if there is other meta
+     */
+    public boolean hasOtherMeta() {
+        return (this.flags & ItemCodec.HAS_META) != 0;
+    }
+
+    /**
+     * Returns a hash of the enchantments, name, lore and other meta - equal
+     * for stacks that differ only in amount, and 0 for stacks without any
+     * of them
+     *
+     * @return the hash
+     */
+    public int getMetaHash() {
+        if (this.flags == 0) {
+            return 0;
+        }
+        this.decodeMeta();
+        // the hash of a map doesn't depend on the order of its entries
+        int hash = this.enchantments.hashCode();
+        hash = 31 * hash + (this.name == null ? 0 : this.name.hashCode());
+        hash = 31 * hash + this.lore.hashCode();
+        for (int i = this.otherMetaOffset; i < this.data.length; i++) {
+            hash = 31 * hash + this.data[i];
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Builds the item stack
+     *
+     * @return the item stack
+     * @throws IllegalArgumentException if the data is damaged or refers to
+     * unknown materials or enchantments
+     */
+    public ItemStack toItemStack() {
+        Material type = Material.getMaterial(this.material);
+        if (type == null) {
+            throw new IllegalArgumentException("invalid item data: unknown material " + this.material);
+        }
+        this.decodeMeta();
+        ItemStack item = new ItemStack(type, this.amount, this.durability);
+        if (this.hasOtherMeta() || this.name != null || !this.lore.isEmpty()) {
+            ItemMeta meta;
+            if (this.hasOtherMeta()) {
+                ItemCodec.Reader in = new ItemCodec.Reader(this.data, this.otherMetaOffset);
+                in.readLength();
+                Map<String, Object> serialized = new LinkedHashMap<>();
+                serialized.put(ConfigurationSerialization.SERIALIZED_TYPE_KEY, ItemCodec.META_ALIAS);
+                Object other = in.readValue(0);
+                if (!(other instanceof Map)) {
+                    throw new IllegalArgumentException("invalid item data: item meta is not a map");
+                }
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) other).entrySet()) {
+                    serialized.put(String.valueOf(entry.getKey()), entry.getValue());
+                }
+                if (this.name != null) {
+                    serialized.put(ItemCodec.NAME_KEY, this.name);
+                }
+                if (!this.lore.isEmpty()) {
+                    serialized.put(ItemCodec.LORE_KEY, this.lore);
+                }
+                Object deserialized = ConfigurationSerialization.deserializeObject(serialized);
+                if (!(deserialized instanceof ItemMeta)) {
+                    throw new IllegalArgumentException("invalid item data: cannot deserialize item meta");
+                }
+                meta = (ItemMeta) deserialized;
+            } else {
+                meta = item.getItemMeta();
+                if (this.name != null) {
+                    meta.setDisplayName(this.name);
+                }
+                if (!this.lore.isEmpty()) {
+                    meta.setLore(new ArrayList<>(this.lore));
+                }
+            }
+            item.setItemMeta(meta);
+        }
+        for (Map.Entry<Integer, Integer> enchantment : this.enchantments.entrySet()) {
+            Enchantment enchantmentType = Enchantment.getById(enchantment.getKey());
+            if (enchantmentType == null) {
+                throw new IllegalArgumentException("invalid item data: unknown enchantment " + enchantment.getKey());
+            }
+            item.addUnsafeEnchantment(enchantmentType, enchantment.getValue());
+        }
+        return item;
+    }
+
+    /**
+     * Reads enchantments, name and lore, and finds where the other meta
+     * starts
+     */
+    protected void decodeMeta() {
+        if (this.otherMetaOffset >= 0) {
+            return;
+        }
+        ItemCodec.Reader in = new ItemCodec.Reader(this.data, this.metaOffset);
+        if ((this.flags & ItemCodec.HAS_ENCHANTMENTS) != 0) {
+            int count = in.readLength();
+            Map<Integer, Integer> read = new LinkedHashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                read.put(in.readVarInt(), in.readVarInt());
+            }
+            this.enchantments = Collections.unmodifiableMap(read);
+        } else {
+            this.enchantments = Collections.emptyMap();
+        }
+        this.name = (this.flags & ItemCodec.HAS_NAME) != 0 ? in.readString() : null;
+        if ((this.flags & ItemCodec.HAS_LORE) != 0) {
+            int count = in.readLength();
+            List<String> read = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                read.add(in.readString());
+            }
+            this.lore = Collections.unmodifiableList(read);
+        } else {
+            this.lore = Collections.emptyList();
+        }
+        if (this.hasOtherMeta()) {
+            // checked now, so a damaged length is found before building
+            int position = in.position;
+            in.skip(in.readLength());
+            this.otherMetaOffset = position;
+        } else {
+            this.otherMetaOffset = in.position;
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package net.amunak.bukkit.mineauction.actions;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+
+/**
+ * Compact binary format of item stacks stored in the database.
+ *
+ * An encoded stack is:
+ * <pre>
+ * byte     MAGIC (0xB7)
+ * byte     format version (1)
+ * varint   material id
+ * varint   amount
+ * zigzag   durability
+ * varint   flags: 1 enchantments, 2 display name, 4 lore, 8 other meta
+ * [varint count, count * (varint enchantment id, varint level)]
+ * [string display name]
+ * [varint count, count * string lore line]
+ * [varint length, value other meta]
+ * </pre>
+ * where a varint is an unsigned LEB128 number (7 bits a byte, low bits
+ * first), a zigzag is a signed number mapped to a varint ({@code 0, -1, 1,
+ * -2, ...} to {@code 0, 1, 2, 3, ...}) and a string is a varint length
+ * followed by UTF-8 bytes. Materials and enchantments are stored by their
+ * numeric ids, which is also how the web interface refers to them.
+ *
+ * Other meta (book contents, colors, skull owners, fireworks...) is whatever
+ * is left of {@link ItemMeta#serialize()} after the fields above, written as a
+ * tagged value - a tag byte followed by the value, see the {@code TAG_}
+ * constants. It is length-prefixed, so readers that don't need it (like the
+ * web interface or {@link EncodedItem}) can skip it.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class ItemCodec {
+
+    public final static byte MAGIC = (byte) 0xB7;
+    public final static byte VERSION = 1;
+    protected final static int HAS_ENCHANTMENTS = 1;
+    protected final static int HAS_NAME = 2;
+    protected final static int HAS_LORE = 4;
+    protected final static int HAS_META = 8;
+    protected final static int TAG_NULL = 0;
+    protected final static int TAG_STRING = 1;
+    protected final static int TAG_INT = 2;
+    protected final static int TAG_LONG = 3;
+    protected final static int TAG_SHORT = 4;
+    protected final static int TAG_BYTE = 5;
+    protected final static int TAG_DOUBLE = 6;
+    protected final static int TAG_FLOAT = 7;
+    protected final static int TAG_TRUE = 8;
+    protected final static int TAG_FALSE = 9;
+    protected final static int TAG_LIST = 10;
+    protected final static int TAG_MAP = 11;
+    protected final static int TAG_SERIALIZABLE = 12;
+    protected final static int MAX_DEPTH = 32;
+    protected final static String NAME_KEY = "display-name";
+    protected final static String LORE_KEY = "lore";
+    protected final static String ENCHANTMENTS_KEY = "enchants";
+    protected final static String META_TYPE_KEY = "meta-type";
+    protected final static String PLAIN_META_TYPE = "UNSPECIFIC";
+    protected final static String META_ALIAS = "ItemMeta";
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private ItemCodec() {
+    }
+
+    /**
+     * Returns whether the data is in this format (and not e.g. YAML)
+     *
+     * @param data the data
+     * @return true if the data starts with the magic byte
+     */
+    public static boolean isEncoded(byte[] data) {
+        return data != null && data.length >= 2 && data[0] == MAGIC;
+    }
+
+    /**
+     * Encodes the item stack. Safe to call off the main thread on a stack
+     * that is not shared (e.g. a clone).
+     *
+     * @param item the item stack
+     * @return the encoded stack
+     * @throws IllegalArgumentException if the meta contains values that can't
+     * be encoded
+     */
+    public static byte[] encode(ItemStack item) {
+        Map<Enchantment, Integer> enchantments = item.getEnchantments();
+        String name = null;
+        List<String> lore = null;
+        Map<String, Object> meta = null;
+        if (item.hasItemMeta()) {
+            ItemMeta itemMeta = item.getItemMeta();
+            name = itemMeta.hasDisplayName() ? itemMeta.getDisplayName() : null;
+            lore = itemMeta.hasLore() ? itemMeta.getLore() : null;
+            meta = new LinkedHashMap<>(itemMeta.serialize());
+            meta.remove(NAME_KEY);
+            meta.remove(LORE_KEY);
+            meta.remove(ENCHANTMENTS_KEY);
+            if (meta.isEmpty() || (meta.size() == 1 && PLAIN_META_TYPE.equals(meta.get(META_TYPE_KEY)))) {
+                meta = null;
+            }
+        }
+        int flags = (enchantments != null && !enchantments.isEmpty() ? HAS_ENCHANTMENTS : 0)
+                | (name != null ? HAS_NAME : 0)
+                | (lore != null ? HAS_LORE : 0)
+                | (meta != null ? HAS_META : 0);
+
+        Writer out = new Writer(16);
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeVarInt(item.getTypeId());
+        out.writeVarInt(item.getAmount());
+        out.writeSignedVarInt(item.getDurability());
+        out.writeVarInt(flags);
+        if ((flags & HAS_ENCHANTMENTS) != 0) {
+            out.writeVarInt(enchantments.size());
+            for (Map.Entry<Enchantment, Integer> enchantment : enchantments.entrySet()) {
+                out.writeVarInt(enchantment.getKey().getId());
+                out.writeVarInt(enchantment.getValue());
+            }
+        }
+        if (name != null) {
+            out.writeString(name);
+        }
+        if (lore != null) {
+            out.writeVarInt(lore.size());
+            for (String line : lore) {
+                out.writeString(line);
+            }
+        }
+        if (meta != null) {
+            Writer metaOut = new Writer(64);
+            metaOut.writeValue(meta, 0);
+            out.writeVarInt(metaOut.length);
+            out.writeBytes(metaOut.buffer, 0, metaOut.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes an item stack
+     *
+     * @param data the encoded stack
+     * @return the item stack
+     * @throws IllegalArgumentException if the data is not a valid item stack
+     */
+    public static ItemStack decode(byte[] data) {
+        return new EncodedItem(data).toItemStack();
+    }
+
+    /**
+     * Growable byte buffer with the primitives of the format
+     */
+    protected static class Writer {
+
+        protected byte[] buffer;
+        protected int length;
+
+        protected Writer(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        protected void ensure(int extra) {
+            if (this.length + extra > this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.length + extra));
+            }
+        }
+
+        protected void writeByte(int value) {
+            this.ensure(1);
+            this.buffer[this.length++] = (byte) value;
+        }
+
+        protected void writeBytes(byte[] bytes, int offset, int count) {
+            this.ensure(count);
+            System.arraycopy(bytes, offset, this.buffer, this.length, count);
+            this.length += count;
+        }
+
+        protected void writeVarInt(int value) {
+            this.writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        protected void writeSignedVarInt(int value) {
+            this.writeVarInt((value << 1) ^ (value >> 31));
+        }
+
+        protected void writeVarLong(long value) {
+            this.ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                this.buffer[this.length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            this.buffer[this.length++] = (byte) value;
+        }
+
+        protected void writeFixedLong(long value) {
+            this.ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                this.buffer[this.length++] = (byte) (value >>> shift);
+            }
+        }
+
+        protected void writeString(String value) {
+            byte[] bytes = value.getBytes(UTF8);
+            this.writeVarInt(bytes.length);
+            this.writeBytes(bytes, 0, bytes.length);
+        }
+
+        protected void writeValue(Object value, int depth) {
+            if (depth > MAX_DEPTH) {
+                throw new IllegalArgumentException("item meta is nested too deep");
+            }
+            if (value == null) {
+                this.writeByte(TAG_NULL);
+            } else if (value instanceof String) {
+                this.writeByte(TAG_STRING);
+                this.writeString((String) value);
+            } else if (value instanceof Integer) {
+                this.writeByte(TAG_INT);
+                this.writeSignedVarInt((Integer) value);
+            } else if (value instanceof Long) {
+                long number = (Long) value;
+                this.writeByte(TAG_LONG);
+                this.writeVarLong((number << 1) ^ (number >> 63));
+            } else if (value instanceof Short) {
+                this.writeByte(TAG_SHORT);
+                this.writeSignedVarInt((Short) value);
+            } else if (value instanceof Byte) {
+                this.writeByte(TAG_BYTE);
+                this.writeByte((Byte) value);
+            } else if (value instanceof Double) {
+                this.writeByte(TAG_DOUBLE);
+                this.writeFixedLong(Double.doubleToLongBits((Double) value));
+            } else if (value instanceof Float) {
+                this.writeByte(TAG_FLOAT);
+                this.writeVarInt(Float.floatToIntBits((Float) value));
+            } else if (value instanceof Boolean) {
+                this.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                this.writeByte(TAG_LIST);
+                this.writeVarInt(list.size());
+                for (Object element : list) {
+                    this.writeValue(element, depth + 1);
+                }
+            } else if (value instanceof Map) {
+                this.writeByte(TAG_MAP);
+                this.writeMap((Map<?, ?>) value, depth);
+            } else if (value instanceof ConfigurationSerializable) {
+                ConfigurationSerializable serializable = (ConfigurationSerializable) value;
+                this.writeByte(TAG_SERIALIZABLE);
+                this.writeString(ConfigurationSerialization.getAlias(serializable.getClass()));
+                this.writeMap(serializable.serialize(), depth);
+            } else {
+                throw new IllegalArgumentException("cannot encode " + value.getClass().getName() + " in item meta");
+            }
+        }
+
+        protected void writeMap(Map<?, ?> map, int depth) {
+            this.writeVarInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                this.writeString(String.valueOf(entry.getKey()));
+                this.writeValue(entry.getValue(), depth + 1);
+            }
+        }
+
+        protected byte[] toByteArray() {
+            return Arrays.copyOf(this.buffer, this.length);
+        }
+    }
+
+    /**
+     * Reads the primitives of the format, failing with
+     * IllegalArgumentException on damaged data
+     */
+    protected static class Reader {
+
+        protected final byte[] data;
+        protected int position;
+
+        protected Reader(byte[] data, int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        protected int readByte() {
+            if (this.position >= this.data.length) {
+                throw new IllegalArgumentException("invalid item data: unexpected end");
+            }
+            return this.data[this.position++] & 0xFF;
+        }
+
+        protected int readVarInt() {
+            long value = this.readVarLong();
+            if ((value & ~0xFFFFFFFFL) != 0) {
+                throw new IllegalArgumentException("invalid item data: number too big");
+            }
+            return (int) value;
+        }
+
+        protected int readSignedVarInt() {
+            int value = this.readVarInt();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        protected long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = this.readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("invalid item data: number too long");
+        }
+
+        protected long readFixedLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | this.readByte();
+            }
+            return value;
+        }
+
+        /**
+         * Reads a count or length, checking it against the remaining data
+         * (every element takes at least one byte)
+         */
+        protected int readLength() {
+            int length = this.readVarInt();
+            if (length < 0 || length > this.data.length - this.position) {
+                throw new IllegalArgumentException("invalid item data: bad length " + (length & 0xFFFFFFFFL));
+            }
+            return length;
+        }
+
+        protected String readString() {
+            int length = this.readLength();
+            String value = new String(this.data, this.position, length, UTF8);
+            this.position += length;
+            return value;
+        }
+
+        protected void skip(int count) {
+            this.position += count;
+        }
+
+        protected Object readValue(int depth) {
+            if (depth > MAX_DEPTH) {
+                throw new IllegalArgumentException("invalid item data: nested too deep");
+            }
+            int tag = this.readByte();
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_STRING:
+                    return this.readString();
+                case TAG_INT:
+                    return this.readSignedVarInt();
+                case TAG_LONG:
+                    long number = this.readVarLong();
+                    return (number >>> 1) ^ -(number & 1);
+                case TAG_SHORT:
+                    return (short) this.readSignedVarInt();
+                case TAG_BYTE:
+                    return (byte) this.readByte();
+                case TAG_DOUBLE:
+                    return Double.longBitsToDouble(this.readFixedLong());
+                case TAG_FLOAT:
+                    return Float.intBitsToFloat(this.readVarInt());
+                case TAG_TRUE:
+                    return Boolean.TRUE;
+                case TAG_FALSE:
+                    return Boolean.FALSE;
+                case TAG_LIST:
+                    int size = this.readLength();
+                    List<Object> list = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        list.add(this.readValue(depth + 1));
+                    }
+                    return list;
+                case TAG_MAP:
+                    return this.readMap(depth);
+                case TAG_SERIALIZABLE:
+                    String alias = this.readString();
+                    Map<String, Object> map = this.readMap(depth);
+                    map.put(ConfigurationSerialization.SERIALIZED_TYPE_KEY, alias);
+                    ConfigurationSerializable object = ConfigurationSerialization.deserializeObject(map);
+                    if (object == null) {
+                        throw new IllegalArgumentException("invalid item data: cannot deserialize " + alias);
+                    }
+                    return object;
+                default:
+                    throw new IllegalArgumentException("invalid item data: unknown tag " + tag);
+            }
+        }
+
+        protected Map<String, Object> readMap(int depth) {
+            int size = this.readLength();
+            Map<String, Object> map = new LinkedHashMap<>(size * 2);
+            for (int i = 0; i < size; i++) {
+                String key = this.readString();
+                map.put(key, this.readValue(depth + 1));
+            }
+            return map;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package net.amunak.bukkit.mineauction.actions;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.nio.charset.Charset;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Converts item stacks to bytes stored in the database and back. Stacks are
+ * written in the binary {@link ItemCodec} format; items stored before it was
+ * introduced are in Bukkit's YAML serialization of ItemStack and are still
+ * read.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class ItemSerializer {
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static String KEY = "item";
+
+    private ItemSerializer() {
+    }
+
+    /**
+     * Serializes the item stack. Safe to call off the main thread on a stack
+     * that is not shared (e.g. a clone).
+     *
+     * @param item the item stack
+     * @return the serialized stack
+     */
+    public static byte[] serialize(ItemStack item) {
+        return ItemCodec.encode(item);
+    }
+
+    /**
+     * Deserializes an item stack
+     *
+     * @param data the serialized stack
+     * @return the item stack
+     * @throws IllegalArgumentException if the data is not a valid item stack
+     */
+    public static ItemStack deserialize(byte[] data) {
+        if (ItemCodec.isEncoded(data)) {
+            return ItemCodec.decode(data);
+        }
+        YamlConfiguration yaml = new YamlConfiguration();
+        try {
+            yaml.loadFromString(new String(data, UTF8));
+        } catch (InvalidConfigurationException ex) {
+            throw new IllegalArgumentException("invalid item data: " + ex.getMessage(), ex);
+        }
+        ItemStack item = yaml.getItemStack(KEY);
+        if (item == null) {
+            throw new IllegalArgumentException("invalid item data: no item stack");
+        }
+        return item;
+    }
+}
@@ -16,31 +16,401 @@ package net.amunak.bukkit.mineauction.actions;
  * You should have received a copy of the GNU General Public License along with
  * this program. If not, see <http://www.gnu.org/licenses/>.
  */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import net.amunak.bukkit.mineauction.MineAuction;
+import net.amunak.bukkit.mineauction.database.DatabaseExecutor;
+import net.amunak.bukkit.mineauction.database.StoredItem;
+import net.amunak.bukkit.mineauction.database.Transfer;
+import net.amunak.bukkit.mineauction.database.UnknownOutcomeException;
 import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
 
 /**
+ * Players' virtual inventories - the items they have deposited to MineAuction
+ *
+ * Depositing opens an empty inventory; whatever the player puts in is stored
+ * when the inventory is closed. All the stacks are serialized off the main
+ * thread and saved to the {@link net.amunak.bukkit.mineauction.database.TransferLog}
+ * as a single transfer, which is then written to the database in the
+ * background. If the transfer can't be saved, the items are given back to
+ * the player.
+ *
+ * Withdrawing shows the items a page at a time, loaded through the
+ * {@link WithdrawalCache}; the bottom row holds the page controls. A clicked
+ * item is claimed in the database first and given to the player only once
+ * the database confirms it was still there.
  *
  * @author Jiri Barous (Amunak) < http://amunak.net >
  */
 public class VirtualInventory {
 
-    public static void deposit(Player player) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public final static int DEPOSIT_SIZE = 9 * 6;
+    public final static int WITHDRAWAL_SIZE = 9 * 6;
+    public final static int PREVIOUS_SLOT = 45;
+    public final static int PAGE_SLOT = 49;
+    public final static int NEXT_SLOT = 53;
+
+    /**
+     * Opens the deposit inventory for the player
+     *
+     * @param player the player
+     * @param plugin the plugin
+     */
+    public static void deposit(Player player, MineAuction plugin) {
+        if (plugin.getTransferLog() == null) {
+            plugin.log.warning(player, "Deposit is not available - MineAuction is not connected to its database");
+            return;
+        }
+        DepositHolder holder = new DepositHolder(player.getName());
+        holder.inventory = Bukkit.createInventory(holder, DEPOSIT_SIZE, "§2MineAuction Deposit");
+        player.openInventory(holder.inventory);
+    }
+
+    /**
+     * Stores the contents of a closed deposit inventory. The inventory is
+     * emptied right away, the items are then either stored or given back.
+     *
+     * @param player the depositing player
+     * @param inventory the deposit inventory
+     * @param plugin the plugin
+     */
+    public static void finishDeposit(final Player player, Inventory inventory, final MineAuction plugin) {
+        final List<ItemStack> items = new ArrayList<>(inventory.getSize());
+        for (ItemStack item : inventory.getContents()) {
+            if (item != null && item.getType() != Material.AIR && item.getAmount() > 0) {
+                items.add(item.clone());
+            }
+        }
+        inventory.clear();
+        if (items.isEmpty()) {
+            return;
+        }
+
+        final String playerName = player.getName();
+        boolean submitted = plugin.getTransferLog().append(new Callable<Transfer>() {
+            @Override
+            public Transfer call() {
+                List<StoredItem> stored = new ArrayList<>(items.size());
+                for (ItemStack item : items) {
+                    stored.add(new StoredItem(item.getTypeId(), item.getAmount(), ItemSerializer.serialize(item)));
+                }
+                return Transfer.deposit(playerName, stored);
+            }
+        }, new DatabaseExecutor.Callback<Transfer>() {
+            @Override
+            public void onSuccess(Transfer transfer) {
+                plugin.log.info(player, "Deposited " + ChatColor.GREEN + transfer.items.size() + ChatColor.RESET + " item stacks");
+                plugin.log.fine(playerName + " deposited " + transfer.items.size() + " item stacks (transfer " + transfer.id + ")");
+                if (plugin.getWithdrawalCache() != null) {
+                    plugin.getWithdrawalCache().invalidate(playerName);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                plugin.log.warning("deposit of " + items.size() + " item stacks by " + playerName + " failed: " + error.toString());
+                plugin.log.warning(player, "Deposit failed, your items were returned to you");
+                giveBack(player, items, plugin);
+            }
+        });
+        if (!submitted) {
+            plugin.log.warning(player, "MineAuction is busy, please try again later");
+            giveBack(player, items, plugin);
+        }
     }
 
-    public static void withdraw(Player player) {
-        Inventory inventory = Bukkit.createInventory(null, 9 * 8, "§4MineAuction Withdrawal inventory");
-        inventory.setMaxStackSize(Integer.MAX_VALUE);
-        inventory.addItem(new ItemStack(Material.STONE, 64));
-        inventory.addItem(new ItemStack(Material.DIRT, 512));
-        inventory.addItem(new ItemStack(Material.SIGN, 256));
-        inventory.setItem(13, new ItemStack(Material.DIAMOND_HOE, 4));
-        inventory.setItem((9 * 8) - 4, new ItemStack(Material.IRON_SWORD, 1));
+    /**
+     * Returns items to the player, dropping what doesn't fit in the inventory
+     * (or everything, if the player has left) at the player's location
+     *
+     * @param player the player
+     * @param items the items
+     * @param plugin the plugin
+     */
+    public static void giveBack(Player player, List<ItemStack> items, MineAuction plugin) {
+        Location location = player.getLocation();
+        if (player.isOnline()) {
+            HashMap<Integer, ItemStack> leftover = player.getInventory().addItem(items.toArray(new ItemStack[items.size()]));
+            for (ItemStack item : leftover.values()) {
+                location.getWorld().dropItemNaturally(location, item);
+            }
+            player.updateInventory();
+        } else {
+            plugin.log.warning(player.getName() + " is offline, dropping " + items.size() + " returned item stacks at " + location.toString());
+            for (ItemStack item : items) {
+                location.getWorld().dropItemNaturally(location, item);
+            }
+        }
+    }
+
+    /**
+     * Closes all open deposit inventories, so their contents get stored
+     *
+     * @param plugin the plugin
+     */
+    public static void closeDeposits(MineAuction plugin) {
+        for (Player player : plugin.getServer().getOnlinePlayers()) {
+            if (player.getOpenInventory().getTopInventory().getHolder() instanceof DepositHolder) {
+                player.closeInventory();
+            }
+        }
+    }
+
+    /**
+     * Opens the withdrawal inventory at the first page of the player's items
+     *
+     * @param player the player
+     * @param plugin the plugin
+     */
+    public static void withdraw(Player player, MineAuction plugin) {
+        if (plugin.getWithdrawalCache() == null) {
+            plugin.log.warning(player, "Withdrawal is not available - MineAuction is not connected to its database");
+            return;
+        }
+        WithdrawalHolder holder = new WithdrawalHolder(player.getName());
+        holder.inventory = Bukkit.createInventory(holder, WITHDRAWAL_SIZE, "§4MineAuction Withdrawal");
+        showPage(player, holder, 0, plugin);
+    }
+
+    /**
+     * Shows a page of the player's items in the withdrawal inventory, opening
+     * the inventory if it isn't open yet. Only the items on the page are
+     * turned into item stacks; the neighbouring pages are then loaded in the
+     * background.
+     *
+     * @param player the player
+     * @param holder the player's withdrawal inventory
+     * @param index the page, the cursor of which must be known
+     * @param plugin the plugin
+     */
+    public static void showPage(final Player player, final WithdrawalHolder holder, final int index, final MineAuction plugin) {
+        if (holder.loading) {
+            return;
+        }
+        holder.loading = true;
+        final WithdrawalCache cache = plugin.getWithdrawalCache();
+        boolean submitted = cache.get(player.getName(), holder.cursors.get(index), new DatabaseExecutor.Callback<WithdrawalCache.Page>() {
+            @Override
+            public void onSuccess(WithdrawalCache.Page page) {
+                holder.loading = false;
+                if (!player.isOnline()
+                        || (holder.opened && player.getOpenInventory().getTopInventory().getHolder() != holder)) {
+                    return;
+                }
+                holder.page = index;
+                if (page.hasMore()) {
+                    if (holder.cursors.size() == index + 1) {
+                        holder.cursors.add(page.getLastId());
+                    } else {
+                        holder.cursors.set(index + 1, page.getLastId());
+                    }
+                }
+                fillPage(holder, page, plugin);
+                if (!holder.opened) {
+                    holder.opened = true;
+                    player.openInventory(holder.inventory);
+                }
+                if (page.hasMore()) {
+                    cache.prefetch(player.getName(), page.getLastId());
+                }
+                if (index > 0) {
+                    cache.prefetch(player.getName(), holder.cursors.get(index - 1));
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                holder.loading = false;
+                plugin.log.warning("loading items of " + player.getName() + " failed: " + error.toString());
+                plugin.log.warning(player, "Could not load your items, please try again later");
+            }
+        });
+        if (!submitted) {
+            holder.loading = false;
+            plugin.log.warning(player, "MineAuction is busy, please try again later");
+        }
+    }
+
+    /**
+     * Puts the page's items and the controls into the withdrawal inventory
+     */
+    protected static void fillPage(WithdrawalHolder holder, WithdrawalCache.Page page, MineAuction plugin) {
+        holder.inventory.clear();
+        Arrays.fill(holder.items, null);
+        int slot = 0;
+        for (StoredItem item : page.getItems()) {
+            if (plugin.getWithdrawalCache().isWithdrawn(item.id)) {
+                continue;
+            }
+            try {
+                holder.inventory.setItem(slot, ItemSerializer.deserialize(item.data));
+                holder.items[slot++] = item;
+            } catch (IllegalArgumentException ex) {
+                plugin.log.warning("item " + item.id + " of " + holder.player + " is damaged: " + ex.getMessage());
+            }
+        }
+        if (holder.page > 0) {
+            holder.inventory.setItem(PREVIOUS_SLOT, control(Material.ARROW, "Previous page"));
+        }
+        holder.inventory.setItem(PAGE_SLOT, control(Material.PAPER, "Page " + (holder.page + 1)));
+        if (page.hasMore()) {
+            holder.inventory.setItem(NEXT_SLOT, control(Material.ARROW, "Next page"));
+        }
+    }
+
+    /**
+     * Creates a named item used as a button
+     */
+    protected static ItemStack control(Material material, String name) {
+        ItemStack stack = new ItemStack(material, 1);
+        ItemMeta meta = stack.getItemMeta();
+        meta.setDisplayName(ChatColor.GOLD + name);
+        stack.setItemMeta(meta);
+        return stack;
+    }
+
+    /**
+     * Handles a click into the withdrawal inventory - turns the page or takes
+     * out the clicked item
+     *
+     * @param player the player
+     * @param holder the player's withdrawal inventory
+     * @param slot the clicked slot
+     * @param plugin the plugin
+     */
+    public static void withdrawalClick(Player player, WithdrawalHolder holder, int slot, MineAuction plugin) {
+        if (slot == PREVIOUS_SLOT && holder.page > 0) {
+            showPage(player, holder, holder.page - 1, plugin);
+        } else if (slot == NEXT_SLOT && holder.cursors.size() > holder.page + 1) {
+            showPage(player, holder, holder.page + 1, plugin);
+        } else if (slot >= 0 && slot < WithdrawalCache.PAGE_SIZE && holder.items[slot] != null && !holder.loading) {
+            takeOut(player, holder, slot, plugin);
+        }
+    }
+
+    /**
+     * Withdraws an item: it disappears from the inventory right away, and is
+     * given to the player once it is claimed in the database. If it was no
+     * longer there (withdrawn or sold elsewhere), the player gets nothing; if
+     * it can't be claimed, the item is put back.
+     */
+    protected static void takeOut(final Player player, final WithdrawalHolder holder, final int slot, final MineAuction plugin) {
+        final StoredItem item = holder.items[slot];
+        final ItemStack stack = holder.inventory.getItem(slot);
+        final String playerName = player.getName();
+        final Transfer transfer = Transfer.withdrawal(playerName, Collections.singletonList(item));
+        holder.items[slot] = null;
+        holder.inventory.setItem(slot, null);
+        plugin.getWithdrawalCache().markWithdrawn(item.id);
+
+        boolean submitted = plugin.getTransferLog().withdraw(transfer, new DatabaseExecutor.Callback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean claimed) {
+                if (claimed) {
+                    plugin.log.fine(playerName + " withdrew item " + item.id + " (transfer " + transfer.id + ")");
+                    giveBack(player, Collections.singletonList(stack), plugin);
+                } else {
+                    plugin.log.warning(player, "That item is no longer available");
+                    plugin.getWithdrawalCache().invalidate(playerName);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                if (error instanceof UnknownOutcomeException) {
+                    // the item may be gone already - putting it back could
+                    // let the player withdraw it twice
+                    plugin.log.warning("withdrawal of item " + item.id + " by " + playerName + " (transfer " + transfer.id
+                            + ") may or may not have been written: " + error.toString());
+                    plugin.log.warning(player, "Withdrawal could not be confirmed, please check your items later");
+                    plugin.getWithdrawalCache().invalidate(playerName);
+                    return;
+                }
+                plugin.log.warning("withdrawal of item " + item.id + " by " + playerName + " failed: " + error.toString());
+                plugin.log.warning(player, "Withdrawal failed, please try again later");
+                putBack(holder, slot, item, stack, plugin);
+            }
+        });
+        if (!submitted) {
+            plugin.log.warning(player, "MineAuction is busy, please try again later");
+            putBack(holder, slot, item, stack, plugin);
+        }
+    }
+
+    /**
+     * Returns an item that could not be withdrawn to the withdrawal
+     * inventory, if the slot is still free
+     */
+    protected static void putBack(WithdrawalHolder holder, int slot, StoredItem item, ItemStack stack, MineAuction plugin) {
+        plugin.getWithdrawalCache().unmarkWithdrawn(item.id);
+        if (holder.items[slot] == null && holder.inventory.getItem(slot) == null) {
+            holder.items[slot] = item;
+            holder.inventory.setItem(slot, stack);
+        }
+    }
+
+    /**
+     * Marks deposit inventories, so they can be told apart when closed
+     */
+    public static class DepositHolder implements InventoryHolder {
+
+        protected final String player;
+        protected Inventory inventory;
+
+        public DepositHolder(String player) {
+            this.player = player;
+        }
+
+        public String getPlayer() {
+            return this.player;
+        }
+
+        @Override
+        public Inventory getInventory() {
+            return this.inventory;
+        }
+    }
+
+    /**
+     * Marks withdrawal inventories and keeps their state: the keyset cursors
+     * of the pages seen so far and the items on the current page
+     */
+    public static class WithdrawalHolder implements InventoryHolder {
+
+        protected final String player;
+        protected final List<Long> cursors;
+        protected final StoredItem[] items;
+        protected Inventory inventory;
+        protected int page;
+        protected boolean loading;
+        protected boolean opened;
+
+        public WithdrawalHolder(String player) {
+            this.player = player;
+            this.cursors = new ArrayList<>();
+            this.cursors.add(0L);
+            this.items = new StoredItem[WithdrawalCache.PAGE_SIZE];
+        }
+
+        public String getPlayer() {
+            return this.player;
+        }
 
-        player.openInventory(inventory);
+        @Override
+        public Inventory getInventory() {
+            return this.inventory;
+        }
     }
 }
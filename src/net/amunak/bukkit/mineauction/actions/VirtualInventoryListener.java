@@ -0,0 +1,83 @@
+package net.amunak.bukkit.mineauction.actions;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import net.amunak.bukkit.mineauction.MineAuction;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.event.inventory.InventoryCloseEvent;
+import org.bukkit.event.inventory.InventoryDragEvent;
+
+/**
+ * Handles the virtual inventories opened by players
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class VirtualInventoryListener implements Listener {
+
+    protected MineAuction plugin;
+
+    public VirtualInventoryListener(MineAuction p) {
+        this.plugin = p;
+        plugin.log.fine("VirtualInventoryListener registered");
+    }
+
+    /**
+     * Stores the items when a deposit inventory is closed
+     *
+     * @param event
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void inventoryCloseEvent(InventoryCloseEvent event) {
+        if (event.getInventory().getHolder() instanceof VirtualInventory.DepositHolder
+                && event.getPlayer() instanceof Player) {
+            VirtualInventory.finishDeposit((Player) event.getPlayer(), event.getInventory(), plugin);
+        }
+    }
+
+    /**
+     * Turns the pages of the withdrawal inventory and takes out clicked
+     * items; nothing can be moved in the inventory directly
+     *
+     * @param event
+     */
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.LOW)
+    public void inventoryClickEvent(InventoryClickEvent event) {
+        if (event.getInventory().getHolder() instanceof VirtualInventory.WithdrawalHolder) {
+            event.setCancelled(true);
+            if (event.getWhoClicked() instanceof Player && event.getRawSlot() < VirtualInventory.WITHDRAWAL_SIZE) {
+                VirtualInventory.withdrawalClick((Player) event.getWhoClicked(),
+                        (VirtualInventory.WithdrawalHolder) event.getInventory().getHolder(), event.getRawSlot(), plugin);
+            }
+        }
+    }
+
+    /**
+     * Keeps the withdrawal inventory read-only
+     *
+     * @param event
+     */
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.LOW)
+    public void inventoryDragEvent(InventoryDragEvent event) {
+        if (event.getInventory().getHolder() instanceof VirtualInventory.WithdrawalHolder) {
+            event.setCancelled(true);
+        }
+    }
+}
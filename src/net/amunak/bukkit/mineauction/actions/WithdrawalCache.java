@@ -0,0 +1,426 @@
+package net.amunak.bukkit.mineauction.actions;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import net.amunak.bukkit.mineauction.MineAuction;
+import net.amunak.bukkit.mineauction.database.Change;
+import net.amunak.bukkit.mineauction.database.ChangeFeed;
+import net.amunak.bukkit.mineauction.database.DatabaseExecutor;
+import net.amunak.bukkit.mineauction.database.ItemDao;
+import net.amunak.bukkit.mineauction.database.StoredItem;
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * Cache of players' virtual inventory contents, so paging through the
+ * withdrawal inventory doesn't have to load the items every time.
+ *
+ * Items are cached in pages of {@link #PAGE_SIZE}, keyed by the id after
+ * which the page starts (pages are read with keyset pagination), so players
+ * with thousands of items only ever have the pages they have looked at in
+ * memory.
+ *
+ * Every cached player remembers the version of the player's items the pages
+ * were loaded at (see the {@code players} table). Recently validated pages
+ * are used as they are; older ones are first checked against the version in
+ * the database - a single cheap query - and all the player's pages are
+ * dropped if the version has changed, e.g. because the items were changed on
+ * the web interface.
+ *
+ * The cache holds at most {@code maxPlayers} players and {@code maxPages}
+ * pages per player, evicting the least recently used ones, and drops players
+ * that weren't used for {@code expireAfter}. Players are also dropped as soon
+ * as the {@link ChangeFeed} reports a change of their items.
+ *
+ * Items being withdrawn are remembered for a while, and left out of the
+ * pages until their withdrawal is confirmed by the database (or has failed)
+ * and the player's cached pages are reloaded.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class WithdrawalCache implements ChangeFeed.Listener {
+
+    public final static int PAGE_SIZE = 45;
+    protected final MineAuction plugin;
+    protected final int maxPlayers;
+    protected final int maxPages;
+    protected final long freshFor;
+    protected final long expireAfter;
+    protected final long withdrawnFor;
+    protected final LinkedHashMap<String, CachedPages> entries;
+    protected final Map<Long, Long> withdrawn;
+    protected final AtomicLong hits;
+    protected final AtomicLong revalidations;
+    protected final AtomicLong misses;
+    protected final AtomicLong evictions;
+    protected final AtomicLong invalidations;
+
+    /**
+     * Constructs the cache from its config section
+     *
+     * @param plugin the plugin
+     * @param config the {@code options.withdrawal.cache} config section
+     */
+    public WithdrawalCache(MineAuction plugin, ConfigurationSection config) {
+        this(plugin,
+                config == null ? 256 : config.getInt("maxPlayers", 256),
+                config == null ? 8 : config.getInt("maxPages", 8),
+                config == null ? 5000 : config.getLong("freshFor", 5000),
+                (config == null ? 600 : config.getLong("expireAfter", 600)) * 1000);
+    }
+
+    /**
+     * Constructs the cache
+     *
+     * @param plugin the plugin
+     * @param maxPlayers maximal number of cached players
+     * @param maxPages maximal number of cached pages per player
+     * @param freshFor milliseconds for which validated pages are used
+     * without checking their version
+     * @param expireAfter milliseconds after which an unused player is dropped
+     */
+    public WithdrawalCache(MineAuction plugin, final int maxPlayers, int maxPages, long freshFor, long expireAfter) {
+        this.plugin = plugin;
+        this.maxPlayers = Math.max(1, maxPlayers);
+        this.maxPages = Math.max(1, maxPages);
+        this.freshFor = freshFor;
+        this.expireAfter = expireAfter;
+        // long enough for any page read before the withdrawal was applied to
+        // be revalidated
+        this.withdrawnFor = freshFor + 60000;
+        this.withdrawn = new HashMap<>();
+        this.hits = new AtomicLong();
+        this.revalidations = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+        this.invalidations = new AtomicLong();
+        this.entries = new LinkedHashMap<String, CachedPages>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPages> eldest) {
+                if (size() > WithdrawalCache.this.maxPlayers) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns a page of the player's items to the callback - right away if
+     * the cached page is fresh, otherwise after checking the version (and
+     * possibly loading the page) in the background. The callback is always
+     * called on the main thread.
+     *
+     * @param player the player
+     * @param after id of the last item before the page, 0 for the first page
+     * @param callback receives the page, which must not be modified
+     * @return false if the database is too busy to load the page (the
+     * callback is not called then), true otherwise
+     */
+    public boolean get(final String player, final long after, final DatabaseExecutor.Callback<Page> callback) {
+        final long now = System.currentTimeMillis();
+        final CachedPages cached;
+        final Page cachedPage;
+        synchronized (this) {
+            CachedPages entry = this.entries.get(player);
+            if (entry != null && now - entry.accessed > this.expireAfter) {
+                this.entries.remove(player);
+                this.evictions.incrementAndGet();
+                entry = null;
+            }
+            if (entry != null) {
+                entry.accessed = now;
+            }
+            cached = entry;
+            cachedPage = entry == null ? null : entry.pages.get(after);
+        }
+        if (cachedPage != null && now - cached.validated < this.freshFor) {
+            this.hits.incrementAndGet();
+            callback.onSuccess(cachedPage);
+            return true;
+        }
+
+        final ItemDao dao = new ItemDao(this.plugin.getSchema());
+        final long knownVersion = cached == null ? -1 : cached.version;
+        return this.plugin.getDatabaseExecutor().submit(new DatabaseExecutor.Query<Loaded>() {
+            @Override
+            public Loaded execute(Connection connection) throws SQLException {
+                // the version is read first: if the items change meanwhile,
+                // the page ends up with an outdated version and is reloaded
+                // on the next check
+                long version = dao.getVersion(connection, player);
+                if (version == knownVersion && cachedPage != null) {
+                    return new Loaded(version, null);
+                }
+                return new Loaded(version, new Page(dao.page(connection, player, after, PAGE_SIZE + 1)));
+            }
+        }, new DatabaseExecutor.Callback<Loaded>() {
+            @Override
+            public void onSuccess(Loaded loaded) {
+                long now = System.currentTimeMillis();
+                if (loaded.page == null) {
+                    revalidations.incrementAndGet();
+                    cached.validated = now;
+                    callback.onSuccess(cachedPage);
+                    return;
+                }
+                misses.incrementAndGet();
+                synchronized (WithdrawalCache.this) {
+                    CachedPages entry = entries.get(player);
+                    if (entry == null || entry.version < loaded.version) {
+                        entry = new CachedPages(loaded.version, maxPages);
+                        entry.validated = now;
+                        entry.accessed = now;
+                        entries.put(player, entry);
+                    }
+                    if (entry.version == loaded.version) {
+                        entry.pages.put(after, loaded.page);
+                    }
+                }
+                callback.onSuccess(loaded.page);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                callback.onFailure(error);
+            }
+        });
+    }
+
+    /**
+     * Loads a page in the background, so it is ready when the player turns to
+     * it
+     *
+     * @param player the player
+     * @param after id of the last item before the page
+     */
+    public void prefetch(final String player, long after) {
+        this.get(player, after, new DatabaseExecutor.Callback<Page>() {
+            @Override
+            public void onSuccess(Page page) {
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                plugin.log.fine("prefetching items of " + player + " failed: " + error.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Drops the player's cached items, e.g. after they have been changed
+     *
+     * @param player the player
+     */
+    public synchronized void invalidate(String player) {
+        if (this.entries.remove(player) != null) {
+            this.invalidations.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onChange(Change change) {
+        if (change.type == Change.Type.ITEMS && change.player != null) {
+            this.invalidate(change.player);
+        }
+    }
+
+    /**
+     * Marks an item as being withdrawn, so it is left out of the pages
+     *
+     * @param id id of the item
+     */
+    public synchronized void markWithdrawn(long id) {
+        this.withdrawn.put(id, System.currentTimeMillis());
+    }
+
+    /**
+     * Shows an item in the pages again, after its withdrawal has failed
+     *
+     * @param id id of the item
+     */
+    public synchronized void unmarkWithdrawn(long id) {
+        this.withdrawn.remove(id);
+    }
+
+    /**
+     * Returns whether the item is being withdrawn and shouldn't be shown
+     *
+     * @param id id of the item
+     * @return true if the item is being withdrawn
+     */
+    public synchronized boolean isWithdrawn(long id) {
+        return this.withdrawn.containsKey(id);
+    }
+
+    /**
+     * Drops all the cached items
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+
+    /**
+     * Drops players that weren't used for too long, and forgets withdrawn
+     * items once no withdrawals wait to be written to the database
+     */
+    public synchronized void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<CachedPages> iterator = this.entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().accessed > this.expireAfter) {
+                iterator.remove();
+                this.evictions.incrementAndGet();
+            }
+        }
+        if (this.plugin.getTransferLog() != null && this.plugin.getTransferLog().getPendingCount() == 0) {
+            Iterator<Long> times = this.withdrawn.values().iterator();
+            while (times.hasNext()) {
+                if (now - times.next() > this.withdrawnFor) {
+                    times.remove();
+                }
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns the ratio of requests served without loading the items
+     *
+     * @return the hit ratio, 0 to 1
+     */
+    public double getHitRatio() {
+        long served = this.hits.get() + this.revalidations.get();
+        long total = served + this.misses.get();
+        return total == 0 ? 0 : (double) served / total;
+    }
+
+    /**
+     * Returns a human readable summary of the cache's state
+     *
+     * @return the statistics
+     */
+    public String getStatistics() {
+        int pages = 0;
+        synchronized (this) {
+            for (CachedPages entry : this.entries.values()) {
+                pages += entry.pages.size();
+            }
+        }
+        return "players: " + this.size() + "/" + this.maxPlayers
+                + ", pages: " + pages
+                + ", hits: " + this.hits.get()
+                + ", version checks: " + this.revalidations.get()
+                + ", misses: " + this.misses.get()
+                + String.format(", hit ratio: %.1f%%", this.getHitRatio() * 100)
+                + ", evictions: " + this.evictions.get()
+                + ", invalidations: " + this.invalidations.get();
+    }
+
+    /**
+     * A page of a player's items
+     */
+    public static class Page {
+
+        protected final List<StoredItem> items;
+        protected final boolean more;
+
+        /**
+         * Constructs the page from up to {@code PAGE_SIZE + 1} items, the
+         * extra one only telling that there are more items
+         */
+        protected Page(List<StoredItem> items) {
+            this.more = items.size() > PAGE_SIZE;
+            this.items = Collections.unmodifiableList(this.more ? items.subList(0, PAGE_SIZE) : items);
+        }
+
+        /**
+         * Returns the items on the page, ordered by id
+         *
+         * @return the items
+         */
+        public List<StoredItem> getItems() {
+            return this.items;
+        }
+
+        /**
+         * Returns whether there are more items after this page
+         *
+         * @return true if there is a next page
+         */
+        public boolean hasMore() {
+            return this.more;
+        }
+
+        /**
+         * Returns the id the next page starts after
+         *
+         * @return id of the last item on the page
+         */
+        public long getLastId() {
+            return this.items.isEmpty() ? 0 : this.items.get(this.items.size() - 1).id;
+        }
+    }
+
+    /**
+     * Cached pages of one player
+     */
+    protected static class CachedPages {
+
+        protected final long version;
+        protected final LinkedHashMap<Long, Page> pages;
+        protected volatile long validated;
+        protected volatile long accessed;
+
+        protected CachedPages(long version, final int maxPages) {
+            this.version = version;
+            this.pages = new LinkedHashMap<Long, Page>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Page> eldest) {
+                    return size() > maxPages;
+                }
+            };
+        }
+    }
+
+    /**
+     * Result of a background check: the current version, and the page if it
+     * had to be loaded
+     */
+    protected static class Loaded {
+
+        protected final long version;
+        protected final Page page;
+
+        protected Loaded(long version, Page page) {
+            this.version = version;
+            this.page = page;
+        }
+    }
+}
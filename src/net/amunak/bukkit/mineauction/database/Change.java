@@ -0,0 +1,94 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+/**
+ * A single row of the {@code changes} table - a note that something shared
+ * with the web interface has changed. Changes are numbered by a monotonically
+ * increasing revision, see {@link ChangeFeed}.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class Change {
+
+    public final long revision;
+    public final Type type;
+    public final String player;
+    public final long ref;
+    public final long created;
+
+    /**
+     * Constructs a change
+     *
+     * @param revision revision of the change
+     * @param type what has changed
+     * @param player the player whose data has changed, may be null
+     * @param ref id of the changed row (e.g. a listing), 0 if none
+     * @param created time the change was recorded, in database time
+     */
+    public Change(long revision, Type type, String player, long ref, long created) {
+        this.revision = revision;
+        this.type = type;
+        this.player = player;
+        this.ref = ref;
+        this.created = created;
+    }
+
+    @Override
+    public String toString() {
+        return "Change{" + revision + ", " + type + ", " + player + ", " + ref + "}";
+    }
+
+    /**
+     * What has changed
+     */
+    public enum Type {
+
+        /**
+         * Items in the player's virtual inventory
+         */
+        ITEMS(1),
+        /**
+         * A listing, identified by {@code ref}
+         */
+        LISTING(2);
+        protected final byte id;
+
+        private Type(int id) {
+            this.id = (byte) id;
+        }
+
+        public byte getId() {
+            return this.id;
+        }
+
+        /**
+         * Looks up the type by its id
+         *
+         * @param id the id
+         * @return the type or null if there is no type with such id
+         */
+        public static Type getById(byte id) {
+            for (Type type : Type.values()) {
+                if (type.id == id) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+}
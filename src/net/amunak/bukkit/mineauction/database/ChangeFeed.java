@@ -0,0 +1,361 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import net.amunak.bukkit.mineauction.MineAuction;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Incremental synchronization with the web interface.
+ *
+ * Everyone who changes data shared with the web interface - the plugin as
+ * well as the web - records the change in the {@code changes} table, in the
+ * same transaction as the change itself. The auto-incremented id of the row
+ * is the revision of the change. The feed polls the table for changes newer
+ * than the last revision it has seen, a batch at a time, and hands them to
+ * its listeners on the main thread, so caches can refresh just what has
+ * changed instead of reloading everything.
+ *
+ * Auto-increment ids are assigned when rows are inserted, not when they are
+ * committed, so a change may become visible after changes with higher
+ * revisions. When the feed finds such a gap, it keeps reading from before the
+ * gap until it is filled, or until {@code gapTimeout} passes (a rolled back
+ * transaction leaves a gap forever). Changes behind the gap are delivered right
+ * away, but only once.
+ *
+ * Rows older than {@code retention} are deleted.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class ChangeFeed implements Runnable {
+
+    protected final static long PRUNE_INTERVAL = TimeUnit.HOURS.toMillis(1);
+    protected final MineAuction plugin;
+    protected final SchemaManager schema;
+    protected final DatabaseExecutor executor;
+    protected final long interval;
+    protected final int batchSize;
+    protected final long gapTimeout;
+    protected final long retention;
+    protected final List<Listener> listeners;
+    protected final Set<Long> deliveredAhead;
+    protected BukkitTask task;
+    protected boolean polling;
+    protected long revision;
+    protected long gapRevision;
+    protected long gapSince;
+    protected long lastPrune;
+    protected long polls;
+    protected long changes;
+    protected long skippedGaps;
+    protected long failures;
+    protected long lagRevisions;
+    protected long lagMillis;
+
+    /**
+     * Something interested in changes
+     */
+    public interface Listener {
+
+        /**
+         * Called on the main thread for every change, in the order of
+         * revisions (except for changes that filled a gap late)
+         *
+         * @param change the change
+         */
+        void onChange(Change change);
+    }
+
+    /**
+     * Constructs the feed from the {@code database} config section
+     *
+     * @param plugin the plugin
+     * @param schema the schema manager
+     * @param executor executor the polling queries run on
+     * @param config the {@code database} config section
+     */
+    public ChangeFeed(MineAuction plugin, SchemaManager schema, DatabaseExecutor executor, ConfigurationSection config) {
+        this.plugin = plugin;
+        this.schema = schema;
+        this.executor = executor;
+        this.interval = Math.max(1, config.getLong("changeFeed.interval", 40));
+        this.batchSize = Math.max(1, config.getInt("changeFeed.batchSize", 500));
+        this.gapTimeout = Math.max(0, config.getLong("changeFeed.gapTimeout", 10000));
+        this.retention = TimeUnit.HOURS.toMillis(Math.max(1, config.getLong("changeFeed.retention", 24)));
+        this.listeners = new ArrayList<>();
+        this.deliveredAhead = new HashSet<>();
+        this.revision = -1;
+    }
+
+    /**
+     * Records a change; should be called in the transaction that makes the
+     * change
+     *
+     * @param schema the schema manager
+     * @param connection the connection
+     * @param type what has changed
+     * @param player the player whose data has changed, may be null
+     * @param ref id of the changed row, 0 if none
+     * @throws SQLException on database errors
+     */
+    public static void record(SchemaManager schema, Connection connection, Change.Type type, String player, long ref) throws SQLException {
+        PreparedStatement statement = schema.prepare(connection, SqlStatement.CHANGE_INSERT);
+        statement.setByte(1, type.getId());
+        statement.setString(2, player);
+        statement.setLong(3, ref);
+        statement.executeUpdate();
+    }
+
+    /**
+     * Adds a listener; must be called on the main thread
+     *
+     * @param listener the listener
+     */
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Starts polling. The first poll only finds out the current revision -
+     * caches are empty on startup, so there is nothing to refresh.
+     */
+    public void start() {
+        this.task = this.plugin.getServer().getScheduler().runTaskTimer(this.plugin, this, 0, this.interval);
+    }
+
+    /**
+     * Starts polling from the given revision, for listeners that loaded their
+     * data up to that revision and need all the changes made since
+     *
+     * @param revision the revision, as returned by {@code CHANGES_HEAD}
+     */
+    public void start(long revision) {
+        this.revision = revision;
+        this.start();
+    }
+
+    /**
+     * Stops polling
+     */
+    public void stop() {
+        if (this.task != null) {
+            this.task.cancel();
+            this.task = null;
+        }
+    }
+
+    /**
+     * Polls for new changes, unless a poll is already running
+     */
+    @Override
+    public void run() {
+        if (this.polling) {
+            return;
+        }
+        final long from = this.revision;
+        final boolean prune = System.currentTimeMillis() - this.lastPrune > PRUNE_INTERVAL;
+        this.polling = this.executor.submit(new DatabaseExecutor.Query<Batch>() {
+            @Override
+            public Batch execute(Connection connection) throws SQLException {
+                return poll(connection, from, prune);
+            }
+        }, new DatabaseExecutor.Callback<Batch>() {
+            @Override
+            public void onSuccess(Batch batch) {
+                polling = false;
+                if (prune) {
+                    lastPrune = System.currentTimeMillis();
+                }
+                deliver(batch);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                polling = false;
+                failures++;
+                plugin.log.fine("polling for changes failed: " + error.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Reads the changes after the given revision
+     */
+    protected Batch poll(Connection connection, long from, boolean prune) throws SQLException {
+        Batch batch = new Batch();
+        try (ResultSet result = this.schema.prepare(connection, SqlStatement.CHANGES_HEAD).executeQuery()) {
+            result.next();
+            batch.head = result.getLong(1);
+            batch.now = result.getTimestamp(2).getTime();
+        }
+        if (from >= 0) {
+            PreparedStatement statement = this.schema.prepare(connection, SqlStatement.CHANGES_SINCE);
+            statement.setLong(1, from);
+            statement.setInt(2, this.batchSize);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    // the type is null for changes this version doesn't know
+                    batch.changes.add(new Change(result.getLong(1), Change.Type.getById(result.getByte(2)), result.getString(3), result.getLong(4),
+                            result.getTimestamp(5).getTime()));
+                }
+            }
+        }
+        if (prune) {
+            PreparedStatement statement = this.schema.prepare(connection, SqlStatement.CHANGES_PRUNE);
+            statement.setTimestamp(1, new Timestamp(batch.now - this.retention));
+            statement.executeUpdate();
+        }
+        return batch;
+    }
+
+    /**
+     * Hands the polled changes to the listeners and moves the revision past
+     * them, stopping at gaps
+     */
+    protected void deliver(Batch batch) {
+        this.polls++;
+        if (this.revision < 0) {
+            this.revision = batch.head;
+            this.plugin.log.fine("following changes from revision " + batch.head);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long next = this.revision;
+        boolean blocked = false;
+        for (Change change : batch.changes) {
+            if (!blocked && change.revision > next + 1) {
+                if (this.gapRevision != next) {
+                    this.gapRevision = next;
+                    this.gapSince = now;
+                }
+                if (now - this.gapSince < this.gapTimeout) {
+                    blocked = true;
+                } else {
+                    this.skippedGaps++;
+                    this.plugin.log.fine("gave up waiting for changes " + (next + 1) + " - " + (change.revision - 1));
+                }
+            }
+            if (!blocked) {
+                next = change.revision;
+            }
+            if (this.deliveredAhead.contains(change.revision)) {
+                continue;
+            }
+            if (blocked) {
+                // will be read again until the gap is filled
+                this.deliveredAhead.add(change.revision);
+            }
+            this.changes++;
+            if (change.type != null) {
+                this.notifyListeners(change);
+            }
+        }
+        Iterator<Long> iterator = this.deliveredAhead.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() <= next) {
+                iterator.remove();
+            }
+        }
+        this.lagRevisions = Math.max(0, batch.head - next);
+        this.lagMillis = batch.changes.isEmpty() ? 0 : Math.max(0, batch.now - batch.changes.get(0).created);
+        boolean full = batch.changes.size() == this.batchSize;
+        boolean advanced = next > this.revision;
+        this.revision = next;
+        if (full && advanced && !blocked) {
+            // more changes are waiting, don't wait for the next interval
+            this.run();
+        }
+    }
+
+    /**
+     * Calls all listeners, keeping one failing listener from breaking others
+     */
+    protected void notifyListeners(Change change) {
+        for (Listener listener : this.listeners) {
+            try {
+                listener.onChange(change);
+            } catch (RuntimeException ex) {
+                this.plugin.log.warning("handling " + change + " failed: " + ex.toString());
+            }
+        }
+    }
+
+    /**
+     * Returns the last revision up to which all changes were handled
+     *
+     * @return the revision, -1 before the first poll
+     */
+    public long getRevision() {
+        return this.revision;
+    }
+
+    /**
+     * Returns the number of changes recorded in the database but not yet
+     * handled, as of the last poll
+     *
+     * @return number of revisions
+     */
+    public long getLagRevisions() {
+        return this.lagRevisions;
+    }
+
+    /**
+     * Returns how old the oldest change handled by the last poll was when it
+     * was read (in database time), or 0 if there were no changes
+     *
+     * @return the lag in milliseconds
+     */
+    public long getLagMillis() {
+        return this.lagMillis;
+    }
+
+    /**
+     * Returns a human readable summary of the feed's state
+     *
+     * @return the statistics
+     */
+    public String getStatistics() {
+        return "revision: " + this.revision
+                + ", lag: " + this.lagRevisions + " revisions / " + this.lagMillis + " ms"
+                + ", polls: " + this.polls
+                + ", changes: " + this.changes
+                + ", skipped gaps: " + this.skippedGaps
+                + ", failed polls: " + this.failures;
+    }
+
+    /**
+     * Result of one poll
+     */
+    protected static class Batch {
+
+        protected final List<Change> changes = new ArrayList<>();
+        protected long head;
+        protected long now;
+    }
+}
@@ -0,0 +1,608 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.amunak.bukkit.mineauction.MineAuction;
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * A small JDBC connection pool.
+ *
+ * Connections are handed out as proxies whose {@code close()} returns the
+ * connection to the pool instead of closing it. Idle connections are checked
+ * by the backend (with a real timeout) before they are borrowed, so
+ * connections dropped by the database server (e.g. by MySQL's wait_timeout)
+ * are transparently replaced by new ones. A housekeeping thread closes
+ * connections that have been idle for too long, keeps at least the minimal
+ * number of connections open and reports connections that were borrowed and
+ * not returned for too long (leaks), including the place they were borrowed
+ * from.
+ *
+ * Every physical connection also keeps a cache of its prepared statements
+ * (see {@code prepare}), so frequently used statements are parsed only once.
+ * A cached statement is handed out without any parameters or batched rows
+ * left by its previous user, and one that threw an error is closed and
+ * prepared again next time, as some drivers (e.g. SQLite's) leave failed
+ * statements unusable.
+ * Errors thrown by the connection or by its cached statements are watched: a
+ * connection that failed with a connection error (SQL state {@code 08xxx})
+ * is closed once returned, and one that failed with any other error is
+ * validated before it goes back among the idle connections.
+ *
+ * Physical connections are opened by the {@link StorageBackend}, so the pool
+ * works the same with a MySQL/MariaDB server and a local SQLite file.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class ConnectionPool {
+
+    /**
+     * Connections returned to the pool less than this many milliseconds ago
+     * are not validated again when borrowed
+     */
+    public final static long VALIDATION_BYPASS = 500;
+    protected final MineAuction plugin;
+    protected final StorageBackend backend;
+    protected final int minSize;
+    protected final int maxSize;
+    protected final long idleTimeout;
+    protected final long connectionTimeout;
+    protected final int validationTimeout;
+    protected final long leakDetectionThreshold;
+    protected final LinkedBlockingDeque<PooledConnection> idle;
+    protected final Set<PooledConnection> borrowed;
+    protected final Semaphore permits;
+    protected final ScheduledExecutorService housekeeper;
+    protected final AtomicLong created;
+    protected final AtomicLong discarded;
+    protected final AtomicLong timeouts;
+    protected final AtomicLong leaks;
+    protected volatile boolean closed;
+
+    /**
+     * Constructs a pool from the {@code database} config section. Nothing is
+     * opened until {@code start()} is called.
+     *
+     * @param plugin the plugin
+     * @param config the {@code database} config section
+     */
+    public ConnectionPool(MineAuction plugin, ConfigurationSection config) {
+        this(plugin, StorageBackend.fromConfig(plugin, config),
+                config.getInt("pool.minSize", 1),
+                config.getInt("pool.maxSize", 4),
+                config.getLong("pool.idleTimeout", 600) * 1000,
+                config.getLong("pool.connectionTimeout", 5000),
+                config.getInt("pool.validationTimeout", 2),
+                config.getLong("pool.leakDetectionThreshold", 10000));
+    }
+
+    /**
+     * Constructs a pool. Nothing is opened until {@code start()} is called.
+     *
+     * @param plugin the plugin
+     * @param backend the database the connections are opened to
+     * @param minSize number of connections kept open even when idle
+     * @param maxSize maximal number of borrowed connections
+     * @param idleTimeout milliseconds after which an idle connection above
+     * the minSize is closed
+     * @param connectionTimeout milliseconds to wait for a free connection
+     * @param validationTimeout seconds to wait for a connection validation
+     * @param leakDetectionThreshold milliseconds after which a connection
+     * that wasn't returned is reported as a leak, 0 to disable
+     */
+    public ConnectionPool(MineAuction plugin, StorageBackend backend, int minSize, int maxSize,
+            long idleTimeout, long connectionTimeout, int validationTimeout, long leakDetectionThreshold) {
+        if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("invalid pool size " + minSize + "-" + maxSize);
+        }
+        this.plugin = plugin;
+        this.backend = backend;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+        this.connectionTimeout = connectionTimeout;
+        this.validationTimeout = Math.max(1, validationTimeout);
+        this.leakDetectionThreshold = leakDetectionThreshold;
+        this.idle = new LinkedBlockingDeque<>();
+        this.borrowed = Collections.newSetFromMap(new ConcurrentHashMap<PooledConnection, Boolean>());
+        this.permits = new Semaphore(maxSize, true);
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MineAuction-ConnectionPool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.created = new AtomicLong();
+        this.discarded = new AtomicLong();
+        this.timeouts = new AtomicLong();
+        this.leaks = new AtomicLong();
+    }
+
+    /**
+     * Opens the minimal number of connections (at least one, to verify the
+     * configuration) and starts the housekeeping
+     *
+     * @throws SQLException if a connection cannot be opened or isn't valid
+     */
+    public void start() throws SQLException {
+        PooledConnection connection = this.open();
+        if (!this.backend.isValid(connection.raw, this.validationTimeout)) {
+            this.discard(connection);
+            throw new SQLException("connection is not valid");
+        }
+        this.idle.offerFirst(connection);
+        this.replenish();
+        long period = Math.max(1000, Math.min(this.idleTimeout, this.leakDetectionThreshold > 0 ? this.leakDetectionThreshold : Long.MAX_VALUE) / 2);
+        this.housekeeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                housekeep();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a connection from the pool, opening a new one if there is no
+     * valid idle connection. Closing the returned connection returns it to the
+     * pool.
+     *
+     * @return the connection
+     * @throws SQLTimeoutException if no connection was returned to the pool
+     * within the connectionTimeout
+     * @throws SQLException if a new connection cannot be opened
+     */
+    public Connection getConnection() throws SQLException {
+        if (this.closed) {
+            throw new SQLException("connection pool is closed");
+        }
+        try {
+            if (!this.permits.tryAcquire(this.connectionTimeout, TimeUnit.MILLISECONDS)) {
+                this.timeouts.incrementAndGet();
+                throw new SQLTimeoutException("no database connection available within " + this.connectionTimeout
+                        + " ms (" + this.maxSize + " in use)");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a database connection", ex);
+        }
+        try {
+            PooledConnection connection;
+            while ((connection = this.idle.pollFirst()) != null && !this.validate(connection)) {
+                this.discard(connection);
+            }
+            if (connection == null) {
+                connection = this.open();
+            }
+            connection.borrow(this.leakDetectionThreshold > 0);
+            this.borrowed.add(connection);
+            return connection.proxy;
+        } catch (SQLException | RuntimeException ex) {
+            this.permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns a prepared statement for the given SQL, cached with the
+     * underlying connection - every statement is prepared only once per
+     * physical connection. The statement is handed out with its parameters
+     * and batch cleared. It must not be kept after the connection is returned
+     * (closing it does nothing, it stays cached) or after it threw an error
+     * (it is closed then); its result sets should be closed as usual.
+     *
+     * @param connection a connection borrowed from this pool
+     * @param sql the SQL
+     * @param generatedKeys whether the statement should return generated keys
+     * @return the cached statement
+     * @throws SQLException if the statement cannot be prepared
+     */
+    public PreparedStatement prepare(Connection connection, String sql, boolean generatedKeys) throws SQLException {
+        if (!Proxy.isProxyClass(connection.getClass())
+                || !(Proxy.getInvocationHandler(connection) instanceof PooledConnection)) {
+            throw new IllegalArgumentException("connection does not belong to the pool");
+        }
+        PooledConnection pooled = (PooledConnection) Proxy.getInvocationHandler(connection);
+        if (pooled.returned) {
+            throw new SQLException("connection was returned to the pool");
+        }
+        PreparedStatement statement = pooled.statements.get(sql);
+        if (statement != null && !((PooledStatement) Proxy.getInvocationHandler(statement)).reset()) {
+            statement = null;
+        }
+        if (statement == null) {
+            try {
+                statement = generatedKeys
+                        ? pooled.raw.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+                        : pooled.raw.prepareStatement(sql);
+            } catch (SQLException ex) {
+                pooled.failed(ex);
+                throw ex;
+            }
+            statement = (PreparedStatement) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, new PooledStatement(pooled, sql, statement));
+            pooled.statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Closes all connections; borrowed connections are closed once they are
+     * returned
+     */
+    public void close() {
+        this.closed = true;
+        this.housekeeper.shutdownNow();
+        PooledConnection connection;
+        while ((connection = this.idle.pollFirst()) != null) {
+            this.discard(connection);
+        }
+        if (!this.borrowed.isEmpty()) {
+            this.plugin.log.warning(this.borrowed.size() + " database connections still in use while closing the pool");
+        }
+    }
+
+    public int getIdleCount() {
+        return this.idle.size();
+    }
+
+    public int getActiveCount() {
+        return this.borrowed.size();
+    }
+
+    /**
+     * Returns a human readable summary of the pool's state
+     *
+     * @return the statistics
+     */
+    public String getStatistics() {
+        return "active: " + this.getActiveCount() + "/" + this.maxSize
+                + ", idle: " + this.getIdleCount()
+                + ", opened: " + this.created.get()
+                + ", discarded: " + this.discarded.get()
+                + ", timeouts: " + this.timeouts.get()
+                + ", leaks: " + this.leaks.get();
+    }
+
+    /**
+     * Returns the backend the connections are opened to
+     *
+     * @return the backend
+     */
+    public StorageBackend getBackend() {
+        return this.backend;
+    }
+
+    /**
+     * Opens a new connection
+     */
+    protected PooledConnection open() throws SQLException {
+        Connection raw = this.backend.connect();
+        this.created.incrementAndGet();
+        return new PooledConnection(raw);
+    }
+
+    /**
+     * Checks an idle connection before it's borrowed
+     */
+    protected boolean validate(PooledConnection connection) {
+        if (System.currentTimeMillis() - connection.lastUsed < VALIDATION_BYPASS) {
+            return true;
+        }
+        try {
+            return this.backend.isValid(connection.raw, this.validationTimeout);
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes the underlying connection, ignoring any errors
+     */
+    protected void discard(PooledConnection connection) {
+        this.discarded.incrementAndGet();
+        try {
+            connection.raw.close();
+        } catch (SQLException ex) {
+            this.plugin.log.fine("could not close database connection: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Takes a returned connection back, resetting its state
+     */
+    protected void release(PooledConnection connection) {
+        if (!this.borrowed.remove(connection)) {
+            return;
+        }
+        try {
+            if (connection.leakReported) {
+                this.plugin.log.info("previously reported leaked database connection was returned after "
+                        + (System.currentTimeMillis() - connection.borrowedAt) + " ms");
+            }
+            boolean reusable = !this.closed && !connection.broken;
+            if (reusable) {
+                try {
+                    if (!connection.raw.getAutoCommit()) {
+                        connection.raw.rollback();
+                        connection.raw.setAutoCommit(true);
+                    }
+                    connection.raw.clearWarnings();
+                    if (connection.suspect) {
+                        // the error may have been caused by a dead
+                        // connection reporting itself in a non-standard way
+                        reusable = this.backend.isValid(connection.raw, this.validationTimeout);
+                    }
+                } catch (SQLException ex) {
+                    reusable = false;
+                }
+                connection.suspect = false;
+            }
+            if (reusable) {
+                connection.lastUsed = System.currentTimeMillis();
+                this.idle.offerFirst(connection);
+            } else {
+                this.discard(connection);
+            }
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    /**
+     * Closes connections idle for too long, opens connections up to the
+     * minSize and reports leaks
+     */
+    protected void housekeep() {
+        try {
+            long now = System.currentTimeMillis();
+            Iterator<PooledConnection> iterator = this.idle.descendingIterator();
+            while (iterator.hasNext() && this.idle.size() + this.borrowed.size() > this.minSize) {
+                PooledConnection connection = iterator.next();
+                if (now - connection.lastUsed > this.idleTimeout && this.idle.remove(connection)) {
+                    this.discard(connection);
+                }
+            }
+            this.replenish();
+            if (this.leakDetectionThreshold > 0) {
+                for (PooledConnection connection : this.borrowed) {
+                    if (!connection.leakReported && now - connection.borrowedAt > this.leakDetectionThreshold) {
+                        connection.leakReported = true;
+                        this.leaks.incrementAndGet();
+                        this.plugin.log.warning("possible database connection leak - connection borrowed "
+                                + (now - connection.borrowedAt) + " ms ago by " + connection.borrowedBy + " and not returned:"
+                                + formatStackTrace(connection.borrowSite));
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            this.plugin.log.warning("database pool housekeeping failed: " + ex.toString());
+        }
+    }
+
+    /**
+     * Opens new idle connections while there are less than minSize connections
+     */
+    protected void replenish() {
+        while (!this.closed && this.idle.size() + this.borrowed.size() < this.minSize) {
+            try {
+                this.idle.offerLast(this.open());
+            } catch (SQLException ex) {
+                this.plugin.log.warning("could not open database connection: " + ex.getMessage());
+                return;
+            }
+        }
+    }
+
+    private static String formatStackTrace(Throwable site) {
+        if (site == null) {
+            return " (no stack trace)";
+        }
+        StringBuilder builder = new StringBuilder();
+        for (StackTraceElement element : site.getStackTrace()) {
+            if (!element.getClassName().startsWith(ConnectionPool.class.getName())) {
+                builder.append("\n    at ").append(element);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A connection of the pool, together with the proxy handed out to the
+     * borrowers
+     */
+    protected class PooledConnection implements InvocationHandler {
+
+        protected final Connection raw;
+        protected final Connection proxy;
+        protected volatile boolean returned = true;
+        protected volatile boolean broken;
+        protected volatile boolean suspect;
+        protected volatile boolean leakReported;
+        protected volatile long lastUsed;
+        protected volatile long borrowedAt;
+        protected volatile String borrowedBy;
+        protected volatile Throwable borrowSite;
+        protected final Map<String, PreparedStatement> statements;
+
+        protected PooledConnection(Connection raw) {
+            this.raw = raw;
+            this.statements = new HashMap<>();
+            this.proxy = (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[]{Connection.class}, this);
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        protected void borrow(boolean trackSite) {
+            this.returned = false;
+            this.leakReported = false;
+            this.borrowedAt = System.currentTimeMillis();
+            this.borrowedBy = Thread.currentThread().getName();
+            this.borrowSite = trackSite ? new Throwable("borrowed here") : null;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!this.returned) {
+                        this.returned = true;
+                        release(this);
+                    }
+                    return null;
+                case "isClosed":
+                    return this.returned || this.raw.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + this.raw.toString();
+                case "abort":
+                    this.broken = true;
+                    break;
+                default:
+                    break;
+            }
+            if (this.returned) {
+                throw new SQLException("connection was returned to the pool");
+            }
+            try {
+                return method.invoke(this.raw, args);
+            } catch (InvocationTargetException ex) {
+                this.failed(ex.getCause());
+                throw ex.getCause();
+            }
+        }
+
+        /**
+         * Notes an error thrown by the connection or one of its statements
+         */
+        protected void failed(Throwable cause) {
+            if (!(cause instanceof SQLException)) {
+                return;
+            }
+            String state = ((SQLException) cause).getSQLState();
+            if (state != null && state.startsWith("08")) {
+                this.broken = true;
+            } else {
+                this.suspect = true;
+            }
+        }
+    }
+
+    /**
+     * A cached statement, reporting its errors to its connection and ignoring
+     * attempts to close it. A statement that threw an error is removed from
+     * the cache and closed.
+     */
+    protected static class PooledStatement implements InvocationHandler {
+
+        protected final PooledConnection connection;
+        protected final String sql;
+        protected final PreparedStatement raw;
+        protected boolean dropped;
+
+        protected PooledStatement(PooledConnection connection, String sql, PreparedStatement raw) {
+            this.connection = connection;
+            this.sql = sql;
+            this.raw = raw;
+        }
+
+        /**
+         * Clears what the previous user left in the statement
+         *
+         * @return false if that failed and the statement was dropped
+         */
+        protected boolean reset() {
+            try {
+                this.raw.clearParameters();
+                this.raw.clearBatch();
+                return true;
+            } catch (SQLException ex) {
+                this.drop();
+                return false;
+            }
+        }
+
+        /**
+         * Removes the statement from the cache and closes it
+         */
+        protected void drop() {
+            if (this.dropped) {
+                return;
+            }
+            this.dropped = true;
+            PreparedStatement cached = this.connection.statements.get(this.sql);
+            if (cached != null && Proxy.getInvocationHandler(cached) == this) {
+                this.connection.statements.remove(this.sql);
+            }
+            try {
+                this.raw.close();
+            } catch (SQLException ex) {
+                // it is not going to be used again anyway
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "close":
+                    // the statement stays cached until its connection is
+                    // closed
+                    return null;
+                default:
+                    break;
+            }
+            try {
+                return method.invoke(this.raw, args);
+            } catch (InvocationTargetException ex) {
+                this.connection.failed(ex.getCause());
+                if (ex.getCause() instanceof SQLException) {
+                    this.drop();
+                }
+                throw ex.getCause();
+            }
+        }
+    }
+}
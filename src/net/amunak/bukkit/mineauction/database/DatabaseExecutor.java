@@ -0,0 +1,371 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import net.amunak.bukkit.mineauction.MineAuction;
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * Runs database queries off the server thread.
+ *
+ * Queries are executed by a small, fixed pool of worker threads, each taking
+ * a connection from the {@link ConnectionPool} for the duration of the query.
+ * Results (or errors) are handed to a {@link Callback} on the main server
+ * thread, so callbacks may freely touch players, inventories and the world.
+ *
+ * The queue of waiting queries is bounded - when it's full, new queries are
+ * rejected right away instead of piling up, and the caller should tell the
+ * player to try again later. Every query has a timeout; a query that runs for
+ * too long gets its connection aborted and its callback then receives an
+ * {@link UnknownOutcomeException} - the query may have been committed just
+ * before it was aborted.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class DatabaseExecutor {
+
+    protected final MineAuction plugin;
+    protected final ConnectionPool pool;
+    protected final ThreadPoolExecutor workers;
+    protected final ScheduledExecutorService watchdog;
+    protected final long defaultTimeout;
+    protected final AtomicLong submitted;
+    protected final AtomicLong succeeded;
+    protected final AtomicLong failed;
+    protected final AtomicLong rejected;
+    protected final AtomicLong timedOut;
+
+    /**
+     * A unit of database work, executed on a worker thread
+     *
+     * @param <T> type of the result
+     */
+    public interface Query<T> {
+
+        /**
+         * Runs the query. The connection must not be closed or kept.
+         *
+         * @param connection a connection borrowed for this query
+         * @return the result, handed to the callback
+         * @throws SQLException on any database error
+         */
+        T execute(Connection connection) throws SQLException;
+    }
+
+    /**
+     * Receives the result of a {@link Query}, always on the main server
+     * thread; exactly one of the methods is called
+     *
+     * @param <T> type of the result
+     */
+    public interface Callback<T> {
+
+        void onSuccess(T result);
+
+        void onFailure(Throwable error);
+    }
+
+    /**
+     * Constructs the executor from the {@code database} config section
+     *
+     * @param plugin the plugin
+     * @param pool the pool to take connections from
+     * @param config the {@code database} config section
+     */
+    public DatabaseExecutor(MineAuction plugin, ConnectionPool pool, ConfigurationSection config) {
+        this(plugin, pool,
+                config.getInt("executor.threads", 2),
+                config.getInt("executor.queueSize", 256),
+                config.getLong("executor.queryTimeout", 10000));
+    }
+
+    /**
+     * Constructs the executor and starts its threads
+     *
+     * @param plugin the plugin
+     * @param pool the pool to take connections from
+     * @param threads number of worker threads
+     * @param queueSize maximal number of queries waiting for a worker
+     * @param defaultTimeout default query timeout in milliseconds
+     */
+    public DatabaseExecutor(MineAuction plugin, ConnectionPool pool, int threads, int queueSize, long defaultTimeout) {
+        this.plugin = plugin;
+        this.pool = pool;
+        this.defaultTimeout = defaultTimeout;
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MineAuction-Database-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MineAuction-Database-Watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.submitted = new AtomicLong();
+        this.succeeded = new AtomicLong();
+        this.failed = new AtomicLong();
+        this.rejected = new AtomicLong();
+        this.timedOut = new AtomicLong();
+    }
+
+    /**
+     * Submits a query with the default timeout
+     *
+     * @see submit(Query<T> query, long timeout, Callback<T> callback)
+     */
+    public <T> boolean submit(Query<T> query, Callback<T> callback) {
+        return this.submit(query, this.defaultTimeout, callback);
+    }
+
+    /**
+     * Submits a query for execution
+     *
+     * @param query the query
+     * @param timeout timeout in milliseconds, counted from the moment the query
+     * starts running
+     * @param callback callback receiving the result on the main thread, may be
+     * null
+     * @return false if the query was rejected because the queue is full (the
+     * callback is not called then), true otherwise
+     */
+    public <T> boolean submit(Query<T> query, long timeout, Callback<T> callback) {
+        Task<T> task = new Task<>(query, timeout, callback);
+        try {
+            task.future = this.workers.submit(task);
+        } catch (RejectedExecutionException ex) {
+            this.rejected.incrementAndGet();
+            return false;
+        }
+        this.submitted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns the number of queries waiting for a worker
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return this.workers.getQueue().size();
+    }
+
+    /**
+     * Returns a human readable summary of the executor's state
+     *
+     * @return the statistics
+     */
+    public String getStatistics() {
+        return "queued: " + this.getQueueDepth()
+                + ", running: " + this.workers.getActiveCount()
+                + ", submitted: " + this.submitted.get()
+                + ", succeeded: " + this.succeeded.get()
+                + ", failed: " + this.failed.get()
+                + ", timed out: " + this.timedOut.get()
+                + ", rejected: " + this.rejected.get();
+    }
+
+    /**
+     * Stops accepting new queries and waits for the queued ones to finish.
+     * As the main thread is no longer ticking, callbacks of queries finishing
+     * during the shutdown are called directly by the workers, while the main
+     * thread waits here.
+     *
+     * @param timeout milliseconds to wait
+     * @return true if all queries finished in time
+     */
+    public boolean shutdown(long timeout) {
+        this.workers.shutdown();
+        boolean finished;
+        try {
+            finished = this.workers.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            finished = false;
+        }
+        if (!finished) {
+            this.plugin.log.warning(this.workers.getQueue().size() + " queued database queries dropped on shutdown");
+            this.workers.shutdownNow();
+        }
+        this.watchdog.shutdownNow();
+        return finished;
+    }
+
+    /**
+     * Hands the outcome over to the main thread
+     */
+    protected <T> void complete(final Callback<T> callback, final T result, final Throwable error) {
+        if (error == null) {
+            this.succeeded.incrementAndGet();
+        } else {
+            this.failed.incrementAndGet();
+        }
+        if (callback == null) {
+            if (error != null) {
+                this.plugin.log.warning("database query failed: " + error.toString());
+            }
+            return;
+        }
+        this.deliver(callback, result, error);
+    }
+
+    /**
+     * Hands the outcome of some background work to the callback on the main
+     * thread
+     *
+     * @param callback the callback, may be null
+     * @param result the result, if there was no error
+     * @param error the error or null
+     */
+    public <T> void deliver(final Callback<T> callback, final T result, final Throwable error) {
+        if (callback == null) {
+            return;
+        }
+        if (!this.plugin.isEnabled()) {
+            // shutting down - the main thread is blocked in shutdown() and
+            // waits for us, so the callback can't be scheduled but may run here
+            this.call(callback, result, error);
+            return;
+        }
+        try {
+            this.plugin.getServer().getScheduler().runTask(this.plugin, new Runnable() {
+                @Override
+                public void run() {
+                    call(callback, result, error);
+                }
+            });
+        } catch (RuntimeException ex) {
+            // the plugin got disabled in the meantime
+            this.call(callback, result, error);
+        }
+    }
+
+    /**
+     * Calls the callback, logging any errors it throws
+     */
+    protected <T> void call(Callback<T> callback, T result, Throwable error) {
+        try {
+            if (error == null) {
+                callback.onSuccess(result);
+            } else {
+                callback.onFailure(error);
+            }
+        } catch (RuntimeException ex) {
+            this.plugin.log.warning("database callback failed: " + ex.toString());
+        }
+    }
+
+    /**
+     * A submitted query, guarding that its callback is called only once even
+     * when it times out
+     */
+    protected class Task<T> implements Runnable {
+
+        protected final Query<T> query;
+        protected final long timeout;
+        protected final Callback<T> callback;
+        protected final AtomicBoolean completed;
+        protected volatile Future<?> future;
+        protected volatile Connection connection;
+
+        protected Task(Query<T> query, long timeout, Callback<T> callback) {
+            this.query = query;
+            this.timeout = timeout;
+            this.callback = callback;
+            this.completed = new AtomicBoolean();
+        }
+
+        @Override
+        public void run() {
+            ScheduledFuture<?> expiry = null;
+            T result = null;
+            Throwable error = null;
+            try (Connection borrowed = pool.getConnection()) {
+                this.connection = borrowed;
+                if (this.timeout > 0) {
+                    expiry = watchdog.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            expire();
+                        }
+                    }, this.timeout, TimeUnit.MILLISECONDS);
+                }
+                result = this.query.execute(borrowed);
+            } catch (Throwable ex) {
+                error = ex;
+            } finally {
+                this.connection = null;
+                if (expiry != null) {
+                    expiry.cancel(false);
+                }
+            }
+            if (this.completed.compareAndSet(false, true)) {
+                complete(this.callback, result, error);
+            }
+        }
+
+        /**
+         * Aborts the connection of a query running for too long, which makes
+         * the driver give up on the running statement, and only then fails
+         * the query. The query may have committed right before it was
+         * aborted, so the callback gets an {@link UnknownOutcomeException},
+         * not a plain failure.
+         */
+        protected void expire() {
+            if (!this.completed.compareAndSet(false, true)) {
+                return;
+            }
+            timedOut.incrementAndGet();
+            Connection running = this.connection;
+            if (running != null) {
+                try {
+                    running.abort(watchdog);
+                } catch (SQLException | AbstractMethodError ex) {
+                    plugin.log.fine("could not abort timed out database query: " + ex.toString());
+                }
+            }
+            if (this.future != null) {
+                this.future.cancel(true);
+            }
+            complete(this.callback, null, new UnknownOutcomeException("database query timed out after " + this.timeout
+                    + " ms, it may or may not have been committed", new SQLTimeoutException()));
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Database access to the items in players' virtual inventories. All methods
+ * block and are meant to be run by the {@link DatabaseExecutor}.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class ItemDao {
+
+    public final static int PAGE_SIZE = 500;
+    protected final SchemaManager schema;
+
+    public ItemDao(SchemaManager schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * Stores all the items in a single batch and a single transaction -
+     * either all of them are stored, or none is
+     *
+     * @param connection the connection
+     * @param player owner of the items
+     * @param items the items
+     * @return ids of the stored items, in the order of the items
+     * @throws SQLException if the items could not be stored; the transaction
+     * is rolled back
+     */
+    public long[] insertAll(Connection connection, String player, List<StoredItem> items) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            long[] ids = this.insert(connection, player, items);
+            connection.commit();
+            return ids;
+        } catch (SQLException | RuntimeException ex) {
+            connection.rollback();
+            throw ex;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Stores all the items in a single batch, within the caller's transaction
+     *
+     * @param connection the connection
+     * @param player owner of the items
+     * @param items the items
+     * @return ids of the stored items, in the order of the items
+     * @throws SQLException if the items could not be stored
+     */
+    public long[] insert(Connection connection, String player, List<StoredItem> items) throws SQLException {
+        PreparedStatement statement = this.schema.prepare(connection, SqlStatement.ITEM_INSERT);
+        long[] ids = new long[items.size()];
+        if (!this.schema.getBackend().returnsBatchGeneratedKeys()) {
+            // a local database has no round trips to save
+            for (int i = 0; i < ids.length; i++) {
+                this.bind(statement, player, items.get(i));
+                statement.executeUpdate();
+                try (ResultSet keys = statement.getGeneratedKeys()) {
+                    ids[i] = keys.next() ? keys.getLong(1) : 0;
+                }
+            }
+            return ids;
+        }
+        for (StoredItem item : items) {
+            this.bind(statement, player, item);
+            statement.addBatch();
+        }
+        statement.executeBatch();
+        try (ResultSet keys = statement.getGeneratedKeys()) {
+            for (int i = 0; i < ids.length && keys.next(); i++) {
+                ids[i] = keys.getLong(1);
+            }
+        }
+        return ids;
+    }
+
+    protected void bind(PreparedStatement statement, String player, StoredItem item) throws SQLException {
+        statement.setString(1, player);
+        statement.setInt(2, item.material);
+        statement.setInt(3, item.amount);
+        statement.setBytes(4, item.data);
+    }
+
+    /**
+     * Returns a page of the player's items, ordered by id
+     *
+     * @param connection the connection
+     * @param player owner of the items
+     * @param afterId only items with a greater id are returned, 0 for the
+     * first page
+     * @param limit maximal number of items
+     * @return the items
+     * @throws SQLException on database errors
+     */
+    public List<StoredItem> page(Connection connection, String player, long afterId, int limit) throws SQLException {
+        PreparedStatement statement = this.schema.prepare(connection, SqlStatement.ITEMS_PAGE);
+        statement.setString(1, player);
+        statement.setLong(2, afterId);
+        statement.setInt(3, limit);
+        List<StoredItem> items = new ArrayList<>(limit);
+        try (ResultSet result = statement.executeQuery()) {
+            while (result.next()) {
+                items.add(new StoredItem(result.getLong(1), result.getInt(2), result.getInt(3), result.getBytes(4)));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Deletes the player's item
+     *
+     * @param connection the connection
+     * @param player owner of the item
+     * @param id id of the item
+     * @return true if the item was deleted, false if it didn't exist (anymore)
+     * @throws SQLException on database errors
+     */
+    public boolean delete(Connection connection, String player, long id) throws SQLException {
+        PreparedStatement statement = this.schema.prepare(connection, SqlStatement.ITEM_DELETE);
+        statement.setLong(1, id);
+        statement.setString(2, player);
+        return statement.executeUpdate() > 0;
+    }
+
+    /**
+     * Deletes all the player's items in a single batch, within the caller's
+     * transaction
+     *
+     * @param connection the connection
+     * @param player owner of the items
+     * @param items the items, only their ids matter
+     * @return number of items actually deleted
+     * @throws SQLException on database errors
+     */
+    public int delete(Connection connection, String player, List<StoredItem> items) throws SQLException {
+        PreparedStatement statement = this.schema.prepare(connection, SqlStatement.ITEM_DELETE);
+        for (StoredItem item : items) {
+            statement.setLong(1, item.id);
+            statement.setString(2, player);
+            statement.addBatch();
+        }
+        int deleted = 0;
+        for (int count : statement.executeBatch()) {
+            if (count > 0) {
+                deleted += count;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Returns all the player's items, ordered by id
+     *
+     * @param connection the connection
+     * @param player owner of the items
+     * @return the items
+     * @throws SQLException on database errors
+     */
+    public List<StoredItem> all(Connection connection, String player) throws SQLException {
+        List<StoredItem> items = new ArrayList<>();
+        List<StoredItem> page;
+        long afterId = 0;
+        do {
+            page = this.page(connection, player, afterId, PAGE_SIZE);
+            items.addAll(page);
+            if (!page.isEmpty()) {
+                afterId = page.get(page.size() - 1).id;
+            }
+        } while (page.size() == PAGE_SIZE);
+        return items;
+    }
+
+    /**
+     * Returns the version of the player's items, which changes whenever the
+     * items change
+     *
+     * @param connection the connection
+     * @param player the player
+     * @return the version, 0 if the player's items never changed
+     * @throws SQLException on database errors
+     */
+    public long getVersion(Connection connection, String player) throws SQLException {
+        PreparedStatement statement = this.schema.prepare(connection, SqlStatement.PLAYER_VERSION);
+        statement.setString(1, player);
+        try (ResultSet result = statement.executeQuery()) {
+            return result.next() ? result.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Increments the version of the player's items, within the caller's
+     * transaction. The player's row is created if there is none yet; if
+     * another writer (e.g. the web interface) creates it first, the row is
+     * updated instead, so the race doesn't fail the caller's transaction.
+     *
+     * @param connection the connection
+     * @param player the player
+     * @throws SQLException on database errors
+     */
+    public void bumpVersion(Connection connection, String player) throws SQLException {
+        PreparedStatement statement = this.schema.prepare(connection, SqlStatement.PLAYER_VERSION_BUMP);
+        statement.setString(1, player);
+        if (statement.executeUpdate() > 0) {
+            return;
+        }
+        PreparedStatement insert = this.schema.prepare(connection, SqlStatement.PLAYER_INSERT);
+        insert.setString(1, player);
+        if (insert.executeUpdate() == 0) {
+            // created by another writer since the update
+            statement.setString(1, player);
+            statement.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+/**
+ * MySQL/MariaDB server, shared with the web interface
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class MySqlBackend extends StorageBackend {
+
+    protected final String url;
+    protected final String user;
+    protected final String password;
+
+    /**
+     * Constructs the backend
+     *
+     * @param url JDBC url
+     * @param user database user
+     * @param password database password
+     */
+    public MySqlBackend(String url, String user, String password) {
+        if (url == null || user == null) {
+            throw new IllegalArgumentException("database url/user missing");
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password == null ? "" : password;
+    }
+
+    @Override
+    public String getName() {
+        return "mysql";
+    }
+
+    @Override
+    public String getLocation() {
+        return this.url;
+    }
+
+    @Override
+    public Connection connect() throws SQLException {
+        return DriverManager.getConnection(this.url, this.user, this.password);
+    }
+
+    @Override
+    public String translate(String sql) {
+        return sql.replace("{id}", "BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY")
+                .replace("{timestamp}", "TIMESTAMP")
+                .replace("{now}", "CURRENT_TIMESTAMP")
+                .replace("{insertIgnore}", "INSERT IGNORE");
+    }
+
+    @Override
+    public boolean returnsBatchGeneratedKeys() {
+        return true;
+    }
+}
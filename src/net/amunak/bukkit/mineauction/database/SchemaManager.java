@@ -0,0 +1,319 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import net.amunak.bukkit.mineauction.MineAuction;
+
+/**
+ * Creates and upgrades MineAuction's tables and compiles its SQL statements.
+ *
+ * The schema is described as a list of versioned migrations. The version of
+ * the database is kept in the {@code schema_version} table (one row per
+ * applied migration), and on startup all the migrations newer than that are
+ * applied in order, each in its own transaction. Note that MySQL commits DDL
+ * statements implicitly, so a migration failing midway may have to be fixed
+ * by hand; migrations are thus kept small.
+ *
+ * All table names carry the configured {@code database.prefix}; the
+ * {@code {prefix}} placeholder (and the placeholders of the
+ * {@link StorageBackend}) are replaced once, when the statements are
+ * compiled, and the statements are then prepared through
+ * {@link ConnectionPool#prepare}, which caches them per connection.
+ *
+ * Indexes follow the way the tables are read: items are paged per player by
+ * id (deposit and withdraw), active listings are searched by material and
+ * ordered by price (browsing and matching) or scanned by expiry, and
+ * transactions are read by material and time or by player. Price history is
+ * kept summarized per item and minute, hour and day (see
+ * {@link net.amunak.bukkit.mineauction.market.PriceHistory}).
+ *
+ * Whoever changes a player's items - the plugin or the web interface - must
+ * increment the player's version in the {@code players} table in the same
+ * transaction; caches of the items rely on it. Changes of shared data are
+ * also recorded in the {@code changes} table, see {@link ChangeFeed}.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class SchemaManager {
+
+    public final static String PREFIX_PLACEHOLDER = "{prefix}";
+    protected final static Migration[] MIGRATIONS = {
+        new Migration(1, "initial schema",
+        "CREATE TABLE {prefix}items ("
+        + "id {id}, "
+        + "player VARCHAR(16) NOT NULL, "
+        + "material INT NOT NULL, "
+        + "amount INT NOT NULL, "
+        + "data BLOB NOT NULL, "
+        + "created {timestamp} NOT NULL DEFAULT {now})",
+        "CREATE INDEX {prefix}items_player ON {prefix}items (player, id)",
+        "CREATE TABLE {prefix}listings ("
+        + "id {id}, "
+        + "item_id BIGINT NULL, "
+        + "player VARCHAR(16) NOT NULL, "
+        + "type TINYINT NOT NULL, "
+        + "material INT NOT NULL, "
+        + "amount INT NOT NULL, "
+        + "price DECIMAL(20,2) NOT NULL, "
+        + "status TINYINT NOT NULL DEFAULT 0, "
+        + "created {timestamp} NOT NULL DEFAULT {now}, "
+        + "expires {timestamp} NULL)",
+        "CREATE INDEX {prefix}listings_market ON {prefix}listings (status, material, type, price)",
+        "CREATE INDEX {prefix}listings_expiry ON {prefix}listings (status, expires)",
+        "CREATE INDEX {prefix}listings_player ON {prefix}listings (player, status)",
+        "CREATE TABLE {prefix}bids ("
+        + "id {id}, "
+        + "listing_id BIGINT NOT NULL, "
+        + "player VARCHAR(16) NOT NULL, "
+        + "amount INT NOT NULL, "
+        + "price DECIMAL(20,2) NOT NULL, "
+        + "created {timestamp} NOT NULL DEFAULT {now})",
+        "CREATE INDEX {prefix}bids_listing ON {prefix}bids (listing_id, price)",
+        "CREATE INDEX {prefix}bids_player ON {prefix}bids (player)",
+        "CREATE TABLE {prefix}transactions ("
+        + "id {id}, "
+        + "listing_id BIGINT NULL, "
+        + "buyer VARCHAR(16) NOT NULL, "
+        + "seller VARCHAR(16) NOT NULL, "
+        + "material INT NOT NULL, "
+        + "amount INT NOT NULL, "
+        + "price DECIMAL(20,2) NOT NULL, "
+        + "created {timestamp} NOT NULL DEFAULT {now})",
+        "CREATE INDEX {prefix}transactions_material ON {prefix}transactions (material, created)",
+        "CREATE INDEX {prefix}transactions_buyer ON {prefix}transactions (buyer, created)",
+        "CREATE INDEX {prefix}transactions_seller ON {prefix}transactions (seller, created)"),
+        new Migration(2, "applied transfers",
+        "CREATE TABLE {prefix}transfers ("
+        + "id CHAR(36) NOT NULL PRIMARY KEY, "
+        + "type TINYINT NOT NULL, "
+        + "player VARCHAR(16) NOT NULL, "
+        + "applied {timestamp} NOT NULL DEFAULT {now})",
+        "CREATE INDEX {prefix}transfers_applied ON {prefix}transfers (applied)"),
+        new Migration(3, "player inventory versions",
+        "CREATE TABLE {prefix}players ("
+        + "player VARCHAR(16) NOT NULL PRIMARY KEY, "
+        + "version BIGINT NOT NULL DEFAULT 0)"),
+        new Migration(4, "change feed",
+        "CREATE TABLE {prefix}changes ("
+        + "id {id}, "
+        + "type TINYINT NOT NULL, "
+        + "player VARCHAR(16) NULL, "
+        + "ref BIGINT NOT NULL DEFAULT 0, "
+        + "created {timestamp} NOT NULL DEFAULT {now})",
+        "CREATE INDEX {prefix}changes_created ON {prefix}changes (created)"),
+        new Migration(5, "price history",
+        "CREATE TABLE {prefix}price_history ("
+        + "material INT NOT NULL, "
+        + "resolution TINYINT NOT NULL, "
+        + "period BIGINT NOT NULL, "
+        + "trades BIGINT NOT NULL, "
+        + "volume BIGINT NOT NULL, "
+        + "traded_value DECIMAL(30,2) NOT NULL, "
+        + "min_price DECIMAL(20,2) NOT NULL, "
+        + "max_price DECIMAL(20,2) NOT NULL, "
+        + "sketch BLOB NOT NULL, "
+        + "PRIMARY KEY (material, resolution, period))",
+        "CREATE INDEX {prefix}price_history_period ON {prefix}price_history (resolution, period)"),
+        new Migration(6, "written trades",
+        "CREATE TABLE {prefix}fills ("
+        + "id CHAR(36) NOT NULL PRIMARY KEY, "
+        + "applied {timestamp} NOT NULL DEFAULT {now})",
+        "CREATE INDEX {prefix}fills_applied ON {prefix}fills (applied)")
+    };
+    protected final MineAuction plugin;
+    protected final ConnectionPool pool;
+    protected final String prefix;
+    protected final String[] statements;
+
+    /**
+     * Constructs the manager and compiles all {@link SqlStatement}
+     *
+     * @param plugin the plugin
+     * @param pool the connection pool
+     * @param prefix the table name prefix, letters, digits and underscores
+     * only
+     */
+    public SchemaManager(MineAuction plugin, ConnectionPool pool, String prefix) {
+        if (prefix == null || !prefix.matches("[A-Za-z0-9_]*")) {
+            throw new IllegalArgumentException("invalid table prefix '" + prefix + "'");
+        }
+        this.plugin = plugin;
+        this.pool = pool;
+        this.prefix = prefix;
+        SqlStatement[] values = SqlStatement.values();
+        this.statements = new String[values.length];
+        for (SqlStatement statement : values) {
+            this.statements[statement.ordinal()] = this.compile(statement.getSql());
+        }
+    }
+
+    /**
+     * Replaces the prefix placeholder and the backend's placeholders (see
+     * {@link StorageBackend}) in the given SQL
+     *
+     * @param sql SQL with the {@code {prefix}} placeholder
+     * @return the final SQL
+     */
+    public String compile(String sql) {
+        return this.pool.getBackend().translate(sql.replace(PREFIX_PLACEHOLDER, this.prefix));
+    }
+
+    /**
+     * Returns the compiled SQL of the statement
+     *
+     * @param statement the statement
+     * @return the final SQL
+     */
+    public String getSql(SqlStatement statement) {
+        return this.statements[statement.ordinal()];
+    }
+
+    /**
+     * Returns the prepared statement, cached with the connection
+     *
+     * @see ConnectionPool#prepare(Connection connection, String sql, boolean
+     * generatedKeys)
+     */
+    public PreparedStatement prepare(Connection connection, SqlStatement statement) throws SQLException {
+        return this.pool.prepare(connection, this.statements[statement.ordinal()], statement.returnsGeneratedKeys());
+    }
+
+    public StorageBackend getBackend() {
+        return this.pool.getBackend();
+    }
+
+    public String getPrefix() {
+        return this.prefix;
+    }
+
+    /**
+     * Returns the version the newest migration upgrades the schema to
+     *
+     * @return the latest schema version
+     */
+    public static int getLatestVersion() {
+        return MIGRATIONS[MIGRATIONS.length - 1].version;
+    }
+
+    /**
+     * Brings the schema up to date
+     *
+     * @return the schema version after the upgrade
+     * @throws SQLException if a migration fails
+     */
+    public int migrate() throws SQLException {
+        try (Connection connection = this.pool.getConnection()) {
+            this.createVersionTable(connection);
+            int version = this.getVersion(connection);
+            if (version > getLatestVersion()) {
+                this.plugin.log.warning("database schema version " + version + " is newer than this version of the plugin supports ("
+                        + getLatestVersion() + ") - please update MineAuction");
+                return version;
+            }
+            for (Migration migration : MIGRATIONS) {
+                if (migration.version > version) {
+                    this.apply(connection, migration);
+                    version = migration.version;
+                }
+            }
+            return version;
+        }
+    }
+
+    /**
+     * Returns the current version of the schema
+     *
+     * @param connection the connection
+     * @return the version, 0 for an empty database
+     * @throws SQLException on database errors
+     */
+    public int getVersion(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery(this.compile("SELECT MAX(version) FROM {prefix}schema_version"))) {
+            return result.next() ? result.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Creates the table holding the schema version, if it doesn't exist yet
+     */
+    protected void createVersionTable(Connection connection) throws SQLException {
+        DatabaseMetaData meta = connection.getMetaData();
+        String table = this.compile("{prefix}schema_version");
+        try (ResultSet tables = meta.getTables(null, null, table, null);
+                ResultSet upperCaseTables = meta.getTables(null, null, table.toUpperCase(), null)) {
+            if (tables.next() || upperCaseTables.next()) {
+                return;
+            }
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate(this.compile("CREATE TABLE {prefix}schema_version ("
+                    + "version INT NOT NULL PRIMARY KEY, "
+                    + "description VARCHAR(255) NOT NULL, "
+                    + "applied {timestamp} NOT NULL DEFAULT {now})"));
+        }
+    }
+
+    /**
+     * Applies a single migration in a transaction
+     */
+    protected void apply(Connection connection, Migration migration) throws SQLException {
+        this.plugin.log.info("upgrading database schema to version " + migration.version + " (" + migration.description + ")");
+        connection.setAutoCommit(false);
+        try {
+            try (Statement statement = connection.createStatement()) {
+                for (String sql : migration.statements) {
+                    statement.executeUpdate(this.compile(sql));
+                }
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    this.compile("INSERT INTO {prefix}schema_version (version, description) VALUES (?, ?)"))) {
+                statement.setInt(1, migration.version);
+                statement.setString(2, migration.description);
+                statement.executeUpdate();
+            }
+            connection.commit();
+        } catch (SQLException ex) {
+            connection.rollback();
+            throw new SQLException("migration to schema version " + migration.version + " failed: " + ex.getMessage(), ex);
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * A single step of the schema evolution
+     */
+    protected static class Migration {
+
+        protected final int version;
+        protected final String description;
+        protected final String[] statements;
+
+        protected Migration(int version, String description, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+/**
+ * All SQL statements used by MineAuction, with the {@code {prefix}}
+ * placeholder in place of the table name prefix. The final SQL is compiled
+ * once by the {@link SchemaManager} and statements are prepared through it, so
+ * they are cached with the connection.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public enum SqlStatement {
+
+    // deposited items (player's virtual inventory)
+    ITEM_INSERT("INSERT INTO {prefix}items (player, material, amount, data) VALUES (?, ?, ?, ?)", true),
+    ITEM_DELETE("DELETE FROM {prefix}items WHERE id = ? AND player = ?"),
+    ITEMS_PAGE("SELECT id, material, amount, data FROM {prefix}items WHERE player = ? AND id > ? ORDER BY id LIMIT ?"),
+    // listings (offers to sell or buy)
+    LISTING_INSERT("INSERT INTO {prefix}listings (item_id, player, type, material, amount, price, expires)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?)", true),
+    LISTING_UPDATE_STATUS("UPDATE {prefix}listings SET status = ? WHERE id = ? AND status = ?"),
+    LISTINGS_ACTIVE_BY_MATERIAL("SELECT id, item_id, player, type, amount, price, created, expires FROM {prefix}listings"
+            + " WHERE status = 0 AND material = ? AND type = ? ORDER BY price, id LIMIT ?"),
+    LISTINGS_BY_PLAYER("SELECT id, item_id, type, material, amount, price, created, expires FROM {prefix}listings"
+            + " WHERE player = ? AND status = ? ORDER BY id"),
+    LISTINGS_ACTIVE_PAGE("SELECT l.id, l.item_id, l.player, l.type, l.material, l.amount, l.price, l.created, l.expires,"
+            + " l.status, i.data FROM {prefix}listings l LEFT JOIN {prefix}items i ON i.id = l.item_id"
+            + " WHERE l.status = 0 AND l.id > ? ORDER BY l.id LIMIT ?"),
+    LISTING_BY_ID("SELECT l.id, l.item_id, l.player, l.type, l.material, l.amount, l.price, l.created, l.expires,"
+            + " l.status, i.data FROM {prefix}listings l LEFT JOIN {prefix}items i ON i.id = l.item_id WHERE l.id = ?"),
+    LISTING_UPDATE_FILL("UPDATE {prefix}listings SET amount = ?, status = ? WHERE id = ? AND status = 0"),
+    LISTING_STATE("SELECT amount, status FROM {prefix}listings WHERE id = ?"),
+    LISTING_RESTORE("UPDATE {prefix}listings SET amount = amount + ?, status = 0 WHERE id = ? AND status IN (0, 1)"),
+    LISTINGS_EXPIRED("SELECT id FROM {prefix}listings WHERE status = 0 AND expires <= ? ORDER BY expires LIMIT ?"),
+    // bids and finished trades
+    BID_INSERT("INSERT INTO {prefix}bids (listing_id, player, amount, price) VALUES (?, ?, ?, ?)", true),
+    TRANSACTION_INSERT("INSERT INTO {prefix}transactions (listing_id, buyer, seller, material, amount, price)"
+            + " VALUES (?, ?, ?, ?, ?, ?)", true),
+    // written trades (see MarketStore)
+    FILL_EXISTS("SELECT 1 FROM {prefix}fills WHERE id = ?"),
+    FILL_INSERT("INSERT INTO {prefix}fills (id) VALUES (?)"),
+    FILLS_PRUNE("DELETE FROM {prefix}fills WHERE applied < ?"),
+    // price statistics (see PriceHistory)
+    PRICE_HISTORY_SAVE("REPLACE INTO {prefix}price_history"
+            + " (material, resolution, period, trades, volume, traded_value, min_price, max_price, sketch)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)"),
+    PRICE_HISTORY_LOAD("SELECT material, period, trades, volume, traded_value, min_price, max_price, sketch"
+            + " FROM {prefix}price_history WHERE resolution = ? AND period > ?"),
+    PRICE_HISTORY_PRUNE("DELETE FROM {prefix}price_history WHERE resolution = ? AND period <= ?"),
+    // applied item transfers (see TransferLog)
+    TRANSFER_EXISTS("SELECT 1 FROM {prefix}transfers WHERE id = ?"),
+    TRANSFER_INSERT("INSERT INTO {prefix}transfers (id, type, player) VALUES (?, ?, ?)"),
+    TRANSFERS_PRUNE("DELETE FROM {prefix}transfers WHERE applied < ?"),
+    // versions of players' items
+    PLAYER_VERSION("SELECT version FROM {prefix}players WHERE player = ?"),
+    PLAYER_VERSION_BUMP("UPDATE {prefix}players SET version = version + 1 WHERE player = ?"),
+    PLAYER_INSERT("{insertIgnore} INTO {prefix}players (player, version) VALUES (?, 1)"),
+    // change feed (see ChangeFeed)
+    CHANGE_INSERT("INSERT INTO {prefix}changes (type, player, ref) VALUES (?, ?, ?)"),
+    CHANGES_HEAD("SELECT MAX(id), {now} FROM {prefix}changes"),
+    CHANGES_SINCE("SELECT id, type, player, ref, created FROM {prefix}changes WHERE id > ? ORDER BY id LIMIT ?"),
+    CHANGES_PRUNE("DELETE FROM {prefix}changes WHERE created < ?");
+    protected final String sql;
+    protected final boolean generatedKeys;
+
+    private SqlStatement(String sql) {
+        this(sql, false);
+    }
+
+    private SqlStatement(String sql, boolean generatedKeys) {
+        this.sql = sql;
+        this.generatedKeys = generatedKeys;
+    }
+
+    /**
+     * Returns the SQL with the {@code {prefix}} placeholder
+     *
+     * @return the SQL template
+     */
+    public String getSql() {
+        return this.sql;
+    }
+
+    /**
+     * Returns whether the statement should return generated keys
+     *
+     * @return true for inserts into tables with generated ids
+     */
+    public boolean returnsGeneratedKeys() {
+        return this.generatedKeys;
+    }
+}
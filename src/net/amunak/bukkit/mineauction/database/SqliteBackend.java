@@ -0,0 +1,139 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.File;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Local SQLite database file, for servers without a database server. The
+ * SQLite driver ships with CraftBukkit.
+ *
+ * Connections are tuned for latency: the write-ahead journal lets readers
+ * run alongside the writer, commits are synced only at checkpoints (an
+ * operating system crash may lose the last commits, the database stays
+ * consistent) and connections wait for locks instead of failing right away.
+ *
+ * Times are stored as milliseconds since the epoch, which is how the driver
+ * binds {@link java.sql.Timestamp} parameters.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class SqliteBackend extends StorageBackend {
+
+    public final static String DRIVER = "org.sqlite.JDBC";
+    protected final File file;
+    protected final int busyTimeout;
+
+    /**
+     * Constructs the backend
+     *
+     * @param file the database file
+     * @param busyTimeout milliseconds to wait for a lock held by another
+     * connection
+     */
+    public SqliteBackend(File file, int busyTimeout) {
+        this.file = file;
+        this.busyTimeout = Math.max(0, busyTimeout);
+    }
+
+    @Override
+    public String getName() {
+        return "sqlite";
+    }
+
+    @Override
+    public String getLocation() {
+        return this.file.getPath();
+    }
+
+    @Override
+    public Connection connect() throws SQLException {
+        try {
+            Class.forName(DRIVER);
+        } catch (ClassNotFoundException ex) {
+            throw new SQLException("the SQLite driver (" + DRIVER + ") is not available", ex);
+        }
+        this.file.getParentFile().mkdirs();
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + this.file.getPath());
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA busy_timeout = " + this.busyTimeout);
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA synchronous = NORMAL");
+            statement.execute("PRAGMA temp_store = MEMORY");
+        } catch (SQLException ex) {
+            connection.close();
+            throw ex;
+        }
+        return connection;
+    }
+
+    @Override
+    public String translate(String sql) {
+        return sql.replace("{id}", "INTEGER PRIMARY KEY AUTOINCREMENT")
+                .replace("{timestamp}", "INTEGER")
+                .replace("{now}", "(CAST(strftime('%s', 'now') AS INTEGER) * 1000)")
+                .replace("{insertIgnore}", "INSERT OR IGNORE");
+    }
+
+    @Override
+    public boolean returnsBatchGeneratedKeys() {
+        return false;
+    }
+
+    @Override
+    public boolean isValid(Connection connection, int timeout) throws SQLException {
+        // the driver shipped with CraftBukkit predates Connection.isValid;
+        // there is no server to wait for, so the timeout doesn't matter
+        if (connection.isClosed()) {
+            return false;
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SELECT 1");
+            return true;
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public void setDecimal(PreparedStatement statement, int index, BigDecimal value) throws SQLException {
+        // the driver shipped with CraftBukkit implements neither
+        // setBigDecimal nor getBigDecimal; SQLite keeps decimals as REAL
+        // anyway, which is exact for prices below 10^13
+        statement.setString(index, value == null ? null : value.toPlainString());
+    }
+
+    @Override
+    public BigDecimal getDecimal(ResultSet result, int index) throws SQLException {
+        String value = result.getString(index);
+        return value == null ? null : new BigDecimal(value);
+    }
+
+    @Override
+    public boolean isTransient(SQLException error) {
+        // SQLITE_BUSY and SQLITE_LOCKED, which the driver reports without
+        // an SQL state
+        return super.isTransient(error) || error.getErrorCode() == 5 || error.getErrorCode() == 6;
+    }
+}
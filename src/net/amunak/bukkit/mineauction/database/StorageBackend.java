@@ -0,0 +1,169 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.File;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import net.amunak.bukkit.mineauction.MineAuction;
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * The database engine MineAuction stores its data in.
+ *
+ * All data access is plain JDBC through the {@link ConnectionPool}, with the
+ * statements in {@link SqlStatement} and {@link SchemaManager}. A backend
+ * opens the physical connections and adapts the few engine-specific parts of
+ * the SQL, written as placeholders:
+ * <ul>
+ * <li>{@code {id}} - an auto-incremented BIGINT primary key column</li>
+ * <li>{@code {timestamp}} - type of a point-in-time column</li>
+ * <li>{@code {now}} - the current time, as a value of a timestamp column</li>
+ * <li>{@code {insertIgnore}} - an INSERT that skips rows with a key that
+ * exists already instead of failing</li>
+ * </ul>
+ *
+ * The backend is selected by {@code database.backend}: {@code mysql} for a
+ * MySQL/MariaDB server (which the web interface uses), {@code sqlite} for a
+ * local file, which needs no database server at all.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public abstract class StorageBackend {
+
+    /**
+     * Creates the backend selected in the {@code database} config section
+     *
+     * @param plugin the plugin
+     * @param config the {@code database} config section
+     * @return the backend
+     * @throws IllegalArgumentException if the backend is unknown
+     */
+    public static StorageBackend fromConfig(MineAuction plugin, ConfigurationSection config) {
+        String name = config.getString("backend", "mysql");
+        if (name.equalsIgnoreCase("mysql")) {
+            return new MySqlBackend(config.getString("url"), config.getString("user"), config.getString("password"));
+        } else if (name.equalsIgnoreCase("sqlite")) {
+            return new SqliteBackend(new File(plugin.getDataFolder(), config.getString("sqlite.file", "mineauction.db")),
+                    config.getInt("sqlite.busyTimeout", 5000));
+        }
+        throw new IllegalArgumentException("unknown database backend '" + name + "' (use 'mysql' or 'sqlite')");
+    }
+
+    /**
+     * Returns the name of the backend, as used in the config
+     *
+     * @return the name
+     */
+    public abstract String getName();
+
+    /**
+     * Returns a description of where the data is stored, for the log
+     *
+     * @return the location
+     */
+    public abstract String getLocation();
+
+    /**
+     * Opens a new physical connection, set up for MineAuction
+     *
+     * @return the connection
+     * @throws SQLException if the connection can't be opened
+     */
+    public abstract Connection connect() throws SQLException;
+
+    /**
+     * Replaces the engine-specific placeholders in the SQL
+     *
+     * @param sql the SQL
+     * @return the SQL for this engine
+     */
+    public abstract String translate(String sql);
+
+    /**
+     * Returns whether a batch insert returns the generated keys of all the
+     * inserted rows (and not only the last one)
+     *
+     * @return true if keys of batch inserts can be read
+     */
+    public abstract boolean returnsBatchGeneratedKeys();
+
+    /**
+     * Checks that a connection still works
+     *
+     * @param connection the connection
+     * @param timeout seconds to wait for the database
+     * @return true if the connection can be used
+     * @throws SQLException if the check itself fails
+     */
+    public boolean isValid(Connection connection, int timeout) throws SQLException {
+        return connection.isValid(timeout);
+    }
+
+    /**
+     * Binds a decimal (e.g. a price) to a statement parameter
+     *
+     * @param statement the statement
+     * @param index index of the parameter
+     * @param value the value
+     * @throws SQLException if the value can't be bound
+     */
+    public void setDecimal(PreparedStatement statement, int index, BigDecimal value) throws SQLException {
+        statement.setBigDecimal(index, value);
+    }
+
+    /**
+     * Reads a decimal (e.g. a price) from a column of a result
+     *
+     * @param result the result
+     * @param index index of the column
+     * @return the value, null if it is NULL
+     * @throws SQLException if the value can't be read
+     */
+    public BigDecimal getDecimal(ResultSet result, int index) throws SQLException {
+        return result.getBigDecimal(index);
+    }
+
+    /**
+     * Returns whether an error may go away when the failed work is retried -
+     * a lost connection, a timeout or a lock conflict - as opposed to errors
+     * caused by the work itself, which would fail again
+     *
+     * @param error the error
+     * @return true if the error is transient
+     */
+    public boolean isTransient(SQLException error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLTransientException || cause instanceof SQLRecoverableException) {
+                return true;
+            }
+            if (cause instanceof SQLException) {
+                String state = ((SQLException) cause).getSQLState();
+                // connection exceptions and transaction rollbacks (deadlocks)
+                if (state != null && (state.startsWith("08") || state.startsWith("40"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
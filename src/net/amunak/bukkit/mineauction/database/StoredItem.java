@@ -0,0 +1,49 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+/**
+ * A single item stack stored in a player's virtual inventory, in the form it
+ * has in the database
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class StoredItem {
+
+    public final long id;
+    public final int material;
+    public final int amount;
+    public final byte[] data;
+
+    /**
+     * Constructs an item that has not been stored yet
+     *
+     * @param material material id
+     * @param amount stack size
+     * @param data the serialized item stack
+     */
+    public StoredItem(int material, int amount, byte[] data) {
+        this(0, material, amount, data);
+    }
+
+    public StoredItem(long id, int material, int amount, byte[] data) {
+        this.id = id;
+        this.material = material;
+        this.amount = amount;
+        this.data = data;
+    }
+}
@@ -0,0 +1,108 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A single movement of items between a player and their virtual inventory,
+ * as written to the {@link TransferLog}. Every transfer has a unique id, so
+ * it is applied to the database only once, no matter how many times it is
+ * replayed.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class Transfer {
+
+    public final UUID id;
+    public final Type type;
+    public final String player;
+    public final List<StoredItem> items;
+
+    /**
+     * Constructs a transfer
+     *
+     * @param id unique id of the transfer
+     * @param type type of the transfer
+     * @param player the player
+     * @param items deposited items, or the withdrawn items (only their ids
+     * matter)
+     */
+    public Transfer(UUID id, Type type, String player, List<StoredItem> items) {
+        this.id = id;
+        this.type = type;
+        this.player = player;
+        this.items = Collections.unmodifiableList(items);
+    }
+
+    /**
+     * Constructs a new deposit
+     *
+     * @param player the player
+     * @param items the deposited items
+     * @return the transfer
+     */
+    public static Transfer deposit(String player, List<StoredItem> items) {
+        return new Transfer(UUID.randomUUID(), Type.DEPOSIT, player, items);
+    }
+
+    /**
+     * Constructs a new withdrawal
+     *
+     * @param player the player
+     * @param items the withdrawn items
+     * @return the transfer
+     */
+    public static Transfer withdrawal(String player, List<StoredItem> items) {
+        return new Transfer(UUID.randomUUID(), Type.WITHDRAWAL, player, items);
+    }
+
+    /**
+     * Direction of the transfer
+     */
+    public enum Type {
+
+        DEPOSIT(1),
+        WITHDRAWAL(2);
+        protected final byte id;
+
+        private Type(int id) {
+            this.id = (byte) id;
+        }
+
+        public byte getId() {
+            return this.id;
+        }
+
+        /**
+         * Looks up the type by its id
+         *
+         * @param id the id
+         * @return the type or null if there is no type with such id
+         */
+        public static Type getById(byte id) {
+            for (Type type : Type.values()) {
+                if (type.id == id) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+}
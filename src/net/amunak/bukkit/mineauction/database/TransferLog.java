@@ -0,0 +1,822 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+import net.amunak.bukkit.mineauction.MineAuction;
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * Write-behind log of item transfers.
+ *
+ * Every {@link Transfer} is first appended to a local write-ahead log file and
+ * forced to disk; only then is the player told that the transfer is done. A
+ * background thread then applies the logged transfers to the database in
+ * groups, each group in one transaction, retrying (with a growing delay) for
+ * as long as the database is unreachable. A slow or unavailable database thus
+ * only delays the transfers, without the risk of losing or duplicating items.
+ *
+ * Every applied transfer is recorded in the {@code transfers} table in the
+ * same transaction, and transfers already recorded there are skipped. Thanks
+ * to that the log can be safely replayed after a crash - transfers are
+ * applied exactly once. Once everything in the log has been applied, the log
+ * file is truncated.
+ *
+ * Appends are also grouped: all transfers waiting to be logged are written
+ * together and share one fsync.
+ *
+ * Withdrawals made by players don't go through the log, but are applied
+ * right away by {@code withdraw}: the player may get the items only once the
+ * database confirms they were still there. Withdrawals found in logs written
+ * by older versions are still applied.
+ *
+ * Log records are {@code [int length][payload][int CRC32 of the payload]};
+ * replaying stops at the first incomplete or damaged record (the tail of an
+ * interrupted write), which is cut off.
+ *
+ * Only errors that may go away (connection errors, timeouts, lock
+ * conflicts - see {@link StorageBackend#isTransient}) are retried. A group
+ * that fails with any other error is applied again one transfer at a time;
+ * a transfer that still fails is written to the {@value #DEAD_FILENAME} file
+ * (in the same record format), reported and dropped, so one bad transfer
+ * can't block the ones behind it.
+ *
+ * A withdrawal whose items are no longer all in the database (deleted or
+ * sold elsewhere after the player got them) can't be applied as logged. It is
+ * recorded as applied, so it isn't retried, but it is also written to the
+ * {@value #PARKED_FILENAME} file (in the same record format) and reported,
+ * so an admin can reconcile the player's items.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class TransferLog {
+
+    public final static String FILENAME = "transfers.wal";
+    public final static String PARKED_FILENAME = "transfers.parked";
+    public final static String DEAD_FILENAME = "transfers.dead";
+    protected final static int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+    protected final static long PRUNE_INTERVAL = TimeUnit.HOURS.toMillis(1);
+    protected final static long PRUNE_AGE = TimeUnit.DAYS.toMillis(7);
+    protected final MineAuction plugin;
+    protected final ConnectionPool pool;
+    protected final SchemaManager schema;
+    protected final DatabaseExecutor executor;
+    protected final ItemDao items;
+    protected final File file;
+    protected final File parkedFile;
+    protected final File deadFile;
+    protected final int batchSize;
+    protected final long maxRetryDelay;
+    protected final BlockingQueue<Append> appends;
+    protected final ConcurrentLinkedQueue<Transfer> pending;
+    protected final AtomicInteger pendingCount;
+    protected final Semaphore drainSignal;
+    protected final Object fileLock;
+    protected final AtomicLong appended;
+    protected final AtomicLong applied;
+    protected final AtomicLong skipped;
+    protected final AtomicLong parked;
+    protected final AtomicLong dead;
+    protected final AtomicLong syncs;
+    protected final AtomicLong failures;
+    protected final AtomicLong lastCommitLatency;
+    protected final Set<UUID> deadIds;
+    protected FileChannel channel;
+    protected Thread appender;
+    protected Thread drainer;
+    protected volatile boolean accepting;
+    protected volatile boolean draining;
+    protected long lastPrune;
+
+    /**
+     * Constructs the log from the {@code database} config section
+     *
+     * @param plugin the plugin
+     * @param pool the connection pool
+     * @param schema the schema manager
+     * @param executor executor used to deliver callbacks on the main thread
+     * @param config the {@code database} config section
+     */
+    public TransferLog(MineAuction plugin, ConnectionPool pool, SchemaManager schema, DatabaseExecutor executor, ConfigurationSection config) {
+        this.plugin = plugin;
+        this.pool = pool;
+        this.schema = schema;
+        this.executor = executor;
+        this.items = new ItemDao(schema);
+        this.file = new File(plugin.getDataFolder(), FILENAME);
+        this.parkedFile = new File(plugin.getDataFolder(), PARKED_FILENAME);
+        this.deadFile = new File(plugin.getDataFolder(), DEAD_FILENAME);
+        this.batchSize = Math.max(1, config.getInt("transferLog.batchSize", 64));
+        this.maxRetryDelay = Math.max(1000, config.getLong("transferLog.maxRetryDelay", 30000));
+        this.appends = new ArrayBlockingQueue<>(Math.max(1, config.getInt("transferLog.queueSize", 1024)));
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.pendingCount = new AtomicInteger();
+        this.drainSignal = new Semaphore(0);
+        this.fileLock = new Object();
+        this.appended = new AtomicLong();
+        this.applied = new AtomicLong();
+        this.skipped = new AtomicLong();
+        this.parked = new AtomicLong();
+        this.dead = new AtomicLong();
+        this.syncs = new AtomicLong();
+        this.failures = new AtomicLong();
+        this.lastCommitLatency = new AtomicLong();
+        this.deadIds = new HashSet<>();
+    }
+
+    /**
+     * Replays the transfers left in the log by the last run and starts the
+     * appending and draining threads
+     *
+     * @throws IOException if the log cannot be read or opened
+     */
+    public void start() throws IOException {
+        this.file.getParentFile().mkdirs();
+        int replayed = this.replay();
+        if (replayed > 0) {
+            this.plugin.log.info(replayed + " item transfers found in the transfer log, applying them to the database");
+        }
+        this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.accepting = true;
+        this.draining = true;
+        this.appender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                appendLoop();
+            }
+        }, "MineAuction-TransferLog-Append");
+        this.drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "MineAuction-TransferLog-Drain");
+        this.appender.setDaemon(true);
+        this.drainer.setDaemon(true);
+        this.appender.start();
+        this.drainer.start();
+        if (replayed > 0) {
+            this.drainSignal.release();
+        }
+    }
+
+    /**
+     * Logs a transfer. The transfer is built on the log's thread, so any
+     * expensive preparation (like item serialization) stays off the main
+     * thread. The callback is called on the main thread once the transfer is
+     * safely on disk - it will then eventually be applied to the database.
+     *
+     * @param transfer builds the transfer
+     * @param callback receives the logged transfer, or the reason it wasn't
+     * logged
+     * @return false if the log is closed or too many transfers wait to be
+     * logged (the callback is not called then), true otherwise
+     */
+    public boolean append(Callable<Transfer> transfer, DatabaseExecutor.Callback<Transfer> callback) {
+        return this.accepting && this.appends.offer(new Append(transfer, callback));
+    }
+
+    /**
+     * Withdraws items right away, in one transaction on the executor: the
+     * items are deleted (which claims them - only one withdrawal can delete a
+     * row) and the transfer is recorded as applied. If the transaction times
+     * out and it isn't known whether it was committed, the transfer record is
+     * looked up before the callback is called.
+     *
+     * @param transfer the withdrawal
+     * @param callback receives true if all the items were claimed and may be
+     * given to the player, false if some of them were no longer there
+     * (nothing is withdrawn then); an {@link UnknownOutcomeException} if even
+     * the lookup failed - the items may or may not have been withdrawn
+     * @return false if the executor is busy (the callback is not called then),
+     * true otherwise
+     */
+    public boolean withdraw(final Transfer transfer, final DatabaseExecutor.Callback<Boolean> callback) {
+        return this.executor.submit(new DatabaseExecutor.Query<Boolean>() {
+            @Override
+            public Boolean execute(Connection connection) throws SQLException {
+                return claim(connection, transfer);
+            }
+        }, new DatabaseExecutor.Callback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean claimed) {
+                callback.onSuccess(claimed);
+            }
+
+            @Override
+            public void onFailure(final Throwable error) {
+                if (!(error instanceof UnknownOutcomeException)) {
+                    callback.onFailure(error);
+                    return;
+                }
+                boolean submitted = executor.submit(new DatabaseExecutor.Query<Boolean>() {
+                    @Override
+                    public Boolean execute(Connection connection) throws SQLException {
+                        return isApplied(connection, transfer.id);
+                    }
+                }, new DatabaseExecutor.Callback<Boolean>() {
+                    @Override
+                    public void onSuccess(Boolean committed) {
+                        if (committed) {
+                            callback.onSuccess(true);
+                        } else {
+                            callback.onFailure(new SQLException("withdrawal " + transfer.id + " was not committed", error));
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable lookupError) {
+                        callback.onFailure(error);
+                    }
+                });
+                if (!submitted) {
+                    callback.onFailure(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes the withdrawn items and records the withdrawal, in one
+     * transaction
+     *
+     * @return false if some of the items were no longer there, nothing is
+     * changed then
+     */
+    protected boolean claim(Connection connection, Transfer transfer) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            if (this.items.delete(connection, transfer.player, transfer.items) != transfer.items.size()) {
+                connection.rollback();
+                return false;
+            }
+            this.items.bumpVersion(connection, transfer.player);
+            ChangeFeed.record(this.schema, connection, Change.Type.ITEMS, transfer.player, 0);
+            PreparedStatement record = this.schema.prepare(connection, SqlStatement.TRANSFER_INSERT);
+            record.setString(1, transfer.id.toString());
+            record.setByte(2, transfer.type.getId());
+            record.setString(3, transfer.player);
+            record.executeUpdate();
+            connection.commit();
+            this.applied.incrementAndGet();
+            return true;
+        } catch (SQLException | RuntimeException ex) {
+            connection.rollback();
+            throw ex;
+        }
+    }
+
+    /**
+     * Tells whether the transfer has been applied
+     */
+    protected boolean isApplied(Connection connection, UUID id) throws SQLException {
+        PreparedStatement exists = this.schema.prepare(connection, SqlStatement.TRANSFER_EXISTS);
+        exists.setString(1, id.toString());
+        try (ResultSet result = exists.executeQuery()) {
+            return result.next();
+        }
+    }
+
+    /**
+     * Returns the number of logged transfers not yet applied to the database
+     *
+     * @return number of transfers
+     */
+    public int getPendingCount() {
+        return this.pendingCount.get();
+    }
+
+    /**
+     * Returns a human readable summary of the log's state
+     *
+     * @return the statistics
+     */
+    public String getStatistics() {
+        return "pending: " + this.getPendingCount()
+                + ", waiting to be logged: " + this.appends.size()
+                + ", logged: " + this.appended.get()
+                + ", syncs: " + this.syncs.get()
+                + ", applied: " + this.applied.get()
+                + ", already applied: " + this.skipped.get()
+                + ", parked: " + this.parked.get()
+                + ", given up: " + this.dead.get()
+                + ", failed commits: " + this.failures.get()
+                + ", last commit: " + this.lastCommitLatency.get() + " ms";
+    }
+
+    /**
+     * Stops accepting transfers, logs the waiting ones and tries to apply all
+     * the logged transfers. Transfers that could not be applied in time stay
+     * in the log for the next start.
+     *
+     * @param timeout milliseconds to wait for the database
+     */
+    public void close(long timeout) {
+        if (this.channel == null) {
+            return;
+        }
+        this.accepting = false;
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            this.appender.join(Math.max(1, timeout));
+            this.drainSignal.release();
+            while (this.pendingCount.get() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        this.draining = false;
+        this.drainer.interrupt();
+        try {
+            this.drainer.join(timeout);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.pendingCount.get() > 0) {
+            this.plugin.log.warning(this.pendingCount.get() + " item transfers could not be written to the database,"
+                    + " they will be written on the next start");
+        }
+        synchronized (this.fileLock) {
+            try {
+                this.channel.close();
+            } catch (IOException ex) {
+                this.plugin.log.warning("could not close the transfer log: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes waiting transfers to the log, in groups sharing one fsync
+     */
+    protected void appendLoop() {
+        List<Append> group = new ArrayList<>();
+        while (this.accepting || !this.appends.isEmpty()) {
+            try {
+                Append first = this.appends.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                group.add(first);
+                this.appends.drainTo(group);
+                this.appendGroup(group);
+            } catch (InterruptedException ex) {
+                if (!this.accepting) {
+                    break;
+                }
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes one group of transfers and forces it to disk
+     */
+    protected void appendGroup(List<Append> group) {
+        List<Append> built = new ArrayList<>(group.size());
+        List<ByteBuffer> records = new ArrayList<>(group.size());
+        for (Append append : group) {
+            try {
+                append.transfer = append.builder.call();
+                records.add(encode(append.transfer));
+                built.add(append);
+            } catch (Exception ex) {
+                this.executor.deliver(append.callback, null, ex);
+            }
+        }
+        if (built.isEmpty()) {
+            return;
+        }
+        IOException error = null;
+        synchronized (this.fileLock) {
+            long start = -1;
+            try {
+                start = this.channel.size();
+                for (ByteBuffer record : records) {
+                    while (record.hasRemaining()) {
+                        this.channel.write(record);
+                    }
+                }
+                this.channel.force(false);
+                this.syncs.incrementAndGet();
+                for (Append append : built) {
+                    this.pending.add(append.transfer);
+                }
+                this.pendingCount.addAndGet(built.size());
+                this.appended.addAndGet(built.size());
+            } catch (IOException ex) {
+                error = ex;
+                // cut off whatever part of the group got written, so the
+                // following records don't end up behind a damaged one
+                if (start >= 0) {
+                    try {
+                        this.channel.truncate(start);
+                    } catch (IOException ex1) {
+                        this.plugin.log.warning("could not repair the transfer log: " + ex1.getMessage());
+                    }
+                }
+            }
+        }
+        if (error != null) {
+            this.plugin.log.warning("could not write to the transfer log: " + error.getMessage());
+        } else {
+            this.drainSignal.release();
+        }
+        for (Append append : built) {
+            this.executor.deliver(append.callback, error == null ? append.transfer : null, error);
+        }
+    }
+
+    /**
+     * Applies the logged transfers to the database, in groups
+     */
+    protected void drainLoop() {
+        long retryDelay = 0;
+        List<Transfer> batch = new ArrayList<>(this.batchSize);
+        while (this.draining) {
+            try {
+                if (this.pending.isEmpty()) {
+                    this.drainSignal.tryAcquire(1, TimeUnit.SECONDS);
+                    this.drainSignal.drainPermits();
+                    this.pruneApplied();
+                    continue;
+                }
+                batch.clear();
+                Iterator<Transfer> iterator = this.pending.iterator();
+                while (iterator.hasNext() && batch.size() < this.batchSize) {
+                    batch.add(iterator.next());
+                }
+                long start = System.currentTimeMillis();
+                try (Connection connection = this.pool.getConnection()) {
+                    this.applyIsolating(connection, batch);
+                } catch (SQLException | RuntimeException ex) {
+                    this.failures.incrementAndGet();
+                    retryDelay = Math.min(this.maxRetryDelay, Math.max(500, retryDelay * 2));
+                    this.plugin.log.warning("could not write " + batch.size() + " item transfers to the database (retrying in "
+                            + retryDelay + " ms): " + ex.getMessage());
+                    Thread.sleep(retryDelay);
+                    continue;
+                }
+                retryDelay = 0;
+                this.lastCommitLatency.set(System.currentTimeMillis() - start);
+                for (int i = 0; i < batch.size(); i++) {
+                    this.deadIds.remove(this.pending.poll().id);
+                }
+                this.pendingCount.addAndGet(-batch.size());
+                this.truncateIfApplied();
+            } catch (InterruptedException ex) {
+                // woken up to stop
+            }
+        }
+    }
+
+    /**
+     * Applies a group of transfers. If that fails with an error that won't go
+     * away by retrying, the transfers are applied one by one and those that
+     * still fail are moved to the dead transfers file.
+     *
+     * @throws SQLException if the group failed with a transient error, which
+     * is worth retrying
+     */
+    protected void applyIsolating(Connection connection, List<Transfer> batch) throws SQLException {
+        try {
+            this.apply(connection, batch);
+            return;
+        } catch (SQLException | RuntimeException ex) {
+            if (this.isTransient(ex)) {
+                throw ex;
+            }
+            this.plugin.log.warning("could not write " + batch.size() + " item transfers to the database, writing them one by one: "
+                    + ex.getMessage());
+        }
+        for (Transfer transfer : batch) {
+            try {
+                this.apply(connection, Collections.singletonList(transfer));
+            } catch (SQLException | RuntimeException ex) {
+                if (this.isTransient(ex)) {
+                    throw ex;
+                }
+                this.bury(transfer, ex);
+            }
+        }
+    }
+
+    /**
+     * Tells whether a failed group of transfers may succeed if retried
+     */
+    protected boolean isTransient(Exception error) {
+        return error instanceof SQLException && this.pool.getBackend().isTransient((SQLException) error);
+    }
+
+    /**
+     * Applies a group of transfers in one transaction, skipping those already
+     * applied (or given up on) and parking withdrawals of items that were no
+     * longer there
+     */
+    protected void apply(Connection connection, List<Transfer> batch) throws SQLException {
+        List<Transfer> mismatched = new ArrayList<>();
+        connection.setAutoCommit(false);
+        try {
+            PreparedStatement exists = this.schema.prepare(connection, SqlStatement.TRANSFER_EXISTS);
+            PreparedStatement record = this.schema.prepare(connection, SqlStatement.TRANSFER_INSERT);
+            int skippedNow = 0;
+            int deadNow = 0;
+            for (Transfer transfer : batch) {
+                if (this.deadIds.contains(transfer.id)) {
+                    deadNow++;
+                    continue;
+                }
+                exists.setString(1, transfer.id.toString());
+                try (ResultSet result = exists.executeQuery()) {
+                    if (result.next()) {
+                        skippedNow++;
+                        continue;
+                    }
+                }
+                if (transfer.type == Transfer.Type.DEPOSIT) {
+                    this.items.insert(connection, transfer.player, transfer.items);
+                } else if (this.items.delete(connection, transfer.player, transfer.items) != transfer.items.size()) {
+                    mismatched.add(transfer);
+                }
+                this.items.bumpVersion(connection, transfer.player);
+                ChangeFeed.record(this.schema, connection, Change.Type.ITEMS, transfer.player, 0);
+                record.setString(1, transfer.id.toString());
+                record.setByte(2, transfer.type.getId());
+                record.setString(3, transfer.player);
+                record.addBatch();
+            }
+            if (skippedNow + deadNow < batch.size()) {
+                record.executeBatch();
+            }
+            connection.commit();
+            this.applied.addAndGet(batch.size() - skippedNow - deadNow - mismatched.size());
+            this.skipped.addAndGet(skippedNow);
+        } catch (SQLException | RuntimeException ex) {
+            connection.rollback();
+            throw ex;
+        }
+        for (Transfer transfer : mismatched) {
+            this.park(transfer);
+        }
+    }
+
+    /**
+     * Reports a withdrawal that could not be fully applied and keeps it in
+     * the parked transfers file for reconciliation
+     */
+    protected void park(Transfer transfer) {
+        this.parked.incrementAndGet();
+        StringBuilder ids = new StringBuilder();
+        for (StoredItem item : transfer.items) {
+            ids.append(ids.length() == 0 ? "" : ", ").append(item.id);
+        }
+        this.plugin.log.log(Level.SEVERE, "withdrawal " + transfer.id + " by " + transfer.player + " took items (" + ids
+                + ") not all of which were still in the database - the player may have got items that were removed or sold"
+                + " elsewhere; the transfer was parked in " + PARKED_FILENAME + " for reconciliation");
+        this.writeAside(this.parkedFile, transfer);
+    }
+
+    /**
+     * Gives up on a transfer that can't be applied, reporting it and keeping
+     * it in the dead transfers file; it is skipped from then on
+     */
+    protected void bury(Transfer transfer, Exception error) {
+        this.dead.incrementAndGet();
+        this.deadIds.add(transfer.id);
+        this.plugin.log.log(Level.SEVERE, (transfer.type == Transfer.Type.DEPOSIT ? "deposit " : "withdrawal ") + transfer.id
+                + " of " + transfer.items.size() + " item stacks by " + transfer.player + " can't be written to the database ("
+                + error.toString() + ") - it was moved to " + DEAD_FILENAME + " and needs to be resolved manually");
+        this.writeAside(this.deadFile, transfer);
+    }
+
+    /**
+     * Appends a transfer to a side file, in the log's record format. A
+     * transfer may end up there more than once (if the log was replayed
+     * before it was truncated), its id tells the copies apart.
+     */
+    protected void writeAside(File target, Transfer transfer) {
+        try (FileChannel aside = FileChannel.open(target.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer record = encode(transfer);
+            while (record.hasRemaining()) {
+                aside.write(record);
+            }
+            aside.force(false);
+        } catch (IOException ex) {
+            this.plugin.log.log(Level.SEVERE, "could not write transfer " + transfer.id + " to " + target.getName() + ": "
+                    + ex.getMessage());
+        }
+    }
+
+    /**
+     * Empties the log file once all logged transfers have been applied
+     */
+    protected void truncateIfApplied() {
+        synchronized (this.fileLock) {
+            if (!this.pending.isEmpty()) {
+                return;
+            }
+            try {
+                if (this.channel.size() > 0) {
+                    this.channel.truncate(0);
+                    this.channel.force(true);
+                }
+            } catch (IOException ex) {
+                this.plugin.log.warning("could not truncate the transfer log: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Forgets transfers applied long ago - they can no longer be replayed, as
+     * the log has been truncated since
+     */
+    protected void pruneApplied() {
+        long now = System.currentTimeMillis();
+        if (now - this.lastPrune < PRUNE_INTERVAL) {
+            return;
+        }
+        this.lastPrune = now;
+        try (Connection connection = this.pool.getConnection()) {
+            PreparedStatement statement = this.schema.prepare(connection, SqlStatement.TRANSFERS_PRUNE);
+            statement.setTimestamp(1, new Timestamp(now - PRUNE_AGE));
+            int pruned = statement.executeUpdate();
+            if (pruned > 0) {
+                this.plugin.log.fine("pruned " + pruned + " old applied transfers");
+            }
+        } catch (SQLException ex) {
+            this.plugin.log.fine("could not prune applied transfers: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Reads the transfers left in the log into the pending queue, cutting off
+     * a damaged tail
+     *
+     * @return number of transfers read
+     */
+    protected int replay() throws IOException {
+        if (!this.file.exists()) {
+            return 0;
+        }
+        long valid = 0;
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload, 0, length);
+                if (in.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+                this.pending.add(decode(payload));
+                count++;
+                valid += 4 + length + 4;
+            }
+        } catch (EOFException ex) {
+            // end of the log, possibly in the middle of a record
+        }
+        if (valid < this.file.length()) {
+            this.plugin.log.warning("transfer log ends with " + (this.file.length() - valid) + " bytes of an incomplete record, removing them");
+            try (FileChannel truncate = FileChannel.open(this.file.toPath(), StandardOpenOption.WRITE)) {
+                truncate.truncate(valid);
+                truncate.force(true);
+            }
+        }
+        this.pendingCount.set(count);
+        return count;
+    }
+
+    /**
+     * Encodes a transfer into a log record
+     */
+    protected static ByteBuffer encode(Transfer transfer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeLong(transfer.id.getMostSignificantBits());
+        out.writeLong(transfer.id.getLeastSignificantBits());
+        out.writeByte(transfer.type.getId());
+        out.writeUTF(transfer.player);
+        out.writeInt(transfer.items.size());
+        for (StoredItem item : transfer.items) {
+            out.writeLong(item.id);
+            out.writeInt(item.material);
+            out.writeInt(item.amount);
+            if (item.data == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(item.data.length);
+                out.write(item.data);
+            }
+        }
+        out.writeInt(0);
+        out.flush();
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        int length = record.capacity() - 8;
+        if (length > MAX_RECORD_LENGTH) {
+            throw new IOException("transfer too large to be logged (" + length + " bytes)");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length);
+        record.putInt(0, length);
+        record.putInt(4 + length, (int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * Decodes the payload of a log record
+     */
+    protected static Transfer decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        UUID id = new UUID(in.readLong(), in.readLong());
+        Transfer.Type type = Transfer.Type.getById(in.readByte());
+        if (type == null) {
+            throw new IOException("unknown transfer type in transfer " + id);
+        }
+        String player = in.readUTF();
+        int count = in.readInt();
+        List<StoredItem> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long itemId = in.readLong();
+            int material = in.readInt();
+            int amount = in.readInt();
+            int length = in.readInt();
+            byte[] data = null;
+            if (length >= 0) {
+                data = new byte[length];
+                in.readFully(data);
+            }
+            items.add(new StoredItem(itemId, material, amount, data));
+        }
+        return new Transfer(id, type, player, items);
+    }
+
+    /**
+     * A transfer waiting to be logged
+     */
+    protected static class Append {
+
+        protected final Callable<Transfer> builder;
+        protected final DatabaseExecutor.Callback<Transfer> callback;
+        protected Transfer transfer;
+
+        protected Append(Callable<Transfer> builder, DatabaseExecutor.Callback<Transfer> callback) {
+            this.builder = builder;
+            this.callback = callback;
+        }
+    }
+}
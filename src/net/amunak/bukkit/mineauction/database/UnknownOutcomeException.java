@@ -0,0 +1,45 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.sql.SQLException;
+
+/**
+ * Thrown (or passed to a callback) when a query was cut off in a state where
+ * it is not known whether its transaction got committed - for example when it
+ * timed out and its connection was aborted while it was running. Unlike other
+ * errors this does not mean that nothing was written; callers that write
+ * must find out what happened (e.g. by looking for a record written in the
+ * same transaction) before retrying or undoing anything.
+ *
+ * The SQL state is the standard "transaction resolution unknown" state.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class UnknownOutcomeException extends SQLException {
+
+    public final static String SQL_STATE = "08007";
+    private static final long serialVersionUID = 1L;
+
+    public UnknownOutcomeException(String reason) {
+        super(reason, SQL_STATE);
+    }
+
+    public UnknownOutcomeException(String reason, Throwable cause) {
+        super(reason, SQL_STATE, cause);
+    }
+}
@@ -0,0 +1,349 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import net.amunak.bukkit.mineauction.util.LongObjectHashMap;
+
+/**
+ * In-memory matching engine of the auction.
+ *
+ * Open orders are kept in one {@link OrderBook} per kind of item - material,
+ * data value and meta (see {@link Order#key}). A new order is
+ * first matched against the opposite side of its book - the best price
+ * first, the oldest order first at the same price - and trades at the price
+ * of the order it matches (which was there first). Whatever is left of it
+ * then rests in the book. Matching an order takes O(log n) per trade, so the
+ * engine stays well below a millisecond even with hundreds of thousands of
+ * open orders.
+ *
+ * The engine only changes memory; listeners are told about every trade and
+ * every change of an order, and persist them (see {@link MarketStore}).
+ *
+ * Not thread safe - used on the main thread only.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class AuctionEngine {
+
+    protected final LongObjectHashMap<OrderBook> books;
+    protected final LongObjectHashMap<Order> orders;
+    protected final List<Listener> listeners;
+    protected long submitted;
+    protected long trades;
+    protected long traded;
+
+    /**
+     * Something interested in what happens in the engine
+     */
+    public interface Listener {
+
+        /**
+         * Called for every trade, before the orders' changes are reported
+         *
+         * @param fill the trade
+         */
+        void onFill(Fill fill);
+
+        /**
+         * Called when an order was put into its book - placed and not
+         * completely traded right away, or loaded
+         *
+         * @param order the order
+         */
+        void onOrderOpened(Order order);
+
+        /**
+         * Called when an order was traded (partially or completely),
+         * cancelled or expired
+         *
+         * @param order the order
+         * @param status {@code ACTIVE} if the order stays open, the reason it
+         * was closed otherwise
+         */
+        void onOrderChanged(Order order, Order.Status status);
+    }
+
+    public AuctionEngine() {
+        this.books = new LongObjectHashMap<>();
+        this.orders = new LongObjectHashMap<>();
+        this.listeners = new ArrayList<>();
+    }
+
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Matches a new order and puts what is left of it into its book
+     *
+     * @param order the order
+     * @return the trades made, in the order they were made
+     * @throws IllegalArgumentException if an order with the same id is open
+     */
+    public List<Fill> submit(Order order) {
+        if (this.orders.containsKey(order.id)) {
+            throw new IllegalArgumentException("order " + order.id + " is already open");
+        }
+        this.submitted++;
+        OrderBook book = this.getOrCreateBook(order);
+        List<Fill> fills = this.match(order, book.heap(order.side == Order.Side.BUY ? Order.Side.SELL : Order.Side.BUY));
+        if (order.amount > 0) {
+            book.heap(order.side).add(order);
+            this.orders.put(order.id, order);
+            if (!fills.isEmpty()) {
+                this.notifyChanged(order, Order.Status.ACTIVE);
+            }
+            for (Listener listener : this.listeners) {
+                listener.onOrderOpened(order);
+            }
+        } else {
+            this.notifyChanged(order, Order.Status.FILLED);
+            this.removeBookIfEmpty(book);
+        }
+        return fills;
+    }
+
+    /**
+     * Trades the order against the opposite orders for as long as the prices
+     * cross
+     */
+    protected List<Fill> match(Order order, OrderHeap opposite) {
+        List<Fill> fills = Collections.emptyList();
+        boolean buying = order.side == Order.Side.BUY;
+        while (order.amount > 0 && !opposite.isEmpty()) {
+            Order resting = opposite.peek();
+            if (buying ? resting.price > order.price : resting.price < order.price) {
+                break;
+            }
+            int amount = Math.min(order.amount, resting.amount);
+            order.amount -= amount;
+            resting.amount -= amount;
+            Fill fill = buying ? new Fill(order, resting, amount, resting.price) : new Fill(resting, order, amount, resting.price);
+            if (fills.isEmpty()) {
+                fills = new ArrayList<>(4);
+            }
+            fills.add(fill);
+            this.trades++;
+            this.traded += amount;
+            for (Listener listener : this.listeners) {
+                listener.onFill(fill);
+            }
+            if (resting.amount == 0) {
+                opposite.poll();
+                this.orders.remove(resting.id);
+                this.notifyChanged(resting, Order.Status.FILLED);
+            } else {
+                this.notifyChanged(resting, Order.Status.ACTIVE);
+            }
+        }
+        return fills;
+    }
+
+    /**
+     * Removes an open order from its book
+     *
+     * @param id id of the order
+     * @param status why the order is removed, {@code CANCELLED} or
+     * {@code EXPIRED}
+     * @return the removed order, or null if no such order is open
+     */
+    public Order cancel(long id, Order.Status status) {
+        Order order = this.orders.remove(id);
+        if (order == null) {
+            return null;
+        }
+        OrderBook book = this.books.get(order.key);
+        book.heap(order.side).remove(order);
+        this.removeBookIfEmpty(book);
+        this.notifyChanged(order, status);
+        return order;
+    }
+
+    /**
+     * Gives an order back items it traded in a trade that was undone. An open
+     * order just grows; a filled one (no longer open, nothing left) is opened
+     * again and matched like a new order. Orders cancelled or expired in the
+     * meantime stay closed.
+     *
+     * @param order the order
+     * @param amount number of items to give back
+     * @return the trades made if the order was opened again
+     */
+    public List<Fill> restore(Order order, int amount) {
+        if (this.orders.get(order.id) == order) {
+            order.amount += amount;
+            this.notifyChanged(order, Order.Status.ACTIVE);
+        } else if (order.amount == 0 && !this.orders.containsKey(order.id)) {
+            order.amount = amount;
+            return this.submit(order);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Puts many orders into the books at once (e.g. on startup). Books that
+     * end up crossed (which happens only if the orders were placed while the
+     * engine wasn't running) are then matched, and listeners are told about
+     * the orders that stay open.
+     *
+     * @param loaded the orders
+     * @return the trades made while uncrossing the books
+     */
+    public List<Fill> load(Collection<Order> loaded) {
+        LongObjectHashMap<List<Order>> bids = new LongObjectHashMap<>();
+        LongObjectHashMap<List<Order>> asks = new LongObjectHashMap<>();
+        List<Order> added = new ArrayList<>(loaded.size());
+        for (Order order : loaded) {
+            if (this.orders.containsKey(order.id)) {
+                continue;
+            }
+            this.orders.put(order.id, order);
+            added.add(order);
+            LongObjectHashMap<List<Order>> side = order.side == Order.Side.BUY ? bids : asks;
+            List<Order> list = side.get(order.key);
+            if (list == null) {
+                list = new ArrayList<>();
+                side.put(order.key, list);
+            }
+            list.add(order);
+        }
+        for (long key : bids.keys()) {
+            List<Order> list = bids.get(key);
+            this.getOrCreateBook(list.get(0)).bids.addAll(list);
+        }
+        for (long key : asks.keys()) {
+            List<Order> list = asks.get(key);
+            this.getOrCreateBook(list.get(0)).asks.addAll(list);
+        }
+        List<Fill> fills = new ArrayList<>();
+        for (OrderBook book : this.books.values()) {
+            fills.addAll(this.uncross(book));
+            this.removeBookIfEmpty(book);
+        }
+        for (Order order : added) {
+            if (order.amount > 0 && this.orders.get(order.id) == order) {
+                for (Listener listener : this.listeners) {
+                    listener.onOrderOpened(order);
+                }
+            }
+        }
+        return fills;
+    }
+
+    /**
+     * Trades the best bid with the best ask until the best bid is below the
+     * best ask; each trade is at the price of the older of the two orders,
+     * as if the newer one had just been placed
+     */
+    protected List<Fill> uncross(OrderBook book) {
+        List<Fill> fills = new ArrayList<>();
+        while (!book.bids.isEmpty() && !book.asks.isEmpty() && book.bids.peek().price >= book.asks.peek().price) {
+            Order buy = book.bids.peek();
+            Order sell = book.asks.peek();
+            int amount = Math.min(buy.amount, sell.amount);
+            buy.amount -= amount;
+            sell.amount -= amount;
+            Fill fill = new Fill(buy, sell, amount, buy.id < sell.id ? buy.price : sell.price);
+            fills.add(fill);
+            this.trades++;
+            this.traded += amount;
+            for (Listener listener : this.listeners) {
+                listener.onFill(fill);
+            }
+            this.closeIfFilled(book.bids, buy);
+            this.closeIfFilled(book.asks, sell);
+        }
+        return fills;
+    }
+
+    protected void closeIfFilled(OrderHeap heap, Order order) {
+        if (order.amount == 0) {
+            heap.poll();
+            this.orders.remove(order.id);
+            this.notifyChanged(order, Order.Status.FILLED);
+        } else {
+            this.notifyChanged(order, Order.Status.ACTIVE);
+        }
+    }
+
+    /**
+     * Returns an open order
+     *
+     * @param id id of the order
+     * @return the order, or null if no such order is open
+     */
+    public Order getOrder(long id) {
+        return this.orders.get(id);
+    }
+
+    /**
+     * Returns the book of a kind of item
+     *
+     * @param key the kind of item (see {@link Order#key})
+     * @return the book, or null if there are no open orders of the item
+     */
+    public OrderBook getBook(long key) {
+        return this.books.get(key);
+    }
+
+    /**
+     * Returns the number of open orders
+     *
+     * @return number of orders
+     */
+    public int size() {
+        return this.orders.size();
+    }
+
+    /**
+     * Returns a human readable summary of the engine's state
+     *
+     * @return the statistics
+     */
+    public String getStatistics() {
+        return "open orders: " + this.orders.size()
+                + ", books: " + this.books.size()
+                + ", submitted: " + this.submitted
+                + ", trades: " + this.trades
+                + ", traded items: " + this.traded;
+    }
+
+    protected OrderBook getOrCreateBook(Order order) {
+        OrderBook book = this.books.get(order.key);
+        if (book == null) {
+            book = new OrderBook(order.key, order.material);
+            this.books.put(order.key, book);
+        }
+        return book;
+    }
+
+    protected void removeBookIfEmpty(OrderBook book) {
+        if (book.isEmpty()) {
+            this.books.remove(book.key);
+        }
+    }
+
+    protected void notifyChanged(Order order, Order.Status status) {
+        for (Listener listener : this.listeners) {
+            listener.onOrderChanged(order, status);
+        }
+    }
+}
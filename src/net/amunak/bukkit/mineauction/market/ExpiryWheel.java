@@ -0,0 +1,290 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Expires open orders at their expiry time, using a hierarchical timing
+ * wheel.
+ *
+ * Time is cut into ticks of {@link #TICK_MILLIS}. The wheel has
+ * {@link #LEVELS} levels of 64 slots; a slot of level 0 holds the orders
+ * expiring in one tick, a slot of level 1 those expiring in 64 ticks, and so
+ * on (level 4 spans about 621 days, later expiries wait in an overflow list).
+ * Each order sits in the slot of the lowest level that still tells it apart
+ * from the current tick. When the current tick enters a slot of a higher
+ * level, the slot's orders are spread over the levels below, so every order
+ * is moved at most once per level before it expires. Slots are intrusive
+ * doubly linked lists of the orders themselves, so scheduling and
+ * cancelling is O(1) and allocates nothing.
+ *
+ * The wheel is advanced every server tick (it is a {@link Runnable} for the
+ * Bukkit scheduler) to the current time. Orders that are due are closed in
+ * the {@link AuctionEngine} as {@code EXPIRED}; the {@link MarketStore} then
+ * writes all of that tick's expirations in one transaction.
+ *
+ * Not thread safe - used on the main thread only.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class ExpiryWheel implements AuctionEngine.Listener, Runnable {
+
+    public final static long TICK_MILLIS = 50;
+    public final static int LEVELS = 5;
+    protected final static int SLOT_BITS = 6;
+    protected final static int SLOTS = 1 << SLOT_BITS;
+    protected final static int SLOT_MASK = SLOTS - 1;
+    protected final static int OVERFLOW = LEVELS * SLOTS;
+    /**
+     * Number of ticks the wheel catches up tick by tick; after a longer jump
+     * of the clock (or a jump back) the orders are rescheduled instead
+     */
+    protected final static long MAX_CATCH_UP = 1 << 16;
+    protected final AuctionEngine engine;
+    protected final Order[] slots;
+    protected final List<Order> due;
+    protected long current;
+    protected int size;
+    protected long expired;
+    protected long cascaded;
+
+    /**
+     * Constructs an empty wheel starting at the current time
+     *
+     * @param engine engine the orders are expired in
+     */
+    public ExpiryWheel(AuctionEngine engine) {
+        this.engine = engine;
+        this.slots = new Order[OVERFLOW + 1];
+        this.due = new ArrayList<>();
+        this.current = System.currentTimeMillis() / TICK_MILLIS;
+    }
+
+    @Override
+    public void onFill(Fill fill) {
+    }
+
+    @Override
+    public void onOrderOpened(Order order) {
+        if (order.expires > 0) {
+            this.schedule(order);
+        }
+    }
+
+    @Override
+    public void onOrderChanged(Order order, Order.Status status) {
+        if (status != Order.Status.ACTIVE) {
+            this.cancel(order);
+        }
+    }
+
+    /**
+     * Schedules the order to expire at its expiry time; orders that are
+     * already past it expire on the next tick
+     *
+     * @param order the order
+     */
+    public void schedule(Order order) {
+        if (order.wheelSlot >= 0) {
+            this.unlink(order);
+        } else {
+            this.size++;
+        }
+        this.link(order, this.slotOf(order, this.current + 1));
+    }
+
+    /**
+     * Removes the order from the wheel, if it is scheduled
+     *
+     * @param order the order
+     */
+    public void cancel(Order order) {
+        if (order.wheelSlot >= 0) {
+            this.unlink(order);
+            this.size--;
+        }
+    }
+
+    /**
+     * Returns the slot the order belongs to at the current tick
+     *
+     * @param earliest the first tick whose slot was not processed yet
+     */
+    protected int slotOf(Order order, long earliest) {
+        long tick = (order.expires + TICK_MILLIS - 1) / TICK_MILLIS;
+        if (tick < earliest) {
+            tick = earliest;
+        }
+        long diff = tick ^ this.current;
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = level * SLOT_BITS;
+            if ((diff >>> shift) < SLOTS) {
+                return level * SLOTS + (int) ((tick >>> shift) & SLOT_MASK);
+            }
+        }
+        return OVERFLOW;
+    }
+
+    protected void link(Order order, int slot) {
+        Order head = this.slots[slot];
+        order.wheelSlot = slot;
+        order.wheelPrev = null;
+        order.wheelNext = head;
+        if (head != null) {
+            head.wheelPrev = order;
+        }
+        this.slots[slot] = order;
+    }
+
+    protected void unlink(Order order) {
+        if (order.wheelPrev == null) {
+            this.slots[order.wheelSlot] = order.wheelNext;
+        } else {
+            order.wheelPrev.wheelNext = order.wheelNext;
+        }
+        if (order.wheelNext != null) {
+            order.wheelNext.wheelPrev = order.wheelPrev;
+        }
+        order.wheelSlot = -1;
+        order.wheelPrev = null;
+        order.wheelNext = null;
+    }
+
+    /**
+     * Detaches the whole slot and returns its first order
+     */
+    protected Order take(int slot) {
+        Order head = this.slots[slot];
+        this.slots[slot] = null;
+        return head;
+    }
+
+    /**
+     * Puts the orders of a higher level slot into the slots they belong to
+     * now
+     */
+    protected void cascade(int slot) {
+        Order order = this.take(slot);
+        while (order != null) {
+            Order next = order.wheelNext;
+            this.link(order, this.slotOf(order, this.current));
+            this.cascaded++;
+            order = next;
+        }
+    }
+
+    /**
+     * Moves the wheel one tick forward and collects the orders due in it
+     */
+    protected void step() {
+        this.current++;
+        if ((this.current & ((1L << (LEVELS * SLOT_BITS)) - 1)) == 0) {
+            this.cascade(OVERFLOW);
+        }
+        for (int level = LEVELS - 1; level > 0; level--) {
+            int shift = level * SLOT_BITS;
+            if ((this.current & ((1L << shift) - 1)) == 0) {
+                this.cascade(level * SLOTS + (int) ((this.current >>> shift) & SLOT_MASK));
+            }
+        }
+        Order order = this.take((int) (this.current & SLOT_MASK));
+        while (order != null) {
+            Order next = order.wheelNext;
+            order.wheelSlot = -1;
+            order.wheelPrev = null;
+            order.wheelNext = null;
+            this.size--;
+            this.due.add(order);
+            order = next;
+        }
+    }
+
+    /**
+     * Reschedules every order after the clock jumped
+     */
+    protected void rebuild(long tick) {
+        List<Order> all = new ArrayList<>(this.size);
+        for (int slot = 0; slot < this.slots.length; slot++) {
+            Order order = this.take(slot);
+            while (order != null) {
+                all.add(order);
+                order = order.wheelNext;
+            }
+        }
+        this.current = tick;
+        for (Order order : all) {
+            this.link(order, this.slotOf(order, this.current + 1));
+        }
+    }
+
+    /**
+     * Advances the wheel to the given time
+     *
+     * @param now the time (milliseconds since the epoch)
+     * @return the orders that became due, in no particular order
+     */
+    public List<Order> advance(long now) {
+        long tick = now / TICK_MILLIS;
+        if (tick - this.current > MAX_CATCH_UP || tick < this.current) {
+            this.rebuild(tick - 1);
+        }
+        this.due.clear();
+        while (this.current < tick) {
+            this.step();
+        }
+        return this.due;
+    }
+
+    /**
+     * Expires the orders that are due; called every server tick
+     */
+    @Override
+    public void run() {
+        List<Order> orders = this.advance(System.currentTimeMillis());
+        if (orders.isEmpty()) {
+            return;
+        }
+        Order[] batch = orders.toArray(new Order[orders.size()]);
+        for (Order order : batch) {
+            if (this.engine.cancel(order.id, Order.Status.EXPIRED) != null) {
+                this.expired++;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of scheduled orders
+     *
+     * @return number of orders
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns a human readable summary of the wheel's state
+     *
+     * @return the statistics
+     */
+    public String getStatistics() {
+        return "scheduled: " + this.size
+                + ", expired: " + this.expired
+                + ", moved between levels: " + this.cascaded;
+    }
+}
@@ -0,0 +1,57 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.UUID;
+
+/**
+ * A trade between a buy order and a sell order. Every trade has a unique id,
+ * so it is written to the database only once, no matter how many times the
+ * write is retried.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class Fill {
+
+    public final UUID id;
+    public final Order buy;
+    public final Order sell;
+    public final int amount;
+    public final long price;
+    protected boolean attempted;
+
+    /**
+     * Constructs a fill
+     *
+     * @param buy the buy order
+     * @param sell the sell order
+     * @param amount number of traded items
+     * @param price unit price in cents
+     */
+    public Fill(Order buy, Order sell, int amount, long price) {
+        this.id = UUID.randomUUID();
+        this.buy = buy;
+        this.sell = sell;
+        this.amount = amount;
+        this.price = price;
+    }
+
+    @Override
+    public String toString() {
+        return "Fill{" + buy.id + " <- " + sell.id + ", " + amount + "x" + sell.material + " @ " + Order.fromCents(price) + "}";
+    }
+}
@@ -0,0 +1,616 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import net.amunak.bukkit.mineauction.MineAuction;
+import net.amunak.bukkit.mineauction.database.Change;
+import net.amunak.bukkit.mineauction.database.ChangeFeed;
+import net.amunak.bukkit.mineauction.database.DatabaseExecutor;
+import net.amunak.bukkit.mineauction.database.SchemaManager;
+import net.amunak.bukkit.mineauction.database.SqlStatement;
+
+/**
+ * Keeps the {@link AuctionEngine} and the {@code listings} and
+ * {@code transactions} tables in sync.
+ *
+ * On startup all active listings are loaded into the engine. New listings
+ * placed in game are inserted first (the database assigns their ids) and
+ * submitted to the engine afterwards; listings placed or cancelled on the web
+ * interface arrive through the {@link ChangeFeed}.
+ *
+ * Trades and order changes made by the engine are queued and written in the
+ * background, every tick at most one transaction with everything queued
+ * since the last one. A failed write is retried, with a growing delay, until
+ * it succeeds. The engine is never blocked by the database; trades made in
+ * the last moments before a crash may be lost, though.
+ *
+ * A failed write may have been committed after all (e.g. when it timed out),
+ * so every written trade is recorded in the {@code fills} table by its id,
+ * and retried trades already recorded there are skipped. Order changes only
+ * apply to listings that are still active in the database; a listing closed
+ * on the web interface in the meantime keeps its state, its trades are
+ * dropped and the other side of each of them gets the traded items back -
+ * in the database and in the engine.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class MarketStore implements AuctionEngine.Listener, ChangeFeed.Listener, Runnable {
+
+    protected final static int LOAD_PAGE_SIZE = 1000;
+    protected final static long LOAD_TIMEOUT = 120000;
+    protected final static long MAX_RETRY_DELAY = 30000;
+    protected final static long PRUNE_INTERVAL = 3600000;
+    protected final static long PRUNE_AGE = 7 * 24 * 3600000L;
+    protected final MineAuction plugin;
+    protected final SchemaManager schema;
+    protected final DatabaseExecutor executor;
+    protected final AuctionEngine engine;
+    protected List<Fill> fills;
+    protected Map<Long, Update> updates;
+    protected final Set<Long> closing;
+    protected final Set<Long> changedBeforeLoad;
+    protected boolean loaded;
+    protected boolean flushing;
+    protected boolean applyingRemote;
+    protected long retryAt;
+    protected long retryDelay;
+    protected long lastPrune;
+    protected long flushes;
+    protected long failures;
+    protected long dropped;
+
+    /**
+     * Constructs the store
+     *
+     * @param plugin the plugin
+     * @param schema the schema manager
+     * @param executor executor the queries run on
+     * @param engine the engine
+     */
+    public MarketStore(MineAuction plugin, SchemaManager schema, DatabaseExecutor executor, AuctionEngine engine) {
+        this.plugin = plugin;
+        this.schema = schema;
+        this.executor = executor;
+        this.engine = engine;
+        this.fills = new ArrayList<>();
+        this.updates = new LinkedHashMap<>();
+        this.closing = new HashSet<>();
+        this.changedBeforeLoad = new HashSet<>();
+    }
+
+    /**
+     * Loads all active listings into the engine in the background
+     *
+     * @param callback receives the revision of the change feed the loaded
+     * listings are current to (changes after it must be applied), or the
+     * reason the listings could not be loaded
+     * @return false if the database is too busy
+     */
+    public boolean load(final DatabaseExecutor.Callback<Long> callback) {
+        return this.executor.submit(new DatabaseExecutor.Query<Loaded>() {
+            @Override
+            public Loaded execute(Connection connection) throws SQLException {
+                Loaded result = new Loaded();
+                try (ResultSet head = schema.prepare(connection, SqlStatement.CHANGES_HEAD).executeQuery()) {
+                    head.next();
+                    result.revision = head.getLong(1);
+                }
+                PreparedStatement statement = schema.prepare(connection, SqlStatement.LISTINGS_ACTIVE_PAGE);
+                long after = 0;
+                int read;
+                do {
+                    statement.setLong(1, after);
+                    statement.setInt(2, LOAD_PAGE_SIZE);
+                    read = 0;
+                    try (ResultSet rows = statement.executeQuery()) {
+                        while (rows.next()) {
+                            read++;
+                            after = rows.getLong(1);
+                            Order order = readOrder(rows);
+                            if (order != null) {
+                                result.orders.add(order);
+                            }
+                        }
+                    }
+                } while (read == LOAD_PAGE_SIZE);
+                return result;
+            }
+        }, LOAD_TIMEOUT, new DatabaseExecutor.Callback<Loaded>() {
+            @Override
+            public void onSuccess(Loaded result) {
+                List<Fill> uncrossed = engine.load(result.orders);
+                loaded = true;
+                plugin.log.fine("loaded " + result.orders.size() + " active listings"
+                        + (uncrossed.isEmpty() ? "" : ", " + uncrossed.size() + " trades made between crossed listings"));
+                for (Long id : changedBeforeLoad) {
+                    refresh(id);
+                }
+                changedBeforeLoad.clear();
+                callback.onSuccess(result.revision);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                callback.onFailure(error);
+            }
+        });
+    }
+
+    /**
+     * Reads an order from a row of {@code LISTINGS_ACTIVE_PAGE} or
+     * {@code LISTING_BY_ID}
+     *
+     * @return the order, or null if the row is not an active listing
+     */
+    protected Order readOrder(ResultSet row) throws SQLException {
+        Order.Side side = Order.Side.getById(row.getByte(4));
+        if (side == null || row.getByte(10) != Order.Status.ACTIVE.getId() || row.getInt(6) <= 0) {
+            return null;
+        }
+        Timestamp expires = row.getTimestamp(9);
+        return new Order(row.getLong(1), row.getString(3), side, row.getInt(5), row.getInt(6),
+                Order.toCents(this.schema.getBackend().getDecimal(row, 7)), row.getLong(2), row.getBytes(11), expires == null ? 0 : expires.getTime());
+    }
+
+    /**
+     * Places a new listing: stores it and then submits it to the engine. Must
+     * be called on the main thread.
+     *
+     * @param player the player
+     * @param side whether the player sells or buys
+     * @param material the item
+     * @param amount the number of items
+     * @param price unit price in cents
+     * @param itemId id of the sold stack, 0 for buy orders
+     * @param item the sold stack as stored in the {@code items} table, null
+     * for buy orders
+     * @param expires time the listing expires at, 0 if it doesn't
+     * @param callback receives the trades the listing made right away; an
+     * {@link net.amunak.bukkit.mineauction.database.UnknownOutcomeException}
+     * means the listing may have been stored after all (it then arrives
+     * through the change feed)
+     * @return false if the database is too busy or the listings are not
+     * loaded yet
+     */
+    public boolean place(final String player, final Order.Side side, final int material, final int amount, final long price,
+            final long itemId, final byte[] item, final long expires, final DatabaseExecutor.Callback<List<Fill>> callback) {
+        if (!this.loaded) {
+            return false;
+        }
+        return this.executor.submit(new DatabaseExecutor.Query<Long>() {
+            @Override
+            public Long execute(Connection connection) throws SQLException {
+                connection.setAutoCommit(false);
+                try {
+                    PreparedStatement statement = schema.prepare(connection, SqlStatement.LISTING_INSERT);
+                    if (itemId == 0) {
+                        statement.setNull(1, Types.BIGINT);
+                    } else {
+                        statement.setLong(1, itemId);
+                    }
+                    statement.setString(2, player);
+                    statement.setByte(3, side.getId());
+                    statement.setInt(4, material);
+                    statement.setInt(5, amount);
+                    schema.getBackend().setDecimal(statement, 6, Order.fromCents(price));
+                    statement.setTimestamp(7, expires == 0 ? null : new Timestamp(expires));
+                    statement.executeUpdate();
+                    long id;
+                    try (ResultSet keys = statement.getGeneratedKeys()) {
+                        if (!keys.next()) {
+                            throw new SQLException("no id generated for the listing");
+                        }
+                        id = keys.getLong(1);
+                    }
+                    ChangeFeed.record(schema, connection, Change.Type.LISTING, player, id);
+                    connection.commit();
+                    return id;
+                } catch (SQLException | RuntimeException ex) {
+                    connection.rollback();
+                    throw ex;
+                }
+            }
+        }, new DatabaseExecutor.Callback<Long>() {
+            @Override
+            public void onSuccess(Long id) {
+                Order order = engine.getOrder(id);
+                List<Fill> made = order != null || closing.contains(id)
+                        // already picked up from the change feed
+                        ? new ArrayList<Fill>()
+                        : engine.submit(new Order(id, player, side, material, amount, price, itemId, item, expires));
+                callback.onSuccess(made);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                callback.onFailure(error);
+            }
+        });
+    }
+
+    @Override
+    public void onFill(Fill fill) {
+        this.fills.add(fill);
+    }
+
+    @Override
+    public void onOrderOpened(Order order) {
+    }
+
+    @Override
+    public void onOrderChanged(Order order, Order.Status status) {
+        if (this.applyingRemote) {
+            return;
+        }
+        this.updates.put(order.id, new Update(order.id, order.player, order.amount, status));
+        if (status != Order.Status.ACTIVE) {
+            this.closing.add(order.id);
+        }
+    }
+
+    /**
+     * Applies listings changed on the web interface
+     */
+    @Override
+    public void onChange(Change change) {
+        if (change.type != Change.Type.LISTING || change.ref <= 0) {
+            return;
+        }
+        if (!this.loaded) {
+            this.changedBeforeLoad.add(change.ref);
+            return;
+        }
+        this.refresh(change.ref);
+    }
+
+    /**
+     * Reads a listing and brings the engine in line with it: new active
+     * listings are submitted, closed ones removed. Changes of listings the
+     * engine holds are otherwise ignored - the engine is ahead of the
+     * database for those.
+     */
+    protected void refresh(final long id) {
+        this.executor.submit(new DatabaseExecutor.Query<Object[]>() {
+            @Override
+            public Object[] execute(Connection connection) throws SQLException {
+                PreparedStatement statement = schema.prepare(connection, SqlStatement.LISTING_BY_ID);
+                statement.setLong(1, id);
+                try (ResultSet row = statement.executeQuery()) {
+                    if (!row.next()) {
+                        return new Object[]{null, Order.Status.CANCELLED};
+                    }
+                    return new Object[]{readOrder(row), Order.Status.getById(row.getByte(10))};
+                }
+            }
+        }, new DatabaseExecutor.Callback<Object[]>() {
+            @Override
+            public void onSuccess(Object[] result) {
+                Order order = (Order) result[0];
+                if (order == null) {
+                    if (engine.getOrder(id) != null) {
+                        Order.Status status = (Order.Status) result[1];
+                        applyingRemote = true;
+                        try {
+                            engine.cancel(id, status == null || status == Order.Status.ACTIVE ? Order.Status.CANCELLED : status);
+                        } finally {
+                            applyingRemote = false;
+                        }
+                    }
+                } else if (engine.getOrder(id) == null && !closing.contains(id)) {
+                    engine.submit(order);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                plugin.log.warning("could not read listing " + id + ": " + error.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Writes the queued trades and order changes, unless a write is already
+     * running; called every tick
+     */
+    @Override
+    public void run() {
+        if (this.flushing || (this.fills.isEmpty() && this.updates.isEmpty())
+                || System.currentTimeMillis() < this.retryAt) {
+            return;
+        }
+        final List<Fill> batchFills = this.fills;
+        final Map<Long, Update> batchUpdates = this.updates;
+        final long now = System.currentTimeMillis();
+        final boolean prune = now - this.lastPrune >= PRUNE_INTERVAL;
+        this.fills = new ArrayList<>();
+        this.updates = new LinkedHashMap<>();
+        this.flushing = this.executor.submit(new DatabaseExecutor.Query<Written>() {
+            @Override
+            public Written execute(Connection connection) throws SQLException {
+                return write(connection, batchFills, batchUpdates, prune ? now - PRUNE_AGE : 0);
+            }
+        }, new DatabaseExecutor.Callback<Written>() {
+            @Override
+            public void onSuccess(Written written) {
+                flushing = false;
+                flushes++;
+                retryDelay = 0;
+                if (prune) {
+                    lastPrune = now;
+                }
+                for (Update update : batchUpdates.values()) {
+                    if (update.status != Order.Status.ACTIVE) {
+                        closing.remove(update.id);
+                    }
+                }
+                undo(written);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                flushing = false;
+                failures++;
+                retryDelay = Math.min(MAX_RETRY_DELAY, Math.max(500, retryDelay * 2));
+                retryAt = System.currentTimeMillis() + retryDelay;
+                plugin.log.warning("could not save " + batchFills.size() + " trades (retrying in " + retryDelay + " ms): "
+                        + error.getMessage());
+                requeue(batchFills, batchUpdates);
+            }
+        });
+        if (!this.flushing) {
+            this.requeue(batchFills, batchUpdates);
+        }
+    }
+
+    /**
+     * Puts a batch that failed to be written back in front of the queue. Its
+     * trades are marked as attempted - the write may have been committed
+     * after all, so they are looked up before they are written again.
+     */
+    protected void requeue(List<Fill> batchFills, Map<Long, Update> batchUpdates) {
+        for (Fill fill : batchFills) {
+            fill.attempted = true;
+        }
+        batchFills.addAll(this.fills);
+        this.fills = batchFills;
+        for (Update update : this.updates.values()) {
+            batchUpdates.put(update.id, update);
+        }
+        this.updates = batchUpdates;
+    }
+
+    /**
+     * Gives the other sides of dropped trades their items back in the engine
+     * (the database already has them back)
+     */
+    protected void undo(Written written) {
+        for (Fill fill : written.dropped) {
+            this.dropped++;
+            this.plugin.log.warning("dropped trade of " + fill.amount + "x" + fill.sell.material + " between " + fill.buy.player
+                    + " (listing " + fill.buy.id + ") and " + fill.sell.player + " (listing " + fill.sell.id
+                    + "), one of the listings was closed on the web interface in the meantime");
+            Order other = written.stale.contains(fill.sell.id) ? fill.buy : fill.sell;
+            if (written.restored.contains(other.id)) {
+                if (other.amount == 0) {
+                    // filled, about to be opened again
+                    this.closing.remove(other.id);
+                }
+                this.engine.restore(other, fill.amount);
+            }
+        }
+    }
+
+    /**
+     * Writes trades and order changes in one transaction
+     *
+     * @param pruneBefore recorded trades older than this are forgotten, 0 to
+     * keep them
+     * @return the trades dropped because one of their listings was no longer
+     * active
+     */
+    protected Written write(Connection connection, List<Fill> batchFills, Map<Long, Update> batchUpdates, long pruneBefore)
+            throws SQLException {
+        Written written = new Written();
+        List<PreparedStatement> batched = new ArrayList<>(3);
+        connection.setAutoCommit(false);
+        try {
+            if (!batchUpdates.isEmpty()) {
+                PreparedStatement statement = this.schema.prepare(connection, SqlStatement.LISTING_UPDATE_FILL);
+                batched.add(statement);
+                for (Update update : batchUpdates.values()) {
+                    statement.setInt(1, update.amount);
+                    statement.setByte(2, update.status.getId());
+                    statement.setLong(3, update.id);
+                    statement.addBatch();
+                }
+                int[] counts = statement.executeBatch();
+                int i = 0;
+                for (Update update : batchUpdates.values()) {
+                    if (counts[i++] == 0 && !this.isWritten(connection, update)) {
+                        written.stale.add(update.id);
+                    } else {
+                        ChangeFeed.record(this.schema, connection, Change.Type.LISTING, update.player, update.id);
+                    }
+                }
+            }
+            if (!batchFills.isEmpty()) {
+                PreparedStatement exists = this.schema.prepare(connection, SqlStatement.FILL_EXISTS);
+                PreparedStatement record = this.schema.prepare(connection, SqlStatement.FILL_INSERT);
+                PreparedStatement statement = this.schema.prepare(connection, SqlStatement.TRANSACTION_INSERT);
+                batched.add(record);
+                batched.add(statement);
+                PreparedStatement restore = null;
+                boolean any = false;
+                for (Fill fill : batchFills) {
+                    if (fill.attempted) {
+                        exists.setString(1, fill.id.toString());
+                        try (ResultSet result = exists.executeQuery()) {
+                            if (result.next()) {
+                                continue;
+                            }
+                        }
+                    }
+                    record.setString(1, fill.id.toString());
+                    record.addBatch();
+                    any = true;
+                    boolean staleBuy = written.stale.contains(fill.buy.id);
+                    boolean staleSell = written.stale.contains(fill.sell.id);
+                    if (staleBuy || staleSell) {
+                        written.dropped.add(fill);
+                        if (!(staleBuy && staleSell)) {
+                            Order other = staleSell ? fill.buy : fill.sell;
+                            if (restore == null) {
+                                restore = this.schema.prepare(connection, SqlStatement.LISTING_RESTORE);
+                            }
+                            restore.setInt(1, fill.amount);
+                            restore.setLong(2, other.id);
+                            if (restore.executeUpdate() > 0) {
+                                written.restored.add(other.id);
+                                ChangeFeed.record(this.schema, connection, Change.Type.LISTING, other.player, other.id);
+                            }
+                        }
+                        continue;
+                    }
+                    statement.setLong(1, fill.sell.id);
+                    statement.setString(2, fill.buy.player);
+                    statement.setString(3, fill.sell.player);
+                    statement.setInt(4, fill.sell.material);
+                    statement.setInt(5, fill.amount);
+                    this.schema.getBackend().setDecimal(statement, 6, Order.fromCents(fill.price));
+                    statement.addBatch();
+                }
+                if (any) {
+                    record.executeBatch();
+                    statement.executeBatch();
+                }
+            }
+            if (pruneBefore > 0) {
+                PreparedStatement statement = this.schema.prepare(connection, SqlStatement.FILLS_PRUNE);
+                statement.setTimestamp(1, new Timestamp(pruneBefore));
+                statement.executeUpdate();
+            }
+            connection.commit();
+            return written;
+        } catch (SQLException | RuntimeException ex) {
+            // the statements stay cached with the connection; rows batched
+            // but not executed must not be written by its next user
+            for (PreparedStatement statement : batched) {
+                try {
+                    statement.clearBatch();
+                } catch (SQLException clearEx) {
+                    // a statement that failed was closed by the pool
+                }
+            }
+            connection.rollback();
+            throw ex;
+        }
+    }
+
+    /**
+     * Tells whether a listing that is no longer active is already in the
+     * state the update would put it in - written by an earlier attempt of
+     * the same write
+     */
+    protected boolean isWritten(Connection connection, Update update) throws SQLException {
+        PreparedStatement statement = this.schema.prepare(connection, SqlStatement.LISTING_STATE);
+        statement.setLong(1, update.id);
+        try (ResultSet row = statement.executeQuery()) {
+            return row.next() && row.getInt(1) == update.amount && row.getByte(2) == update.status.getId();
+        }
+    }
+
+    /**
+     * Submits the last write, to be finished by the executor's shutdown
+     */
+    public void close() {
+        this.retryAt = 0;
+        if (!this.flushing) {
+            this.run();
+        }
+        if (!this.fills.isEmpty() || !this.updates.isEmpty()) {
+            this.plugin.log.warning((this.fills.size() + this.updates.size()) + " auction changes could not be saved");
+        }
+    }
+
+    public boolean isLoaded() {
+        return this.loaded;
+    }
+
+    /**
+     * Returns a human readable summary of the store's state
+     *
+     * @return the statistics
+     */
+    public String getStatistics() {
+        return this.engine.getStatistics()
+                + ", queued trades: " + this.fills.size()
+                + ", queued changes: " + this.updates.size()
+                + ", writes: " + this.flushes
+                + ", failed writes: " + this.failures
+                + ", dropped trades: " + this.dropped;
+    }
+
+    /**
+     * State of an order to be written
+     */
+    protected static class Update {
+
+        protected final long id;
+        protected final String player;
+        protected final int amount;
+        protected final Order.Status status;
+
+        protected Update(long id, String player, int amount, Order.Status status) {
+            this.id = id;
+            this.player = player;
+            this.amount = amount;
+            this.status = status;
+        }
+    }
+
+    /**
+     * Result of a write: listings found closed and the trades dropped because
+     * of them
+     */
+    protected static class Written {
+
+        protected final Set<Long> stale = new HashSet<>();
+        protected final Set<Long> restored = new HashSet<>();
+        protected final List<Fill> dropped = new ArrayList<>();
+    }
+
+    /**
+     * Result of loading the listings
+     */
+    protected static class Loaded {
+
+        protected final List<Order> orders = new ArrayList<>();
+        protected long revision;
+    }
+}
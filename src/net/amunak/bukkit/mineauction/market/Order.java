@@ -0,0 +1,228 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.math.BigDecimal;
+import java.util.Arrays;
+import net.amunak.bukkit.mineauction.actions.EncodedItem;
+import net.amunak.bukkit.mineauction.actions.ItemCodec;
+import net.amunak.bukkit.mineauction.actions.ItemSerializer;
+
+/**
+ * An open listing - an offer to sell or to buy some amount of an item at a
+ * unit price. Orders are identified by the id of their row in the
+ * {@code listings} table; since ids grow with time, they also give the time
+ * priority of orders at the same price.
+ *
+ * Prices are kept in cents (hundredths), as stored in the database.
+ *
+ * Orders trade only with orders of the same {@code key}: the material, data
+ * value (durability) and a hash of the meta of the sold stack. Buy orders
+ * name only a material, so they buy plain items - data value 0, no
+ * enchantments, name, lore or other meta.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class Order {
+
+    public final long id;
+    public final String player;
+    public final Side side;
+    public final int material;
+    public final long key;
+    public final long price;
+    public final long itemId;
+    public final byte[] item;
+    public final long expires;
+    protected int amount;
+    protected int heapIndex;
+    protected int wheelSlot;
+    protected Order wheelPrev;
+    protected Order wheelNext;
+
+    /**
+     * Constructs an order
+     *
+     * @param id id of the listing
+     * @param player the player who placed the order
+     * @param side whether the player sells or buys
+     * @param material the item
+     * @param amount the number of items
+     * @param price unit price in cents
+     * @param itemId id of the sold stack in the seller's virtual inventory, 0
+     * for buy orders
+     * @param item the sold stack as stored in the {@code items} table (see
+     * {@link net.amunak.bukkit.mineauction.actions.ItemSerializer}), null for
+     * buy orders or if unknown; must not be modified
+     * @param expires time the order expires at (milliseconds since the
+     * epoch), 0 if it doesn't
+     */
+    public Order(long id, String player, Side side, int material, int amount, long price, long itemId, byte[] item, long expires) {
+        if (amount <= 0 || price < 0) {
+            throw new IllegalArgumentException("invalid order: " + amount + " for " + price);
+        }
+        this.id = id;
+        this.player = player;
+        this.side = side;
+        this.material = material;
+        this.key = side == Side.BUY ? keyOf(material, (short) 0, 0) : keyOf(material, item);
+        this.amount = amount;
+        this.price = price;
+        this.itemId = itemId;
+        this.item = item;
+        this.expires = expires;
+        this.heapIndex = -1;
+        this.wheelSlot = -1;
+    }
+
+    /**
+     * Returns the number of items not yet traded
+     *
+     * @return the remaining amount
+     */
+    public int getAmount() {
+        return this.amount;
+    }
+
+    /**
+     * Returns the key of the kind of item
+     *
+     * @param material the material
+     * @param durability the data value
+     * @param metaHash hash of the meta, 0 if there is none
+     * @return the key
+     */
+    public static long keyOf(int material, short durability, int metaHash) {
+        return ((long) metaHash << 32) | ((material & 0xFFFFL) << 16) | (durability & 0xFFFFL);
+    }
+
+    /**
+     * Returns the key of the kind of a sold stack
+     *
+     * @param material the material, used if the stack is unknown
+     * @param item the stack as stored in the {@code items} table, or null
+     * @return the key
+     */
+    public static long keyOf(int material, byte[] item) {
+        if (item == null) {
+            return keyOf(material, (short) 0, 0);
+        }
+        try {
+            EncodedItem encoded = new EncodedItem(ItemCodec.isEncoded(item) ? item : ItemCodec.encode(ItemSerializer.deserialize(item)));
+            return keyOf(encoded.getMaterialId(), encoded.getDurability(), encoded.getMetaHash());
+        } catch (RuntimeException ex) {
+            // damaged item data - make sure it trades with nothing else
+            int hash = Arrays.hashCode(item);
+            return keyOf(material, (short) 0, hash == 0 ? 1 : hash);
+        }
+    }
+
+    /**
+     * Converts a price from the database to cents
+     *
+     * @param price the price
+     * @return the price in cents
+     * @throws ArithmeticException if the price has more than two decimals or
+     * is too big
+     */
+    public static long toCents(BigDecimal price) {
+        return price.movePointRight(2).longValueExact();
+    }
+
+    /**
+     * Converts a price in cents to the database type
+     *
+     * @param cents the price in cents
+     * @return the price
+     */
+    public static BigDecimal fromCents(long cents) {
+        return BigDecimal.valueOf(cents, 2);
+    }
+
+    @Override
+    public String toString() {
+        return "Order{" + id + ", " + side + " " + amount + "x" + material + " @ " + fromCents(price) + ", " + player + "}";
+    }
+
+    /**
+     * Whether the order sells or buys
+     */
+    public enum Side {
+
+        SELL(0),
+        BUY(1);
+        protected final byte id;
+
+        private Side(int id) {
+            this.id = (byte) id;
+        }
+
+        public byte getId() {
+            return this.id;
+        }
+
+        /**
+         * Looks up the side by its id
+         *
+         * @param id the id
+         * @return the side or null if there is no side with such id
+         */
+        public static Side getById(byte id) {
+            for (Side side : Side.values()) {
+                if (side.id == id) {
+                    return side;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * State of a listing, as stored in the {@code status} column
+     */
+    public enum Status {
+
+        ACTIVE(0),
+        FILLED(1),
+        CANCELLED(2),
+        EXPIRED(3);
+        protected final byte id;
+
+        private Status(int id) {
+            this.id = (byte) id;
+        }
+
+        public byte getId() {
+            return this.id;
+        }
+
+        /**
+         * Looks up the status by its id
+         *
+         * @param id the id
+         * @return the status or null if there is no status with such id
+         */
+        public static Status getById(byte id) {
+            for (Status status : Status.values()) {
+                if (status.id == id) {
+                    return status;
+                }
+            }
+            return null;
+        }
+    }
+}
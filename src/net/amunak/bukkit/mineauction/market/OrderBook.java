@@ -0,0 +1,78 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+/**
+ * Open orders of one kind of item (see {@link Order#key}) - the buy orders
+ * (bids) and the sell orders (asks)
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class OrderBook {
+
+    public final long key;
+    public final int material;
+    protected final OrderHeap bids;
+    protected final OrderHeap asks;
+
+    public OrderBook(long key, int material) {
+        this.key = key;
+        this.material = material;
+        this.bids = new OrderHeap(true);
+        this.asks = new OrderHeap(false);
+    }
+
+    /**
+     * Returns the heap of orders of the given side
+     *
+     * @param side the side
+     * @return the heap
+     */
+    protected OrderHeap heap(Order.Side side) {
+        return side == Order.Side.BUY ? this.bids : this.asks;
+    }
+
+    /**
+     * Returns the highest buy order
+     *
+     * @return the order or null if there are no buy orders
+     */
+    public Order getBestBid() {
+        return this.bids.peek();
+    }
+
+    /**
+     * Returns the lowest sell order
+     *
+     * @return the order or null if there are no sell orders
+     */
+    public Order getBestAsk() {
+        return this.asks.peek();
+    }
+
+    public int getBidCount() {
+        return this.bids.size();
+    }
+
+    public int getAskCount() {
+        return this.asks.size();
+    }
+
+    public boolean isEmpty() {
+        return this.bids.isEmpty() && this.asks.isEmpty();
+    }
+}
@@ -0,0 +1,174 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.Arrays;
+
+/**
+ * Binary heap of orders ordered by price-time priority: the best price first
+ * (the highest for buy orders, the lowest for sell orders), the oldest order
+ * first at the same price. Every order knows its position in the heap, so it
+ * can be removed in O(log n) when it is cancelled.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class OrderHeap {
+
+    protected final boolean highestFirst;
+    protected Order[] heap;
+    protected int size;
+
+    /**
+     * Constructs an empty heap
+     *
+     * @param highestFirst true for buy orders, false for sell orders
+     */
+    public OrderHeap(boolean highestFirst) {
+        this.highestFirst = highestFirst;
+        this.heap = new Order[16];
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Returns the best order without removing it
+     *
+     * @return the best order or null if the heap is empty
+     */
+    public Order peek() {
+        return this.size == 0 ? null : this.heap[0];
+    }
+
+    /**
+     * Adds an order
+     *
+     * @param order the order, which must not be in any heap
+     */
+    public void add(Order order) {
+        if (this.size == this.heap.length) {
+            this.heap = Arrays.copyOf(this.heap, this.size * 2);
+        }
+        this.heap[this.size] = order;
+        order.heapIndex = this.size;
+        this.siftUp(this.size++);
+    }
+
+    /**
+     * Adds many orders at once, in O(n)
+     *
+     * @param orders the orders, which must not be in any heap
+     */
+    public void addAll(Iterable<Order> orders) {
+        for (Order order : orders) {
+            if (this.size == this.heap.length) {
+                this.heap = Arrays.copyOf(this.heap, this.size * 2);
+            }
+            this.heap[this.size] = order;
+            order.heapIndex = this.size++;
+        }
+        for (int i = (this.size >>> 1) - 1; i >= 0; i--) {
+            this.siftDown(i);
+        }
+    }
+
+    /**
+     * Removes and returns the best order
+     *
+     * @return the best order or null if the heap is empty
+     */
+    public Order poll() {
+        if (this.size == 0) {
+            return null;
+        }
+        Order best = this.heap[0];
+        this.remove(best);
+        return best;
+    }
+
+    /**
+     * Removes an order from the heap
+     *
+     * @param order the order
+     * @return false if the order was not in this heap
+     */
+    public boolean remove(Order order) {
+        int index = order.heapIndex;
+        if (index < 0 || index >= this.size || this.heap[index] != order) {
+            return false;
+        }
+        Order last = this.heap[--this.size];
+        this.heap[this.size] = null;
+        order.heapIndex = -1;
+        if (index != this.size) {
+            this.heap[index] = last;
+            last.heapIndex = index;
+            this.siftDown(index);
+            this.siftUp(last.heapIndex);
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether order a goes before order b
+     */
+    protected boolean before(Order a, Order b) {
+        if (a.price != b.price) {
+            return this.highestFirst ? a.price > b.price : a.price < b.price;
+        }
+        return a.id < b.id;
+    }
+
+    protected void siftUp(int index) {
+        Order order = this.heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!this.before(order, this.heap[parent])) {
+                break;
+            }
+            this.heap[index] = this.heap[parent];
+            this.heap[index].heapIndex = index;
+            index = parent;
+        }
+        this.heap[index] = order;
+        order.heapIndex = index;
+    }
+
+    protected void siftDown(int index) {
+        Order order = this.heap[index];
+        int half = this.size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < this.size && this.before(this.heap[child + 1], this.heap[child])) {
+                child++;
+            }
+            if (!this.before(this.heap[child], order)) {
+                break;
+            }
+            this.heap[index] = this.heap[child];
+            this.heap[index].heapIndex = index;
+            index = child;
+        }
+        this.heap[index] = order;
+        order.heapIndex = index;
+    }
+}
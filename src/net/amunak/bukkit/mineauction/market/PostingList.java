@@ -0,0 +1,156 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.Arrays;
+
+/**
+ * Sorted list of the ids of the listings containing one search term.
+ *
+ * Listing ids grow with time, so new listings are appended at the end.
+ * Removed listings are only counted (the index knows which listings are
+ * still open) and the list is compacted once most of it is removed, so
+ * removing is O(1) amortized, too.
+ *
+ * Not thread safe.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class PostingList {
+
+    protected long[] ids;
+    protected int size;
+    protected int removed;
+
+    public PostingList() {
+        this.ids = new long[4];
+    }
+
+    /**
+     * Adds an id
+     *
+     * @param id the id
+     */
+    public void add(long id) {
+        if (this.size > 0 && id <= this.ids[this.size - 1]) {
+            int position = Arrays.binarySearch(this.ids, 0, this.size, id);
+            if (position >= 0) {
+                // added again before the list was compacted
+                this.removed--;
+                return;
+            }
+            this.insert(-position - 1, id);
+            return;
+        }
+        this.insert(this.size, id);
+    }
+
+    protected void insert(int position, long id) {
+        if (this.size == this.ids.length) {
+            this.ids = Arrays.copyOf(this.ids, this.size * 2);
+        }
+        System.arraycopy(this.ids, position, this.ids, position + 1, this.size - position);
+        this.ids[position] = id;
+        this.size++;
+    }
+
+    /**
+     * Counts an id as removed
+     *
+     * @return true if the list should be compacted
+     */
+    public boolean remove() {
+        this.removed++;
+        return this.removed > 16 && this.removed * 2 > this.size;
+    }
+
+    /**
+     * Drops the ids the index doesn't hold anymore
+     *
+     * @param index the index
+     */
+    public void compact(SearchIndex index) {
+        int kept = 0;
+        for (int i = 0; i < this.size; i++) {
+            if (index.documents.containsKey(this.ids[i])) {
+                this.ids[kept++] = this.ids[i];
+            }
+        }
+        this.size = kept;
+        this.removed = 0;
+        if (this.ids.length > 16 && this.size * 4 < this.ids.length) {
+            this.ids = Arrays.copyOf(this.ids, Math.max(4, this.size * 2));
+        }
+    }
+
+    /**
+     * Returns the number of ids in the list, including removed ones not yet
+     * compacted
+     *
+     * @return the size
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns the number of ids that are still open
+     *
+     * @return the live size
+     */
+    public int liveSize() {
+        return this.size - this.removed;
+    }
+
+    /**
+     * Returns the id at a position
+     *
+     * @param position the position
+     * @return the id
+     */
+    public long get(int position) {
+        return this.ids[position];
+    }
+
+    /**
+     * Returns the ids in all the lists, sorted and without duplicates
+     *
+     * @param lists the lists
+     * @return a list with the union
+     */
+    public static PostingList union(Iterable<PostingList> lists) {
+        int total = 0;
+        for (PostingList list : lists) {
+            total += list.size;
+        }
+        PostingList union = new PostingList();
+        union.ids = new long[Math.max(4, total)];
+        for (PostingList list : lists) {
+            System.arraycopy(list.ids, 0, union.ids, union.size, list.size);
+            union.size += list.size;
+        }
+        Arrays.sort(union.ids, 0, union.size);
+        int kept = 0;
+        for (int i = 0; i < union.size; i++) {
+            if (kept == 0 || union.ids[kept - 1] != union.ids[i]) {
+                union.ids[kept++] = union.ids[i];
+            }
+        }
+        union.size = kept;
+        return union;
+    }
+}
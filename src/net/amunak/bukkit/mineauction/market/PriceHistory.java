@@ -0,0 +1,380 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import net.amunak.bukkit.mineauction.MineAuction;
+import net.amunak.bukkit.mineauction.database.DatabaseExecutor;
+import net.amunak.bukkit.mineauction.database.SchemaManager;
+import net.amunak.bukkit.mineauction.database.SqlStatement;
+import net.amunak.bukkit.mineauction.util.LongObjectHashMap;
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * Price statistics of every item, built from the stream of trades.
+ *
+ * Each trade is added to the current minute, hour and day {@link Rollup} of
+ * its item. The last few of them (as configured) are kept in memory in ring
+ * buffers, so price suggestions and charts are answered without touching
+ * the database: summarizing a week of trades means merging seven daily
+ * rollups, a few microseconds.
+ *
+ * Changed rollups are saved to the {@code price_history} table in the
+ * background, all at once in one transaction every {@code flushInterval}
+ * ticks, and loaded back on startup. Rollups that fall out of the kept
+ * periods are pruned from the table. Trades made in the last interval before
+ * a crash are lost from the statistics (not from the {@code transactions}
+ * table).
+ *
+ * Not thread safe - used on the main thread only.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class PriceHistory implements AuctionEngine.Listener, Runnable {
+
+    protected final static long LOAD_TIMEOUT = 120000;
+    protected final static long PRUNE_INTERVAL = 3600000;
+    protected final MineAuction plugin;
+    protected final SchemaManager schema;
+    protected final DatabaseExecutor executor;
+    protected final int[] kept;
+    protected final LongObjectHashMap<Rollup[][]> items;
+    protected List<Rollup> dirty;
+    protected boolean loaded;
+    protected boolean loading;
+    protected boolean flushing;
+    protected long lastPrune;
+    protected long fills;
+    protected long flushes;
+    protected long savedRollups;
+    protected long failures;
+
+    /**
+     * Constructs the history
+     *
+     * @param plugin the plugin
+     * @param schema the schema manager
+     * @param executor executor the queries run on
+     * @param config the {@code options.market.priceHistory} section, may be
+     * null
+     */
+    public PriceHistory(MineAuction plugin, SchemaManager schema, DatabaseExecutor executor, ConfigurationSection config) {
+        this.plugin = plugin;
+        this.schema = schema;
+        this.executor = executor;
+        this.kept = new int[Rollup.Resolution.values().length];
+        this.kept[Rollup.Resolution.MINUTE.ordinal()] = Math.max(1, config == null ? 120 : config.getInt("minutes", 120));
+        this.kept[Rollup.Resolution.HOUR.ordinal()] = Math.max(1, config == null ? 72 : config.getInt("hours", 72));
+        this.kept[Rollup.Resolution.DAY.ordinal()] = Math.max(1, config == null ? 365 : config.getInt("days", 365));
+        this.items = new LongObjectHashMap<>();
+        this.dirty = new ArrayList<>();
+    }
+
+    @Override
+    public void onFill(Fill fill) {
+        this.fills++;
+        long now = System.currentTimeMillis();
+        for (Rollup.Resolution resolution : Rollup.Resolution.values()) {
+            Rollup rollup = this.getOrCreate(fill.sell.material, resolution, resolution.periodOf(now));
+            if (!rollup.dirty) {
+                this.dirty.add(rollup);
+            }
+            rollup.add(fill.amount, fill.price);
+        }
+    }
+
+    @Override
+    public void onOrderOpened(Order order) {
+    }
+
+    @Override
+    public void onOrderChanged(Order order, Order.Status status) {
+    }
+
+    /**
+     * Returns the rollup of the period, replacing the rollup of an old
+     * period in its place in the ring
+     */
+    protected Rollup getOrCreate(int material, Rollup.Resolution resolution, long period) {
+        Rollup[][] rings = this.items.get(material);
+        if (rings == null) {
+            rings = new Rollup[this.kept.length][];
+            this.items.put(material, rings);
+        }
+        Rollup[] ring = rings[resolution.ordinal()];
+        if (ring == null) {
+            ring = new Rollup[this.kept[resolution.ordinal()]];
+            rings[resolution.ordinal()] = ring;
+        }
+        int slot = (int) (period % ring.length);
+        Rollup rollup = ring[slot];
+        if (rollup == null || rollup.period < period) {
+            rollup = new Rollup(material, resolution, period);
+            ring[slot] = rollup;
+        }
+        return rollup;
+    }
+
+    /**
+     * Returns the rollup of a period, if it is still kept in memory
+     */
+    protected Rollup get(int material, Rollup.Resolution resolution, long period) {
+        Rollup[][] rings = this.items.get(material);
+        Rollup[] ring = rings == null ? null : rings[resolution.ordinal()];
+        if (ring == null || period < 0) {
+            return null;
+        }
+        Rollup rollup = ring[(int) (period % ring.length)];
+        return rollup != null && rollup.period == period ? rollup : null;
+    }
+
+    /**
+     * Summarizes the trades of an item in the last periods, e.g. the last 7
+     * days
+     *
+     * @param material the item
+     * @param resolution length of the periods
+     * @param periods number of periods, including the current one (at most
+     * the number of kept periods is used)
+     * @return the summary (with {@code period} -1), empty if there were no
+     * trades
+     */
+    public Rollup getSummary(int material, Rollup.Resolution resolution, int periods) {
+        Rollup summary = new Rollup(material, resolution, -1);
+        long current = resolution.periodOf(System.currentTimeMillis());
+        int count = Math.min(periods, this.kept[resolution.ordinal()]);
+        for (long period = current - count + 1; period <= current; period++) {
+            Rollup rollup = this.get(material, resolution, period);
+            if (rollup != null) {
+                summary.merge(rollup);
+            }
+        }
+        summary.dirty = false;
+        return summary;
+    }
+
+    /**
+     * Returns the rollups of an item in the last periods, for charts
+     *
+     * @param material the item
+     * @param resolution length of the periods
+     * @param periods number of periods, including the current one
+     * @return the rollups from the oldest, periods without trades are left
+     * out
+     */
+    public List<Rollup> getSeries(int material, Rollup.Resolution resolution, int periods) {
+        List<Rollup> series = new ArrayList<>();
+        long current = resolution.periodOf(System.currentTimeMillis());
+        int count = Math.min(periods, this.kept[resolution.ordinal()]);
+        for (long period = current - count + 1; period <= current; period++) {
+            Rollup rollup = this.get(material, resolution, period);
+            if (rollup != null && rollup.trades > 0) {
+                series.add(rollup);
+            }
+        }
+        return series;
+    }
+
+    /**
+     * Loads the kept periods from the database in the background; trades
+     * made in the meantime are merged with them
+     */
+    protected void load() {
+        final long now = System.currentTimeMillis();
+        this.loading = this.executor.submit(new DatabaseExecutor.Query<List<Rollup>>() {
+            @Override
+            public List<Rollup> execute(Connection connection) throws SQLException {
+                List<Rollup> rollups = new ArrayList<>();
+                PreparedStatement statement = schema.prepare(connection, SqlStatement.PRICE_HISTORY_LOAD);
+                for (Rollup.Resolution resolution : Rollup.Resolution.values()) {
+                    statement.setByte(1, resolution.getId());
+                    statement.setLong(2, resolution.periodOf(now) - kept[resolution.ordinal()]);
+                    try (ResultSet rows = statement.executeQuery()) {
+                        while (rows.next()) {
+                            Rollup rollup = new Rollup(rows.getInt(1), resolution, rows.getLong(2));
+                            rollup.trades = rows.getLong(3);
+                            rollup.volume = rows.getLong(4);
+                            rollup.notional = Order.toCents(schema.getBackend().getDecimal(rows, 5));
+                            rollup.min = Order.toCents(schema.getBackend().getDecimal(rows, 6));
+                            rollup.max = Order.toCents(schema.getBackend().getDecimal(rows, 7));
+                            try {
+                                rollup.sketch = QuantileSketch.fromBytes(rows.getBytes(8));
+                            } catch (IllegalArgumentException ex) {
+                                // the other numbers are still right
+                                plugin.log.fine("price history of item " + rollup.material + " has an unreadable sketch");
+                            }
+                            rollups.add(rollup);
+                        }
+                    }
+                }
+                return rollups;
+            }
+        }, LOAD_TIMEOUT, new DatabaseExecutor.Callback<List<Rollup>>() {
+            @Override
+            public void onSuccess(List<Rollup> rollups) {
+                loading = false;
+                loaded = true;
+                for (Rollup rollup : rollups) {
+                    Rollup current = getOrCreate(rollup.material, rollup.resolution, rollup.period);
+                    if (current.period != rollup.period) {
+                        // older than what the ring already holds
+                        continue;
+                    }
+                    if (current.trades == 0) {
+                        current.trades = rollup.trades;
+                        current.volume = rollup.volume;
+                        current.notional = rollup.notional;
+                        current.min = rollup.min;
+                        current.max = rollup.max;
+                        current.sketch = rollup.sketch;
+                    } else {
+                        current.merge(rollup);
+                    }
+                }
+                plugin.log.fine("loaded " + rollups.size() + " price history records");
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                loading = false;
+                plugin.log.warning("could not load the price history (retrying): " + error.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Saves the changed rollups, unless a save is already running; called
+     * every {@code flushInterval} ticks. Nothing is saved until the history
+     * was loaded, so that a partial rollup never overwrites a saved one.
+     */
+    @Override
+    public void run() {
+        if (!this.loaded) {
+            if (!this.loading) {
+                this.load();
+            }
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final boolean prune = now - this.lastPrune >= PRUNE_INTERVAL;
+        if (this.flushing || (this.dirty.isEmpty() && !prune)) {
+            return;
+        }
+        final List<Rollup> batch = this.dirty;
+        final List<Object[]> rows = new ArrayList<>(batch.size());
+        for (Rollup rollup : batch) {
+            rows.add(new Object[]{rollup.material, rollup.resolution.getId(), rollup.period, rollup.trades, rollup.volume,
+                Order.fromCents(rollup.notional), Order.fromCents(rollup.min), Order.fromCents(rollup.max), rollup.sketch.toBytes()});
+            rollup.dirty = false;
+        }
+        this.dirty = new ArrayList<>();
+        this.flushing = this.executor.submit(new DatabaseExecutor.Query<Void>() {
+            @Override
+            public Void execute(Connection connection) throws SQLException {
+                connection.setAutoCommit(false);
+                try {
+                    if (!rows.isEmpty()) {
+                        PreparedStatement statement = schema.prepare(connection, SqlStatement.PRICE_HISTORY_SAVE);
+                        for (Object[] row : rows) {
+                            for (int i = 0; i < row.length; i++) {
+                                statement.setObject(i + 1, row[i]);
+                            }
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                    if (prune) {
+                        PreparedStatement statement = schema.prepare(connection, SqlStatement.PRICE_HISTORY_PRUNE);
+                        for (Rollup.Resolution resolution : Rollup.Resolution.values()) {
+                            statement.setByte(1, resolution.getId());
+                            statement.setLong(2, resolution.periodOf(now) - kept[resolution.ordinal()]);
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                    connection.commit();
+                    return null;
+                } catch (SQLException | RuntimeException ex) {
+                    connection.rollback();
+                    throw ex;
+                }
+            }
+        }, new DatabaseExecutor.Callback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                flushing = false;
+                flushes++;
+                savedRollups += rows.size();
+                if (prune) {
+                    lastPrune = now;
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                flushing = false;
+                failures++;
+                plugin.log.warning("could not save the price history: " + error.getMessage());
+                requeue(batch);
+            }
+        });
+        if (!this.flushing) {
+            this.requeue(batch);
+        }
+    }
+
+    /**
+     * Marks the rollups of a failed save as changed again
+     */
+    protected void requeue(List<Rollup> batch) {
+        for (Rollup rollup : batch) {
+            if (!rollup.dirty) {
+                rollup.dirty = true;
+                this.dirty.add(rollup);
+            }
+        }
+    }
+
+    /**
+     * Submits the last save, to be finished by the executor's shutdown
+     */
+    public void close() {
+        this.lastPrune = System.currentTimeMillis();
+        if (this.loaded && !this.flushing) {
+            this.run();
+        }
+    }
+
+    /**
+     * Returns a human readable summary of the history's state
+     *
+     * @return the statistics
+     */
+    public String getStatistics() {
+        return "items: " + this.items.size()
+                + ", trades: " + this.fills
+                + ", changed rollups: " + this.dirty.size()
+                + ", saves: " + this.flushes
+                + ", saved rollups: " + this.savedRollups
+                + ", failed saves: " + this.failures;
+    }
+}
@@ -0,0 +1,293 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * A mergeable sketch of a distribution of prices, answering quantile queries
+ * (median, 90th percentile...) with a bounded relative error.
+ *
+ * Prices are counted in buckets growing geometrically by
+ * {@code (1 + a) / (1 - a)}, where {@code a} is {@link #RELATIVE_ACCURACY};
+ * a quantile is then known to within {@code a} of the real value (1 %, plus
+ * rounding to whole cents), however skewed the prices are. Bucket {@code i}
+ * holds the prices in {@code (gamma^(i-1), gamma^i]}; the counts are kept in
+ * one array covering the buckets between the lowest and the highest price
+ * seen, which for prices of one item is usually a few dozen buckets. Two
+ * sketches are merged by adding their counts, so sketches of minutes add up
+ * to sketches of hours or days, and the result is the same as if all prices
+ * went into one sketch.
+ *
+ * Not thread safe.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class QuantileSketch {
+
+    public final static double RELATIVE_ACCURACY = 0.01;
+    /**
+     * Maximal number of buckets; when prices span more, the lowest buckets
+     * are merged (a factor of about 10^17, never reached by real prices)
+     */
+    public final static int MAX_BUCKETS = 2048;
+    protected final static byte FORMAT = 1;
+    protected final static double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    protected final static double LOG_GAMMA = Math.log(GAMMA);
+    protected long[] counts;
+    protected int offset;
+    protected long zeroCount;
+    protected long count;
+
+    public QuantileSketch() {
+        this.counts = new long[0];
+    }
+
+    /**
+     * Adds a price
+     *
+     * @param price the price (in cents, not negative)
+     * @param weight how many times the price is added (the number of items
+     * sold for it)
+     */
+    public void add(long price, long weight) {
+        if (price < 0 || weight < 0) {
+            throw new IllegalArgumentException("negative price or weight");
+        }
+        if (weight == 0) {
+            return;
+        }
+        this.count += weight;
+        if (price == 0) {
+            this.zeroCount += weight;
+            return;
+        }
+        this.addToBucket(bucketOf(price), weight);
+    }
+
+    protected static int bucketOf(long price) {
+        return (int) Math.ceil(Math.log(price) / LOG_GAMMA);
+    }
+
+    protected void addToBucket(int bucket, long weight) {
+        int first = 0;
+        int last = this.counts.length - 1;
+        while (first <= last && this.counts[first] == 0) {
+            first++;
+        }
+        while (last >= first && this.counts[last] == 0) {
+            last--;
+        }
+        if (first > last) {
+            this.counts = new long[4];
+            this.offset = bucket;
+        } else if (bucket < this.offset || bucket >= this.offset + this.counts.length) {
+            // the span of the buckets in use, not of the room to spare
+            int low = Math.min(bucket, this.offset + first);
+            int high = Math.max(bucket, this.offset + last);
+            if (high - low >= MAX_BUCKETS) {
+                int lowest = high - MAX_BUCKETS + 1;
+                this.collapse(lowest);
+                bucket = Math.max(bucket, lowest);
+                low = lowest;
+            }
+            this.grow(low, high);
+        }
+        this.counts[bucket - this.offset] += weight;
+    }
+
+    /**
+     * Makes the counts array cover the buckets from low to high, with some
+     * room to spare; counts outside of them must be zero
+     */
+    protected void grow(int low, int high) {
+        if (low >= this.offset && high < this.offset + this.counts.length) {
+            return;
+        }
+        int span = high - low + 1;
+        int length = Math.min(MAX_BUCKETS, Math.max(span, this.counts.length * 2));
+        int start = low < this.offset ? high - length + 1 : low;
+        long[] grown = new long[length];
+        int from = Math.max(low, this.offset);
+        int to = Math.min(high, this.offset + this.counts.length - 1);
+        if (from <= to) {
+            System.arraycopy(this.counts, from - this.offset, grown, from - start, to - from + 1);
+        }
+        this.counts = grown;
+        this.offset = start;
+    }
+
+    /**
+     * Merges all buckets below the given one into it
+     */
+    protected void collapse(int lowest) {
+        if (lowest <= this.offset) {
+            return;
+        }
+        long merged = 0;
+        int end = Math.min(lowest - this.offset, this.counts.length);
+        for (int i = 0; i < end; i++) {
+            merged += this.counts[i];
+        }
+        long[] rest = new long[Math.max(1, this.counts.length - (lowest - this.offset))];
+        if (end < this.counts.length) {
+            System.arraycopy(this.counts, end, rest, 0, this.counts.length - end);
+        }
+        rest[0] += merged;
+        this.counts = rest;
+        this.offset = lowest;
+    }
+
+    /**
+     * Adds all prices of another sketch to this one
+     *
+     * @param other the other sketch
+     */
+    public void merge(QuantileSketch other) {
+        if (other.count == 0) {
+            return;
+        }
+        this.count += other.count;
+        this.zeroCount += other.zeroCount;
+        for (int i = 0; i < other.counts.length; i++) {
+            if (other.counts[i] != 0) {
+                this.addToBucket(other.offset + i, other.counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the price below which the given part of the prices is
+     *
+     * @param quantile the part, between 0 and 1 (0.5 for the median)
+     * @return the price in cents, or -1 if the sketch is empty
+     */
+    public long getQuantile(double quantile) {
+        if (this.count == 0) {
+            return -1;
+        }
+        long rank = (long) (Math.max(0, Math.min(1, quantile)) * (this.count - 1));
+        if (rank < this.zeroCount) {
+            return 0;
+        }
+        long seen = this.zeroCount;
+        int i = 0;
+        while (i < this.counts.length - 1) {
+            seen += this.counts[i];
+            if (seen > rank) {
+                break;
+            }
+            i++;
+        }
+        // the middle of the bucket (in relative terms)
+        return Math.round(2 * Math.pow(GAMMA, this.offset + i) / (GAMMA + 1));
+    }
+
+    /**
+     * Returns the number of prices in the sketch
+     *
+     * @return the count (the sum of all weights)
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * Serializes the sketch: a format byte, the zero count, the first bucket
+     * and the number of buckets followed by their counts, all as varints
+     *
+     * @return the bytes
+     */
+    public byte[] toBytes() {
+        int first = 0;
+        int last = this.counts.length - 1;
+        while (first <= last && this.counts[first] == 0) {
+            first++;
+        }
+        while (last >= first && this.counts[last] == 0) {
+            last--;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8 + (last - first + 1) * 2);
+        out.write(FORMAT);
+        writeVarLong(out, this.zeroCount);
+        writeVarLong(out, (this.offset + first) << 1 ^ (this.offset + first) >> 31);
+        writeVarLong(out, last - first + 1);
+        for (int i = first; i <= last; i++) {
+            writeVarLong(out, this.counts[i]);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads a sketch written by {@link #toBytes()}
+     *
+     * @param data the bytes
+     * @return the sketch
+     * @throws IllegalArgumentException if the data is not a sketch
+     */
+    public static QuantileSketch fromBytes(byte[] data) {
+        if (data == null || data.length == 0 || data[0] != FORMAT) {
+            throw new IllegalArgumentException("unknown quantile sketch format");
+        }
+        int[] position = {1};
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.zeroCount = readVarLong(data, position);
+        long zigzag = readVarLong(data, position);
+        int offset = (int) (zigzag >>> 1 ^ -(zigzag & 1));
+        long length = readVarLong(data, position);
+        if (length < 0 || length > MAX_BUCKETS) {
+            throw new IllegalArgumentException("corrupted quantile sketch");
+        }
+        sketch.counts = new long[(int) length];
+        sketch.offset = offset;
+        sketch.count = sketch.zeroCount;
+        for (int i = 0; i < length; i++) {
+            sketch.counts[i] = readVarLong(data, position);
+            sketch.count += sketch.counts[i];
+        }
+        return sketch;
+    }
+
+    protected static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    protected static long readVarLong(byte[] data, int[] position) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] >= data.length) {
+                throw new IllegalArgumentException("truncated quantile sketch");
+            }
+            byte b = data[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("corrupted quantile sketch");
+    }
+
+    @Override
+    public String toString() {
+        return "QuantileSketch{count=" + this.count + ", buckets=" + Arrays.toString(this.counts) + "}";
+    }
+}
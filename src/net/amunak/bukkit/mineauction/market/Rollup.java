@@ -0,0 +1,201 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Summary of the trades of one item in one period (a minute, an hour or a
+ * day): number of trades, items traded, lowest and highest price, the
+ * average price weighted by amount (VWAP) and a {@link QuantileSketch} of
+ * the prices. Rollups of the same item merge into rollups of longer periods.
+ *
+ * Prices are in cents; the traded value ({@code notional}) is the sum of
+ * price times amount.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class Rollup {
+
+    protected final int material;
+    protected final Resolution resolution;
+    protected final long period;
+    protected long trades;
+    protected long volume;
+    protected long notional;
+    protected long min;
+    protected long max;
+    protected QuantileSketch sketch;
+    protected boolean dirty;
+
+    /**
+     * Constructs an empty rollup
+     *
+     * @param material the item
+     * @param resolution length of the period
+     * @param period number of the period since the epoch, -1 for rollups
+     * merged from more periods
+     */
+    public Rollup(int material, Resolution resolution, long period) {
+        this.material = material;
+        this.resolution = resolution;
+        this.period = period;
+        this.min = Long.MAX_VALUE;
+        this.max = Long.MIN_VALUE;
+        this.sketch = new QuantileSketch();
+    }
+
+    /**
+     * Adds a trade
+     *
+     * @param amount number of items traded
+     * @param price unit price in cents
+     */
+    public void add(int amount, long price) {
+        this.trades++;
+        this.volume += amount;
+        this.notional += amount * price;
+        this.min = Math.min(this.min, price);
+        this.max = Math.max(this.max, price);
+        this.sketch.add(price, amount);
+        this.dirty = true;
+    }
+
+    /**
+     * Adds all trades of another rollup
+     *
+     * @param other the other rollup
+     */
+    public void merge(Rollup other) {
+        if (other.trades == 0) {
+            return;
+        }
+        this.trades += other.trades;
+        this.volume += other.volume;
+        this.notional += other.notional;
+        this.min = Math.min(this.min, other.min);
+        this.max = Math.max(this.max, other.max);
+        this.sketch.merge(other.sketch);
+        this.dirty = true;
+    }
+
+    public int getMaterial() {
+        return this.material;
+    }
+
+    public Resolution getResolution() {
+        return this.resolution;
+    }
+
+    public long getPeriod() {
+        return this.period;
+    }
+
+    public long getTrades() {
+        return this.trades;
+    }
+
+    public long getVolume() {
+        return this.volume;
+    }
+
+    /**
+     * Returns the lowest price
+     *
+     * @return the price in cents, or -1 if there were no trades
+     */
+    public long getMin() {
+        return this.trades == 0 ? -1 : this.min;
+    }
+
+    /**
+     * Returns the highest price
+     *
+     * @return the price in cents, or -1 if there were no trades
+     */
+    public long getMax() {
+        return this.trades == 0 ? -1 : this.max;
+    }
+
+    /**
+     * Returns the volume weighted average price
+     *
+     * @return the price in cents, or -1 if there were no trades
+     */
+    public long getVwap() {
+        return this.volume == 0 ? -1 : Math.round((double) this.notional / this.volume);
+    }
+
+    /**
+     * Returns a quantile of the prices of the traded items
+     *
+     * @param quantile the quantile, between 0 and 1
+     * @return the price in cents (within 1 %), or -1 if there were no trades
+     * @see QuantileSketch#getQuantile(double)
+     */
+    public long getQuantile(double quantile) {
+        return this.sketch.getQuantile(quantile);
+    }
+
+    /**
+     * Length of the period summarized by a rollup
+     */
+    public enum Resolution {
+
+        MINUTE(0, 60000L),
+        HOUR(1, 3600000L),
+        DAY(2, 86400000L);
+        protected final byte id;
+        protected final long millis;
+
+        private Resolution(int id, long millis) {
+            this.id = (byte) id;
+            this.millis = millis;
+        }
+
+        public byte getId() {
+            return this.id;
+        }
+
+        /**
+         * Returns the length of the period
+         *
+         * @return the length in milliseconds
+         */
+        public long getMillis() {
+            return this.millis;
+        }
+
+        /**
+         * Returns the number of the period containing the given time
+         *
+         * @param time the time (milliseconds since the epoch)
+         * @return the period number
+         */
+        public long periodOf(long time) {
+            return time / this.millis;
+        }
+
+        public static Resolution getById(byte id) {
+            for (Resolution resolution : Resolution.values()) {
+                if (resolution.id == id) {
+                    return resolution;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,674 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import net.amunak.bukkit.mineauction.actions.EncodedItem;
+import net.amunak.bukkit.mineauction.actions.ItemCodec;
+import net.amunak.bukkit.mineauction.util.LongObjectHashMap;
+import org.bukkit.ChatColor;
+
+/**
+ * Inverted index of the open listings, for browsing and searching the
+ * auction without querying the database.
+ *
+ * Every listing is indexed under a set of terms: its item, the type and the
+ * type and level of each enchantment, and the words of the item's display
+ * name and lore. Each term has a {@link PostingList} of the listings
+ * containing it. A query is a conjunction of conditions - the item, each
+ * enchantment, each word - and each condition is a set of terms: words are
+ * matched as prefixes (so search works while typing) and enchantments with a
+ * minimal level match all the levels above it. Only the listings of the
+ * smallest condition are walked; the other conditions are checked against
+ * the sorted terms of each listing. The matching listings are filtered by
+ * side and price, and the first few by price or expiry are kept in a bounded
+ * heap. Queries sorted by price may instead walk all listings by price from
+ * the start of the price range and stop after enough matches - whichever is
+ * expected to look at fewer listings.
+ *
+ * The index follows the {@link AuctionEngine}: listings are added when they
+ * are opened and removed when they are traded, cancelled or expired. Items
+ * stored in the old YAML format are indexed by the listing's material only.
+ *
+ * Not thread safe - used on the main thread only.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class SearchIndex implements AuctionEngine.Listener {
+
+    /**
+     * Terms are longs: the field in the top byte, the value below it
+     */
+    protected final static long ALL = 0;
+    protected final static long MATERIAL = 1L << 56;
+    protected final static long ENCHANTMENT = 2L << 56;
+    protected final static long ENCHANTMENT_LEVEL = 3L << 56;
+    protected final static long NAME = 4L << 56;
+    protected final static long LORE = 5L << 56;
+    protected final static long FIELD = 0xFFL << 56;
+    protected final LongObjectHashMap<PostingList> terms;
+    protected final LongObjectHashMap<Document> documents;
+    /**
+     * The words of the indexed listings, sorted for prefix lookups
+     */
+    protected final TreeMap<String, Word> words;
+    /**
+     * The same words by id, null where the id is free
+     */
+    protected final List<Word> wordsById;
+    protected final ArrayDeque<Integer> freeWordIds;
+    /**
+     * All listings ordered by price, for queries that match too many
+     * listings to sort them
+     */
+    protected final TreeSet<Document> ladder;
+    protected int maxLevel;
+    protected long searches;
+
+    /**
+     * Order of search results
+     */
+    public enum Sort {
+
+        /**
+         * The cheapest first
+         */
+        PRICE_ASCENDING,
+        /**
+         * The most expensive first
+         */
+        PRICE_DESCENDING,
+        /**
+         * The soonest to expire first, listings that don't expire last
+         */
+        EXPIRY
+    }
+
+    /**
+     * A search; all the given conditions must match
+     */
+    public static class Query {
+
+        /**
+         * The item, -1 for any
+         */
+        public int material = -1;
+        /**
+         * Sell or buy orders, null for both
+         */
+        public Order.Side side;
+        /**
+         * Lowest unit price in cents
+         */
+        public long minPrice = 0;
+        /**
+         * Highest unit price in cents
+         */
+        public long maxPrice = Long.MAX_VALUE;
+        /**
+         * Enchantment ids mapped to minimal levels
+         */
+        public final Map<Integer, Integer> enchantments = new HashMap<>();
+        /**
+         * Text whose words must all start a word of the display name
+         */
+        public String name;
+        /**
+         * Text whose words must all start a word of the lore
+         */
+        public String lore;
+        /**
+         * Text whose words must all start a word of the display name or lore
+         */
+        public String text;
+        public Sort sort = Sort.PRICE_ASCENDING;
+        /**
+         * Maximal number of results
+         */
+        public int limit = 10;
+    }
+
+    public SearchIndex() {
+        this.terms = new LongObjectHashMap<>();
+        this.documents = new LongObjectHashMap<>();
+        this.words = new TreeMap<>();
+        this.wordsById = new ArrayList<>();
+        this.freeWordIds = new ArrayDeque<>();
+        final Comparator<Order> byPrice = comparator(Sort.PRICE_ASCENDING);
+        this.ladder = new TreeSet<>(new Comparator<Document>() {
+            @Override
+            public int compare(Document a, Document b) {
+                return byPrice.compare(a.order, b.order);
+            }
+        });
+    }
+
+    @Override
+    public void onFill(Fill fill) {
+    }
+
+    @Override
+    public void onOrderOpened(Order order) {
+        Map<Integer, Integer> enchantments = Collections.emptyMap();
+        String name = null;
+        List<String> lore = Collections.emptyList();
+        if (ItemCodec.isEncoded(order.item)) {
+            try {
+                EncodedItem item = new EncodedItem(order.item);
+                enchantments = item.getEnchantments();
+                name = item.getDisplayName();
+                lore = item.getLore();
+            } catch (IllegalArgumentException ex) {
+                // damaged item data, index the material only
+            }
+        }
+        this.add(order, enchantments, name, lore);
+    }
+
+    @Override
+    public void onOrderChanged(Order order, Order.Status status) {
+        if (status != Order.Status.ACTIVE) {
+            this.remove(order.id);
+        }
+    }
+
+    /**
+     * Indexes a listing
+     *
+     * @param order the listing
+     * @param enchantments enchantment ids mapped to levels
+     * @param name display name of the item, null if none
+     * @param lore lore lines of the item
+     */
+    public void add(Order order, Map<Integer, Integer> enchantments, String name, List<String> lore) {
+        if (this.documents.containsKey(order.id)) {
+            return;
+        }
+        long[] keys = new long[8];
+        int count = 0;
+        keys[count++] = ALL;
+        keys[count++] = MATERIAL | (order.material & 0xFFFFFFFFL);
+        int[] levels = new int[enchantments.size() * 2];
+        int i = 0;
+        for (Map.Entry<Integer, Integer> enchantment : enchantments.entrySet()) {
+            int id = enchantment.getKey() & 0xFFFF;
+            int level = Math.max(0, Math.min(0xFFFF, enchantment.getValue()));
+            this.maxLevel = Math.max(this.maxLevel, level);
+            keys = append(keys, count++, ENCHANTMENT | id);
+            keys = append(keys, count++, ENCHANTMENT_LEVEL | (long) id << 16 | level);
+            levels[i++] = enchantment.getKey();
+            levels[i++] = enchantment.getValue();
+        }
+        for (String word : tokenize(name)) {
+            keys = append(keys, count++, NAME | this.wordId(word));
+        }
+        for (String line : lore) {
+            for (String word : tokenize(line)) {
+                keys = append(keys, count++, LORE | this.wordId(word));
+            }
+        }
+        // drop repeated words
+        Arrays.sort(keys, 0, count);
+        int unique = 0;
+        for (int k = 0; k < count; k++) {
+            if (unique == 0 || keys[unique - 1] != keys[k]) {
+                keys[unique++] = keys[k];
+            }
+        }
+        Document document = new Document(order, Arrays.copyOf(keys, unique), levels);
+        this.documents.put(order.id, document);
+        this.ladder.add(document);
+        for (long key : document.terms) {
+            PostingList list = this.terms.get(key);
+            if (list == null) {
+                list = new PostingList();
+                this.terms.put(key, list);
+                if (isWord(key)) {
+                    this.wordsById.get((int) key).terms++;
+                }
+            }
+            list.add(order.id);
+        }
+    }
+
+    protected static long[] append(long[] keys, int position, long key) {
+        if (position == keys.length) {
+            keys = Arrays.copyOf(keys, keys.length * 2);
+        }
+        keys[position] = key;
+        return keys;
+    }
+
+    /**
+     * Returns the id of a word, giving it one (a freed one if possible) if
+     * it is new
+     */
+    protected int wordId(String text) {
+        Word word = this.words.get(text);
+        if (word == null) {
+            Integer id = this.freeWordIds.poll();
+            word = new Word(text, id == null ? this.wordsById.size() : id);
+            if (id == null) {
+                this.wordsById.add(word);
+            } else {
+                this.wordsById.set(id, word);
+            }
+            this.words.put(text, word);
+        }
+        return word.id;
+    }
+
+    protected static boolean isWord(long key) {
+        return (key & FIELD) == NAME || (key & FIELD) == LORE;
+    }
+
+    /**
+     * Forgets the word of a removed term once no other term uses it
+     */
+    protected void releaseWord(long key) {
+        int id = (int) key;
+        Word word = this.wordsById.get(id);
+        if (--word.terms == 0) {
+            this.words.remove(word.text);
+            this.wordsById.set(id, null);
+            this.freeWordIds.push(id);
+        }
+    }
+
+    /**
+     * Removes a listing from the index
+     *
+     * @param id id of the listing
+     */
+    public void remove(long id) {
+        Document document = this.documents.remove(id);
+        if (document == null) {
+            return;
+        }
+        this.ladder.remove(document);
+        for (long key : document.terms) {
+            PostingList list = this.terms.get(key);
+            // lists left with no listings are compacted right away, so
+            // that their terms and words don't pile up
+            if (list.remove() || list.liveSize() <= 0) {
+                list.compact(this);
+                if (list.size() == 0) {
+                    this.terms.remove(key);
+                    if (isWord(key)) {
+                        this.releaseWord(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits text into lower case words, without colors
+     *
+     * @param text the text, may be null
+     * @return the words
+     */
+    public static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        String plain = ChatColor.stripColor(text).toLowerCase(Locale.ENGLISH);
+        int start = -1;
+        for (int i = 0; i <= plain.length(); i++) {
+            boolean letter = i < plain.length() && Character.isLetterOrDigit(plain.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                words.add(plain.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Finds the listings matching the query
+     *
+     * @param query the query
+     * @return the first {@code query.limit} listings in the query's order
+     */
+    public List<Order> search(Query query) {
+        this.searches++;
+        List<Condition> conditions = new ArrayList<>();
+        boolean possible = true;
+        if (query.material >= 0) {
+            possible = this.addTerm(conditions, MATERIAL | (query.material & 0xFFFFFFFFL));
+        }
+        for (Map.Entry<Integer, Integer> enchantment : query.enchantments.entrySet()) {
+            possible &= this.addEnchantment(conditions, enchantment.getKey(), enchantment.getValue());
+        }
+        possible = possible
+                && this.addWords(conditions, query.name, NAME)
+                && this.addWords(conditions, query.lore, LORE)
+                && this.addWords(conditions, query.text, NAME, LORE);
+        if (!possible || query.limit <= 0 || query.minPrice > query.maxPrice) {
+            return new ArrayList<>();
+        }
+        Condition driving = null;
+        for (Condition condition : conditions) {
+            if (driving == null || condition.size < driving.size) {
+                driving = condition;
+            }
+        }
+        if (query.sort != Sort.EXPIRY && this.isLadderCheaper(query, conditions, driving)) {
+            return this.searchByPrice(query, conditions);
+        }
+        if (driving == null) {
+            this.addTerm(conditions, ALL);
+            driving = conditions.get(0);
+        }
+        Comparator<Order> order = comparator(query.sort);
+        PriorityQueue<Order> best = new PriorityQueue<>(query.limit + 1, Collections.reverseOrder(order));
+        PostingList candidates = driving.lists.size() == 1 ? driving.lists.get(0) : PostingList.union(driving.lists);
+        for (int i = 0; i < candidates.size(); i++) {
+            Document document = this.documents.get(candidates.get(i));
+            if (document == null || !document.matches(query, conditions)) {
+                continue;
+            }
+            best.add(document.order);
+            if (best.size() > query.limit) {
+                best.poll();
+            }
+        }
+        List<Order> results = new ArrayList<>(best);
+        Collections.sort(results, order);
+        return results;
+    }
+
+    /**
+     * Estimates whether walking the listings by price finds enough matches
+     * sooner than walking the smallest condition (taking the conditions as
+     * independent)
+     */
+    protected boolean isLadderCheaper(Query query, List<Condition> conditions, Condition driving) {
+        if (driving == null) {
+            return true;
+        }
+        double total = Math.max(1, this.documents.size());
+        double matching = total;
+        for (Condition condition : conditions) {
+            matching *= condition.size / total;
+        }
+        return query.limit * total / Math.max(1, matching) < driving.size;
+    }
+
+    /**
+     * Walks the listings in the order of price from the start of the price
+     * range until enough of them match
+     */
+    protected List<Order> searchByPrice(Query query, List<Condition> conditions) {
+        boolean descending = query.sort == Sort.PRICE_DESCENDING;
+        NavigableSet<Document> range = this.ladder.subSet(probe(Math.max(0, query.minPrice), 0), true, probe(query.maxPrice, Long.MAX_VALUE), true);
+        List<Order> results = new ArrayList<>();
+        for (Document document : descending ? range.descendingSet() : range) {
+            if (results.size() >= query.limit && (!descending || document.order.price != results.get(results.size() - 1).price)) {
+                break;
+            }
+            if (document.matches(query, conditions)) {
+                results.add(document.order);
+            }
+        }
+        if (descending) {
+            // the older listing first at the same price, as in the other
+            // searches - the ladder has it the other way round
+            Collections.sort(results, comparator(query.sort));
+            if (results.size() > query.limit) {
+                results.subList(query.limit, results.size()).clear();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns a document only used to bound a range of the ladder
+     */
+    protected static Document probe(long price, long id) {
+        return new Document(new Order(id, "", Order.Side.SELL, 0, 1, price, 0, null, 0), new long[0], new int[0]);
+    }
+
+    /**
+     * Adds a condition matching the listings with any of the terms of the
+     * field starting with each word of the text
+     *
+     * @return false if some word matches nothing
+     */
+    protected boolean addWords(List<Condition> conditions, String text, long... fields) {
+        for (String word : tokenize(text)) {
+            Condition condition = new Condition();
+            for (Word match : this.words.subMap(word, true, word + Character.MAX_VALUE, false).values()) {
+                for (long field : fields) {
+                    condition.add(field | match.id, this.terms.get(field | match.id));
+                }
+            }
+            if (condition.lists.isEmpty()) {
+                return false;
+            }
+            conditions.add(condition.sort());
+        }
+        return true;
+    }
+
+    /**
+     * Adds a condition matching the listings with the enchantment at the
+     * level or higher
+     *
+     * @return false if there are no such listings
+     */
+    protected boolean addEnchantment(List<Condition> conditions, int id, int minLevel) {
+        if (minLevel <= 1) {
+            return this.addTerm(conditions, ENCHANTMENT | (id & 0xFFFF));
+        }
+        Condition condition = new Condition();
+        for (int level = minLevel; level <= this.maxLevel; level++) {
+            long key = ENCHANTMENT_LEVEL | (long) (id & 0xFFFF) << 16 | level;
+            condition.add(key, this.terms.get(key));
+        }
+        if (condition.lists.isEmpty()) {
+            return false;
+        }
+        conditions.add(condition.sort());
+        return true;
+    }
+
+    protected boolean addTerm(List<Condition> conditions, long key) {
+        Condition condition = new Condition();
+        condition.add(key, this.terms.get(key));
+        if (condition.lists.isEmpty()) {
+            return false;
+        }
+        conditions.add(condition);
+        return true;
+    }
+
+    protected static Comparator<Order> comparator(final Sort sort) {
+        return new Comparator<Order>() {
+            @Override
+            public int compare(Order a, Order b) {
+                int result;
+                switch (sort) {
+                    case PRICE_DESCENDING:
+                        result = Long.compare(b.price, a.price);
+                        break;
+                    case EXPIRY:
+                        result = Long.compare(a.expires == 0 ? Long.MAX_VALUE : a.expires, b.expires == 0 ? Long.MAX_VALUE : b.expires);
+                        break;
+                    default:
+                        result = Long.compare(a.price, b.price);
+                }
+                return result != 0 ? result : Long.compare(a.id, b.id);
+            }
+        };
+    }
+
+    /**
+     * Returns the number of indexed listings
+     *
+     * @return number of listings
+     */
+    public int size() {
+        return this.documents.size();
+    }
+
+    /**
+     * Returns a human readable summary of the index's state
+     *
+     * @return the statistics
+     */
+    public String getStatistics() {
+        return "listings: " + this.documents.size()
+                + ", terms: " + this.terms.size()
+                + ", words: " + this.words.size()
+                + ", searches: " + this.searches;
+    }
+
+    /**
+     * A word of the indexed listings
+     */
+    protected static class Word {
+
+        protected final String text;
+        protected final int id;
+        /**
+         * Number of terms (name and lore) using the word
+         */
+        protected int terms;
+
+        protected Word(String text, int id) {
+            this.text = text;
+            this.id = id;
+        }
+    }
+
+    /**
+     * An indexed listing
+     */
+    protected static class Document {
+
+        protected final Order order;
+        protected final long[] terms;
+        /**
+         * Enchantment ids and levels, in pairs
+         */
+        protected final int[] enchantments;
+
+        protected Document(Order order, long[] terms, int[] enchantments) {
+            this.order = order;
+            this.terms = terms;
+            this.enchantments = enchantments;
+        }
+
+        /**
+         * Checks the listing against the query
+         */
+        protected boolean matches(Query query, List<Condition> conditions) {
+            if ((query.side != null && query.side != this.order.side)
+                    || this.order.price < query.minPrice || this.order.price > query.maxPrice) {
+                return false;
+            }
+            for (Condition condition : conditions) {
+                if (!condition.matches(this.terms)) {
+                    return false;
+                }
+            }
+            for (Map.Entry<Integer, Integer> wanted : query.enchantments.entrySet()) {
+                boolean found = false;
+                for (int i = 0; i < this.enchantments.length; i += 2) {
+                    if (this.enchantments[i] == wanted.getKey() && this.enchantments[i + 1] >= wanted.getValue()) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A condition of a query: the listing must have one of the terms
+     */
+    protected static class Condition {
+
+        protected long[] keys = new long[1];
+        protected int count;
+        protected final List<PostingList> lists = new ArrayList<>(1);
+        /**
+         * Number of listings with any of the terms (an upper bound)
+         */
+        protected int size;
+
+        protected void add(long key, PostingList list) {
+            if (list == null) {
+                return;
+            }
+            if (this.count == this.keys.length) {
+                this.keys = Arrays.copyOf(this.keys, this.count * 2);
+            }
+            this.keys[this.count++] = key;
+            this.lists.add(list);
+            this.size += list.liveSize();
+        }
+
+        protected Condition sort() {
+            Arrays.sort(this.keys, 0, this.count);
+            return this;
+        }
+
+        /**
+         * Checks whether the sorted terms contain one of the condition's
+         * terms
+         */
+        protected boolean matches(long[] terms) {
+            if (this.count == 1) {
+                return Arrays.binarySearch(terms, this.keys[0]) >= 0;
+            }
+            int i = 0;
+            int j = 0;
+            while (i < terms.length && j < this.count) {
+                if (terms[i] == this.keys[j]) {
+                    return true;
+                }
+                if (terms[i] < this.keys[j]) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -20,13 +20,12 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import net.amunak.bukkit.mineauction.MineAuction;
 import org.bukkit.ChatColor;
-import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.block.Sign;
@@ -73,32 +72,6 @@ public class MineAuctionSign {
         return blocks;
     }
 
-    /**
-     * Reads the current formatting from the plugin's config file for the given
-     * sign type
-     *
-     * Since some combinations of UTF-8 config files tended to break color
-     * codes, I use an ugly replace hack to fix it. The
-     * {@code BUGGY_COLOR_CODE_SEQUENCE} is replaced to
-     * {@code LEGACY_COLOR_CODE}.
-     *
-     * @param type the SignType to get formatting for
-     * @param plugin the plugin
-     * @return list of four elements (each representing one line)
-     */
-    protected static List<String> getConfiguredFormatting(SignType type, MineAuction plugin) {
-        List<String> lines = new ArrayList<>(4);
-        lines.addAll(plugin.config.getStringList("options.signs.signTexts.header"));
-        lines.addAll(2, plugin.config.getStringList("options.signs.signTexts.types." + type.getName()));
-        for (int i = 0; i < lines.size(); i++) {
-            String string = lines.get(i);
-            string = string.replace(MineAuctionSign.BUGGY_COLOR_CODE_SEQUENCE, MineAuctionSign.LEGACY_COLOR_CODE);
-            string = ChatColor.translateAlternateColorCodes('&', string);
-            lines.set(i, string);
-        }
-        return lines;
-    }
-
     /**
      * Formats a sign using the plugin's config, rewriting all lines
      *
@@ -107,9 +80,9 @@ public class MineAuctionSign {
      * @param plugin plugin to get config values from
      */
     public static void format(Sign sign, SignType type, MineAuction plugin) {
-        List<String> lines = getConfiguredFormatting(type, plugin);
-        for (int i = 0; i < 4; i++) {
-            sign.setLine(i, lines.get(i));
+        SignTemplates templates = plugin.getSignTemplates();
+        for (int i = 0; i < SignTemplates.LINES; i++) {
+            sign.setLine(i, templates.getLine(type, i));
         }
     }
 
@@ -121,9 +94,9 @@ public class MineAuctionSign {
      * @param plugin plugin to get config values from
      */
     public static void format(SignChangeEvent event, SignType type, MineAuction plugin) {
-        List<String> lines = getConfiguredFormatting(type, plugin);
-        for (int i = 0; i < 4; i++) {
-            event.setLine(i, lines.get(i));
+        SignTemplates templates = plugin.getSignTemplates();
+        for (int i = 0; i < SignTemplates.LINES; i++) {
+            event.setLine(i, templates.getLine(type, i));
         }
     }
 
@@ -136,19 +109,20 @@ public class MineAuctionSign {
      */
     public static void handleCreation(SignChangeEvent event, SignType type, MineAuction plugin) {
         plugin.getSignsStorage().addItem((Sign) event.getBlock().getState(), type);
-        plugin.getSignsStorage().save();
+        plugin.getSignsStorage().protect(event.getBlock());
+        plugin.getSignsStorage().persist();
         format(event, type, plugin);
     }
 
     /**
-     * Handles the removal of a MineAuction sign
+     * Handles the removal of a MineAuction sign, including its protection
      *
      * @param sign the sign
      * @param plugin plugin with signStorage
      */
     public static void handleRemoval(Sign sign, MineAuction plugin) {
         plugin.getSignsStorage().removeItem(sign);
-        plugin.getSignsStorage().save();
+        plugin.getSignsStorage().persist();
         invalidate(sign);
     }
 
@@ -222,7 +196,7 @@ public class MineAuctionSign {
      * @see isValidMineAuctionSign(MineAuctionSign sign, MineAuction plugin)
      */
     public static boolean isValidMineAuctionSign(Block block, MineAuction plugin) {
-        return isSign(block) && isValidMineAuctionSign((Sign) block.getState(), plugin);
+        return plugin.getSignsStorage().containsItem(block) && isSign(block);
     }
 
     /**
@@ -233,13 +207,7 @@ public class MineAuctionSign {
      * @return true if correctly formatted, false otherwise
      */
     public static boolean isCorrectlyFormatted(Sign sign, SignType type, MineAuction plugin) {
-        List<String> lines = getConfiguredFormatting(type, plugin);
-        for (int i = 0; i < 4; i++) {
-            if (!sign.getLine(i).equals(lines.get(i))) {
-                return false;
-            }
-        }
-        return true;
+        return plugin.getSignTemplates().matches(sign, type);
     }
 
     /**
@@ -268,43 +236,69 @@ public class MineAuctionSign {
         }
     }
 
-    private static class IterativeValidation extends IterativeBase {
+    /**
+     * Checks (and optionally fixes) the formatting of a sign, counting the
+     * wrongly formatted ones
+     */
+    protected static class IterativeValidation extends IterativeBase {
 
         private final boolean checkFormatting;
+        private final boolean fixWrongFormat;
         private final boolean forceCorrectFormat;
         private final MineAuction plugin;
-        private final List<Integer> resultList;
+        private int wrongFormatting;
 
-        public IterativeValidation(boolean checkFormatting, boolean forceCorrectFormat, MineAuction plugin, List<Integer> resultList) {
+        public IterativeValidation(boolean checkFormatting, boolean forceCorrectFormat, MineAuction plugin) {
+            this(checkFormatting, false, forceCorrectFormat, plugin);
+        }
+
+        /**
+         * @param checkFormatting check (and count) the formatting?
+         * @param fixWrongFormat re-apply {@code format} to the signs that
+         * are not correctly formatted? (needs checkFormatting)
+         * @param forceCorrectFormat re-apply {@code format} to all signs?
+         * @param plugin the plugin
+         */
+        public IterativeValidation(boolean checkFormatting, boolean fixWrongFormat, boolean forceCorrectFormat, MineAuction plugin) {
             this.checkFormatting = checkFormatting;
+            this.fixWrongFormat = fixWrongFormat;
             this.forceCorrectFormat = forceCorrectFormat;
             this.plugin = plugin;
-            if (resultList == null) {
-                this.resultList = new ArrayList<>(3);
-            } else {
-                this.resultList = resultList;
-            }
         }
 
         @Override
         public Object call() {
             if (this.checkFormatting && !isCorrectlyFormatted(sign, signType, plugin)) {
-                this.resultList.set(2, this.resultList.get(1) + 1);
-                if (this.forceCorrectFormat) {
+                this.wrongFormatting++;
+                if (this.fixWrongFormat || this.forceCorrectFormat) {
                     format(this.sign, this.signType, this.plugin);
+                    this.sign.update();
                 }
             } else if (this.forceCorrectFormat) {
                 format(this.sign, this.signType, this.plugin);
+                this.sign.update();
             }
             return null;
         }
+
+        /**
+         * Returns the number of wrongly formatted signs encountered so far
+         *
+         * @return number of signs, or 0 when formatting isn't checked
+         */
+        public int getWrongFormatting() {
+            return this.wrongFormatting;
+        }
     }
 
     /**
      * Validates all known MineAuctionSign of this plugin using its
      * {@link SignStorage}, optionally removing invalid entries, checking
      * formatting and forcing the correct format on all the signs, optionally
-     * logging the results
+     * logging the results. Protection footprints are rebuilt afterwards.
+     *
+     * Everything happens within a single tick; on live servers with many signs
+     * use {@link SignValidator}, which spreads the work over many ticks.
      *
      * @param removeInvalidEntries remove invalid entries (true) or just skip
      * them (false)?
@@ -327,19 +321,19 @@ public class MineAuctionSign {
         List<Integer> resultList = new ArrayList<>(3);
         Level logLevel = Level.FINE;
         int operationResult;
+        IterativeValidation validation = new IterativeValidation(checkFormatting, forceCorrectFormat, plugin);
 
-        resultList.add(0, plugin.getSignsStorage().getUnderlyingHashMap().size());
+        resultList.add(0, plugin.getSignsStorage().getIndex().size());
 
         try {
-            operationResult = iterateOverStorage(plugin.getSignsStorage(), removeInvalidEntries, new IterativeValidation(checkFormatting, forceCorrectFormat, plugin, resultList));
+            operationResult = iterateOverStorage(plugin.getSignsStorage(), removeInvalidEntries, validation);
         } catch (Exception ex) {
             plugin.log.warning("Exception encountered in formatAll when iterating throiugh signs: " + ex.getMessage());
             operationResult = -1;
         }
         resultList.add(1, operationResult);
-        if (!checkFormatting) {
-            resultList.set(2, -1);
-        }
+        resultList.add(2, checkFormatting ? validation.getWrongFormatting() : -1);
+        plugin.getSignsStorage().rebuildProtection();
 
         if (logResults) {
             logLevel = Level.INFO;
@@ -355,8 +349,9 @@ public class MineAuctionSign {
      * {@link Callable} on them. When it encounters an invalid (i.e.
      * nonexistent) sign, it either removes it or skips it silently (depending
      * on {@code removeInvalidEntries}. {@code callable} is therefore guaranteed
-     * to get an existing MineAuctionSign. The storage gets saved if any keys
-     * get removed.
+     * to get an existing MineAuctionSign. Signs in worlds that are not loaded
+     * are skipped. The storage gets persisted once at the end if any keys got
+     * removed.
      *
      * @param storage the storage
      * @param removeInvalidEntries decides if invalid entries should be skipped
@@ -368,20 +363,25 @@ public class MineAuctionSign {
      */
     protected static int iterateOverStorage(SignStorage storage, boolean removeInvalidEntries, IterativeBase callable) throws Exception {
         int invalidEntries = 0;
-        for (Map.Entry<Location, SignType> entry : storage.getUnderlyingHashMap().entrySet()) {
-            if (isSign(entry.getKey().getBlock())) {
-                callable.setSign((Sign) entry.getKey().getBlock().getState());
-                callable.setSignType(entry.getValue());
+        for (SignIndex.Entry entry : storage.getIndex().entries()) {
+            World world = storage.plugin.getServer().getWorld(entry.world);
+            if (world == null) {
+                continue;
+            }
+            Block block = entry.getBlock(world);
+            if (isSign(block)) {
+                callable.setSign((Sign) block.getState());
+                callable.setSignType(entry.type);
                 callable.call();
             } else {
                 invalidEntries++;
                 if (removeInvalidEntries) {
-                    storage.removeItem(entry.getKey());
+                    storage.removeItem(entry);
                 }
             }
-            if (removeInvalidEntries && invalidEntries > 0) {
-                storage.save();
-            }
+        }
+        if (removeInvalidEntries && invalidEntries > 0) {
+            storage.persist();
         }
         return invalidEntries;
     }
@@ -0,0 +1,324 @@
+package net.amunak.bukkit.mineauction.sign;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import net.amunak.bukkit.mineauction.util.BlockKey;
+import net.amunak.bukkit.mineauction.util.LongIntHashMap;
+import net.amunak.bukkit.mineauction.util.LongObjectHashMap;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.Sign;
+
+/**
+ * Precomputed set of blocks that must not be destroyed because a registered
+ * sign depends on them.
+ *
+ * The "footprint" of a sign is the sign itself, the block it is attached to
+ * and, if that block is a sign too, the whole chain of supports down to the
+ * first non-sign block. This is the exact inverse of
+ * {@link MineAuctionSign#findAttachedSigns(Block)}, so protection checks become
+ * a single lookup instead of a neighbour traversal.
+ *
+ * Protected blocks are reference counted since several signs can share a
+ * support. Not thread-safe; meant to be used from the main server thread.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class ProtectionIndex {
+
+    /**
+     * Upper bound of the support chain length, just a safety net
+     */
+    protected static final int MAX_CHAIN_LENGTH = 16;
+    protected final Map<UUID, WorldProtection> worlds;
+
+    /**
+     * Constructs an empty protection index
+     */
+    public ProtectionIndex() {
+        this.worlds = new HashMap<>();
+    }
+
+    /**
+     * Computes and registers the footprint of the sign in the given block,
+     * replacing its previous footprint. Nothing is registered if the block is
+     * not a sign.
+     *
+     * The support chain stops at chunks that are not loaded, so this never
+     * causes a chunk to load.
+     *
+     * @param block the (registered) sign block
+     */
+    public void add(Block block) {
+        UUID worldId = block.getWorld().getUID();
+        remove(worldId, block.getX(), block.getY(), block.getZ());
+        if (!MineAuctionSign.isSign(block)) {
+            return;
+        }
+        long[] footprint = new long[4];
+        int length = 0;
+        Block current = block;
+        while (true) {
+            if (length + 2 > footprint.length) {
+                long[] grown = new long[footprint.length * 2];
+                System.arraycopy(footprint, 0, grown, 0, length);
+                footprint = grown;
+            }
+            footprint[length++] = BlockKey.pack(current.getX(), current.getY(), current.getZ());
+            if (length > MAX_CHAIN_LENGTH || !MineAuctionSign.isSign(current)) {
+                break;
+            }
+            BlockFace attachedFace = getAttachedFace(current);
+            int x = current.getX() + attachedFace.getModX();
+            int z = current.getZ() + attachedFace.getModZ();
+            if (!current.getWorld().isChunkLoaded(x >> 4, z >> 4)) {
+                footprint[length++] = BlockKey.pack(x, current.getY() + attachedFace.getModY(), z);
+                break;
+            }
+            current = current.getRelative(attachedFace);
+        }
+        long[] trimmed = new long[length];
+        System.arraycopy(footprint, 0, trimmed, 0, length);
+
+        WorldProtection world = this.worlds.get(worldId);
+        if (world == null) {
+            world = new WorldProtection();
+            this.worlds.put(worldId, world);
+        }
+        world.add(trimmed);
+    }
+
+    /**
+     * Returns the face a sign block is attached to
+     *
+     * @param sign the sign block
+     * @return {@code BlockFace.DOWN} for sign posts, the wall direction for
+     * wall signs
+     */
+    protected static BlockFace getAttachedFace(Block sign) {
+        if (sign.getType().equals(Material.WALL_SIGN)) {
+            return ((org.bukkit.material.Sign) ((Sign) sign.getState()).getData()).getAttachedFace();
+        }
+        return BlockFace.DOWN;
+    }
+
+    /**
+     * Unregisters the footprint of the sign at the given coordinates
+     *
+     * @param world the world UUID
+     * @param x block x
+     * @param y block y
+     * @param z block z
+     */
+    public void remove(UUID world, int x, int y, int z) {
+        WorldProtection protection = this.worlds.get(world);
+        if (protection != null) {
+            protection.remove(BlockKey.pack(x, y, z));
+            if (protection.footprints.isEmpty()) {
+                this.worlds.remove(world);
+            }
+        }
+    }
+
+    /**
+     * Checks whether destroying the block would affect a registered sign,
+     * including the case when the block is a registered sign itself
+     *
+     * @param world the world UUID
+     * @param x block x
+     * @param y block y
+     * @param z block z
+     * @return true if the block is protected
+     */
+    public boolean isProtected(UUID world, int x, int y, int z) {
+        WorldProtection protection = this.worlds.get(world);
+        return protection != null && protection.blocks.containsKey(BlockKey.pack(x, y, z));
+    }
+
+    /**
+     * Convenience method, accepts {@link Block} instead of coordinates
+     *
+     * @see isProtected(UUID world, int x, int y, int z)
+     */
+    public boolean isProtected(Block block) {
+        return isProtected(block.getWorld().getUID(), block.getX(), block.getY(), block.getZ());
+    }
+
+    /**
+     * Checks whether the block supports a registered sign other than itself.
+     * Unlike {@code isProtected}, a registered sign that holds no other sign
+     * is not considered supporting.
+     *
+     * @param block the block
+     * @return true if some other registered sign depends on the block
+     */
+    public boolean isSupporting(Block block) {
+        WorldProtection protection = this.worlds.get(block.getWorld().getUID());
+        if (protection == null) {
+            return false;
+        }
+        long key = BlockKey.pack(block.getX(), block.getY(), block.getZ());
+        int references = protection.blocks.get(key);
+        if (protection.footprints.containsKey(key)) {
+            references--;
+        }
+        return references > 0;
+    }
+
+    /**
+     * Checks whether any protected block lies in the given chunk
+     *
+     * @param world the world UUID
+     * @param chunkX chunk x
+     * @param chunkZ chunk z
+     * @return true if the chunk contains at least one protected block
+     */
+    public boolean hasProtectedBlocksInChunk(UUID world, int chunkX, int chunkZ) {
+        WorldProtection protection = this.worlds.get(world);
+        return protection != null && protection.chunks.containsKey(BlockKey.chunk(chunkX, chunkZ));
+    }
+
+    /**
+     * Removes all protected blocks from the list in place, keeping the order
+     * of the rest. Blocks are expected to lie in a single world, as they do in
+     * an explosion. Each chunk is looked up once per run of its blocks and
+     * blocks in chunks without protected blocks are not looked up at all.
+     *
+     * @param blocks the blocks
+     * @return number of blocks removed
+     */
+    public int removeProtected(List<Block> blocks) {
+        if (blocks.isEmpty()) {
+            return 0;
+        }
+        WorldProtection protection = this.worlds.get(blocks.get(0).getWorld().getUID());
+        if (protection == null) {
+            return 0;
+        }
+        long lastChunk = 0;
+        boolean lastChunkProtected = false;
+        boolean first = true;
+        int size = blocks.size();
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            Block block = blocks.get(i);
+            long chunk = BlockKey.chunkOfBlock(block.getX(), block.getZ());
+            if (first || chunk != lastChunk) {
+                first = false;
+                lastChunk = chunk;
+                lastChunkProtected = protection.chunks.containsKey(chunk);
+            }
+            if (lastChunkProtected && protection.blocks.containsKey(BlockKey.pack(block.getX(), block.getY(), block.getZ()))) {
+                continue;
+            }
+            if (kept != i) {
+                blocks.set(kept, block);
+            }
+            kept++;
+        }
+        if (kept < size) {
+            blocks.subList(kept, size).clear();
+        }
+        return size - kept;
+    }
+
+    /**
+     * Removes all footprints in the given world
+     *
+     * @param world the world UUID
+     */
+    public void removeWorld(UUID world) {
+        this.worlds.remove(world);
+    }
+
+    /**
+     * Removes all footprints
+     */
+    public void clear() {
+        this.worlds.clear();
+    }
+
+    /**
+     * Recomputes all footprints from the given index. Signs in worlds or chunks
+     * that are not loaded are skipped; they get their footprint once their
+     * chunk loads.
+     *
+     * @param index the sign index
+     * @param server server to look up worlds with
+     * @return the number of footprints computed
+     */
+    public int rebuild(SignIndex index, Server server) {
+        clear();
+        int computed = 0;
+        for (SignIndex.Entry entry : index.entries()) {
+            World world = server.getWorld(entry.world);
+            if (world != null && world.isChunkLoaded(entry.x >> 4, entry.z >> 4)) {
+                add(entry.getBlock(world));
+                computed++;
+            }
+        }
+        return computed;
+    }
+
+    /**
+     * Protected blocks and footprints of a single world
+     */
+    protected static class WorldProtection {
+
+        /**
+         * packed block key -> number of footprints containing the block
+         */
+        protected final LongIntHashMap blocks = new LongIntHashMap();
+        /**
+         * chunk key -> number of protected blocks in the chunk
+         */
+        protected final LongIntHashMap chunks = new LongIntHashMap();
+        /**
+         * packed sign key -> its footprint
+         */
+        protected final LongObjectHashMap<long[]> footprints = new LongObjectHashMap<>();
+
+        protected void add(long[] footprint) {
+            remove(footprint[0]);
+            this.footprints.put(footprint[0], footprint);
+            for (long key : footprint) {
+                if (this.blocks.add(key, 1) == 1) {
+                    this.chunks.add(BlockKey.chunkOfBlock(key), 1);
+                }
+            }
+        }
+
+        protected void remove(long signKey) {
+            long[] footprint = this.footprints.remove(signKey);
+            if (footprint == null) {
+                return;
+            }
+            for (long key : footprint) {
+                if (this.blocks.add(key, -1) == 0) {
+                    this.chunks.add(BlockKey.chunkOfBlock(key), -1);
+                }
+            }
+        }
+    }
+}
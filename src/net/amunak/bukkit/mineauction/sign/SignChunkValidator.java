@@ -0,0 +1,158 @@
+package net.amunak.bukkit.mineauction.sign;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import net.amunak.bukkit.mineauction.MineAuction;
+import net.amunak.bukkit.mineauction.util.BlockKey;
+import net.amunak.bukkit.mineauction.util.LongIntHashMap;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.Sign;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Lazy validation of MineAuction signs, driven by chunk loads.
+ *
+ * Whenever a chunk with registered signs loads, its signs get the same
+ * treatment as in {@link SignValidator}: entries without a sign are removed
+ * and the signs not formatted according to the current config are
+ * reformatted (the correct ones are left untouched). Every chunk
+ * is remembered with the config revision it was validated at, so it is only
+ * validated once per config reload.
+ *
+ * Loaded chunks are queued and validated on the following ticks, within the
+ * {@code options.signs.validation.tickBudget}, so the chunk loading itself is
+ * never slowed down and blocks are not modified from within the chunk load.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class SignChunkValidator implements Runnable {
+
+    protected final MineAuction plugin;
+    protected final MineAuctionSign.IterativeValidation validation;
+    protected final Map<UUID, LongIntHashMap> validatedChunks;
+    protected final Queue<Chunk> queue;
+    protected BukkitTask task;
+    protected int removed;
+
+    public SignChunkValidator(MineAuction plugin) {
+        this.plugin = plugin;
+        this.validation = new MineAuctionSign.IterativeValidation(true, true, false, plugin);
+        this.validatedChunks = new HashMap<>();
+        this.queue = new ArrayDeque<>();
+    }
+
+    /**
+     * Queues the chunk for validation, unless it has no registered signs or
+     * was already validated at the current config revision
+     *
+     * @param chunk the chunk
+     */
+    public void chunkLoaded(Chunk chunk) {
+        UUID world = chunk.getWorld().getUID();
+        if (!this.plugin.getSignsStorage().getIndex().hasSignsInChunk(world, chunk.getX(), chunk.getZ())) {
+            return;
+        }
+        LongIntHashMap validated = this.validatedChunks.get(world);
+        if (validated != null && validated.get(BlockKey.chunk(chunk.getX(), chunk.getZ())) == this.plugin.getConfigRevision()) {
+            return;
+        }
+        this.queue.add(chunk);
+        if (this.task == null) {
+            this.task = this.plugin.getServer().getScheduler().runTaskTimer(this.plugin, this, 1, 1);
+        }
+    }
+
+    /**
+     * Forgets the validation state of a world, e.g. when it unloads
+     *
+     * @param world the world UUID
+     */
+    public void forgetWorld(UUID world) {
+        this.validatedChunks.remove(world);
+    }
+
+    /**
+     * Stops the validation, dropping all queued chunks
+     */
+    public void stop() {
+        this.queue.clear();
+        if (this.task != null) {
+            this.task.cancel();
+            this.task = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        long deadline = System.nanoTime() + (long) (this.plugin.config.getDouble("options.signs.validation.tickBudget", 2) * 1e6);
+        Chunk chunk;
+        while (System.nanoTime() < deadline && (chunk = this.queue.poll()) != null) {
+            if (chunk.isLoaded()) {
+                this.validate(chunk);
+            }
+        }
+        if (this.removed > 0) {
+            this.plugin.log.fine("chunk validation removed " + this.removed + " missing signs");
+            this.removed = 0;
+            this.plugin.getSignsStorage().persist();
+        }
+        if (this.queue.isEmpty()) {
+            this.task.cancel();
+            this.task = null;
+        }
+    }
+
+    /**
+     * Validates and reformats all registered signs in the chunk and marks it
+     * validated at the current config revision
+     *
+     * @param chunk the chunk
+     */
+    protected void validate(Chunk chunk) {
+        SignStorage storage = this.plugin.getSignsStorage();
+        World world = chunk.getWorld();
+        UUID worldId = world.getUID();
+        int revision = this.plugin.getConfigRevision();
+        long chunkKey = BlockKey.chunk(chunk.getX(), chunk.getZ());
+        LongIntHashMap validated = this.validatedChunks.get(worldId);
+        if (validated == null) {
+            validated = new LongIntHashMap();
+            this.validatedChunks.put(worldId, validated);
+        } else if (validated.get(chunkKey) == revision) {
+            return;
+        }
+        for (SignIndex.Entry entry : storage.getIndex().entriesInChunk(worldId, chunk.getX(), chunk.getZ())) {
+            Block block = entry.getBlock(world);
+            if (MineAuctionSign.isSign(block)) {
+                this.validation.setSign((Sign) block.getState());
+                this.validation.setSignType(entry.type);
+                this.validation.call();
+            } else {
+                storage.removeItem(entry);
+                this.removed++;
+            }
+        }
+        validated.put(chunkKey, revision);
+    }
+}
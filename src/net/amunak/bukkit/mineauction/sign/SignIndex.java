@@ -0,0 +1,342 @@
+package net.amunak.bukkit.mineauction.sign;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import net.amunak.bukkit.mineauction.util.BlockKey;
+import net.amunak.bukkit.mineauction.util.LongIntHashMap;
+import net.amunak.bukkit.mineauction.util.LongObjectHashMap;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+/**
+ * Spatial index of registered signs. Signs are partitioned by world UUID and
+ * chunk; within a chunk they are kept in a primitive map from packed block
+ * coordinates (see {@link BlockKey}) to the sign type ordinal.
+ *
+ * Lookups by block coordinates don't allocate, and checking whether a chunk
+ * contains any sign at all is a single hash lookup. Not thread-safe; meant to
+ * be used from the main server thread.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class SignIndex {
+
+    private static final SignType[] TYPES = SignType.values();
+    protected final Map<UUID, LongObjectHashMap<LongIntHashMap>> worlds;
+    protected int size;
+
+    /**
+     * Constructs an empty index
+     */
+    public SignIndex() {
+        this.worlds = new HashMap<>();
+    }
+
+    /**
+     * Returns the type of the sign at the given coordinates
+     *
+     * @param world the world UUID
+     * @param x block x
+     * @param y block y
+     * @param z block z
+     * @return the type or null if there is no sign registered there
+     */
+    public SignType get(UUID world, int x, int y, int z) {
+        LongIntHashMap chunk = getChunk(world, BlockKey.chunkOfBlock(x, z));
+        if (chunk == null) {
+            return null;
+        }
+        int value = chunk.get(BlockKey.pack(x, y, z));
+        return value == 0 ? null : TYPES[value - 1];
+    }
+
+    /**
+     * Convenience method, accepts {@link Block} instead of coordinates
+     *
+     * @see get(UUID world, int x, int y, int z)
+     */
+    public SignType get(Block block) {
+        return get(block.getWorld().getUID(), block.getX(), block.getY(), block.getZ());
+    }
+
+    public boolean contains(UUID world, int x, int y, int z) {
+        return get(world, x, y, z) != null;
+    }
+
+    public boolean contains(Block block) {
+        return get(block) != null;
+    }
+
+    /**
+     * Registers a sign at the given coordinates
+     *
+     * @param world the world UUID
+     * @param x block x
+     * @param y block y
+     * @param z block z
+     * @param type the sign type
+     * @return the previous type at the coordinates, or null
+     */
+    public SignType put(UUID world, int x, int y, int z, SignType type) {
+        LongObjectHashMap<LongIntHashMap> chunks = this.worlds.get(world);
+        if (chunks == null) {
+            chunks = new LongObjectHashMap<>();
+            this.worlds.put(world, chunks);
+        }
+        long chunkKey = BlockKey.chunkOfBlock(x, z);
+        LongIntHashMap chunk = chunks.get(chunkKey);
+        if (chunk == null) {
+            chunk = new LongIntHashMap();
+            chunks.put(chunkKey, chunk);
+        }
+        int previous = chunk.put(BlockKey.pack(x, y, z), type.ordinal() + 1);
+        if (previous == 0) {
+            this.size++;
+            return null;
+        }
+        return TYPES[previous - 1];
+    }
+
+    /**
+     * Unregisters the sign at the given coordinates. Empty chunks and worlds
+     * are dropped from the index.
+     *
+     * @param world the world UUID
+     * @param x block x
+     * @param y block y
+     * @param z block z
+     * @return the removed type, or null if there was no sign
+     */
+    public SignType remove(UUID world, int x, int y, int z) {
+        LongObjectHashMap<LongIntHashMap> chunks = this.worlds.get(world);
+        if (chunks == null) {
+            return null;
+        }
+        long chunkKey = BlockKey.chunkOfBlock(x, z);
+        LongIntHashMap chunk = chunks.get(chunkKey);
+        if (chunk == null) {
+            return null;
+        }
+        int previous = chunk.remove(BlockKey.pack(x, y, z));
+        if (previous == 0) {
+            return null;
+        }
+        this.size--;
+        if (chunk.isEmpty()) {
+            chunks.remove(chunkKey);
+            if (chunks.isEmpty()) {
+                this.worlds.remove(world);
+            }
+        }
+        return TYPES[previous - 1];
+    }
+
+    /**
+     * Checks whether any sign is registered in the given chunk
+     *
+     * @param world the world UUID
+     * @param chunkX chunk x
+     * @param chunkZ chunk z
+     * @return true if the chunk contains at least one registered sign
+     */
+    public boolean hasSignsInChunk(UUID world, int chunkX, int chunkZ) {
+        return getChunk(world, BlockKey.chunk(chunkX, chunkZ)) != null;
+    }
+
+    /**
+     * Convenience method, accepts {@link Chunk} instead of coordinates
+     *
+     * @see hasSignsInChunk(UUID world, int chunkX, int chunkZ)
+     */
+    public boolean hasSignsInChunk(Chunk chunk) {
+        return hasSignsInChunk(chunk.getWorld().getUID(), chunk.getX(), chunk.getZ());
+    }
+
+    protected LongIntHashMap getChunk(UUID world, long chunkKey) {
+        LongObjectHashMap<LongIntHashMap> chunks = this.worlds.get(world);
+        return chunks == null ? null : chunks.get(chunkKey);
+    }
+
+    /**
+     * Returns the number of registered signs
+     *
+     * @return the number of registered signs
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Removes all signs from the index
+     */
+    public void clear() {
+        this.worlds.clear();
+        this.size = 0;
+    }
+
+    /**
+     * Returns a snapshot of all registered signs. Later changes to the index
+     * don't affect the returned list, so it is safe to modify the index while
+     * iterating over it.
+     *
+     * @return list of entries
+     */
+    public List<Entry> entries() {
+        List<Entry> entries = new ArrayList<>(this.size);
+        for (Map.Entry<UUID, LongObjectHashMap<LongIntHashMap>> world : this.worlds.entrySet()) {
+            for (LongIntHashMap chunk : world.getValue().values()) {
+                addEntries(entries, world.getKey(), chunk);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns a snapshot of the signs registered in the given world
+     *
+     * @param world the world UUID
+     * @return list of entries, empty if there are none
+     */
+    public List<Entry> entries(UUID world) {
+        LongObjectHashMap<LongIntHashMap> chunks = this.worlds.get(world);
+        if (chunks == null) {
+            return new ArrayList<>(0);
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (LongIntHashMap chunk : chunks.values()) {
+            addEntries(entries, world, chunk);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the UUIDs of all worlds with at least one registered sign
+     *
+     * @return set of world UUIDs (a copy)
+     */
+    public Set<UUID> getWorlds() {
+        return new HashSet<>(this.worlds.keySet());
+    }
+
+    /**
+     * Removes all signs of the given world
+     *
+     * @param world the world UUID
+     * @return the number of signs removed
+     */
+    public int removeWorld(UUID world) {
+        LongObjectHashMap<LongIntHashMap> chunks = this.worlds.remove(world);
+        if (chunks == null) {
+            return 0;
+        }
+        int removed = 0;
+        for (LongIntHashMap chunk : chunks.values()) {
+            removed += chunk.size();
+        }
+        this.size -= removed;
+        return removed;
+    }
+
+    /**
+     * Moves all signs of the given world from another index to this one,
+     * replacing the signs this index had in that world. The data structures
+     * are moved as they are, so this is cheap regardless of the number of
+     * signs.
+     *
+     * @param world the world UUID
+     * @param source index to take the signs from; it loses them
+     * @return the number of signs moved
+     */
+    public int adoptWorld(UUID world, SignIndex source) {
+        this.removeWorld(world);
+        LongObjectHashMap<LongIntHashMap> chunks = source.worlds.get(world);
+        if (chunks == null) {
+            return 0;
+        }
+        int moved = source.removeWorld(world);
+        this.worlds.put(world, chunks);
+        this.size += moved;
+        return moved;
+    }
+
+    /**
+     * Returns a snapshot of the signs registered in the given chunk
+     *
+     * @param world the world UUID
+     * @param chunkX chunk x
+     * @param chunkZ chunk z
+     * @return list of entries, empty if there are none
+     */
+    public List<Entry> entriesInChunk(UUID world, int chunkX, int chunkZ) {
+        LongIntHashMap chunk = getChunk(world, BlockKey.chunk(chunkX, chunkZ));
+        if (chunk == null) {
+            return new ArrayList<>(0);
+        }
+        List<Entry> entries = new ArrayList<>(chunk.size());
+        addEntries(entries, world, chunk);
+        return entries;
+    }
+
+    protected static void addEntries(List<Entry> entries, UUID world, LongIntHashMap chunk) {
+        for (long key : chunk.keys()) {
+            entries.add(new Entry(world, BlockKey.unpackX(key), BlockKey.unpackY(key), BlockKey.unpackZ(key), TYPES[chunk.get(key) - 1]));
+        }
+    }
+
+    /**
+     * An immutable snapshot of one registered sign
+     */
+    public static final class Entry {
+
+        public final UUID world;
+        public final int x;
+        public final int y;
+        public final int z;
+        public final SignType type;
+
+        public Entry(UUID world, int x, int y, int z, SignType type) {
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.type = type;
+        }
+
+        /**
+         * Returns the block this entry points to
+         *
+         * @param world the (loaded) world this entry belongs to
+         * @return the block
+         */
+        public Block getBlock(World world) {
+            return world.getBlockAt(this.x, this.y, this.z);
+        }
+
+        @Override
+        public String toString() {
+            return "Sign{" + this.type.getName() + " at " + this.world + ":" + this.x + "," + this.y + "," + this.z + "}";
+        }
+    }
+}
@@ -16,9 +16,8 @@ package net.amunak.bukkit.mineauction.sign;
  * You should have received a copy of the GNU General Public License along with
  * this program. If not, see <http://www.gnu.org/licenses/>.
  */
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
 import net.amunak.bukkit.mineauction.MineAuction;
 import net.amunak.bukkit.mineauction.actions.VirtualInventory;
 import org.bukkit.ChatColor;
@@ -47,9 +46,11 @@ import org.bukkit.event.player.PlayerInteractEvent;
 public final class SignInteractionListener implements Listener {
 
     protected MineAuction plugin;
+    protected boolean stripExplosions;
 
     public SignInteractionListener(MineAuction p) {
         this.plugin = p;
+        this.stripExplosions = !"cancel".equalsIgnoreCase(plugin.config.getString("options.signs.protection.explosions", "strip"));
         plugin.log.fine("SignInteractionListener registered");
     }
 
@@ -57,12 +58,12 @@ public final class SignInteractionListener implements Listener {
     public void playerInteractEvent(PlayerInteractEvent event) {
         if (event.getAction().equals(Action.RIGHT_CLICK_BLOCK)
                 && MineAuctionSign.isValidMineAuctionSign(event.getClickedBlock(), plugin)) {
-            switch (plugin.getSignsStorage().getSignType((Sign) event.getClickedBlock().getState())) {
+            switch (plugin.getSignsStorage().getSignType(event.getClickedBlock())) {
                 case DEPOSIT:
-                    VirtualInventory.deposit(event.getPlayer());
+                    VirtualInventory.deposit(event.getPlayer(), plugin);
                     break;
                 case WITHDRAW:
-                    VirtualInventory.withdraw(event.getPlayer());
+                    VirtualInventory.withdraw(event.getPlayer(), plugin);
                     break;
                 default:
                     break;
@@ -119,7 +120,9 @@ public final class SignInteractionListener implements Listener {
     @EventHandler(ignoreCancelled = true, priority = EventPriority.HIGH)
     public void blockBreakEvent(BlockBreakEvent event) {
         //prevent signs from getting removed
-        if (!onBlockDestroyed(event, event.getPlayer(), MineAuctionSign.findAttachedSigns(event.getBlock()), event.getEventName())) {
+        if (plugin.getSignsStorage().getProtection().isSupporting(event.getBlock())) {
+            preventDestruction(event, event.getPlayer(), event.getEventName());
+        } else {
             if (MineAuctionSign.isSign(event.getBlock())) {
                 if (MineAuctionSign.isValidMineAuctionSign(event.getBlock(), plugin)) {
                     Player player = event.getPlayer();
@@ -138,40 +141,34 @@ public final class SignInteractionListener implements Listener {
     }
 
     /**
-     * @see onBlockDestroyed(Cancellable e, Entity entity, Collection<Block>
-     * block, String eventName)
+     * Single block variant of the check, see
+     * {@code onBlockDestroyed(Cancellable, Entity, List<Block>, String)}
      */
     public boolean onBlockDestroyed(final Cancellable e, final Entity p, final Block b, final String eventName) {
-        return onBlockDestroyed(e, p, Collections.singleton(b), eventName);
+        if (this.plugin.getSignsStorage().getProtection().isProtected(b)) {
+            preventDestruction(e, p, eventName);
+        }
+        return e.isCancelled();
     }
 
     /**
-     * Central place for checking for an event cancellation
+     * Central place for checking for an event cancellation. Uses the
+     * precomputed {@link ProtectionIndex}, so the blocks' neighbours are never
+     * traversed. Nothing is allocated on the way, as most of the events
+     * checked here (physics in particular) come in large numbers and don't
+     * involve any sign.
      *
      * @param e Event
      * @param entity Player or Entity causing the event
-     * @param blocks a Collection of blocks to check
+     * @param blocks a List of blocks to check
      * @return true if event is cancelled
      */
-    public boolean onBlockDestroyed(final Cancellable e, final Entity entity, final Collection<Block> blocks, final String eventName) {
+    public boolean onBlockDestroyed(final Cancellable e, final Entity entity, final List<Block> blocks, final String eventName) {
         if (blocks != null) {
-            HashSet<Block> allBlocks = new HashSet<>();
-            for (Block block : blocks) {
-                allBlocks.addAll(MineAuctionSign.findAttachedSigns(block));
-            }
-            allBlocks.addAll(blocks);
-            for (Block block : allBlocks) {
-                if (MineAuctionSign.isValidMineAuctionSign(block, this.plugin)) {
-                    e.setCancelled(true);
-                    String eName = "";
-                    if (entity != null) {
-                        eName = entity.getType().toString();
-                        if (entity instanceof Player) {
-                            eName += " {" + ((Player) entity).getName() + "} ";
-                            this.plugin.log.warning((Player) entity, "Event cancelled - remove the MineAuction sign first if you intended to do that.");
-                        }
-                    }
-                    this.plugin.log.fine(eName + " would destroy MineAuction sign by " + eventName + "; action prevented");
+            ProtectionIndex protection = this.plugin.getSignsStorage().getProtection();
+            for (int i = 0, size = blocks.size(); i < size; i++) {
+                if (protection.isProtected(blocks.get(i))) {
+                    preventDestruction(e, entity, eventName);
                     break;
                 }
             }
@@ -179,6 +176,27 @@ public final class SignInteractionListener implements Listener {
         return e.isCancelled();
     }
 
+    /**
+     * Cancels an event that would destroy a MineAuction sign and lets the
+     * responsible player know
+     *
+     * @param e Event
+     * @param entity Player or Entity causing the event
+     * @param eventName name of the event
+     */
+    protected void preventDestruction(final Cancellable e, final Entity entity, final String eventName) {
+        e.setCancelled(true);
+        String eName = "";
+        if (entity != null) {
+            eName = entity.getType().toString();
+            if (entity instanceof Player) {
+                eName += " {" + ((Player) entity).getName() + "} ";
+                this.plugin.log.warning((Player) entity, "Event cancelled - remove the MineAuction sign first if you intended to do that.");
+            }
+        }
+        this.plugin.log.fine(eName + " would destroy MineAuction sign by " + eventName + "; action prevented");
+    }
+
     /**
      * Block BlockBurnEvent if it destroyed sign
      *
@@ -217,16 +235,20 @@ public final class SignInteractionListener implements Listener {
     @EventHandler(ignoreCancelled = true, priority = EventPriority.HIGH)
     public void onBlockBlockPistonRetract(final BlockPistonRetractEvent e) {
         final BlockFace direction = e.getDirection();
-
-        final HashSet<Block> blocks = new HashSet<>(2);
-        // We need to check to see if a sign is attached to the piston piece
         final Block b = e.getBlock();
-        blocks.add(b.getRelative(direction));
-        if (!e.isSticky()) { // We only care about the second block if sticky piston is retracting.
-            blocks.add(b.getRelative(direction, 2));
+        final UUID world = b.getWorld().getUID();
+        final ProtectionIndex protection = this.plugin.getSignsStorage().getProtection();
+        // We need to check to see if a sign is attached to the piston piece
+        int x = b.getX() + direction.getModX();
+        int y = b.getY() + direction.getModY();
+        int z = b.getZ() + direction.getModZ();
+        boolean isProtected = protection.isProtected(world, x, y, z);
+        if (!isProtected && e.isSticky()) { // We only care about the second block if sticky piston is retracting.
+            isProtected = protection.isProtected(world, x + direction.getModX(), y + direction.getModY(), z + direction.getModZ());
+        }
+        if (isProtected) {
+            preventDestruction(e, null, e.getEventName());
         }
-
-        onBlockDestroyed(e, null, blocks, e.getEventName());
     }
 
     /**
@@ -251,13 +273,22 @@ public final class SignInteractionListener implements Listener {
     }
 
     /**
-     * Entity Explode event
+     * Entity Explode event - either removes just the protected blocks from the
+     * explosion, or cancels it as a whole (options.signs.protection.explosions)
      *
      * @param e Event
      */
     @EventHandler(ignoreCancelled = true, priority = EventPriority.HIGH)
     public void onBlockEntityExplode(final EntityExplodeEvent e) {
-        onBlockDestroyed(e, e.getEntity(), e.blockList(), e.getEventName());
+        if (this.stripExplosions) {
+            int removed = this.plugin.getSignsStorage().getProtection().removeProtected(e.blockList());
+            if (removed > 0) {
+                this.plugin.log.fine((e.getEntity() == null ? "" : e.getEntity().getType().toString() + " ")
+                        + "explosion would destroy MineAuction sign; " + removed + " protected blocks kept");
+            }
+        } else {
+            onBlockDestroyed(e, e.getEntity(), e.blockList(), e.getEventName());
+        }
     }
 
     /**
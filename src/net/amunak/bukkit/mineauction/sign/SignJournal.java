@@ -0,0 +1,230 @@
+package net.amunak.bukkit.mineauction.sign;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * Append-only log of sign storage changes.
+ *
+ * Every addition or removal is encoded as one fixed-size record and buffered
+ * in memory; {@code sync()} writes all buffered records at once and forces
+ * them to disk, so a burst of changes costs a single fsync. The log is meant
+ * to be replayed over the last snapshot and reset whenever a new snapshot is
+ * written.
+ *
+ * Record layout (32 bytes, big endian): operation (1 B), sign type ordinal
+ * (1 B), reserved (2 B), world UUID (16 B), x, y, z (4 B each).
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class SignJournal {
+
+    public static final int RECORD_SIZE = 32;
+    protected static final byte OP_ADD = 1;
+    protected static final byte OP_REMOVE = 2;
+    private static final SignType[] TYPES = SignType.values();
+    protected final File file;
+    protected FileChannel channel;
+    protected ByteBuffer pending;
+    protected long records;
+
+    /**
+     * Constructs a journal backed by the given file. The file is not touched
+     * until the journal is replayed or synced.
+     *
+     * @param file the journal file
+     */
+    public SignJournal(File file) {
+        this.file = file;
+        this.pending = ByteBuffer.allocate(RECORD_SIZE * 64);
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Buffers a record of a sign being added
+     *
+     * @param world the world UUID
+     * @param x block x
+     * @param y block y
+     * @param z block z
+     * @param type the sign type
+     */
+    public void add(UUID world, int x, int y, int z, SignType type) {
+        append(OP_ADD, world, x, y, z, type);
+    }
+
+    /**
+     * Buffers a record of a sign being removed
+     *
+     * @param world the world UUID
+     * @param x block x
+     * @param y block y
+     * @param z block z
+     */
+    public void remove(UUID world, int x, int y, int z) {
+        append(OP_REMOVE, world, x, y, z, null);
+    }
+
+    protected void append(byte operation, UUID world, int x, int y, int z, SignType type) {
+        if (this.pending.remaining() < RECORD_SIZE) {
+            ByteBuffer grown = ByteBuffer.allocate(this.pending.capacity() * 2);
+            this.pending.flip();
+            grown.put(this.pending);
+            this.pending = grown;
+        }
+        this.pending.put(operation);
+        this.pending.put(type == null ? 0 : (byte) type.ordinal());
+        this.pending.putShort((short) 0);
+        this.pending.putLong(world.getMostSignificantBits());
+        this.pending.putLong(world.getLeastSignificantBits());
+        this.pending.putInt(x);
+        this.pending.putInt(y);
+        this.pending.putInt(z);
+        this.records++;
+    }
+
+    /**
+     * Checks whether there are buffered records that were not synced yet
+     *
+     * @return true if {@code sync()} has something to write
+     */
+    public boolean hasPending() {
+        return this.pending.position() > 0;
+    }
+
+    /**
+     * Returns the number of records in the journal, including buffered ones
+     *
+     * @return the number of records
+     */
+    public long getRecords() {
+        return this.records;
+    }
+
+    /**
+     * Writes all buffered records to the file and forces them to disk
+     *
+     * @throws IOException when the journal cannot be written
+     */
+    public void sync() throws IOException {
+        if (!hasPending()) {
+            return;
+        }
+        if (this.channel == null) {
+            this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        this.pending.flip();
+        while (this.pending.hasRemaining()) {
+            this.channel.write(this.pending);
+        }
+        this.pending.clear();
+        this.channel.force(false);
+    }
+
+    /**
+     * Applies all complete records from the journal file to the index. Replay
+     * stops at the first damaged record (e.g. one torn by a crash); the rest
+     * of the file is ignored.
+     *
+     * @param index the index to apply the records to
+     * @return the number of records applied
+     * @throws IOException when the journal cannot be read
+     */
+    public long replay(SignIndex index) throws IOException {
+        this.records = 0;
+        if (!this.file.exists()) {
+            return 0;
+        }
+        try (FileChannel input = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 1024);
+            while (input.read(buffer) > 0 || buffer.position() > 0) {
+                buffer.flip();
+                if (buffer.remaining() < RECORD_SIZE) {
+                    break;
+                }
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    if (!apply(buffer, index)) {
+                        return this.records;
+                    }
+                    this.records++;
+                }
+                buffer.compact();
+            }
+        }
+        return this.records;
+    }
+
+    protected static boolean apply(ByteBuffer buffer, SignIndex index) {
+        byte operation = buffer.get();
+        int type = buffer.get();
+        buffer.getShort();
+        UUID world = new UUID(buffer.getLong(), buffer.getLong());
+        int x = buffer.getInt();
+        int y = buffer.getInt();
+        int z = buffer.getInt();
+        if (operation == OP_ADD && type >= 0 && type < TYPES.length) {
+            index.put(world, x, y, z, TYPES[type]);
+            return true;
+        } else if (operation == OP_REMOVE) {
+            index.remove(world, x, y, z);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Empties the journal, both the file and the buffer. Call after a snapshot
+     * containing all the journaled changes has been written.
+     *
+     * @throws IOException when the journal cannot be truncated
+     */
+    public void reset() throws IOException {
+        this.pending.clear();
+        this.records = 0;
+        if (this.channel != null) {
+            this.channel.truncate(0);
+            this.channel.force(false);
+        } else if (this.file.exists() && !this.file.delete()) {
+            throw new IOException("could not delete " + this.file.getName());
+        }
+    }
+
+    /**
+     * Syncs the buffered records and closes the file
+     *
+     * @throws IOException when the journal cannot be written
+     */
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            if (this.channel != null) {
+                this.channel.close();
+                this.channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package net.amunak.bukkit.mineauction.sign;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.File;
+import java.util.UUID;
+
+/**
+ * The part of the sign storage that belongs to a single world. Every shard has
+ * its own snapshot file and, in the journal mode, its own journal, so worlds
+ * can be loaded, saved and released independently.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class SignShard {
+
+    protected final UUID world;
+    protected final File dataFile;
+    protected final SignJournal journal;
+    protected boolean dirty;
+    /**
+     * Set while loading when the files on disk should be rewritten right away
+     * (a journal was replayed or the snapshot was damaged)
+     */
+    protected boolean needsCompaction;
+
+    /**
+     * Constructs a shard of the given world
+     *
+     * @param world the world UUID
+     * @param folder the folder with shard files
+     * @param journaled whether the shard keeps a journal
+     */
+    public SignShard(UUID world, File folder, boolean journaled) {
+        this.world = world;
+        this.dataFile = getDataFile(folder, world);
+        this.journal = journaled ? new SignJournal(new File(folder, world.toString() + ".journal")) : null;
+    }
+
+    /**
+     * Composes the path to the snapshot file of a world's shard
+     *
+     * @param folder the folder with shard files
+     * @param world the world UUID
+     * @return the path as {@code File}
+     */
+    public static File getDataFile(File folder, UUID world) {
+        return new File(folder, world.toString() + ".dat");
+    }
+
+    public UUID getWorld() {
+        return this.world;
+    }
+
+    public File getDataFile() {
+        return this.dataFile;
+    }
+
+    /**
+     * Returns the journal of this shard
+     *
+     * @return the journal, or null when journaling is disabled
+     */
+    public SignJournal getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * Checks whether the shard was changed since it was last written
+     *
+     * @return true if there are unwritten changes
+     */
+    public boolean isDirty() {
+        return this.dirty;
+    }
+}
@@ -18,30 +18,68 @@ package net.amunak.bukkit.mineauction.sign;
  */
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.amunak.bukkit.mineauction.MineAuction;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
 import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
 import org.bukkit.block.Sign;
+import org.bukkit.scheduler.BukkitTask;
 
 /**
  * A storage class for sets of signs' locations and their types
  *
+ * The signs are kept in a {@link SignIndex}, so that lookups from event
+ * handlers work with plain block coordinates and don't allocate.
+ *
+ * The storage is split into {@link SignShard}s, one per world. A shard is only
+ * loaded while its world is loaded, so worlds that are rarely used don't cost
+ * memory or startup time. Shards of the worlds loaded at startup are read in
+ * parallel.
+ *
+ * How changes reach the disk depends on the {@link Mode}. In the journal mode
+ * (the default) each change is appended to the shard's {@link SignJournal},
+ * which gets synced in groups and compacted into the shard's snapshot file
+ * once it grows past a threshold. In the async mode changes only mark the
+ * shard dirty, and a {@link SignStorageWriter} writes snapshots in the
+ * background, at most once per configured interval.
+ *
  * @author Jiri Barous (Amunak) < http://amunak.net >
  */
 public class SignStorage {
 
     protected MineAuction plugin;
-    protected HashMap<Location, SignType> listOfSigns;
-    protected final static String LIST_FILENAME = "signsstorage.bin";
+    protected SignIndex index;
+    protected ProtectionIndex protection;
+    protected Mode mode;
+    protected Map<UUID, SignShard> shards;
+    protected SignStorageWriter writer;
+    protected BukkitTask flushTask;
+    protected final Object writeLock = new Object();
+    protected final static String SHARD_FOLDER = "signs";
+    protected final static String LIST_FILENAME = "signs.dat";
+    protected final static String LEGACY_LIST_FILENAME = "signsstorage.bin";
+    protected final static String JOURNAL_FILENAME = "signsstorage.journal";
 
     /**
      * Constructs an empty SignStorage for the specified plugin
@@ -50,47 +88,182 @@ public class SignStorage {
      */
     public SignStorage(MineAuction plugin) {
         this.plugin = plugin;
-        this.listOfSigns = new HashMap<>();
+        this.index = new SignIndex();
+        this.protection = new ProtectionIndex();
+        this.shards = new HashMap<>();
+        this.mode = Mode.getByName(plugin.config.getString("options.signs.storage.mode", Mode.JOURNAL.getName()));
+        if (this.mode == null) {
+            plugin.log.warning("options.signs.storage.mode is not valid, using " + Mode.JOURNAL.getName());
+            this.mode = Mode.JOURNAL;
+        }
+        if (this.mode == Mode.ASYNC) {
+            this.writer = new SignStorageWriter(this);
+        }
     }
 
     public SignType getSignType(Sign sign) {
-        return this.listOfSigns.get(sign.getLocation());
+        return this.index.get(sign.getWorld().getUID(), sign.getX(), sign.getY(), sign.getZ());
+    }
+
+    public SignType getSignType(Block block) {
+        return this.index.get(block);
+    }
+
+    /**
+     * Adds a sign of the given type at the given coordinates. The world's
+     * shard is loaded first if needed. The change is journaled (when
+     * journaling is enabled), but not persisted until {@code persist()} is
+     * called.
+     *
+     * @param world the world UUID
+     * @param x block x
+     * @param y block y
+     * @param z block z
+     * @param type the sign type
+     * @return the previous type, or null if there was no sign
+     */
+    public SignType addItem(UUID world, int x, int y, int z, SignType type) {
+        SignShard shard = this.loadShard(world);
+        SignType previous = this.index.put(world, x, y, z, type);
+        if (previous != type) {
+            shard.dirty = true;
+            if (shard.journal != null) {
+                shard.journal.add(world, x, y, z, type);
+            }
+        }
+        return previous;
     }
 
     public SignType addItem(Sign sign, SignType type) {
-        return this.addItem(sign.getLocation(), type);
+        return this.addItem(sign.getWorld().getUID(), sign.getX(), sign.getY(), sign.getZ(), type);
     }
 
     public SignType addItem(Location location, SignType type) {
-        return this.listOfSigns.put(location, type);
+        return this.addItem(location.getWorld().getUID(), location.getBlockX(), location.getBlockY(), location.getBlockZ(), type);
+    }
+
+    /**
+     * Removes the sign at the given coordinates, along with its protection
+     * footprint
+     *
+     * @param world the world UUID
+     * @param x block x
+     * @param y block y
+     * @param z block z
+     * @return the removed type, or null if there was no sign
+     */
+    public SignType removeItem(UUID world, int x, int y, int z) {
+        this.protection.remove(world, x, y, z);
+        SignType previous = this.index.remove(world, x, y, z);
+        SignShard shard = this.shards.get(world);
+        if (previous != null && shard != null) {
+            shard.dirty = true;
+            if (shard.journal != null) {
+                shard.journal.remove(world, x, y, z);
+            }
+        }
+        return previous;
     }
 
     public SignType removeItem(Location location) {
-        return this.listOfSigns.remove(location);
+        return this.removeItem(location.getWorld().getUID(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
     }
 
     public SignType removeItem(Sign sign) {
-        return this.removeItem(sign.getLocation());
+        return this.removeItem(sign.getWorld().getUID(), sign.getX(), sign.getY(), sign.getZ());
+    }
+
+    public SignType removeItem(SignIndex.Entry entry) {
+        return this.removeItem(entry.world, entry.x, entry.y, entry.z);
     }
 
     public boolean containsItem(Location location) {
-        return this.listOfSigns.containsKey(location);
+        return this.index.contains(location.getWorld().getUID(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
     }
 
     public boolean containsItem(Sign sign) {
-        return this.containsItem(sign.getLocation());
+        return this.index.contains(sign.getWorld().getUID(), sign.getX(), sign.getY(), sign.getZ());
+    }
+
+    public boolean containsItem(Block block) {
+        return this.index.contains(block);
     }
 
     /**
-     * Removes all items from this storage. The internal {@link HashMap} will be
-     * empty after this call returns.
+     * Removes all items from this storage and forgets all loaded shards. The
+     * internal {@link SignIndex} will be empty after this call returns. Files
+     * are not touched.
      */
     public void purge() {
-        this.listOfSigns.clear();
+        this.index.clear();
+        this.protection.clear();
+        for (SignShard shard : this.shards.values()) {
+            this.closeJournal(shard);
+        }
+        this.shards.clear();
     }
 
     /**
-     * Composes a path to this storage's file
+     * (Re)computes the protection footprint of a registered sign
+     *
+     * @param block the sign block
+     */
+    public void protect(Block block) {
+        if (this.containsItem(block)) {
+            this.protection.add(block);
+        }
+    }
+
+    /**
+     * (Re)computes the protection footprints of all registered signs in the
+     * given chunk
+     *
+     * @param chunk the chunk
+     */
+    public void protectChunk(Chunk chunk) {
+        UUID world = chunk.getWorld().getUID();
+        if (!this.index.hasSignsInChunk(world, chunk.getX(), chunk.getZ())) {
+            return;
+        }
+        for (SignIndex.Entry entry : this.index.entriesInChunk(world, chunk.getX(), chunk.getZ())) {
+            this.protection.add(entry.getBlock(chunk.getWorld()));
+        }
+    }
+
+    /**
+     * (Re)computes the protection footprints of all registered signs in the
+     * loaded chunks of the given world
+     *
+     * @param world the world
+     */
+    public void protectWorld(World world) {
+        for (Chunk chunk : world.getLoadedChunks()) {
+            this.protectChunk(chunk);
+        }
+    }
+
+    /**
+     * Recomputes all protection footprints of signs in loaded chunks
+     *
+     * @see ProtectionIndex#rebuild(SignIndex index, Server server)
+     */
+    public void rebuildProtection() {
+        int computed = this.protection.rebuild(this.index, this.plugin.getServer());
+        this.plugin.log.fine("protection rebuilt for " + computed + " of " + this.index.size() + " signs");
+    }
+
+    /**
+     * Composes a path to the folder with this storage's shard files
+     *
+     * @return the path as {@code File}
+     */
+    public File getShardFolderPath() {
+        return new File(this.plugin.getDataFolder(), SHARD_FOLDER);
+    }
+
+    /**
+     * Composes a path to the single storage file used by older versions of the
+     * plugin, before the storage was split per world
      *
      * @return the path as {@code File}
      */
@@ -99,98 +272,534 @@ public class SignStorage {
     }
 
     /**
-     * Converts the location-type hashmap to something serializable
+     * Composes a path to the serialized storage file used by the oldest
+     * versions of the plugin
+     *
+     * @return the path as {@code File}
+     */
+    public File getLegacyDataFilePath() {
+        return new File(this.plugin.getDataFolder(), LEGACY_LIST_FILENAME);
+    }
+
+    /**
+     * Composes a path to the single journal file used by older versions of the
+     * plugin, before the storage was split per world
+     *
+     * @return the path as {@code File}
+     */
+    public File getJournalFilePath() {
+        return new File(this.plugin.getDataFolder(), JOURNAL_FILENAME);
+    }
+
+    /**
+     * Saves all loaded shards to their files (in the {@link SignStorageFormat}),
+     * overwriting the originals (or creating new files if they don't exist).
+     * Outputs warning if a file cannot be saved. This always writes
+     * synchronously, regardless of the storage {@link Mode}.
      *
-     * @return a serializable hashmap
+     * @return true if all shards were written
      */
-    protected HashMap<SimplifiedLocation, SignType> serializeStorage() {
-        HashMap<SimplifiedLocation, SignType> serializableListOfSigns = new HashMap<>();
-        for (Map.Entry<Location, SignType> entry : this.listOfSigns.entrySet()) {
-            Location location = entry.getKey();
-            SignType signType = entry.getValue();
-            serializableListOfSigns.put(new SimplifiedLocation(location.getWorld().getUID(), location.getX(), location.getY(), location.getZ()), signType);
+    public boolean save() {
+        boolean saved = true;
+        for (SignShard shard : this.shards.values()) {
+            saved &= this.save(shard);
         }
-        return serializableListOfSigns;
+        return saved;
     }
 
     /**
-     * Saves the storage to its corresponding file, overwriting the original (or
-     * creating a new file if it doesn't exist). Outputs warning if the file
-     * cannot be saved.
+     * Saves a single shard synchronously
+     *
+     * @param shard the shard
+     * @return true if the shard was written
      */
-    public void save() {
+    protected boolean save(SignShard shard) {
+        shard.dirty = false;
+        return this.writeSnapshot(shard.world, this.index.entries(shard.world));
+    }
 
-        try (ObjectOutputStream stream = new ObjectOutputStream(new FileOutputStream(this.getDataFilePath()))) {
-            stream.writeObject(this.serializeStorage());
-            stream.flush();
-            stream.close();
-        } catch (IOException ex) {
-            this.plugin.log.warning("sign storage file " + this.getDataFilePath().getName() + " could not be written: " + ex.getMessage());
+    /**
+     * Writes the given snapshot to the shard file of the world. Safe to call
+     * from any thread; concurrent writes are serialized.
+     *
+     * The snapshot is written to a temporary file first and then moved over
+     * the original, so a crash never leaves a half-written storage behind.
+     *
+     * @param world the world UUID
+     * @param entries immutable snapshot of the world's signs
+     * @return true if the snapshot was written
+     */
+    protected boolean writeSnapshot(UUID world, List<SignIndex.Entry> entries) {
+        File target = SignShard.getDataFile(this.getShardFolderPath(), world);
+        File temporary = new File(target.getPath() + ".tmp");
+        synchronized (this.writeLock) {
+            try {
+                if (!target.getParentFile().isDirectory() && !target.getParentFile().mkdirs()) {
+                    throw new IOException("could not create folder " + target.getParentFile().getName());
+                }
+                SignStorageFormat.write(entries, temporary);
+                Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return true;
+            } catch (IOException ex) {
+                this.plugin.log.warning("sign storage file " + target.getName() + " could not be written: " + ex.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Persists the changes made since the last call according to the storage
+     * {@link Mode}. In the snapshot mode, the changed shards are saved right
+     * away. In the other modes a flush is scheduled
+     * ({@code options.signs.storage.journal.syncInterval} or
+     * {@code options.signs.storage.async.interval} ticks later), so that all
+     * changes made in the meantime are written at once.
+     */
+    public void persist() {
+        if (this.mode == Mode.SNAPSHOT) {
+            this.flush();
+            return;
+        }
+        if (this.flushTask == null) {
+            long interval = (this.mode == Mode.JOURNAL)
+                    ? this.plugin.config.getLong("options.signs.storage.journal.syncInterval", 20)
+                    : this.plugin.config.getLong("options.signs.storage.async.interval", 100);
+            this.flushTask = Bukkit.getScheduler().runTaskLater(this.plugin, new Runnable() {
+                @Override
+                public void run() {
+                    flushTask = null;
+                    flush();
+                }
+            }, Math.max(1, interval));
+        }
+    }
+
+    /**
+     * Writes all pending changes of all shards to disk.
+     *
+     * @see flush(SignShard shard)
+     */
+    public void flush() {
+        for (SignShard shard : this.shards.values()) {
+            this.flush(shard);
+        }
+    }
+
+    /**
+     * Writes pending changes of a shard to disk. In the snapshot mode the
+     * shard is saved if it changed. In the journal mode the journal is synced
+     * right away, and compacted into a new snapshot if it has grown past
+     * {@code options.signs.storage.journal.compactThreshold} records. In the
+     * async mode a snapshot is handed over to the background writer.
+     *
+     * @param shard the shard
+     */
+    protected void flush(SignShard shard) {
+        if (!shard.dirty) {
+            return;
+        }
+        if (this.mode == Mode.SNAPSHOT) {
+            this.save(shard);
+        } else if (this.mode == Mode.ASYNC) {
+            shard.dirty = false;
+            this.writer.submit(shard.world, this.index.entries(shard.world));
+        } else {
+            shard.dirty = false;
+            try {
+                shard.journal.sync();
+            } catch (IOException ex) {
+                this.plugin.log.warning("sign storage journal " + shard.journal.getFile().getName() + " could not be written: " + ex.getMessage());
+            }
+            if (shard.journal.getRecords() >= this.plugin.config.getLong("options.signs.storage.journal.compactThreshold", 4096)) {
+                this.compact(shard);
+            }
+        }
+    }
+
+    /**
+     * Writes a new snapshot of the shard and empties its journal. The journal
+     * is only reset when the snapshot was written successfully.
+     *
+     * @param shard the shard
+     */
+    protected void compact(SignShard shard) {
+        if (shard.journal == null) {
+            this.save(shard);
+            return;
+        }
+        long records = shard.journal.getRecords();
+        if (this.save(shard)) {
+            try {
+                shard.journal.reset();
+                this.plugin.log.fine("sign storage journal " + shard.journal.getFile().getName() + " compacted (" + records + " records)");
+            } catch (IOException ex) {
+                this.plugin.log.warning("sign storage journal " + shard.journal.getFile().getName() + " could not be reset: " + ex.getMessage());
+            }
         }
     }
 
     /**
-     * Unserialize the SimplifiedLocation hashmap to the original
-     * Location-SignType map and loads the data, overwriting whatever was there
+     * Flushes all pending changes and releases the journal files or the writer
+     * thread. Call when the plugin is being disabled.
+     *
+     * In the async mode the final snapshots are written synchronously, after
+     * the background writer has finished, so nothing is lost on shutdown.
+     */
+    public void close() {
+        if (this.flushTask != null) {
+            this.flushTask.cancel();
+            this.flushTask = null;
+        }
+        if (this.mode == Mode.ASYNC) {
+            for (UUID world : this.writer.discardQueued()) {
+                SignShard shard = this.shards.get(world);
+                if (shard != null) {
+                    shard.dirty = true;
+                }
+            }
+            if (!this.writer.shutdown(30000)) {
+                this.plugin.log.warning("sign storage writer did not finish in time");
+            }
+            for (SignShard shard : this.shards.values()) {
+                if (shard.dirty) {
+                    this.save(shard);
+                }
+            }
+            this.plugin.log.fine("sign storage writer: " + this.writer.getStatistics());
+            return;
+        }
+        this.flush();
+        for (SignShard shard : this.shards.values()) {
+            this.closeJournal(shard);
+        }
+    }
+
+    protected void closeJournal(SignShard shard) {
+        if (shard.journal != null) {
+            try {
+                shard.journal.close();
+            } catch (IOException ex) {
+                this.plugin.log.warning("sign storage journal " + shard.journal.getFile().getName() + " could not be closed: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the background writer of this storage
+     *
+     * @return the writer, or null when the storage is not in the async mode
+     */
+    public SignStorageWriter getWriter() {
+        return this.writer;
+    }
+
+    /**
+     * Returns a human readable summary of the storage's state, including the
+     * background writer's latency and queue depth in the async mode
+     *
+     * @return the statistics
+     */
+    public String getStatistics() {
+        return "mode: " + this.mode.getName()
+                + ", signs: " + this.index.size()
+                + ", loaded worlds: " + this.shards.size()
+                + (this.writer != null ? ", writer: " + this.writer.getStatistics() : "");
+    }
+
+    /**
+     * Unserialize the SimplifiedLocation hashmap to the sign index and loads
+     * the data, overwriting whatever was there
      *
      * @param serializedListOfSigns the serialized list of signs
+     * @param target the index to load the signs into
      */
-    protected void loadSerializedStorage(HashMap<SimplifiedLocation, SignType> serializedListOfSigns) {
-        this.listOfSigns.clear();
+    protected void loadSerializedStorage(HashMap<SimplifiedLocation, SignType> serializedListOfSigns, SignIndex target) {
+        target.clear();
         for (Map.Entry<SimplifiedLocation, SignType> entry : serializedListOfSigns.entrySet()) {
             SimplifiedLocation location = entry.getKey();
-            SignType signType = entry.getValue();
-            this.listOfSigns.put(new Location(this.plugin.getServer().getWorld(location.world), location.x, location.y, location.z), signType);
+            target.put(location.world, (int) Math.floor(location.x), (int) Math.floor(location.y), (int) Math.floor(location.z), entry.getValue());
+        }
+    }
+
+    /**
+     * Splits the storage of older versions (the single {@code signs.dat} or the
+     * serialized {@code signsstorage.bin}, plus the single journal) into
+     * per-world shard files. The old files are kept, renamed with a
+     * ".migrated" suffix.
+     *
+     * @return true if there was nothing to migrate or the migration succeeded
+     */
+    protected boolean migrateUnshardedStorage() {
+        File data = this.getDataFilePath();
+        File legacy = this.getLegacyDataFilePath();
+        File journal = this.getJournalFilePath();
+        if (!data.exists() && !legacy.exists() && !journal.exists()) {
+            return true;
+        }
+        SignIndex old = new SignIndex();
+        try {
+            if (data.exists()) {
+                SignStorageFormat.read(data, old);
+            } else if (legacy.exists()) {
+                try (ObjectInputStream stream = new ObjectInputStream(new FileInputStream(legacy))) {
+                    loadSerializedStorage((HashMap<SimplifiedLocation, SignType>) stream.readObject(), old);
+                }
+            }
+            if (journal.exists()) {
+                new SignJournal(journal).replay(old);
+            }
+        } catch (IOException ex) {
+            this.plugin.log.warning("sign storage could not be migrated: " + ex.getMessage());
+            return false;
+        } catch (ClassNotFoundException ex) {
+            this.plugin.log.warning("encountered ClassNotFoundException: " + ex.getMessage());
+            Logger.getLogger(Sign.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
         }
+        for (UUID world : old.getWorlds()) {
+            if (!this.writeSnapshot(world, old.entries(world))) {
+                return false;
+            }
+        }
+        for (File file : new File[]{data, legacy, journal}) {
+            if (file.exists() && !file.renameTo(new File(file.getPath() + ".migrated"))) {
+                this.plugin.log.warning("sign storage file " + file.getName() + " could not be renamed after migration");
+            }
+        }
+        this.plugin.log.info("migrated " + old.size() + " signs in " + old.getWorlds().size() + " worlds to " + SHARD_FOLDER + "/");
+        return true;
     }
 
     /**
-     * Reads the storage from its corresponding file.
+     * Reads a shard's snapshot and replays its journal (if journaling is
+     * enabled) into a new index. Touches nothing but the shard and its files,
+     * so shards can be read in parallel.
      *
-     * Current contents of the storage (and any changes) will be lost. Will
-     * create an empty storage if the file doesn't exist or can't be opened, and
-     * will try to save it.
+     * A damaged snapshot is renamed with a ".damaged" suffix rather than
+     * overwritten later.
      *
-     * @see save()
+     * @param shard the shard
+     * @return index with the shard's signs
      */
-    public void load() {
-        if (this.getDataFilePath().exists()) {
-            try (ObjectInputStream stream = new ObjectInputStream(new FileInputStream(this.getDataFilePath()))) {
-                loadSerializedStorage((HashMap<SimplifiedLocation, SignType>) stream.readObject());
+    protected SignIndex readShard(SignShard shard) {
+        SignIndex shardIndex = new SignIndex();
+        if (shard.dataFile.exists()) {
+            try {
+                SignStorageFormat.read(shard.dataFile, shardIndex);
             } catch (IOException ex) {
-                this.plugin.log.warning("sign storage file " + this.getDataFilePath().getName() + " could not be read: " + ex.getMessage());
-            } catch (ClassNotFoundException ex) {
-                this.plugin.log.warning("encountered ClassNotFoundException: " + ex.getMessage());
-                Logger.getLogger(Sign.class.getName()).log(Level.SEVERE, null, ex);
+                this.plugin.log.warning("sign storage file " + shard.dataFile.getName() + " could not be read: " + ex.getMessage());
+                shardIndex.clear();
+                if (!shard.dataFile.renameTo(new File(shard.dataFile.getPath() + ".damaged"))) {
+                    this.plugin.log.warning("sign storage file " + shard.dataFile.getName() + " could not be renamed, it will be overwritten");
+                }
+                shard.needsCompaction = true;
             }
-            this.plugin.log.info("loaded " + this.listOfSigns.size() + " signs");
-        } else {
-            this.plugin.log.info("sign storage file not found, attempting to save (create) one");
-            this.save();
         }
+        if (shard.journal != null && shard.journal.getFile().exists()) {
+            try {
+                if (shard.journal.replay(shardIndex) > 0) {
+                    this.plugin.log.fine("replayed " + shard.journal.getRecords() + " records of " + shard.journal.getFile().getName());
+                }
+                shard.needsCompaction = true;
+            } catch (IOException ex) {
+                this.plugin.log.warning("sign storage journal " + shard.journal.getFile().getName() + " could not be read: " + ex.getMessage());
+            }
+        }
+        return shardIndex;
     }
 
     /**
-     * Returns the underlying {@link HashMap} of this storage.
+     * Puts a freshly read shard to use
      *
-     * @return the hashmap
+     * @param shard the shard
+     * @param shardIndex the index returned by {@code readShard}
+     * @return the number of signs in the shard
      */
-    public HashMap<Location, SignType> getUnderlyingHashMap() {
-        return this.listOfSigns;
+    protected int attachShard(SignShard shard, SignIndex shardIndex) {
+        this.shards.put(shard.world, shard);
+        int signs = this.index.adoptWorld(shard.world, shardIndex);
+        if (shard.needsCompaction) {
+            shard.needsCompaction = false;
+            this.compact(shard);
+        }
+        return signs;
     }
 
     /**
-     * Sets the underlying {@link HashMap} of this storage. All previous
-     * contents are lost.
+     * Loads the shard of the given world, unless it is already loaded
      *
-     * @param map the new {@code HashMap}
+     * @param world the world UUID
+     * @return the shard
      */
-    public void setUnderlyingHashMap(HashMap<Location, SignType> map) {
-        this.listOfSigns = map;
+    public SignShard loadShard(UUID world) {
+        SignShard shard = this.shards.get(world);
+        if (shard == null) {
+            shard = new SignShard(world, this.getShardFolderPath(), this.mode == Mode.JOURNAL);
+            int signs = this.attachShard(shard, this.readShard(shard));
+            this.plugin.log.fine("loaded " + signs + " signs of world " + world);
+        }
+        return shard;
+    }
+
+    /**
+     * Writes all pending changes of the world's shard synchronously and
+     * releases it - its signs and protection footprints are dropped from
+     * memory.
+     *
+     * @param world the world UUID
+     */
+    public void unloadShard(UUID world) {
+        SignShard shard = this.shards.get(world);
+        if (shard == null) {
+            return;
+        }
+        if (this.mode == Mode.ASYNC && this.writer.discardQueued(world)) {
+            shard.dirty = true;
+        }
+        if (this.mode == Mode.JOURNAL) {
+            this.flush(shard);
+            this.closeJournal(shard);
+        } else if (shard.dirty) {
+            this.save(shard);
+        }
+        this.shards.remove(world);
+        this.protection.removeWorld(world);
+        int signs = this.index.removeWorld(world);
+        this.plugin.log.fine("released " + signs + " signs of world " + world);
+    }
+
+    /**
+     * Checks whether the shard of the given world is loaded
+     *
+     * @param world the world UUID
+     * @return true if the world's signs are in memory
+     */
+    public boolean isShardLoaded(UUID world) {
+        return this.shards.containsKey(world);
+    }
+
+    /**
+     * Reads the shards of all currently loaded worlds, in parallel.
+     *
+     * Current contents of the storage (and any changes) will be lost. Storage
+     * files of older versions are migrated first. Replayed journals are
+     * compacted into new snapshots right away. Protection footprints are
+     * rebuilt for signs in loaded chunks.
+     *
+     * @see loadShard(UUID world)
+     */
+    public void load() {
+        this.purge();
+        if (!this.migrateUnshardedStorage()) {
+            this.plugin.log.warning("old sign storage files were left in place, signs stored in them are not loaded");
+        }
+
+        List<World> worlds = this.plugin.getServer().getWorlds();
+        final List<SignShard> loading = new ArrayList<>(worlds.size());
+        List<Callable<SignIndex>> readers = new ArrayList<>(worlds.size());
+        for (World world : worlds) {
+            final SignShard shard = new SignShard(world.getUID(), this.getShardFolderPath(), this.mode == Mode.JOURNAL);
+            loading.add(shard);
+            readers.add(new Callable<SignIndex>() {
+                @Override
+                public SignIndex call() {
+                    return readShard(shard);
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(readers.size(), Runtime.getRuntime().availableProcessors())));
+        try {
+            List<Future<SignIndex>> results = executor.invokeAll(readers);
+            for (int i = 0; i < loading.size(); i++) {
+                this.attachShard(loading.get(i), results.get(i).get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            this.plugin.log.warning("loading of sign storage was interrupted");
+        } catch (ExecutionException ex) {
+            this.plugin.log.warning("sign storage could not be loaded: " + ex.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        this.plugin.log.info("loaded " + this.index.size() + " signs in " + this.shards.size() + " worlds");
+        this.rebuildProtection();
+    }
+
+    /**
+     * Returns the underlying {@link SignIndex} of this storage.
+     *
+     * @return the index
+     */
+    public SignIndex getIndex() {
+        return this.index;
+    }
+
+    /**
+     * Returns the {@link ProtectionIndex} of this storage.
+     *
+     * @return the protection index
+     */
+    public ProtectionIndex getProtection() {
+        return this.protection;
+    }
+
+    /**
+     * Returns the loaded shards
+     *
+     * @return set of world UUIDs whose shards are loaded (a copy)
+     */
+    public Set<UUID> getLoadedShards() {
+        return new HashSet<>(this.shards.keySet());
+    }
+
+    /**
+     * Modes of persisting the storage
+     */
+    public static enum Mode {
+
+        /**
+         * The whole shard is rewritten on every change
+         */
+        SNAPSHOT("snapshot"),
+        /**
+         * Changes are appended to a journal, which is occasionally compacted
+         */
+        JOURNAL("journal"),
+        /**
+         * Snapshots are written by a background thread, coalescing changes
+         */
+        ASYNC("async");
+        protected String name;
+
+        private Mode(final String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * Case-insensitive lookup of a mode by its name
+         *
+         * @param name the name to search for
+         * @return the mode or null if there is no mode with such name
+         */
+        public static Mode getByName(String name) {
+            for (Mode mode : Mode.values()) {
+                if (mode.getName().equalsIgnoreCase(name)) {
+                    return mode;
+                }
+            }
+            return null;
+        }
     }
 
     /**
-     * A Location type that makes serialization possible
+     * A Location type that makes serialization possible. Only used to read
+     * storage files of older versions.
      */
     public static class SimplifiedLocation implements Serializable {
 
@@ -0,0 +1,222 @@
+package net.amunak.bukkit.mineauction.sign;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary file format of the sign storage.
+ *
+ * Layout (big endian):
+ * <pre>
+ * header      magic "MASS" (4 B), version (2 B), reserved (2 B),
+ *             number of worlds (4 B)
+ * dictionary  for each world: UUID (16 B), number of its records (4 B)
+ * records     grouped by world in dictionary order, each one is
+ *             x, y, z (4 B each) and the sign type ordinal (1 B)
+ * footer      CRC32 of everything above (4 B)
+ * </pre>
+ *
+ * Files are read through a memory mapped buffer and decoded straight into a
+ * {@link SignIndex}, without any intermediate objects.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class SignStorageFormat {
+
+    public static final int MAGIC = 0x4D415353;
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 12;
+    public static final int DICTIONARY_ENTRY_SIZE = 20;
+    public static final int RECORD_SIZE = 13;
+    private static final SignType[] TYPES = SignType.values();
+
+    private SignStorageFormat() {
+    }
+
+    /**
+     * Checks whether the file starts with this format's magic number
+     *
+     * @param file the file
+     * @return true if the file looks like a sign storage file
+     * @throws IOException when the file cannot be read
+     */
+    public static boolean isFormatted(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) > 0) {
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Encodes the entries into a buffer ready to be written
+     *
+     * @param entries the entries
+     * @return flipped buffer with the whole file
+     */
+    public static ByteBuffer encode(List<SignIndex.Entry> entries) {
+        Map<UUID, List<SignIndex.Entry>> worlds = new LinkedHashMap<>();
+        for (SignIndex.Entry entry : entries) {
+            List<SignIndex.Entry> world = worlds.get(entry.world);
+            if (world == null) {
+                world = new ArrayList<>();
+                worlds.put(entry.world, world);
+            }
+            world.add(entry);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + worlds.size() * DICTIONARY_ENTRY_SIZE + entries.size() * RECORD_SIZE + 4);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) 0);
+        buffer.putInt(worlds.size());
+        for (Map.Entry<UUID, List<SignIndex.Entry>> world : worlds.entrySet()) {
+            buffer.putLong(world.getKey().getMostSignificantBits());
+            buffer.putLong(world.getKey().getLeastSignificantBits());
+            buffer.putInt(world.getValue().size());
+        }
+        for (List<SignIndex.Entry> world : worlds.values()) {
+            for (SignIndex.Entry entry : world) {
+                buffer.putInt(entry.x);
+                buffer.putInt(entry.y);
+                buffer.putInt(entry.z);
+                buffer.put((byte) entry.type.ordinal());
+            }
+        }
+        buffer.putInt(checksum(buffer, 0, buffer.position()));
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Writes the entries to the file and forces them to disk
+     *
+     * @param entries the entries
+     * @param file the file to (over)write
+     * @throws IOException when the file cannot be written
+     */
+    public static void write(List<SignIndex.Entry> entries, File file) throws IOException {
+        ByteBuffer buffer = encode(entries);
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            FileChannel channel = output.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Reads the file into the index. Entries are added to whatever the index
+     * already contains.
+     *
+     * @param file the file
+     * @param index the index to fill
+     * @return the number of entries read
+     * @throws IOException when the file cannot be read or is damaged
+     */
+    public static int read(File file, SignIndex index) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return decode(buffer, index);
+        }
+    }
+
+    /**
+     * Decodes a whole file from the buffer into the index
+     *
+     * @param buffer buffer positioned at the start of the file
+     * @param index the index to fill
+     * @return the number of entries read
+     * @throws IOException when the data is damaged or of unknown version
+     */
+    public static int decode(ByteBuffer buffer, SignIndex index) throws IOException {
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER_SIZE + 4 || buffer.getInt() != MAGIC) {
+            throw new IOException("not a sign storage file");
+        }
+        short version = buffer.getShort();
+        if (version != VERSION) {
+            throw new IOException("unsupported sign storage version " + version);
+        }
+        buffer.getShort();
+        int worldCount = buffer.getInt();
+        if (worldCount < 0 || buffer.remaining() < (long) worldCount * DICTIONARY_ENTRY_SIZE + 4) {
+            throw new IOException("sign storage file is truncated");
+        }
+        UUID[] worlds = new UUID[worldCount];
+        int[] counts = new int[worldCount];
+        long total = 0;
+        for (int i = 0; i < worldCount; i++) {
+            worlds[i] = new UUID(buffer.getLong(), buffer.getLong());
+            counts[i] = buffer.getInt();
+            total += counts[i];
+        }
+        if (buffer.remaining() != total * RECORD_SIZE + 4) {
+            throw new IOException("sign storage file is truncated");
+        }
+        int end = buffer.position() + (int) total * RECORD_SIZE;
+        if (checksum(buffer, start, end) != buffer.getInt(end)) {
+            throw new IOException("sign storage file is damaged (checksum mismatch)");
+        }
+        buffer.position(start + HEADER_SIZE + worldCount * DICTIONARY_ENTRY_SIZE);
+        for (int i = 0; i < worldCount; i++) {
+            for (int n = 0; n < counts[i]; n++) {
+                int x = buffer.getInt();
+                int y = buffer.getInt();
+                int z = buffer.getInt();
+                int type = buffer.get();
+                if (type < 0 || type >= TYPES.length) {
+                    throw new IOException("sign storage file contains unknown sign type " + type);
+                }
+                index.put(worlds[i], x, y, z, TYPES[type]);
+            }
+        }
+        return (int) total;
+    }
+
+    /**
+     * Computes CRC32 of the buffer's contents between the given positions. The
+     * buffer's position is not changed.
+     */
+    private static int checksum(ByteBuffer buffer, int start, int end) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[65536];
+        ByteBuffer view = buffer.duplicate();
+        view.position(start);
+        while (view.position() < end) {
+            int length = Math.min(chunk.length, end - view.position());
+            view.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,219 @@
+package net.amunak.bukkit.mineauction.sign;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background writer of {@link SignStorage} snapshots.
+ *
+ * Snapshots of {@link SignShard}s are taken on the main thread and handed over
+ * to a single writer thread. When a new snapshot of a shard arrives while an
+ * older one is still waiting to be written, the older one is dropped - only
+ * the latest state matters - so there is never more than one queued write per
+ * world.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class SignStorageWriter {
+
+    protected final SignStorage storage;
+    protected final ExecutorService executor;
+    protected final ConcurrentMap<UUID, List<SignIndex.Entry>> queued;
+    protected final AtomicInteger queueDepth;
+    protected final AtomicLong writes;
+    protected final AtomicLong failures;
+    protected final AtomicLong coalesced;
+    protected final AtomicLong lastLatency;
+    protected final AtomicLong maxLatency;
+    protected final AtomicLong totalLatency;
+
+    /**
+     * Constructs a writer for the given storage and starts its thread
+     *
+     * @param storage the storage to write
+     */
+    public SignStorageWriter(SignStorage storage) {
+        this.storage = storage;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MineAuction-SignStorageWriter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.queued = new ConcurrentHashMap<>();
+        this.queueDepth = new AtomicInteger();
+        this.writes = new AtomicLong();
+        this.failures = new AtomicLong();
+        this.coalesced = new AtomicLong();
+        this.lastLatency = new AtomicLong();
+        this.maxLatency = new AtomicLong();
+        this.totalLatency = new AtomicLong();
+    }
+
+    /**
+     * Queues a snapshot of a shard to be written. Replaces a snapshot of the
+     * same shard that is queued but not being written yet.
+     *
+     * @param world the shard's world UUID
+     * @param snapshot immutable snapshot of the shard
+     */
+    public void submit(final UUID world, List<SignIndex.Entry> snapshot) {
+        if (this.queued.put(world, snapshot) != null) {
+            this.coalesced.incrementAndGet();
+            return;
+        }
+        this.queueDepth.incrementAndGet();
+        this.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<SignIndex.Entry> entries = queued.remove(world);
+                queueDepth.decrementAndGet();
+                if (entries != null) {
+                    write(world, entries);
+                }
+            }
+        });
+    }
+
+    protected void write(UUID world, List<SignIndex.Entry> entries) {
+        long start = System.nanoTime();
+        boolean written = this.storage.writeSnapshot(world, entries);
+        long latency = System.nanoTime() - start;
+        if (written) {
+            this.writes.incrementAndGet();
+        } else {
+            this.failures.incrementAndGet();
+        }
+        this.lastLatency.set(latency);
+        this.totalLatency.addAndGet(latency);
+        long max;
+        do {
+            max = this.maxLatency.get();
+        } while (latency > max && !this.maxLatency.compareAndSet(max, latency));
+    }
+
+    /**
+     * Drops the queued snapshot of a shard, if it is not being written yet
+     *
+     * @param world the shard's world UUID
+     * @return true if a snapshot was dropped
+     */
+    public boolean discardQueued(UUID world) {
+        return this.queued.remove(world) != null;
+    }
+
+    /**
+     * Drops all queued snapshots that are not being written yet
+     *
+     * @return the worlds whose snapshots were dropped
+     */
+    public Set<UUID> discardQueued() {
+        Set<UUID> discarded = new HashSet<>();
+        for (UUID world : this.queued.keySet()) {
+            if (this.discardQueued(world)) {
+                discarded.add(world);
+            }
+        }
+        return discarded;
+    }
+
+    /**
+     * Stops accepting snapshots and waits for the queued one to be written
+     *
+     * @param timeoutMillis how long to wait at most
+     * @return true if everything was written in time
+     */
+    public boolean shutdown(long timeoutMillis) {
+        this.executor.shutdown();
+        try {
+            return this.executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of snapshots waiting to be written (at most one per
+     * world)
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return this.queueDepth.get();
+    }
+
+    public long getWrites() {
+        return this.writes.get();
+    }
+
+    public long getFailures() {
+        return this.failures.get();
+    }
+
+    /**
+     * Returns the number of snapshots that were replaced by a newer one before
+     * they got written
+     *
+     * @return number of coalesced snapshots
+     */
+    public long getCoalesced() {
+        return this.coalesced.get();
+    }
+
+    /**
+     * Returns how long the last snapshot write took
+     *
+     * @return latency in milliseconds
+     */
+    public double getLastLatencyMillis() {
+        return this.lastLatency.get() / 1e6;
+    }
+
+    public double getMaxLatencyMillis() {
+        return this.maxLatency.get() / 1e6;
+    }
+
+    public double getAverageLatencyMillis() {
+        long count = this.writes.get() + this.failures.get();
+        return count == 0 ? 0 : this.totalLatency.get() / 1e6 / count;
+    }
+
+    /**
+     * Returns a human-readable summary of the writer's statistics
+     *
+     * @return the summary
+     */
+    public String getStatistics() {
+        return String.format("%d snapshots written (%d failed, %d coalesced), queue depth %d, latency last %.2f ms, avg %.2f ms, max %.2f ms",
+                getWrites(), getFailures(), getCoalesced(), getQueueDepth(), getLastLatencyMillis(), getAverageLatencyMillis(), getMaxLatencyMillis());
+    }
+}
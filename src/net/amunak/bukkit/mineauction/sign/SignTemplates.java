@@ -0,0 +1,101 @@
+package net.amunak.bukkit.mineauction.sign;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.List;
+import org.bukkit.ChatColor;
+import org.bukkit.block.Sign;
+import org.bukkit.configuration.file.FileConfiguration;
+
+/**
+ * Immutable set of the sign texts for all SignType, compiled once from the
+ * config (color codes translated), so formatting and validating signs doesn't
+ * need to touch the config at all.
+ *
+ * A new instance is compiled on every config reload and swapped in as a whole.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class SignTemplates {
+
+    public final static int LINES = 4;
+    private final String[][] templates;
+
+    private SignTemplates(String[][] templates) {
+        this.templates = templates;
+    }
+
+    /**
+     * Compiles the templates of all SignType from the given config. Missing
+     * lines are left blank and superfluous lines are ignored.
+     *
+     * Since some combinations of UTF-8 config files tended to break color
+     * codes, I use an ugly replace hack to fix it. The
+     * {@code BUGGY_COLOR_CODE_SEQUENCE} is replaced to
+     * {@code LEGACY_COLOR_CODE}.
+     *
+     * @param config the config
+     * @return the compiled templates
+     */
+    public static SignTemplates compile(FileConfiguration config) {
+        List<String> header = config.getStringList("options.signs.signTexts.header");
+        String[][] templates = new String[SignType.values().length][];
+        for (SignType type : SignType.values()) {
+            List<String> body = config.getStringList("options.signs.signTexts.types." + type.getName());
+            String[] lines = new String[LINES];
+            for (int i = 0; i < LINES; i++) {
+                String line = i < 2 ? getOrEmpty(header, i) : getOrEmpty(body, i - 2);
+                line = line.replace(MineAuctionSign.BUGGY_COLOR_CODE_SEQUENCE, MineAuctionSign.LEGACY_COLOR_CODE);
+                lines[i] = ChatColor.translateAlternateColorCodes('&', line);
+            }
+            templates[type.ordinal()] = lines;
+        }
+        return new SignTemplates(templates);
+    }
+
+    private static String getOrEmpty(List<String> list, int index) {
+        return list != null && index < list.size() && list.get(index) != null ? list.get(index) : "";
+    }
+
+    /**
+     * Returns one line of the template
+     *
+     * @param type the sign type
+     * @param line the line, 0-3
+     * @return the formatted line
+     */
+    public String getLine(SignType type, int line) {
+        return this.templates[type.ordinal()][line];
+    }
+
+    /**
+     * Checks whether the sign's text matches the template
+     *
+     * @param sign the sign
+     * @param type the sign type
+     * @return true if all lines match
+     */
+    public boolean matches(Sign sign, SignType type) {
+        String[] lines = this.templates[type.ordinal()];
+        for (int i = 0; i < LINES; i++) {
+            if (!lines[i].equals(sign.getLine(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
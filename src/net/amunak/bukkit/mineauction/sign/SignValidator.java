@@ -0,0 +1,170 @@
+package net.amunak.bukkit.mineauction.sign;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.List;
+import java.util.logging.Level;
+import net.amunak.bukkit.mineauction.MineAuction;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.Sign;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * Incremental validation of all known MineAuction signs.
+ *
+ * Does the same job as
+ * {@link MineAuctionSign#validateAll(boolean, boolean, boolean, boolean, Player, MineAuction)},
+ * but spreads the work over as many ticks as needed: every tick it processes
+ * signs only until its time budget runs out. Signs in chunks that are not
+ * loaded are skipped (unless chunk loading is allowed), so the validation
+ * never stalls the server with synchronous chunk loads.
+ *
+ * Progress and the final summary are reported through the plugin's
+ * {@code Log}.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class SignValidator extends BukkitRunnable {
+
+    protected final MineAuction plugin;
+    protected final boolean removeInvalidEntries;
+    protected final boolean loadChunks;
+    protected final long budgetNanos;
+    protected final Player logTarget;
+    protected final MineAuctionSign.IterativeValidation validation;
+    protected List<SignIndex.Entry> entries;
+    protected int position;
+    protected int nextProgressReport;
+    protected int invalid;
+    protected int skipped;
+    protected int ticks;
+    protected long startedAt;
+    protected boolean finished;
+
+    /**
+     * Prepares a validation; call {@code start()} to run it
+     *
+     * @param plugin the plugin
+     * @param removeInvalidEntries remove invalid entries (true) or just count
+     * them (false)?
+     * @param checkFormatting count the incorrectly-formatted signs?
+     * @param forceCorrectFormat re-apply {@code format} to all signs?
+     * @param loadChunks load chunks of signs that are not loaded (true) or
+     * skip these signs (false)?
+     * @param budgetMillis time budget per tick in milliseconds
+     * @param logTarget the log target (null for console, or a valid
+     * {@link Player})
+     */
+    public SignValidator(MineAuction plugin, boolean removeInvalidEntries, boolean checkFormatting, boolean forceCorrectFormat, boolean loadChunks, double budgetMillis, Player logTarget) {
+        this.plugin = plugin;
+        this.removeInvalidEntries = removeInvalidEntries;
+        this.loadChunks = loadChunks;
+        this.budgetNanos = (long) (Math.max(0.1, budgetMillis) * 1e6);
+        this.logTarget = logTarget;
+        this.validation = new MineAuctionSign.IterativeValidation(checkFormatting, forceCorrectFormat, plugin);
+    }
+
+    /**
+     * Takes a snapshot of the storage and starts processing it, beginning with
+     * the next tick
+     */
+    public void start() {
+        this.entries = this.plugin.getSignsStorage().getIndex().entries();
+        this.nextProgressReport = this.entries.size() / 10;
+        this.startedAt = System.currentTimeMillis();
+        this.plugin.log.info(this.logTarget, "Validating " + this.entries.size() + " signs in the background...", true);
+        this.runTaskTimer(this.plugin, 1, 1);
+    }
+
+    @Override
+    public void run() {
+        long deadline = System.nanoTime() + this.budgetNanos;
+        this.ticks++;
+        while (this.position < this.entries.size() && System.nanoTime() < deadline) {
+            this.validate(this.entries.get(this.position++));
+        }
+        if (this.position >= this.nextProgressReport && this.position < this.entries.size()) {
+            this.plugin.log.fine(this.logTarget, "Sign validation: " + (this.position * 100L / this.entries.size()) + "% (" + this.position + "/" + this.entries.size() + ")");
+            this.nextProgressReport += Math.max(1, this.entries.size() / 10);
+        }
+        if (this.position >= this.entries.size()) {
+            this.finish();
+        }
+    }
+
+    /**
+     * Validates a single entry of the snapshot
+     *
+     * @param entry the entry
+     */
+    protected void validate(SignIndex.Entry entry) {
+        SignStorage storage = this.plugin.getSignsStorage();
+        World world = this.plugin.getServer().getWorld(entry.world);
+        if (world == null
+                || storage.getIndex().get(entry.world, entry.x, entry.y, entry.z) != entry.type
+                || (!this.loadChunks && !world.isChunkLoaded(entry.x >> 4, entry.z >> 4))) {
+            // world unloaded, entry changed since the snapshot or chunk not loaded
+            this.skipped++;
+            return;
+        }
+        Block block = entry.getBlock(world);
+        if (MineAuctionSign.isSign(block)) {
+            this.validation.setSign((Sign) block.getState());
+            this.validation.setSignType(entry.type);
+            this.validation.call();
+        } else {
+            this.invalid++;
+            if (this.removeInvalidEntries) {
+                storage.removeItem(entry);
+            }
+        }
+    }
+
+    /**
+     * Stops the validation, persists the storage and logs the summary
+     */
+    protected void finish() {
+        this.cancel();
+        this.finished = true;
+        if (this.removeInvalidEntries && this.invalid > 0) {
+            this.plugin.getSignsStorage().persist();
+        }
+        this.plugin.log.log(Level.INFO, this.logTarget, "Sign validation finished in " + (System.currentTimeMillis() - this.startedAt) + " ms (" + this.ticks + " ticks). "
+                + this.entries.size() + " entries total, " + this.invalid + (this.removeInvalidEntries ? " invalid and removed, " : " invalid (not sign), ")
+                + this.validation.getWrongFormatting() + " wrong formatting, " + this.skipped + " skipped (not loaded)", true);
+    }
+
+    /**
+     * Checks whether the validation has processed all signs
+     *
+     * @return true when finished
+     */
+    public boolean isFinished() {
+        return this.finished;
+    }
+
+    /**
+     * Returns the progress of the validation
+     *
+     * @return number of processed entries and the total, formatted
+     */
+    public String getProgress() {
+        return this.position + "/" + (this.entries == null ? 0 : this.entries.size());
+    }
+}
@@ -0,0 +1,92 @@
+package net.amunak.bukkit.mineauction.sign;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import net.amunak.bukkit.mineauction.MineAuction;
+import org.bukkit.Chunk;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+
+/**
+ * Keeps the sign storage in sync with the world lifecycle - world shards of
+ * the storage are loaded and released together with their worlds, and chunk
+ * loads are used to compute protection footprints of the signs in them and to
+ * lazily validate them
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class SignWorldListener implements Listener {
+
+    protected MineAuction plugin;
+    protected SignChunkValidator validator;
+
+    public SignWorldListener(MineAuction p) {
+        this.plugin = p;
+        if (plugin.config.getBoolean("options.signs.validation.onChunkLoad", true)) {
+            this.validator = new SignChunkValidator(p);
+        }
+        plugin.log.fine("SignWorldListener registered");
+    }
+
+    /**
+     * Computes protection footprints of the registered signs in the chunk and
+     * queues them for validation
+     *
+     * @param event
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void chunkLoadEvent(ChunkLoadEvent event) {
+        plugin.getSignsStorage().protectChunk(event.getChunk());
+        if (validator != null) {
+            validator.chunkLoaded(event.getChunk());
+        }
+    }
+
+    /**
+     * Loads the storage shard of the world, protects its signs in the chunks
+     * that were loaded along with the world and queues them for validation
+     *
+     * @param event
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void worldLoadEvent(WorldLoadEvent event) {
+        plugin.getSignsStorage().loadShard(event.getWorld().getUID());
+        plugin.getSignsStorage().protectWorld(event.getWorld());
+        if (validator != null) {
+            for (Chunk chunk : event.getWorld().getLoadedChunks()) {
+                validator.chunkLoaded(chunk);
+            }
+        }
+    }
+
+    /**
+     * Writes and releases the storage shard of the world
+     *
+     * @param event
+     */
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+    public void worldUnloadEvent(WorldUnloadEvent event) {
+        plugin.getSignsStorage().unloadShard(event.getWorld().getUID());
+        if (validator != null) {
+            validator.forgetWorld(event.getWorld().getUID());
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package net.amunak.bukkit.mineauction.util;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+/**
+ * Static helpers packing block and chunk coordinates into primitive longs, so
+ * they can be used as keys without allocating {@code Location} objects.
+ *
+ * Block keys use 26 bits for x and z (the whole +-30M world border fits) and
+ * 12 bits for y. Chunk keys simply put chunk x to the upper and chunk z to the
+ * lower 32 bits.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class BlockKey {
+
+    private BlockKey() {
+    }
+
+    /**
+     * Packs block coordinates into a single long
+     *
+     * @param x block x
+     * @param y block y
+     * @param z block z
+     * @return the packed key
+     */
+    public static long pack(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+
+    public static int unpackX(long key) {
+        return (int) (key >> 38);
+    }
+
+    public static int unpackY(long key) {
+        return (int) (key << 52 >> 52);
+    }
+
+    public static int unpackZ(long key) {
+        return (int) (key << 26 >> 38);
+    }
+
+    /**
+     * Packs chunk coordinates into a single long
+     *
+     * @param chunkX chunk x
+     * @param chunkZ chunk z
+     * @return the packed key
+     */
+    public static long chunk(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the key of the chunk that contains the given block
+     *
+     * @param x block x
+     * @param z block z
+     * @return the packed chunk key
+     */
+    public static long chunkOfBlock(int x, int z) {
+        return chunk(x >> 4, z >> 4);
+    }
+
+    /**
+     * Returns the key of the chunk that contains the given packed block
+     *
+     * @param blockKey the packed block key
+     * @return the packed chunk key
+     */
+    public static long chunkOfBlock(long blockKey) {
+        return chunkOfBlock(unpackX(blockKey), unpackZ(blockKey));
+    }
+
+    public static int chunkX(long chunkKey) {
+        return (int) (chunkKey >> 32);
+    }
+
+    public static int chunkZ(long chunkKey) {
+        return (int) chunkKey;
+    }
+
+    /**
+     * Spreads the bits of a key, used by the primitive hash maps
+     *
+     * @param key the key
+     * @return the mixed hash
+     */
+    static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        key *= 0xC4CEB9FE1A85EC53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
@@ -0,0 +1,225 @@
+package net.amunak.bukkit.mineauction.util;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An open-addressing hash map from primitive long keys to primitive int
+ * values. No key or value is ever boxed.
+ *
+ * The value {@code 0} is reserved and means "no entry" - it is returned by
+ * {@code get} for missing keys and storing it removes the key. This keeps the
+ * map free of any per-slot state arrays.
+ *
+ * Not thread-safe.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class LongIntHashMap {
+
+    private static final int MIN_CAPACITY = 8;
+    private static final AtomicLong SEEDS = new AtomicLong(System.nanoTime());
+    private long[] keys;
+    private int[] values;
+    private final long seed;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    /**
+     * Constructs an empty map with the default capacity
+     */
+    public LongIntHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Constructs an empty map able to hold {@code expected} entries without
+     * resizing
+     *
+     * @param expected expected number of entries
+     */
+    public LongIntHashMap(int expected) {
+        this.seed = nextSeed();
+        allocate(capacityFor(expected));
+    }
+
+    /**
+     * Every map hashes with its own seed. Otherwise copying one map into
+     * another (which visits the keys in hash order) would pile them up into a
+     * single huge probe chain.
+     */
+    static long nextSeed() {
+        return SEEDS.getAndAdd(0x9E3779B97F4A7C15L);
+    }
+
+    static int capacityFor(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expected) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+        this.resizeAt = capacity * 3 / 4;
+    }
+
+    private int slot(long key) {
+        int i = BlockKey.mix(key ^ this.seed) & this.mask;
+        while (this.values[i] != 0 && this.keys[i] != key) {
+            i = (i + 1) & this.mask;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the value mapped to the key
+     *
+     * @param key the key
+     * @return the value, or 0 if there is none
+     */
+    public int get(long key) {
+        return this.values[slot(key)];
+    }
+
+    public boolean containsKey(long key) {
+        return this.values[slot(key)] != 0;
+    }
+
+    /**
+     * Maps the key to the value. Putting {@code 0} removes the key.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the previous value, or 0 if there was none
+     */
+    public int put(long key, int value) {
+        if (value == 0) {
+            return remove(key);
+        }
+        int i = slot(key);
+        int previous = this.values[i];
+        if (previous == 0) {
+            this.keys[i] = key;
+            this.values[i] = value;
+            if (++this.size > this.resizeAt) {
+                rehash(this.keys.length << 1);
+            }
+        } else {
+            this.values[i] = value;
+        }
+        return previous;
+    }
+
+    /**
+     * Adds {@code delta} to the value of the key, treating missing keys as 0.
+     * The key is removed once its value reaches 0, which makes this handy for
+     * reference counting.
+     *
+     * @param key the key
+     * @param delta the amount to add
+     * @return the new value
+     */
+    public int add(long key, int delta) {
+        int value = get(key) + delta;
+        put(key, value);
+        return value;
+    }
+
+    /**
+     * Removes the key
+     *
+     * @param key the key
+     * @return the removed value, or 0 if there was none
+     */
+    public int remove(long key) {
+        int i = slot(key);
+        int previous = this.values[i];
+        if (previous == 0) {
+            return 0;
+        }
+        this.values[i] = 0;
+        this.size--;
+        // backward-shift deletion keeps probe chains intact without tombstones
+        int j = i;
+        while (true) {
+            j = (j + 1) & this.mask;
+            if (this.values[j] == 0) {
+                break;
+            }
+            int ideal = BlockKey.mix(this.keys[j] ^ this.seed) & this.mask;
+            if (((j - ideal) & this.mask) >= ((j - i) & this.mask)) {
+                this.keys[i] = this.keys[j];
+                this.values[i] = this.values[j];
+                this.values[j] = 0;
+                i = j;
+            }
+        }
+        return previous;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Removes all entries, keeping the allocated capacity
+     */
+    public void clear() {
+        Arrays.fill(this.values, 0);
+        this.size = 0;
+    }
+
+    /**
+     * Returns a copy of all keys currently present in the map
+     *
+     * @return array of keys
+     */
+    public long[] keys() {
+        long[] result = new long[this.size];
+        int n = 0;
+        for (int i = 0; i < this.values.length; i++) {
+            if (this.values[i] != 0) {
+                result[n++] = this.keys[i];
+            }
+        }
+        return result;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = this.keys;
+        int[] oldValues = this.values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != 0) {
+                int j = slot(oldKeys[i]);
+                this.keys[j] = oldKeys[i];
+                this.values[j] = oldValues[i];
+            }
+        }
+    }
+}
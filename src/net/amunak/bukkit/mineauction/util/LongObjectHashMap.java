@@ -0,0 +1,206 @@
+package net.amunak.bukkit.mineauction.util;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An open-addressing hash map from primitive long keys to objects. Keys are
+ * never boxed.
+ *
+ * {@code null} values are not allowed - a {@code null} slot means "no entry".
+ *
+ * Not thread-safe.
+ *
+ * @param <V> type of the values
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class LongObjectHashMap<V> {
+
+    private long[] keys;
+    private Object[] values;
+    private final long seed;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    /**
+     * Constructs an empty map with the default capacity
+     */
+    public LongObjectHashMap() {
+        this(0);
+    }
+
+    /**
+     * Constructs an empty map able to hold {@code expected} entries without
+     * resizing
+     *
+     * @param expected expected number of entries
+     */
+    public LongObjectHashMap(int expected) {
+        this.seed = LongIntHashMap.nextSeed();
+        allocate(LongIntHashMap.capacityFor(expected));
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+        this.resizeAt = capacity * 3 / 4;
+    }
+
+    private int slot(long key) {
+        int i = BlockKey.mix(key ^ this.seed) & this.mask;
+        while (this.values[i] != null && this.keys[i] != key) {
+            i = (i + 1) & this.mask;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the value mapped to the key
+     *
+     * @param key the key
+     * @return the value, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        return (V) this.values[slot(key)];
+    }
+
+    public boolean containsKey(long key) {
+        return this.values[slot(key)] != null;
+    }
+
+    /**
+     * Maps the key to the value
+     *
+     * @param key the key
+     * @param value the value, must not be null
+     * @return the previous value, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null values are not supported");
+        }
+        int i = slot(key);
+        V previous = (V) this.values[i];
+        this.keys[i] = key;
+        this.values[i] = value;
+        if (previous == null && ++this.size > this.resizeAt) {
+            rehash(this.keys.length << 1);
+        }
+        return previous;
+    }
+
+    /**
+     * Removes the key
+     *
+     * @param key the key
+     * @return the removed value, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = slot(key);
+        V previous = (V) this.values[i];
+        if (previous == null) {
+            return null;
+        }
+        this.values[i] = null;
+        this.size--;
+        // backward-shift deletion keeps probe chains intact without tombstones
+        int j = i;
+        while (true) {
+            j = (j + 1) & this.mask;
+            if (this.values[j] == null) {
+                break;
+            }
+            int ideal = BlockKey.mix(this.keys[j] ^ this.seed) & this.mask;
+            if (((j - ideal) & this.mask) >= ((j - i) & this.mask)) {
+                this.keys[i] = this.keys[j];
+                this.values[i] = this.values[j];
+                this.values[j] = null;
+                i = j;
+            }
+        }
+        return previous;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Removes all entries, keeping the allocated capacity
+     */
+    public void clear() {
+        Arrays.fill(this.values, null);
+        this.size = 0;
+    }
+
+    /**
+     * Returns a copy of all keys currently present in the map
+     *
+     * @return array of keys
+     */
+    public long[] keys() {
+        long[] result = new long[this.size];
+        int n = 0;
+        for (int i = 0; i < this.values.length; i++) {
+            if (this.values[i] != null) {
+                result[n++] = this.keys[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a copy of all values currently present in the map
+     *
+     * @return list of values
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> result = new ArrayList<>(this.size);
+        for (int i = 0; i < this.values.length; i++) {
+            if (this.values[i] != null) {
+                result.add((V) this.values[i]);
+            }
+        }
+        return result;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int j = slot(oldKeys[i]);
+                this.keys[j] = oldKeys[i];
+                this.values[j] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package net.amunak.bukkit.mineauction;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import net.amunak.bukkit.mineauction.sign.SignStorage;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * Plugin instances for tests, which run without a server: the plugin is not
+ * enabled, its scheduler is not available (so database callbacks are called
+ * right on the worker threads) and it has no configuration, so subsystems
+ * have to be constructed with explicit settings.
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public final class TestPlugin {
+
+    private TestPlugin() {
+    }
+
+    /**
+     * Creates a plugin with a console log
+     *
+     * @return the plugin
+     */
+    public static MineAuction create() {
+        return create(null);
+    }
+
+    /**
+     * Creates a plugin with a console log and a data folder
+     *
+     * @param dataFolder the folder returned by {@code getDataFolder}
+     * @return the plugin
+     */
+    public static MineAuction create(File dataFolder) {
+        MineAuction plugin = allocate(MineAuction.class);
+        if (dataFolder != null) {
+            try {
+                Field field = JavaPlugin.class.getDeclaredField("dataFolder");
+                field.setAccessible(true);
+                field.set(plugin, dataFolder);
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalStateException("cannot set the data folder of the plugin", ex);
+            }
+        }
+        Log log = allocate(Log.class);
+        log.consolePrefix = "[MineAuction] ";
+        log.playerPrefix = "";
+        log.raiseFineLevel = false;
+        plugin.log = log;
+        return plugin;
+    }
+
+    /**
+     * Gives the plugin a sign storage, as enabling it with signs enabled
+     * would
+     *
+     * @param plugin the plugin
+     * @param storage the storage
+     */
+    public static void setSignsStorage(MineAuction plugin, SignStorage storage) {
+        plugin.signsStorage = storage;
+    }
+
+    /**
+     * Creates an instance without running its constructor - the plugin's
+     * constructor expects to be loaded by the server's plugin loader
+     */
+    private static <T> T allocate(Class<T> type) {
+        try {
+            Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            Method allocateInstance = unsafe.getClass().getMethod("allocateInstance", Class.class);
+            return type.cast(allocateInstance.invoke(unsafe, type));
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("cannot create a " + type.getSimpleName() + " for tests", ex);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package net.amunak.bukkit.mineauction.actions;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Compares the binary item format with the YAML serialization items were
+ * stored in before and with Java serialization, on an enchanted sword with
+ * a display name and lore. All three work on the same data: the map Bukkit
+ * serializes the stack to (YAML, Java) and the fields it is made of
+ * (binary). Sizes are printed once per fork.
+ *
+ * Run with: ant bench -Dbench.args="ItemCodecBenchmark"
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ItemCodecBenchmark {
+
+    protected final static Charset UTF8 = Charset.forName("UTF-8");
+    protected Map<Integer, Integer> enchantments;
+    protected List<String> lore;
+    protected Map<String, Object> serialized;
+    protected Yaml yaml;
+    protected byte[] binary;
+    protected String yamlText;
+    protected byte[] javaBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.enchantments = new LinkedHashMap<>();
+        this.enchantments.put(16, 5);
+        this.enchantments.put(20, 2);
+        this.lore = Arrays.asList("Forged in the nether", "§7Sharp");
+        this.serialized = new LinkedHashMap<>();
+        this.serialized.put("type", "DIAMOND_SWORD");
+        this.serialized.put("damage", (short) 12);
+        this.serialized.put("meta", TestItems.namedSwordMeta());
+        this.yaml = new Yaml();
+        this.binary = this.binaryEncode();
+        this.yamlText = this.yamlEncode();
+        this.javaBytes = this.javaEncode();
+        System.out.println("size: binary " + this.binary.length + " B, yaml " + this.yamlText.getBytes(UTF8).length
+                + " B, java serialization " + this.javaBytes.length + " B");
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return TestItems.encode(276, 1, (short) 12, this.enchantments, "§6Excalibur", this.lore, null);
+    }
+
+    @Benchmark
+    public Object binaryDecode() {
+        EncodedItem item = new EncodedItem(this.binary);
+        item.getEnchantments();
+        return item.getLore();
+    }
+
+    /**
+     * What the order books and the web interface mostly need - the rest is
+     * decoded lazily
+     */
+    @Benchmark
+    public int binaryDecodeHeader() {
+        return new EncodedItem(this.binary).getMaterialId();
+    }
+
+    @Benchmark
+    public String yamlEncode() {
+        return this.yaml.dump(this.serialized);
+    }
+
+    @Benchmark
+    public Object yamlDecode() {
+        return this.yaml.load(this.yamlText);
+    }
+
+    @Benchmark
+    public byte[] javaEncode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(this.serialized);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Object javaDecode() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(this.javaBytes))) {
+            return in.readObject();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package net.amunak.bukkit.mineauction.actions;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Round trip property tests of the binary item format: random values and
+ * items are encoded and must decode to the same thing, and damaged data must
+ * be rejected with an IllegalArgumentException only
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class ItemCodecTest {
+
+    protected final static int ROUNDS = 20000;
+
+    @Test
+    public void valuesSurviveTheRoundTrip() {
+        TestItems items = new TestItems(42);
+        for (int i = 0; i < ROUNDS; i++) {
+            Object value = items.value(0);
+            int number = items.random.nextInt();
+            long bigNumber = items.random.nextLong();
+            ItemCodec.Writer out = new ItemCodec.Writer(4);
+            out.writeValue(value, 0);
+            out.writeSignedVarInt(number);
+            out.writeVarLong(bigNumber);
+            out.writeVarInt(number);
+            ItemCodec.Reader in = new ItemCodec.Reader(out.toByteArray(), 0);
+            assertEquals(value, in.readValue(0));
+            assertEquals(number, in.readSignedVarInt());
+            assertEquals(bigNumber, in.readVarLong());
+            assertEquals(number, in.readVarInt());
+            assertEquals(out.length, in.position);
+        }
+    }
+
+    @Test
+    public void itemsSurviveTheRoundTrip() {
+        TestItems items = new TestItems(7);
+        for (int i = 0; i < ROUNDS; i++) {
+            int material = items.random.nextInt(4096);
+            int amount = 1 + items.random.nextInt(64);
+            short durability = (short) items.random.nextInt();
+            Map<Integer, Integer> enchantments = items.enchantments();
+            String name = items.random.nextBoolean() ? items.string() : null;
+            List<String> lore = items.random.nextBoolean() ? items.lore() : null;
+            Map<String, Object> meta = items.random.nextBoolean() ? items.map(0) : null;
+            byte[] data = TestItems.encode(material, amount, durability, enchantments, name, lore, meta);
+
+            EncodedItem item = new EncodedItem(data);
+            assertEquals(material, item.getMaterialId());
+            assertEquals(amount, item.getAmount());
+            assertEquals(durability, item.getDurability());
+            assertEquals(enchantments, item.getEnchantments());
+            assertEquals(name, item.getDisplayName());
+            assertEquals(lore == null ? Collections.<String>emptyList() : lore, item.getLore());
+            assertEquals(meta != null, item.hasOtherMeta());
+
+            // the meta hash ignores the amount, and only the amount
+            byte[] more = TestItems.encode(material, amount + 1, durability, enchantments, name, lore, meta);
+            assertEquals(item.getMetaHash(), new EncodedItem(more).getMetaHash());
+            if (!enchantments.isEmpty() || name != null || lore != null || meta != null) {
+                assertNotEquals(0, item.getMetaHash());
+            }
+        }
+    }
+
+    @Test
+    public void fieldsAreReadInAnyOrder() {
+        byte[] data = TestItems.encode(276, 1, (short) 12, Collections.singletonMap(16, 5), "§6Excalibur",
+                Arrays.asList("Forged in the nether"), TestItems.namedSwordMeta());
+        EncodedItem item = new EncodedItem(data);
+        assertEquals(Arrays.asList("Forged in the nether"), item.getLore());
+        assertEquals("§6Excalibur", item.getDisplayName());
+        assertEquals(Collections.singletonMap(16, 5), item.getEnchantments());
+        assertEquals(276, item.getMaterialId());
+    }
+
+    @Test
+    public void plainStacksSurviveTheRoundTrip() {
+        for (Material material : Material.values()) {
+            ItemStack stack = new ItemStack(material, 1 + material.ordinal() % 64, (short) (material.ordinal() % 16));
+            byte[] data = ItemSerializer.serialize(stack);
+            assertTrue(ItemCodec.isEncoded(data));
+            assertEquals(0, new EncodedItem(data).getMetaHash());
+            ItemStack decoded = ItemSerializer.deserialize(data);
+            assertEquals(material, decoded.getType());
+            assertEquals(stack.getAmount(), decoded.getAmount());
+            assertEquals(stack.getDurability(), decoded.getDurability());
+        }
+    }
+
+    @Test
+    public void damagedDataIsRejected() {
+        TestItems items = new TestItems(3);
+        for (int i = 0; i < ROUNDS; i++) {
+            byte[] data = TestItems.encode(items.random.nextInt(4096), 1, (short) 0, items.enchantments(),
+                    items.string(), items.lore(), items.map(0));
+            byte[] damaged = Arrays.copyOf(data, 2 + items.random.nextInt(data.length - 2));
+            if (damaged.length > 2 && items.random.nextBoolean()) {
+                damaged[2 + items.random.nextInt(damaged.length - 2)] ^= (byte) (1 + items.random.nextInt(255));
+            }
+            try {
+                EncodedItem item = new EncodedItem(damaged);
+                item.getLore();
+                item.getMetaHash();
+            } catch (IllegalArgumentException ex) {
+                // expected, anything else is a bug
+            }
+        }
+    }
+
+    @Test
+    public void otherFormatsAreNotTakenForEncodedItems() {
+        byte[] yaml = "item:\n  ==: org.bukkit.inventory.ItemStack\n  type: STONE\n".getBytes(Charset.forName("UTF-8"));
+        assertFalse(ItemCodec.isEncoded(yaml));
+        assertFalse(ItemCodec.isEncoded(new byte[]{ItemCodec.MAGIC}));
+        assertFalse(ItemCodec.isEncoded(null));
+        try {
+            new EncodedItem(new byte[]{ItemCodec.MAGIC, ItemCodec.VERSION + 1, 1, 1, 0, 0});
+            fail("read an unknown format version");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package net.amunak.bukkit.mineauction.actions;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Random items and meta values for the codec tests and benchmarks, built
+ * with the codec's own writer so no server is needed for item meta
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class TestItems {
+
+    protected final Random random;
+
+    public TestItems(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Encodes a stack in the {@link ItemCodec} format
+     *
+     * @param material material id
+     * @param amount amount
+     * @param durability durability
+     * @param enchantments enchantment ids mapped to levels
+     * @param name display name, may be null
+     * @param lore lore lines, may be null
+     * @param meta other meta, may be null
+     * @return the encoded stack
+     */
+    public static byte[] encode(int material, int amount, short durability, Map<Integer, Integer> enchantments,
+            String name, List<String> lore, Map<String, Object> meta) {
+        int flags = (enchantments.isEmpty() ? 0 : ItemCodec.HAS_ENCHANTMENTS)
+                | (name == null ? 0 : ItemCodec.HAS_NAME)
+                | (lore == null ? 0 : ItemCodec.HAS_LORE)
+                | (meta == null ? 0 : ItemCodec.HAS_META);
+        ItemCodec.Writer out = new ItemCodec.Writer(16);
+        out.writeByte(ItemCodec.MAGIC);
+        out.writeByte(ItemCodec.VERSION);
+        out.writeVarInt(material);
+        out.writeVarInt(amount);
+        out.writeSignedVarInt(durability);
+        out.writeVarInt(flags);
+        if (!enchantments.isEmpty()) {
+            out.writeVarInt(enchantments.size());
+            for (Map.Entry<Integer, Integer> enchantment : enchantments.entrySet()) {
+                out.writeVarInt(enchantment.getKey());
+                out.writeVarInt(enchantment.getValue());
+            }
+        }
+        if (name != null) {
+            out.writeString(name);
+        }
+        if (lore != null) {
+            out.writeVarInt(lore.size());
+            for (String line : lore) {
+                out.writeString(line);
+            }
+        }
+        if (meta != null) {
+            ItemCodec.Writer metaOut = new ItemCodec.Writer(64);
+            metaOut.writeValue(meta, 0);
+            out.writeVarInt(metaOut.length);
+            out.writeBytes(metaOut.buffer, 0, metaOut.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns an enchanted, named sword with lore - a typical valuable item
+     *
+     * @return the serialized meta of the sword, as Bukkit would write it
+     */
+    public static Map<String, Object> namedSwordMeta() {
+        Map<String, Object> meta = new LinkedHashMap<>();
+        meta.put("meta-type", "UNSPECIFIC");
+        meta.put("display-name", "§6Excalibur");
+        meta.put("lore", Arrays.asList("Forged in the nether", "§7Sharp"));
+        Map<String, Object> enchantments = new LinkedHashMap<>();
+        enchantments.put("DAMAGE_ALL", 5);
+        enchantments.put("FIRE_ASPECT", 2);
+        meta.put("enchants", enchantments);
+        return meta;
+    }
+
+    public String string() {
+        char[] chars = new char[this.random.nextInt(20)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (this.random.nextInt(3) == 0 ? 0x100 + this.random.nextInt(0x7000) : 32 + this.random.nextInt(90));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns a random value of any of the types meta may contain
+     *
+     * @param depth nesting depth, lists and maps get rarer with it
+     * @return the value
+     */
+    public Object value(int depth) {
+        switch (this.random.nextInt(depth > 3 ? 9 : 11)) {
+            case 0:
+                return null;
+            case 1:
+                return this.string();
+            case 2:
+                return this.random.nextInt();
+            case 3:
+                return this.random.nextLong();
+            case 4:
+                return (short) this.random.nextInt();
+            case 5:
+                return (byte) this.random.nextInt();
+            case 6:
+                return this.random.nextDouble() * 1e6 - 5e5;
+            case 7:
+                return this.random.nextFloat();
+            case 8:
+                return this.random.nextBoolean();
+            case 9:
+                List<Object> list = new ArrayList<>();
+                for (int i = this.random.nextInt(5); i > 0; i--) {
+                    list.add(this.value(depth + 1));
+                }
+                return list;
+            default:
+                return this.map(depth + 1);
+        }
+    }
+
+    public Map<String, Object> map(int depth) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = this.random.nextInt(5); i > 0; i--) {
+            map.put("k" + this.random.nextInt(100), this.value(depth + 1));
+        }
+        return map;
+    }
+
+    public Map<Integer, Integer> enchantments() {
+        Map<Integer, Integer> enchantments = new LinkedHashMap<>();
+        for (int i = this.random.nextInt(4); i > 0; i--) {
+            enchantments.put(this.random.nextInt(70), 1 + this.random.nextInt(10));
+        }
+        return enchantments;
+    }
+
+    public List<String> lore() {
+        List<String> lore = new ArrayList<>();
+        for (int i = this.random.nextInt(4); i > 0; i--) {
+            lore.add(this.string());
+        }
+        return lore;
+    }
+}
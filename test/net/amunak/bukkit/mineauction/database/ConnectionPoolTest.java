@@ -0,0 +1,188 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import net.amunak.bukkit.mineauction.TestPlugin;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the connection pool against an SQLite database file
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class ConnectionPoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    protected TestBackend backend;
+    protected ConnectionPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        this.backend = new TestBackend(this.folder.newFile("pool.db"));
+    }
+
+    @After
+    public void tearDown() {
+        if (this.pool != null) {
+            this.pool.close();
+        }
+    }
+
+    protected ConnectionPool start(int minSize, int maxSize, long idleTimeout, long leakDetectionThreshold) throws SQLException {
+        this.pool = new ConnectionPool(TestPlugin.create(), this.backend, minSize, maxSize, idleTimeout, 300, 1, leakDetectionThreshold);
+        this.pool.start();
+        return this.pool;
+    }
+
+    protected static int count(Connection connection, String table) throws SQLException {
+        try (Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            result.next();
+            return result.getInt(1);
+        }
+    }
+
+    @Test
+    public void opensTheMinimalNumberOfConnections() throws Exception {
+        start(2, 4, 60000, 0);
+        assertEquals(2, this.pool.getIdleCount());
+        assertEquals(2, this.backend.getOpenedCount());
+    }
+
+    @Test
+    public void growsUpToTheMaximalSizeAndThenTimesOut() throws Exception {
+        start(1, 2, 60000, 0);
+        Connection first = this.pool.getConnection();
+        Connection second = this.pool.getConnection();
+        assertEquals(2, this.pool.getActiveCount());
+        long started = System.currentTimeMillis();
+        try {
+            this.pool.getConnection();
+            fail("borrowed more than the maximal number of connections");
+        } catch (SQLTimeoutException ex) {
+            assertTrue(System.currentTimeMillis() - started >= 250);
+        }
+        first.close();
+        Connection third = this.pool.getConnection();
+        assertEquals(2, this.backend.getOpenedCount());
+        third.close();
+        second.close();
+    }
+
+    @Test
+    public void closingReturnsTheConnectionOnlyOnce() throws Exception {
+        start(1, 2, 60000, 0);
+        Connection connection = this.pool.getConnection();
+        connection.close();
+        connection.close();
+        assertEquals(0, this.pool.getActiveCount());
+        assertEquals(1, this.pool.getIdleCount());
+        try {
+            connection.createStatement();
+            fail("a returned connection can still be used");
+        } catch (SQLException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void uncommittedWorkIsRolledBackOnReturn() throws Exception {
+        start(1, 1, 60000, 0);
+        try (Connection connection = this.pool.getConnection();
+                Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE t (x INTEGER)");
+            connection.setAutoCommit(false);
+            statement.execute("INSERT INTO t VALUES (1)");
+        }
+        try (Connection connection = this.pool.getConnection()) {
+            assertTrue(connection.getAutoCommit());
+            assertEquals(0, count(connection, "t"));
+        }
+    }
+
+    @Test
+    public void replacesConnectionsDroppedByTheServer() throws Exception {
+        start(2, 2, 60000, 0);
+        this.backend.dropConnections();
+        Thread.sleep(ConnectionPool.VALIDATION_BYPASS + 100);
+        try (Connection connection = this.pool.getConnection();
+                Statement statement = connection.createStatement()) {
+            assertTrue(statement.execute("SELECT 1"));
+        }
+        assertEquals(3, this.backend.getOpenedCount());
+        assertTrue(this.pool.getStatistics().contains("discarded: 2"));
+    }
+
+    @Test
+    public void discardsAbortedConnections() throws Exception {
+        start(1, 1, 60000, 0);
+        Connection connection = this.pool.getConnection();
+        try {
+            connection.abort(null);
+        } catch (SQLException | AbstractMethodError ex) {
+            // older drivers don't implement abort, the pool must not care
+        }
+        connection.close();
+        assertEquals(0, this.pool.getIdleCount());
+        try (Connection replacement = this.pool.getConnection()) {
+            assertEquals(0, count(replacement, "sqlite_master"));
+        }
+        assertEquals(2, this.backend.getOpenedCount());
+    }
+
+    @Test
+    public void evictsIdleConnectionsDownToTheMinimalSize() throws Exception {
+        start(1, 3, 200, 0);
+        Connection a = this.pool.getConnection();
+        Connection b = this.pool.getConnection();
+        Connection c = this.pool.getConnection();
+        a.close();
+        b.close();
+        c.close();
+        assertEquals(3, this.pool.getIdleCount());
+        // housekeeping runs once a second at most
+        Thread.sleep(2500);
+        assertEquals(1, this.pool.getIdleCount());
+    }
+
+    @Test
+    public void reportsLeakedConnections() throws Exception {
+        start(1, 2, 60000, 100);
+        Connection leaked = this.pool.getConnection();
+        Thread.sleep(2500);
+        assertTrue(this.pool.getStatistics(), this.pool.getStatistics().contains("leaks: 1"));
+        leaked.close();
+    }
+
+    @Test(expected = SQLException.class)
+    public void refusesConnectionsOnceClosed() throws Exception {
+        start(1, 1, 60000, 0);
+        this.pool.close();
+        this.pool.getConnection();
+    }
+}
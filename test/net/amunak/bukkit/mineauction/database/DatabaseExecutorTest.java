@@ -0,0 +1,165 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import net.amunak.bukkit.mineauction.TestPlugin;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the database executor against an SQLite database file
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class DatabaseExecutorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    protected ConnectionPool pool;
+    protected DatabaseExecutor executor;
+
+    @Before
+    public void setUp() throws Exception {
+        this.pool = new ConnectionPool(TestPlugin.create(), new TestBackend(this.folder.newFile("executor.db")), 1, 2, 60000, 1000, 1, 0);
+        this.pool.start();
+        this.executor = new DatabaseExecutor(TestPlugin.create(), this.pool, 1, 1, 0);
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdown(1000);
+        this.pool.close();
+    }
+
+    /**
+     * Collects the outcomes of queries, whichever thread they are delivered on
+     */
+    protected static class Outcomes<T> implements DatabaseExecutor.Callback<T> {
+
+        protected final BlockingQueue<Object> outcomes = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onSuccess(T result) {
+            this.outcomes.add(result);
+        }
+
+        @Override
+        public void onFailure(Throwable error) {
+            this.outcomes.add(error);
+        }
+
+        protected Object next() throws InterruptedException {
+            Object outcome = this.outcomes.poll(5, TimeUnit.SECONDS);
+            assertNotNull("no outcome delivered", outcome);
+            return outcome;
+        }
+    }
+
+    protected static DatabaseExecutor.Query<Integer> select(final int value) {
+        return new DatabaseExecutor.Query<Integer>() {
+            @Override
+            public Integer execute(Connection connection) throws SQLException {
+                try (Statement statement = connection.createStatement();
+                        ResultSet result = statement.executeQuery("SELECT " + value)) {
+                    result.next();
+                    return result.getInt(1);
+                }
+            }
+        };
+    }
+
+    protected static DatabaseExecutor.Query<Integer> await(final CountDownLatch latch) {
+        return new DatabaseExecutor.Query<Integer>() {
+            @Override
+            public Integer execute(Connection connection) throws SQLException {
+                try {
+                    latch.await();
+                } catch (InterruptedException ex) {
+                    throw new SQLException("interrupted", ex);
+                }
+                return 0;
+            }
+        };
+    }
+
+    @Test
+    public void deliversResults() throws Exception {
+        Outcomes<Integer> outcomes = new Outcomes<>();
+        assertTrue(this.executor.submit(select(42), outcomes));
+        assertEquals(42, outcomes.next());
+    }
+
+    @Test
+    public void deliversErrors() throws Exception {
+        Outcomes<Integer> outcomes = new Outcomes<>();
+        assertTrue(this.executor.submit(new DatabaseExecutor.Query<Integer>() {
+            @Override
+            public Integer execute(Connection connection) throws SQLException {
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeQuery("SELECT * FROM missing");
+                }
+                return 0;
+            }
+        }, outcomes));
+        assertTrue(outcomes.next() instanceof SQLException);
+        assertEquals(0, this.pool.getActiveCount());
+    }
+
+    @Test
+    public void rejectsQueriesWhenTheQueueIsFull() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        Outcomes<Integer> outcomes = new Outcomes<>();
+        assertTrue(this.executor.submit(await(latch), outcomes));
+        // wait for the worker to take it, so the queue is empty
+        while (this.executor.getQueueDepth() > 0) {
+            Thread.sleep(10);
+        }
+        assertTrue(this.executor.submit(select(1), outcomes));
+        assertFalse(this.executor.submit(select(2), outcomes));
+        latch.countDown();
+        assertEquals(0, outcomes.next());
+        assertEquals(1, outcomes.next());
+        assertTrue(this.executor.getStatistics().contains("rejected: 1"));
+    }
+
+    @Test
+    public void timedOutQueriesFailWithAnUnknownOutcome() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        Outcomes<Integer> outcomes = new Outcomes<>();
+        assertTrue(this.executor.submit(await(latch), 200, outcomes));
+        assertTrue(outcomes.next() instanceof UnknownOutcomeException);
+        latch.countDown();
+        // the worker was interrupted, its late outcome must not be delivered
+        assertNull(outcomes.outcomes.poll(500, TimeUnit.MILLISECONDS));
+        assertTrue(this.executor.getStatistics().contains("timed out: 1"));
+        Outcomes<Integer> next = new Outcomes<>();
+        assertTrue(this.executor.submit(select(7), next));
+        assertEquals(7, next.next());
+    }
+}
@@ -0,0 +1,280 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import net.amunak.bukkit.mineauction.TestPlugin;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the schema migrations and the statement cache against an SQLite
+ * database file
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class SchemaManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    protected TestBackend backend;
+    protected ConnectionPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        this.backend = new TestBackend(this.folder.newFile("schema.db"));
+        this.pool = new ConnectionPool(TestPlugin.create(), this.backend, 1, 1, 60000, 1000, 1, 0);
+        this.pool.start();
+    }
+
+    @After
+    public void tearDown() {
+        this.pool.close();
+    }
+
+    protected SchemaManager migrated(String prefix) throws SQLException {
+        SchemaManager schema = new SchemaManager(TestPlugin.create(), this.pool, prefix);
+        assertEquals(SchemaManager.getLatestVersion(), schema.migrate());
+        return schema;
+    }
+
+    protected boolean hasTable(String table) throws SQLException {
+        try (Connection connection = this.pool.getConnection();
+                PreparedStatement statement = connection.prepareStatement("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?")) {
+            statement.setString(1, table);
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next();
+            }
+        }
+    }
+
+    @Test
+    public void createsThePrefixedTables() throws Exception {
+        migrated("test_");
+        for (String table : Arrays.asList("items", "listings", "bids", "transactions", "schema_version")) {
+            assertTrue(table, hasTable("test_" + table));
+            assertFalse(table, hasTable("ma_" + table));
+        }
+    }
+
+    @Test
+    public void migratesOnlyOnce() throws Exception {
+        migrated("ma_");
+        SchemaManager schema = migrated("ma_");
+        try (Connection connection = this.pool.getConnection();
+                Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery(schema.compile("SELECT COUNT(*) FROM {prefix}schema_version"))) {
+            result.next();
+            assertEquals(SchemaManager.getLatestVersion(), result.getInt(1));
+            assertEquals(SchemaManager.getLatestVersion(), schema.getVersion(connection));
+        }
+    }
+
+    @Test
+    public void keepsSchemasWithDifferentPrefixesApart() throws Exception {
+        migrated("a_");
+        migrated("b_");
+        assertTrue(hasTable("a_items"));
+        assertTrue(hasTable("b_items"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPrefixesThatAreNotIdentifiers() throws Exception {
+        new SchemaManager(TestPlugin.create(), this.pool, "ma_; DROP TABLE ma_items; --");
+    }
+
+    @Test
+    public void allStatementsFitTheSchema() throws Exception {
+        SchemaManager schema = migrated("ma_");
+        try (Connection connection = this.pool.getConnection()) {
+            for (SqlStatement statement : SqlStatement.values()) {
+                assertFalse(statement.name(), schema.getSql(statement).contains("{"));
+                try {
+                    schema.prepare(connection, statement);
+                } catch (SQLException ex) {
+                    throw new AssertionError(statement.name() + ": " + ex.getMessage(), ex);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void statementsArePreparedOncePerConnection() throws Exception {
+        SchemaManager schema = migrated("ma_");
+        PreparedStatement first;
+        try (Connection connection = this.pool.getConnection()) {
+            first = schema.prepare(connection, SqlStatement.ITEMS_PAGE);
+            assertSame(first, schema.prepare(connection, SqlStatement.ITEMS_PAGE));
+        }
+        // the pool has a single connection, which keeps its statements
+        try (Connection connection = this.pool.getConnection()) {
+            assertSame(first, schema.prepare(connection, SqlStatement.ITEMS_PAGE));
+        }
+    }
+
+    @Test
+    public void keepsConnectionsWhoseStatementsFailedOnTheirOwn() throws Exception {
+        SchemaManager schema = migrated("ma_");
+        try (Connection connection = this.pool.getConnection()) {
+            PreparedStatement statement = schema.prepare(connection, SqlStatement.FILL_INSERT);
+            statement.setString(1, "duplicate");
+            statement.executeUpdate();
+            try {
+                statement.setString(1, "duplicate");
+                statement.executeUpdate();
+                fail("inserted a duplicate key");
+            } catch (SQLException ex) {
+                // expected
+            }
+            // the failed statement was replaced, the connection still works
+            statement = schema.prepare(connection, SqlStatement.FILL_INSERT);
+            statement.setString(1, "fresh");
+            assertEquals(1, statement.executeUpdate());
+            try {
+                statement.setString(1, "duplicate");
+                statement.addBatch();
+                statement.executeBatch();
+                fail("inserted a duplicate key");
+            } catch (SQLException ex) {
+                // expected
+            }
+            statement = schema.prepare(connection, SqlStatement.FILL_INSERT);
+            statement.setString(1, "fresh too");
+            assertEquals(1, statement.executeUpdate());
+        }
+        assertEquals(1, this.pool.getIdleCount());
+        assertEquals(1, this.backend.getOpenedCount());
+        try (Connection connection = this.pool.getConnection()) {
+            PreparedStatement statement = schema.prepare(connection, SqlStatement.FILL_INSERT);
+            statement.setString(1, "again");
+            assertEquals(1, statement.executeUpdate());
+            assertEquals(1, count(connection, schema, "SELECT COUNT(*) FROM {prefix}fills WHERE id = 'fresh'"));
+        }
+        assertEquals(1, this.backend.getOpenedCount());
+    }
+
+    @Test
+    public void statementsAreHandedOutEmpty() throws Exception {
+        SchemaManager schema = migrated("ma_");
+        try (Connection connection = this.pool.getConnection()) {
+            PreparedStatement statement = schema.prepare(connection, SqlStatement.FILL_INSERT);
+            statement.setString(1, "left over");
+            statement.addBatch();
+        }
+        try (Connection connection = this.pool.getConnection()) {
+            PreparedStatement statement = schema.prepare(connection, SqlStatement.FILL_INSERT);
+            statement.setString(1, "own");
+            statement.addBatch();
+            assertEquals(1, statement.executeBatch().length);
+            assertEquals(1, count(connection, schema, "SELECT COUNT(*) FROM {prefix}fills"));
+            assertEquals(0, count(connection, schema, "SELECT COUNT(*) FROM {prefix}fills WHERE id = 'left over'"));
+        }
+    }
+
+    protected static int count(Connection connection, SchemaManager schema, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery(schema.compile(sql))) {
+            result.next();
+            return result.getInt(1);
+        }
+    }
+
+    @Test
+    public void discardsConnectionsWhoseStatementsFailedWithTheConnection() throws Exception {
+        SchemaManager schema = migrated("ma_");
+        try (Connection connection = this.pool.getConnection()) {
+            PreparedStatement statement = schema.prepare(connection, SqlStatement.FILL_EXISTS);
+            this.backend.dropConnections();
+            try {
+                statement.setString(1, "any");
+                statement.executeQuery().close();
+                fail("used a statement of a closed connection");
+            } catch (SQLException ex) {
+                // expected
+            }
+        }
+        assertEquals(0, this.pool.getIdleCount());
+        try (Connection connection = this.pool.getConnection()) {
+            assertEquals(SchemaManager.getLatestVersion(), schema.getVersion(connection));
+        }
+        assertEquals(2, this.backend.getOpenedCount());
+    }
+
+    @Test
+    public void storesPagesAndDeletesItems() throws Exception {
+        ItemDao dao = new ItemDao(migrated("ma_"));
+        try (Connection connection = this.pool.getConnection()) {
+            List<StoredItem> items = Arrays.asList(
+                    new StoredItem(1, 64, new byte[]{1}),
+                    new StoredItem(4, 32, new byte[]{2}),
+                    new StoredItem(276, 1, new byte[]{3}));
+            long[] ids = dao.insertAll(connection, "alice", items);
+            dao.insertAll(connection, "bob", items);
+            assertEquals(3, ids.length);
+            assertTrue(ids[0] < ids[1] && ids[1] < ids[2]);
+
+            List<StoredItem> page = dao.page(connection, "alice", 0, 2);
+            assertEquals(2, page.size());
+            assertEquals(ids[0], page.get(0).id);
+            assertEquals(64, page.get(0).amount);
+            assertArrayEquals(new byte[]{2}, page.get(1).data);
+            page = dao.page(connection, "alice", page.get(1).id, 2);
+            assertEquals(1, page.size());
+            assertEquals(276, page.get(0).material);
+
+            assertFalse(dao.delete(connection, "bob", ids[0]));
+            assertTrue(dao.delete(connection, "alice", ids[0]));
+            assertFalse(dao.delete(connection, "alice", ids[0]));
+            assertEquals(2, dao.delete(connection, "alice", dao.page(connection, "alice", 0, 10)));
+            assertTrue(dao.page(connection, "alice", 0, 10).isEmpty());
+            assertEquals(3, dao.page(connection, "bob", 0, 10).size());
+        }
+    }
+
+    @Test
+    public void bumpsVersionsOfNewAndExistingPlayers() throws Exception {
+        SchemaManager schema = migrated("ma_");
+        ItemDao dao = new ItemDao(schema);
+        try (Connection connection = this.pool.getConnection()) {
+            assertEquals(0, dao.getVersion(connection, "alice"));
+            dao.bumpVersion(connection, "alice");
+            assertEquals(1, dao.getVersion(connection, "alice"));
+            dao.bumpVersion(connection, "alice");
+            assertEquals(2, dao.getVersion(connection, "alice"));
+
+            // creating a row that exists already doesn't fail the transaction
+            connection.setAutoCommit(false);
+            PreparedStatement insert = schema.prepare(connection, SqlStatement.PLAYER_INSERT);
+            insert.setString(1, "alice");
+            assertEquals(0, insert.executeUpdate());
+            dao.bumpVersion(connection, "bob");
+            connection.commit();
+            assertEquals(2, dao.getVersion(connection, "alice"));
+            assertEquals(1, dao.getVersion(connection, "bob"));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An SQLite database file for tests, which keeps the physical connections it
+ * opened so tests can break them behind the pool's back
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class TestBackend extends SqliteBackend {
+
+    protected final List<Connection> opened = new CopyOnWriteArrayList<>();
+
+    public TestBackend(File file) {
+        super(file, 5000);
+    }
+
+    @Override
+    public Connection connect() throws SQLException {
+        Connection connection = super.connect();
+        this.opened.add(connection);
+        return connection;
+    }
+
+    /**
+     * Closes all physical connections opened so far, like a database server
+     * dropping its clients
+     *
+     * @throws SQLException if a connection cannot be closed
+     */
+    public void dropConnections() throws SQLException {
+        for (Connection connection : this.opened) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Returns the number of physical connections opened so far
+     *
+     * @return number of connections
+     */
+    public int getOpenedCount() {
+        return this.opened.size();
+    }
+}
@@ -0,0 +1,128 @@
+package net.amunak.bukkit.mineauction.database;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import net.amunak.bukkit.mineauction.MineAuction;
+import net.amunak.bukkit.mineauction.TestPlugin;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of applying logged transfers to an SQLite database file
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class TransferLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    protected ConnectionPool pool;
+    protected SchemaManager schema;
+    protected DatabaseExecutor executor;
+    protected TransferLog log;
+    protected File dataFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        this.dataFolder = this.folder.newFolder("plugin");
+        MineAuction plugin = TestPlugin.create(this.dataFolder);
+        this.pool = new ConnectionPool(plugin, new TestBackend(this.folder.newFile("transfers.db")), 1, 1, 60000, 1000, 1, 0);
+        this.pool.start();
+        this.schema = new SchemaManager(plugin, this.pool, "ma_");
+        this.schema.migrate();
+        this.executor = new DatabaseExecutor(plugin, this.pool, 1, 1, 0);
+        this.log = new TransferLog(plugin, this.pool, this.schema, this.executor, new YamlConfiguration());
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdown(1000);
+        this.pool.close();
+    }
+
+    protected static Transfer deposit(String player, byte[] data) {
+        return Transfer.deposit(player, Collections.singletonList(new StoredItem(1, 64, data)));
+    }
+
+    protected int count(String sql) throws SQLException {
+        try (Connection connection = this.pool.getConnection();
+                Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery(this.schema.compile(sql))) {
+            result.next();
+            return result.getInt(1);
+        }
+    }
+
+    @Test
+    public void appliesGroupsInOneGo() throws Exception {
+        try (Connection connection = this.pool.getConnection()) {
+            this.log.applyIsolating(connection, Arrays.asList(deposit("alice", new byte[]{1}), deposit("bob", new byte[]{2})));
+        }
+        assertEquals(2, this.log.applied.get());
+        assertEquals(0, this.log.dead.get());
+        assertEquals(2, count("SELECT COUNT(*) FROM {prefix}items"));
+        assertEquals(2, count("SELECT COUNT(*) FROM {prefix}transfers"));
+    }
+
+    @Test
+    public void badTransfersDoNotTakeOthersDown() throws Exception {
+        List<Transfer> batch = Arrays.asList(deposit("alice", new byte[]{1}), deposit("bob", null), deposit("carol", new byte[]{3}));
+        try (Connection connection = this.pool.getConnection()) {
+            this.log.applyIsolating(connection, batch);
+        }
+        assertEquals(2, this.log.applied.get());
+        assertEquals(1, this.log.dead.get());
+        assertTrue(this.log.deadIds.contains(batch.get(1).id));
+        assertTrue(new File(this.dataFolder, TransferLog.DEAD_FILENAME).length() > 0);
+        assertEquals(2, count("SELECT COUNT(*) FROM {prefix}items"));
+        assertEquals(0, count("SELECT COUNT(*) FROM {prefix}items WHERE player = 'bob'"));
+        assertEquals(2, count("SELECT COUNT(*) FROM {prefix}transfers"));
+
+        // the connection stays usable for the transfers behind them
+        try (Connection connection = this.pool.getConnection()) {
+            this.log.applyIsolating(connection, Collections.singletonList(deposit("dave", new byte[]{4})));
+        }
+        assertEquals(3, this.log.applied.get());
+        assertEquals(1, this.log.dead.get());
+        assertEquals(3, count("SELECT COUNT(*) FROM {prefix}transfers"));
+    }
+
+    @Test
+    public void appliedTransfersAreSkipped() throws Exception {
+        Transfer transfer = deposit("alice", new byte[]{1});
+        try (Connection connection = this.pool.getConnection()) {
+            this.log.applyIsolating(connection, Collections.singletonList(transfer));
+            this.log.applyIsolating(connection, Collections.singletonList(transfer));
+        }
+        assertEquals(1, this.log.applied.get());
+        assertEquals(1, this.log.skipped.get());
+        assertEquals(1, count("SELECT COUNT(*) FROM {prefix}items"));
+    }
+}
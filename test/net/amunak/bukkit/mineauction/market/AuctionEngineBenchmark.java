@@ -0,0 +1,95 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the engine with many open orders: bids and asks of a few
+ * hundred items rest in the books without crossing, and each operation
+ * either places and cancels an order that doesn't trade, or places an order
+ * that trades with the best one of the opposite side and then puts the
+ * traded items back, so the books stay the same size.
+ *
+ * Run with: ant bench -Dbench.args="AuctionEngineBenchmark"
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuctionEngineBenchmark {
+
+    protected final static int MATERIALS = 500;
+    @Param({"100000"})
+    protected int orders;
+    protected AuctionEngine engine;
+    protected Random random;
+    protected long nextId;
+
+    @Setup
+    public void setUp() {
+        this.engine = new AuctionEngine();
+        this.random = new Random(42);
+        this.nextId = 1;
+        for (int i = 0; i < this.orders; i++) {
+            boolean buy = this.random.nextBoolean();
+            // bids below 1000, asks from 1000 up
+            long price = buy ? 500 + this.random.nextInt(500) : 1000 + this.random.nextInt(500);
+            this.engine.submit(new Order(this.nextId++, "player", buy ? Order.Side.BUY : Order.Side.SELL,
+                    1 + this.random.nextInt(MATERIALS), 1 + this.random.nextInt(64), price, 0, null, 0));
+        }
+    }
+
+    @Benchmark
+    public Order placeAndCancel() {
+        boolean buy = this.random.nextBoolean();
+        long price = buy ? 500 + this.random.nextInt(500) : 1000 + this.random.nextInt(500);
+        Order order = new Order(this.nextId++, "player", buy ? Order.Side.BUY : Order.Side.SELL,
+                1 + this.random.nextInt(MATERIALS), 1 + this.random.nextInt(64), price, 0, null, 0);
+        this.engine.submit(order);
+        return this.engine.cancel(order.id, Order.Status.CANCELLED);
+    }
+
+    @Benchmark
+    public List<Fill> trade() {
+        int material = 1 + this.random.nextInt(MATERIALS);
+        boolean buy = this.random.nextBoolean();
+        List<Fill> fills = this.engine.submit(new Order(this.nextId++, "player", buy ? Order.Side.BUY : Order.Side.SELL,
+                material, 1, buy ? Long.MAX_VALUE / 2 : 0, 0, null, 0));
+        for (Fill fill : fills) {
+            this.engine.restore(buy ? fill.sell : fill.buy, fill.amount);
+        }
+        return fills;
+    }
+}
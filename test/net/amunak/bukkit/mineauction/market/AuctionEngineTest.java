@@ -0,0 +1,351 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import net.amunak.bukkit.mineauction.actions.TestItems;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the engine against a naive model of the market on random streams
+ * of orders and cancellations: the model scans every open order for the
+ * best one to trade with, so the two must agree on every trade and on what
+ * stays open
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class AuctionEngineTest {
+
+    protected final static int ROUNDS = 20000;
+
+    /**
+     * An open order of the model
+     */
+    protected static class ModelOrder {
+
+        protected final Order order;
+        protected int amount;
+
+        public ModelOrder(Order order) {
+            this.order = order;
+            this.amount = order.getAmount();
+        }
+    }
+
+    /**
+     * Records what the engine tells its listeners
+     */
+    protected static class Recorder implements AuctionEngine.Listener {
+
+        protected final List<Fill> fills = new ArrayList<>();
+        protected final Map<Long, Order.Status> closed = new HashMap<>();
+        protected int opened;
+
+        @Override
+        public void onFill(Fill fill) {
+            this.fills.add(fill);
+        }
+
+        @Override
+        public void onOrderOpened(Order order) {
+            this.opened++;
+        }
+
+        @Override
+        public void onOrderChanged(Order order, Order.Status status) {
+            if (status != Order.Status.ACTIVE) {
+                this.closed.put(order.id, status);
+            }
+        }
+    }
+
+    protected static Order randomOrder(Random random, long id, int materials) {
+        Order.Side side = random.nextBoolean() ? Order.Side.BUY : Order.Side.SELL;
+        return new Order(id, "player" + random.nextInt(10), side, 1 + random.nextInt(materials),
+                1 + random.nextInt(64), 90 + random.nextInt(21), 0, null, 0);
+    }
+
+    /**
+     * Trades an order in the model, the way the engine is documented to:
+     * best price first, oldest first at the same price, at the price of the
+     * resting order
+     *
+     * @return the trades as "buy sell amount price"
+     */
+    protected static List<String> modelSubmit(List<ModelOrder> open, Order order) {
+        List<String> fills = new ArrayList<>();
+        boolean buying = order.side == Order.Side.BUY;
+        int amount = order.getAmount();
+        while (amount > 0) {
+            ModelOrder best = null;
+            for (ModelOrder resting : open) {
+                if (resting.order.side == order.side || resting.order.key != order.key
+                        || (buying ? resting.order.price > order.price : resting.order.price < order.price)) {
+                    continue;
+                }
+                if (best == null || (buying ? resting.order.price < best.order.price : resting.order.price > best.order.price)
+                        || (resting.order.price == best.order.price && resting.order.id < best.order.id)) {
+                    best = resting;
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            int traded = Math.min(amount, best.amount);
+            amount -= traded;
+            best.amount -= traded;
+            fills.add(buying ? describe(order.id, best.order.id, traded, best.order.price)
+                    : describe(best.order.id, order.id, traded, best.order.price));
+            if (best.amount == 0) {
+                open.remove(best);
+            }
+        }
+        if (amount > 0) {
+            ModelOrder rest = new ModelOrder(order);
+            rest.amount = amount;
+            open.add(rest);
+        }
+        return fills;
+    }
+
+    protected static String describe(long buy, long sell, int amount, long price) {
+        return buy + " " + sell + " " + amount + " " + price;
+    }
+
+    protected static List<String> describe(List<Fill> fills) {
+        List<String> described = new ArrayList<>(fills.size());
+        for (Fill fill : fills) {
+            described.add(describe(fill.buy.id, fill.sell.id, fill.amount, fill.price));
+        }
+        return described;
+    }
+
+    protected static void assertSameOpenOrders(List<ModelOrder> open, AuctionEngine engine) {
+        assertEquals(open.size(), engine.size());
+        for (ModelOrder expected : open) {
+            Order order = engine.getOrder(expected.order.id);
+            assertSame(expected.order, order);
+            assertEquals(expected.amount, order.getAmount());
+        }
+    }
+
+    @Test
+    public void randomStreamsMatchTheModel() {
+        Random random = new Random(42);
+        AuctionEngine engine = new AuctionEngine();
+        Recorder recorder = new Recorder();
+        engine.addListener(recorder);
+        List<ModelOrder> open = new ArrayList<>();
+        for (long id = 1; id <= ROUNDS; id++) {
+            if (!open.isEmpty() && random.nextInt(5) == 0) {
+                ModelOrder cancelled = open.remove(random.nextInt(open.size()));
+                Order.Status status = random.nextBoolean() ? Order.Status.CANCELLED : Order.Status.EXPIRED;
+                assertSame(cancelled.order, engine.cancel(cancelled.order.id, status));
+                assertEquals(status, recorder.closed.get(cancelled.order.id));
+                assertNull(engine.cancel(cancelled.order.id, status));
+                continue;
+            }
+            Order order = randomOrder(random, id, 3);
+            List<String> expected = modelSubmit(open, order);
+            recorder.fills.clear();
+            List<Fill> fills = engine.submit(order);
+            assertEquals("order " + id, expected, describe(fills));
+            assertEquals(fills, recorder.fills);
+            if (id % 100 == 0) {
+                assertSameOpenOrders(open, engine);
+            }
+        }
+        assertSameOpenOrders(open, engine);
+        for (ModelOrder expected : open) {
+            OrderBook book = engine.getBook(expected.order.key);
+            assertNotNull(book);
+            if (book.getBestBid() != null && book.getBestAsk() != null) {
+                assertTrue(book.getBestBid().price < book.getBestAsk().price);
+            }
+        }
+    }
+
+    @Test
+    public void everyOrderIsClosedOnce() {
+        Random random = new Random(7);
+        AuctionEngine engine = new AuctionEngine();
+        Recorder recorder = new Recorder();
+        engine.addListener(recorder);
+        Map<Long, Integer> traded = new HashMap<>();
+        List<Order> placed = new ArrayList<>();
+        for (long id = 1; id <= ROUNDS; id++) {
+            Order order = randomOrder(random, id, 5);
+            placed.add(order);
+            for (Fill fill : engine.submit(order)) {
+                assertTrue(fill.buy.price >= fill.sell.price);
+                assertEquals(fill.buy.id < fill.sell.id ? fill.buy.price : fill.sell.price, fill.price);
+                add(traded, fill.buy.id, fill.amount);
+                add(traded, fill.sell.id, fill.amount);
+            }
+        }
+        int open = 0;
+        for (Order order : placed) {
+            Integer amount = traded.get(order.id);
+            int initial = order.getAmount() + (amount == null ? 0 : amount);
+            assertTrue(initial >= 1 && initial <= 64);
+            if (order.getAmount() > 0) {
+                open++;
+                assertSame(order, engine.getOrder(order.id));
+                assertFalse(recorder.closed.containsKey(order.id));
+            } else {
+                assertNull(engine.getOrder(order.id));
+                assertEquals(Order.Status.FILLED, recorder.closed.get(order.id));
+            }
+        }
+        assertEquals(open, engine.size());
+        assertEquals(open, recorder.opened - countReopened(placed, recorder));
+    }
+
+    /**
+     * Orders opened and then filled while resting were reported as opened
+     * too
+     */
+    protected static int countReopened(List<Order> placed, Recorder recorder) {
+        int count = 0;
+        for (Order order : placed) {
+            if (order.getAmount() == 0 && recorder.closed.containsKey(order.id) && wasResting(order, recorder)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    protected static boolean wasResting(Order order, Recorder recorder) {
+        for (Fill fill : recorder.fills) {
+            Order other = fill.buy == order ? fill.sell : fill.sell == order ? fill.buy : null;
+            if (other != null && other.id > order.id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected static void add(Map<Long, Integer> map, long key, int amount) {
+        Integer old = map.get(key);
+        map.put(key, old == null ? amount : old + amount);
+    }
+
+    @Test
+    public void loadUncrossesTheBooks() {
+        Random random = new Random(3);
+        List<Order> loaded = new ArrayList<>();
+        for (long id = 1; id <= 2000; id++) {
+            loaded.add(randomOrder(random, id, 4));
+        }
+        Map<Long, Integer> initial = new HashMap<>();
+        for (Order order : loaded) {
+            initial.put(order.id, order.getAmount());
+        }
+        Collections.shuffle(loaded, random);
+        AuctionEngine engine = new AuctionEngine();
+        Recorder recorder = new Recorder();
+        engine.addListener(recorder);
+        List<Fill> fills = engine.load(loaded);
+        assertFalse(fills.isEmpty());
+
+        Map<Long, Integer> traded = new HashMap<>();
+        for (Fill fill : fills) {
+            assertTrue(fill.buy.price >= fill.sell.price);
+            assertEquals(fill.buy.id < fill.sell.id ? fill.buy.price : fill.sell.price, fill.price);
+            add(traded, fill.buy.id, fill.amount);
+            add(traded, fill.sell.id, fill.amount);
+        }
+        List<Order> open = new ArrayList<>();
+        for (Order order : loaded) {
+            Integer amount = traded.get(order.id);
+            assertEquals((int) initial.get(order.id), order.getAmount() + (amount == null ? 0 : amount));
+            if (order.getAmount() > 0) {
+                open.add(order);
+                assertSame(order, engine.getOrder(order.id));
+                OrderBook book = engine.getBook(order.key);
+                if (book.getBestBid() != null && book.getBestAsk() != null) {
+                    assertTrue(book.getBestBid().price < book.getBestAsk().price);
+                }
+            } else {
+                assertNull(engine.getOrder(order.id));
+            }
+        }
+        assertEquals(open.size(), engine.size());
+        assertEquals(open.size(), recorder.opened);
+
+        // loading orders that are open already changes nothing
+        assertTrue(engine.load(open).isEmpty());
+        assertEquals(open.size(), engine.size());
+        assertEquals(open.size(), recorder.opened);
+    }
+
+    @Test
+    public void ordersTradeOnlyTheSameKindOfItem() {
+        AuctionEngine engine = new AuctionEngine();
+        byte[] damaged = TestItems.encode(1, 1, (short) 3, Collections.<Integer, Integer>emptyMap(), null, null, null);
+        byte[] named = TestItems.encode(1, 1, (short) 0, Collections.<Integer, Integer>emptyMap(), "Rock", null, null);
+        byte[] plain = TestItems.encode(1, 1, (short) 0, Collections.<Integer, Integer>emptyMap(), null, null, null);
+        assertTrue(engine.submit(new Order(1, "seller", Order.Side.SELL, 1, 5, 100, 11, damaged, 0)).isEmpty());
+        assertTrue(engine.submit(new Order(2, "seller", Order.Side.SELL, 1, 5, 100, 12, named, 0)).isEmpty());
+        assertTrue(engine.submit(new Order(3, "buyer", Order.Side.BUY, 1, 5, 500, 0, null, 0)).isEmpty());
+        assertEquals(3, engine.size());
+
+        List<Fill> fills = engine.submit(new Order(4, "seller", Order.Side.SELL, 1, 2, 100, 13, plain, 0));
+        assertEquals(Collections.singletonList(describe(3, 4, 2, 500)), describe(fills));
+        assertEquals(3, engine.getOrder(3).getAmount());
+        assertNull(engine.getOrder(4));
+    }
+
+    @Test
+    public void restoredOrdersTradeAgain() {
+        AuctionEngine engine = new AuctionEngine();
+        Order sell = new Order(1, "seller", Order.Side.SELL, 1, 10, 100, 11, null, 0);
+        Order buy = new Order(2, "buyer", Order.Side.BUY, 1, 10, 100, 0, null, 0);
+        engine.submit(sell);
+        assertEquals(1, engine.submit(buy).size());
+        assertEquals(0, engine.size());
+
+        assertTrue(engine.restore(sell, 4).isEmpty());
+        assertSame(sell, engine.getOrder(1));
+        assertEquals(4, sell.getAmount());
+        assertTrue(engine.restore(sell, 2).isEmpty());
+        assertEquals(6, sell.getAmount());
+
+        List<Fill> fills = engine.restore(buy, 4);
+        assertEquals(Collections.singletonList(describe(2, 1, 4, 100)), describe(fills));
+        assertEquals(2, sell.getAmount());
+        assertNull(engine.getOrder(2));
+
+        engine.cancel(1, Order.Status.CANCELLED);
+        assertTrue(engine.restore(sell, 3).isEmpty());
+        assertNull(engine.getOrder(1));
+        assertEquals(0, engine.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void openOrdersCannotBeSubmittedTwice() {
+        AuctionEngine engine = new AuctionEngine();
+        engine.submit(new Order(1, "buyer", Order.Side.BUY, 1, 10, 100, 0, null, 0));
+        engine.submit(new Order(1, "buyer", Order.Side.BUY, 1, 10, 100, 0, null, 0));
+    }
+}
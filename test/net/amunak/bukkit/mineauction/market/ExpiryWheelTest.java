@@ -0,0 +1,210 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the expiry wheel against a sorted map of due ticks on random
+ * streams of scheduled, cancelled and rescheduled orders and advances of
+ * the clock, around the tick where every level of the wheel (and the
+ * overflow list) turns over
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class ExpiryWheelTest {
+
+    protected final static int ROUNDS = 50000;
+    /**
+     * A tick shortly before the one where all levels cascade at once
+     */
+    protected final static long START = (3L << (ExpiryWheel.LEVELS * ExpiryWheel.SLOT_BITS)) - 20000;
+
+    /**
+     * The reference: orders by the tick they are due in
+     */
+    protected static class Model {
+
+        protected final TreeMap<Long, Set<Order>> byTick = new TreeMap<>();
+        protected final Map<Order, Long> ticks = new HashMap<>();
+
+        protected static long tickOf(Order order, long earliest) {
+            return Math.max((order.expires + ExpiryWheel.TICK_MILLIS - 1) / ExpiryWheel.TICK_MILLIS, earliest);
+        }
+
+        protected void schedule(Order order, long earliest) {
+            this.cancel(order);
+            long tick = tickOf(order, earliest);
+            this.ticks.put(order, tick);
+            Set<Order> orders = this.byTick.get(tick);
+            if (orders == null) {
+                orders = new HashSet<>();
+                this.byTick.put(tick, orders);
+            }
+            orders.add(order);
+        }
+
+        protected void cancel(Order order) {
+            Long tick = this.ticks.remove(order);
+            if (tick != null) {
+                Set<Order> orders = this.byTick.get(tick);
+                orders.remove(order);
+                if (orders.isEmpty()) {
+                    this.byTick.remove(tick);
+                }
+            }
+        }
+
+        protected Set<Order> advance(long tick) {
+            Set<Order> due = new HashSet<>();
+            Iterator<Set<Order>> iterator = this.byTick.headMap(tick, true).values().iterator();
+            while (iterator.hasNext()) {
+                for (Order order : iterator.next()) {
+                    due.add(order);
+                    this.ticks.remove(order);
+                }
+                iterator.remove();
+            }
+            return due;
+        }
+
+        /**
+         * After a jump of the clock the wheel reschedules everything
+         */
+        protected void rebuild(long tick) {
+            for (Order order : new ArrayList<>(this.ticks.keySet())) {
+                this.schedule(order, tick);
+            }
+        }
+    }
+
+    protected static Order order(long id, long expires) {
+        return new Order(id, "player", Order.Side.SELL, 1, 1, 100, 0, null, expires);
+    }
+
+    /**
+     * Returns a random expiry, mostly a few ticks to a few levels ahead,
+     * sometimes in the past or beyond the last level
+     */
+    protected static long expiry(Random random, long now) {
+        switch (random.nextInt(10)) {
+            case 0:
+                return now - random.nextInt(100000);
+            case 1:
+                return now + (long) random.nextInt(1 << 30) * ExpiryWheel.TICK_MILLIS;
+            case 2:
+                return now + (1L << 30) * ExpiryWheel.TICK_MILLIS + random.nextInt(100000);
+            case 3:
+            case 4:
+                return now + random.nextInt(1000);
+            default:
+                return now + random.nextInt(200000) * ExpiryWheel.TICK_MILLIS / 10;
+        }
+    }
+
+    @Test
+    public void randomStreamsMatchTheReference() {
+        Random random = new Random(42);
+        ExpiryWheel wheel = new ExpiryWheel(new AuctionEngine());
+        wheel.current = START;
+        long now = START * ExpiryWheel.TICK_MILLIS;
+        Model model = new Model();
+        List<Order> scheduled = new ArrayList<>();
+        long nextId = 1;
+        for (int round = 0; round < ROUNDS; round++) {
+            int action = random.nextInt(10);
+            if (action < 4 || scheduled.isEmpty()) {
+                Order order = order(nextId++, expiry(random, now));
+                wheel.schedule(order);
+                model.schedule(order, wheel.current + 1);
+                scheduled.add(order);
+            } else if (action == 4) {
+                Order order = scheduled.get(random.nextInt(scheduled.size()));
+                wheel.cancel(order);
+                model.cancel(order);
+            } else if (action == 5) {
+                Order order = scheduled.get(random.nextInt(scheduled.size()));
+                wheel.schedule(order);
+                model.schedule(order, wheel.current + 1);
+            } else {
+                long step;
+                // the clock jumps (and the wheel is rebuilt) only once it
+                // went through the turnover of all levels tick by tick
+                switch (wheel.current > START + 20000 ? random.nextInt(50) : 3) {
+                    case 0:
+                        step = ExpiryWheel.TICK_MILLIS * (ExpiryWheel.MAX_CATCH_UP + 1 + random.nextInt(1000));
+                        break;
+                    case 1:
+                        step = -random.nextInt(1000);
+                        break;
+                    case 2:
+                        step = ExpiryWheel.TICK_MILLIS * random.nextInt((int) ExpiryWheel.MAX_CATCH_UP);
+                        break;
+                    default:
+                        step = random.nextInt(5000);
+                        break;
+                }
+                now += step;
+                long tick = now / ExpiryWheel.TICK_MILLIS;
+                if (tick - wheel.current > ExpiryWheel.MAX_CATCH_UP || tick < wheel.current) {
+                    model.rebuild(tick);
+                }
+                Set<Order> expected = model.advance(tick);
+                List<Order> due = wheel.advance(now);
+                assertEquals("advance to " + now, expected, new HashSet<>(due));
+                assertEquals("orders due twice", expected.size(), due.size());
+                for (Order order : due) {
+                    assertTrue(order.expires <= now);
+                    assertEquals(-1, order.wheelSlot);
+                }
+                scheduled.removeAll(due);
+            }
+            assertEquals(model.ticks.size(), wheel.size());
+        }
+        assertTrue(now / ExpiryWheel.TICK_MILLIS > START + 20000);
+    }
+
+    @Test
+    public void expiresOrdersOnTimeAcrossAllLevels() {
+        ExpiryWheel wheel = new ExpiryWheel(new AuctionEngine());
+        wheel.current = START;
+        long now = START * ExpiryWheel.TICK_MILLIS;
+        // due on the tick where every level and the overflow list cascade
+        Order order = order(1, (START + 20000) * ExpiryWheel.TICK_MILLIS);
+        wheel.schedule(order);
+        assertEquals(ExpiryWheel.OVERFLOW, order.wheelSlot);
+        for (long tick = START + 1; tick < START + 20000; tick += 1000) {
+            assertTrue(wheel.advance(tick * ExpiryWheel.TICK_MILLIS).isEmpty());
+        }
+        assertTrue(wheel.advance(order.expires - 1).isEmpty());
+        assertEquals(1, wheel.size());
+        List<Order> due = wheel.advance(order.expires);
+        assertEquals(1, due.size());
+        assertSame(order, due.get(0));
+        assertEquals(0, wheel.size());
+    }
+}
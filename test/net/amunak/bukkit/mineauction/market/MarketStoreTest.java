@@ -0,0 +1,127 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import net.amunak.bukkit.mineauction.MineAuction;
+import net.amunak.bukkit.mineauction.TestPlugin;
+import net.amunak.bukkit.mineauction.database.ConnectionPool;
+import net.amunak.bukkit.mineauction.database.DatabaseExecutor;
+import net.amunak.bukkit.mineauction.database.SchemaManager;
+import net.amunak.bukkit.mineauction.database.SqlStatement;
+import net.amunak.bukkit.mineauction.database.TestBackend;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of writing trades to an SQLite database file
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class MarketStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    protected ConnectionPool pool;
+    protected SchemaManager schema;
+    protected DatabaseExecutor executor;
+    protected MarketStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        MineAuction plugin = TestPlugin.create();
+        this.pool = new ConnectionPool(plugin, new TestBackend(this.folder.newFile("market.db")), 1, 1, 60000, 1000, 1, 0);
+        this.pool.start();
+        this.schema = new SchemaManager(plugin, this.pool, "ma_");
+        this.schema.migrate();
+        this.executor = new DatabaseExecutor(plugin, this.pool, 1, 1, 0);
+        this.store = new MarketStore(plugin, this.schema, this.executor, new AuctionEngine());
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdown(1000);
+        this.pool.close();
+    }
+
+    protected static Fill fill(long buy, long sell) {
+        return new Fill(new Order(buy, "buyer", Order.Side.BUY, 1, 10, 123, 0, null, 0),
+                new Order(sell, "seller", Order.Side.SELL, 1, 10, 123, 11, null, 0), 10, 123);
+    }
+
+    protected int count(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery(this.schema.compile(sql))) {
+            result.next();
+            return result.getInt(1);
+        }
+    }
+
+    @Test
+    public void writesTrades() throws Exception {
+        try (Connection connection = this.pool.getConnection()) {
+            this.store.write(connection, Arrays.asList(fill(2, 1), fill(4, 3)), new LinkedHashMap<Long, MarketStore.Update>(), 0);
+            assertEquals(2, count(connection, "SELECT COUNT(*) FROM {prefix}transactions"));
+            assertEquals(2, count(connection, "SELECT COUNT(*) FROM {prefix}fills"));
+            try (Statement statement = connection.createStatement();
+                    ResultSet result = statement.executeQuery(this.schema.compile("SELECT price FROM {prefix}transactions"))) {
+                assertTrue(result.next());
+                assertEquals(123, Order.toCents(this.schema.getBackend().getDecimal(result, 1)));
+            }
+        }
+    }
+
+    @Test
+    public void failedWritesLeaveNothingBehind() throws Exception {
+        Fill written = fill(2, 1);
+        Fill next = fill(4, 3);
+        try (Connection connection = this.pool.getConnection()) {
+            // the trade is already recorded, but not known to be: its
+            // record fails after the transaction rows were batched
+            PreparedStatement statement = this.schema.prepare(connection, SqlStatement.FILL_INSERT);
+            statement.setString(1, written.id.toString());
+            statement.executeUpdate();
+            try {
+                this.store.write(connection, Arrays.asList(next, written), new LinkedHashMap<Long, MarketStore.Update>(), 0);
+                fail("recorded a trade twice");
+            } catch (SQLException ex) {
+                // expected
+            }
+            assertEquals(0, count(connection, "SELECT COUNT(*) FROM {prefix}transactions"));
+
+            this.store.write(connection, Collections.singletonList(next), new LinkedHashMap<Long, MarketStore.Update>(), 0);
+            assertEquals(1, count(connection, "SELECT COUNT(*) FROM {prefix}transactions"));
+            assertEquals(2, count(connection, "SELECT COUNT(*) FROM {prefix}fills"));
+        }
+        // nor for the next user of the connection
+        try (Connection connection = this.pool.getConnection()) {
+            this.store.write(connection, Collections.singletonList(fill(6, 5)), new LinkedHashMap<Long, MarketStore.Update>(), 0);
+            assertEquals(2, count(connection, "SELECT COUNT(*) FROM {prefix}transactions"));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the quantiles of the sketch against the exact quantiles of the
+ * sorted prices: the price at the same rank must be within the stated
+ * relative accuracy (plus rounding to whole cents), also after merging
+ * sketches and after a round trip through the stored format
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class QuantileSketchTest {
+
+    protected final static double[] QUANTILES = {0, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 1};
+
+    /**
+     * Random prices of one kind: uniform, skewed (log-normal), spanning many
+     * orders of magnitude, or a few distinct prices with zeros among them
+     */
+    protected static long price(Random random, int kind) {
+        switch (kind) {
+            case 0:
+                return 100 + random.nextInt(10000);
+            case 1:
+                return Math.round(Math.exp(6 + 2 * random.nextGaussian()));
+            case 2:
+                return (long) Math.pow(10, random.nextDouble() * 12);
+            default:
+                return random.nextInt(4) * 2500;
+        }
+    }
+
+    protected static void assertAccurate(String message, List<Long> sorted, QuantileSketch sketch) {
+        assertEquals(message, sorted.size(), sketch.getCount());
+        for (double quantile : QUANTILES) {
+            long exact = sorted.get((int) (quantile * (sorted.size() - 1)));
+            long estimate = sketch.getQuantile(quantile);
+            assertTrue(message + ", quantile " + quantile + ": " + estimate + " for " + exact,
+                    Math.abs(estimate - exact) <= QuantileSketch.RELATIVE_ACCURACY * exact + 1);
+        }
+    }
+
+    protected static void assertSameQuantiles(String message, QuantileSketch expected, QuantileSketch actual) {
+        assertEquals(message, expected.getCount(), actual.getCount());
+        for (double quantile : QUANTILES) {
+            assertEquals(message + ", quantile " + quantile, expected.getQuantile(quantile), actual.getQuantile(quantile));
+        }
+    }
+
+    @Test
+    public void quantilesAreWithinTheRelativeAccuracy() {
+        Random random = new Random(42);
+        for (int kind = 0; kind < 4; kind++) {
+            for (int round = 0; round < 50; round++) {
+                QuantileSketch sketch = new QuantileSketch();
+                List<Long> prices = new ArrayList<>();
+                for (int i = 1 + random.nextInt(2000); i > 0; i--) {
+                    long price = price(random, kind);
+                    int weight = 1 + random.nextInt(5);
+                    sketch.add(price, weight);
+                    for (int j = 0; j < weight; j++) {
+                        prices.add(price);
+                    }
+                }
+                Collections.sort(prices);
+                assertAccurate("kind " + kind + ", round " + round, prices, sketch);
+            }
+        }
+    }
+
+    @Test
+    public void mergedSketchesAreLikeOneSketch() {
+        Random random = new Random(7);
+        for (int kind = 0; kind < 4; kind++) {
+            for (int round = 0; round < 50; round++) {
+                QuantileSketch all = new QuantileSketch();
+                QuantileSketch merged = new QuantileSketch();
+                List<Long> prices = new ArrayList<>();
+                for (int part = random.nextInt(10); part >= 0; part--) {
+                    QuantileSketch sketch = new QuantileSketch();
+                    // parts of other kinds than the rest, so merging has to
+                    // grow the buckets both ways
+                    int partKind = random.nextInt(3) == 0 ? random.nextInt(4) : kind;
+                    for (int i = random.nextInt(500); i > 0; i--) {
+                        long price = price(random, partKind);
+                        sketch.add(price, 1);
+                        all.add(price, 1);
+                        prices.add(price);
+                    }
+                    merged.merge(sketch);
+                }
+                String message = "kind " + kind + ", round " + round;
+                assertSameQuantiles(message, all, merged);
+                if (!prices.isEmpty()) {
+                    Collections.sort(prices);
+                    assertAccurate(message, prices, merged);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void storedSketchesKeepTheirQuantiles() {
+        Random random = new Random(3);
+        for (int kind = 0; kind < 4; kind++) {
+            QuantileSketch sketch = new QuantileSketch();
+            for (int i = 0; i < 1000; i++) {
+                sketch.add(price(random, kind), 1 + random.nextInt(3));
+            }
+            assertSameQuantiles("kind " + kind, sketch, QuantileSketch.fromBytes(sketch.toBytes()));
+        }
+        QuantileSketch empty = QuantileSketch.fromBytes(new QuantileSketch().toBytes());
+        assertEquals(0, empty.getCount());
+        assertEquals(-1, empty.getQuantile(0.5));
+    }
+}
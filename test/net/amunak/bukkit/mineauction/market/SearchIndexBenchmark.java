@@ -0,0 +1,136 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of searches in an index of many listings of a few hundred items,
+ * a third of them enchanted and most of them named: browsing an item by
+ * price, searching by the start of a word, by an enchantment and by both
+ * within a price range, and adding and removing a listing.
+ *
+ * Run with: ant bench -Dbench.args="SearchIndexBenchmark"
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchIndexBenchmark {
+
+    protected final static int MATERIALS = 500;
+    protected final static String[] WORDS = {"sword", "swift", "stone", "shiny", "blade", "dragon", "fire",
+        "frost", "old", "king", "diamond", "dust", "ancient", "cursed", "golden", "shadow", "storm", "thunder"};
+    @Param({"100000"})
+    protected int listings;
+    protected SearchIndex index;
+    protected Random random;
+    protected long nextId;
+
+    @Setup
+    public void setUp() {
+        this.index = new SearchIndex();
+        this.random = new Random(42);
+        this.nextId = 1;
+        for (int i = 0; i < this.listings; i++) {
+            this.addListing();
+        }
+    }
+
+    protected Order addListing() {
+        Order order = new Order(this.nextId++, "player", this.random.nextBoolean() ? Order.Side.BUY : Order.Side.SELL,
+                1 + this.random.nextInt(MATERIALS), 1 + this.random.nextInt(64), 100 + this.random.nextInt(100000), 0, null, 0);
+        Map<Integer, Integer> enchantments = new HashMap<>();
+        if (this.random.nextInt(3) == 0) {
+            enchantments.put(this.random.nextInt(20), 1 + this.random.nextInt(5));
+        }
+        String name = this.random.nextInt(4) == 0 ? null : this.word() + " " + this.word();
+        List<String> lore = new ArrayList<>();
+        if (this.random.nextBoolean()) {
+            lore.add(this.word() + " of the " + this.word());
+        }
+        this.index.add(order, enchantments, name, lore);
+        return order;
+    }
+
+    protected String word() {
+        return WORDS[this.random.nextInt(WORDS.length)];
+    }
+
+    @Benchmark
+    public List<Order> browseItem() {
+        SearchIndex.Query query = new SearchIndex.Query();
+        query.material = 1 + this.random.nextInt(MATERIALS);
+        query.side = Order.Side.SELL;
+        return this.index.search(query);
+    }
+
+    @Benchmark
+    public List<Order> searchText() {
+        SearchIndex.Query query = new SearchIndex.Query();
+        String word = this.word();
+        query.text = word.substring(0, 2 + this.random.nextInt(word.length() - 1));
+        query.sort = SearchIndex.Sort.PRICE_DESCENDING;
+        return this.index.search(query);
+    }
+
+    @Benchmark
+    public List<Order> searchEnchantment() {
+        SearchIndex.Query query = new SearchIndex.Query();
+        query.enchantments.put(this.random.nextInt(20), 1 + this.random.nextInt(5));
+        query.sort = SearchIndex.Sort.EXPIRY;
+        return this.index.search(query);
+    }
+
+    @Benchmark
+    public List<Order> searchCombined() {
+        SearchIndex.Query query = new SearchIndex.Query();
+        query.material = 1 + this.random.nextInt(MATERIALS);
+        query.enchantments.put(this.random.nextInt(20), 1);
+        query.name = this.word();
+        query.minPrice = 10000;
+        query.maxPrice = 50000;
+        return this.index.search(query);
+    }
+
+    @Benchmark
+    public int addAndRemove() {
+        Order order = this.addListing();
+        this.index.remove(order.id);
+        return this.index.size();
+    }
+}
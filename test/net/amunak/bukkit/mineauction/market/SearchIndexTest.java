@@ -0,0 +1,226 @@
+package net.amunak.bukkit.mineauction.market;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import net.amunak.bukkit.mineauction.actions.TestItems;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the search index against a linear scan of all listings on random
+ * listings and queries, while listings come and go
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class SearchIndexTest {
+
+    protected final static String[] WORDS = {"sword", "swift", "stone", "shiny", "blade", "dragon",
+        "dragonfire", "fire", "frost", "old", "of", "the", "king", "kings", "diamond", "dust"};
+    protected final static String[] COLORS = {"", "§a", "§c§l", "§r"};
+
+    /**
+     * A listing as the reference sees it
+     */
+    protected static class Listing {
+
+        protected final Order order;
+        protected final Map<Integer, Integer> enchantments;
+        protected final List<String> name;
+        protected final List<String> lore;
+
+        protected Listing(Order order, Map<Integer, Integer> enchantments, String name, List<String> lore) {
+            this.order = order;
+            this.enchantments = enchantments;
+            this.name = SearchIndex.tokenize(name);
+            this.lore = new ArrayList<>();
+            for (String line : lore) {
+                this.lore.addAll(SearchIndex.tokenize(line));
+            }
+        }
+
+        protected boolean matches(SearchIndex.Query query) {
+            if ((query.material >= 0 && query.material != this.order.material)
+                    || (query.side != null && query.side != this.order.side)
+                    || this.order.price < query.minPrice || this.order.price > query.maxPrice) {
+                return false;
+            }
+            for (Map.Entry<Integer, Integer> wanted : query.enchantments.entrySet()) {
+                Integer level = this.enchantments.get(wanted.getKey());
+                if (level == null || level < wanted.getValue()) {
+                    return false;
+                }
+            }
+            List<String> both = new ArrayList<>(this.name);
+            both.addAll(this.lore);
+            return startWords(this.name, query.name) && startWords(this.lore, query.lore) && startWords(both, query.text);
+        }
+
+        /**
+         * Whether each word of the text starts one of the words
+         */
+        protected static boolean startWords(List<String> words, String text) {
+            for (String wanted : SearchIndex.tokenize(text)) {
+                boolean found = false;
+                for (String word : words) {
+                    found |= word.startsWith(wanted);
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    protected static String text(Random random, int maxWords) {
+        StringBuilder text = new StringBuilder();
+        int count = 1 + random.nextInt(maxWords);
+        for (int i = 0; i < count; i++) {
+            text.append(i == 0 ? "" : random.nextBoolean() ? " " : ", ")
+                    .append(COLORS[random.nextInt(COLORS.length)])
+                    .append(random.nextInt(5) == 0 ? WORDS[random.nextInt(WORDS.length)].toUpperCase() : WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * A few words of the vocabulary cut to a random length, sometimes one
+     * that matches nothing
+     */
+    protected static String prefixes(Random random) {
+        StringBuilder text = new StringBuilder();
+        int count = 1 + random.nextInt(2);
+        for (int i = 0; i < count; i++) {
+            String word = random.nextInt(20) == 0 ? "zzz" : WORDS[random.nextInt(WORDS.length)];
+            text.append(' ').append(word.substring(0, 1 + random.nextInt(word.length())));
+        }
+        return text.toString();
+    }
+
+    protected static List<Long> ids(List<Order> orders) {
+        List<Long> ids = new ArrayList<>();
+        for (Order order : orders) {
+            ids.add(order.id);
+        }
+        return ids;
+    }
+
+    protected static List<Long> scan(List<Listing> listings, SearchIndex.Query query) {
+        List<Order> matching = new ArrayList<>();
+        for (Listing listing : listings) {
+            if (listing.matches(query)) {
+                matching.add(listing.order);
+            }
+        }
+        Collections.sort(matching, SearchIndex.comparator(query.sort));
+        return ids(matching.subList(0, Math.max(0, Math.min(query.limit, matching.size()))));
+    }
+
+    protected static SearchIndex.Query query(Random random) {
+        SearchIndex.Query query = new SearchIndex.Query();
+        if (random.nextInt(3) == 0) {
+            query.material = 1 + random.nextInt(8);
+        }
+        if (random.nextInt(3) == 0) {
+            query.side = random.nextBoolean() ? Order.Side.BUY : Order.Side.SELL;
+        }
+        if (random.nextInt(3) == 0) {
+            query.minPrice = random.nextInt(60);
+        }
+        if (random.nextInt(3) == 0) {
+            query.maxPrice = random.nextInt(60);
+        }
+        for (int i = random.nextInt(3); i > 0; i--) {
+            query.enchantments.put(random.nextInt(6), random.nextInt(6));
+        }
+        switch (random.nextInt(5)) {
+            case 0:
+                query.name = prefixes(random);
+                break;
+            case 1:
+                query.lore = prefixes(random);
+                break;
+            case 2:
+                query.text = prefixes(random);
+                break;
+            default:
+        }
+        query.sort = SearchIndex.Sort.values()[random.nextInt(SearchIndex.Sort.values().length)];
+        query.limit = random.nextInt(10) == 0 ? 0 : 1 + random.nextInt(random.nextBoolean() ? 5 : 100);
+        return query;
+    }
+
+    @Test
+    public void findsWhatALinearScanFinds() {
+        Random random = new Random(42);
+        SearchIndex index = new SearchIndex();
+        List<Listing> listings = new ArrayList<>();
+        long nextId = 1;
+        for (int round = 0; round < 20000; round++) {
+            int action = random.nextInt(10);
+            if (action < 4 || listings.isEmpty()) {
+                Map<Integer, Integer> enchantments = new LinkedHashMap<>();
+                for (int i = random.nextInt(3); i > 0; i--) {
+                    enchantments.put(random.nextInt(6), 1 + random.nextInt(5));
+                }
+                String name = random.nextInt(3) == 0 ? null : text(random, 3);
+                List<String> lore = new ArrayList<>();
+                for (int i = random.nextInt(3); i > 0; i--) {
+                    lore.add(text(random, 4));
+                }
+                int material = 1 + random.nextInt(8);
+                // a few listings in the old format, indexed by material only
+                byte[] item = random.nextInt(10) == 0 ? new byte[]{'-', ' ', 'x'}
+                        : TestItems.encode(material, 1, (short) 0, enchantments, name, lore.isEmpty() ? null : lore, null);
+                Order order = new Order(nextId++, "player", random.nextBoolean() ? Order.Side.BUY : Order.Side.SELL,
+                        material, 1 + random.nextInt(64), random.nextInt(50), 0, item, random.nextInt(4) == 0 ? 0 : random.nextInt(1000));
+                index.onOrderOpened(order);
+                listings.add(item.length == 3 ? new Listing(order, Collections.<Integer, Integer>emptyMap(), null, Collections.<String>emptyList())
+                        : new Listing(order, enchantments, name, lore));
+            } else if (action < 6) {
+                Listing listing = listings.remove(random.nextInt(listings.size()));
+                index.onOrderChanged(listing.order, random.nextBoolean() ? Order.Status.FILLED : Order.Status.CANCELLED);
+            } else {
+                SearchIndex.Query query = query(random);
+                assertEquals("round " + round, scan(listings, query), ids(index.search(query)));
+            }
+        }
+        assertEquals(listings.size(), index.size());
+    }
+
+    @Test
+    public void forgetsWordsOfRemovedListings() {
+        SearchIndex index = new SearchIndex();
+        Order order = new Order(1, "player", Order.Side.SELL, 1, 1, 10, 0, null, 0);
+        index.add(order, Collections.<Integer, Integer>emptyMap(), "Dragon Blade", Arrays.asList("of the king"));
+        SearchIndex.Query query = new SearchIndex.Query();
+        query.text = "dra kin";
+        assertEquals(Arrays.asList(1L), ids(index.search(query)));
+        index.onOrderChanged(order, Order.Status.EXPIRED);
+        assertTrue(index.search(query).isEmpty());
+        assertEquals(0, index.size());
+        assertTrue(index.words.isEmpty());
+        assertEquals(0, index.terms.size());
+    }
+}
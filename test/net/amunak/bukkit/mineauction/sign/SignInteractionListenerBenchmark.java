@@ -0,0 +1,309 @@
+package net.amunak.bukkit.mineauction.sign;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import net.amunak.bukkit.mineauction.util.BlockKey;
+import net.amunak.bukkit.mineauction.MineAuction;
+import net.amunak.bukkit.mineauction.TestPlugin;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.event.block.Action;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.player.PlayerInteractEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the sign protection handlers on the events that come in large
+ * numbers: block physics, pistons, explosions and clicks, nearly all of them
+ * far from any sign. A world of sign posts is faked with proxies that
+ * allocate nothing per call, so what allocates is the listener.
+ *
+ * Run with: ant bench -Dbench.args="SignInteractionListenerBenchmark -prof gc"
+ * and look at gc.alloc.rate.norm (bytes allocated per event).
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignInteractionListenerBenchmark {
+
+    protected final static int EVENTS = 1024;
+    /**
+     * Signs stand on a grid with this spacing, at this height
+     */
+    protected final static int SPACING = 8;
+    protected final static int SIGN_Y = 64;
+    protected File folder;
+    protected FakeWorld world;
+    protected SignInteractionListener listener;
+    protected BlockPhysicsEvent[] physics;
+    protected BlockPhysicsEvent[] physicsAtSigns;
+    protected BlockPistonExtendEvent[] pistonExtends;
+    protected BlockPistonRetractEvent[] pistonRetracts;
+    protected EntityExplodeEvent[] explosions;
+    protected PlayerInteractEvent[] clicks;
+    protected int next;
+
+    /**
+     * A world made of sign posts on the grid and stone everywhere else
+     */
+    protected static class FakeWorld implements InvocationHandler {
+
+        protected final UUID uid = new UUID(1, 1);
+        protected final World proxy = (World) Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[]{World.class}, this);
+        protected final Map<Long, Block> blocks = new HashMap<>();
+
+        protected static boolean isSign(int x, int y, int z) {
+            return y == SIGN_Y && x >= 0 && z >= 0 && x % SPACING == 0 && z % SPACING == 0;
+        }
+
+        protected Block getBlockAt(int x, int y, int z) {
+            Block block = this.blocks.get(BlockKey.pack(x, y, z));
+            if (block == null) {
+                FakeBlock handler = new FakeBlock(this, x, y, z, isSign(x, y, z) ? Material.SIGN_POST : Material.STONE);
+                block = (Block) Proxy.newProxyInstance(Block.class.getClassLoader(), new Class<?>[]{Block.class}, handler);
+                this.blocks.put(BlockKey.pack(x, y, z), block);
+            }
+            return block;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getUID":
+                    return this.uid;
+                case "getName":
+                    return "world";
+                case "isChunkLoaded":
+                    return Boolean.TRUE;
+                case "getBlockAt":
+                    return this.getBlockAt((Integer) args[0], (Integer) args[1], (Integer) args[2]);
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "World{fake}";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+    }
+
+    /**
+     * A block; the coordinates are boxed in advance so the getters don't
+     * allocate
+     */
+    protected static class FakeBlock implements InvocationHandler {
+
+        protected final FakeWorld world;
+        protected final int x;
+        protected final int y;
+        protected final int z;
+        protected final Integer boxedX;
+        protected final Integer boxedY;
+        protected final Integer boxedZ;
+        protected final Material type;
+
+        protected FakeBlock(FakeWorld world, int x, int y, int z, Material type) {
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.boxedX = x;
+            this.boxedY = y;
+            this.boxedZ = z;
+            this.type = type;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getX":
+                    return this.boxedX;
+                case "getY":
+                    return this.boxedY;
+                case "getZ":
+                    return this.boxedZ;
+                case "getWorld":
+                    return this.world.proxy;
+                case "getType":
+                    return this.type;
+                case "getRelative":
+                    BlockFace face = (BlockFace) args[0];
+                    int distance = args.length > 1 ? (Integer) args[1] : 1;
+                    return this.world.getBlockAt(this.x + face.getModX() * distance, this.y + face.getModY() * distance, this.z + face.getModZ() * distance);
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "Block{" + this.type + " at " + this.x + "," + this.y + "," + this.z + "}";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        this.folder = Files.createTempDirectory("signs").toFile();
+        MineAuction plugin = TestPlugin.create(this.folder);
+        plugin.config = new YamlConfiguration();
+        SignStorage storage = new SignStorage(plugin);
+        TestPlugin.setSignsStorage(plugin, storage);
+        this.world = new FakeWorld();
+        for (int x = 0; x < 32 * SPACING; x += SPACING) {
+            for (int z = 0; z < 32 * SPACING; z += SPACING) {
+                storage.addItem(this.world.uid, x, SIGN_Y, z, SignType.DEPOSIT);
+                storage.protect(this.world.getBlockAt(x, SIGN_Y, z));
+            }
+        }
+        this.listener = new SignInteractionListener(plugin);
+
+        Random random = new Random(42);
+        this.physics = new BlockPhysicsEvent[EVENTS];
+        this.physicsAtSigns = new BlockPhysicsEvent[EVENTS];
+        this.pistonExtends = new BlockPistonExtendEvent[EVENTS];
+        this.pistonRetracts = new BlockPistonRetractEvent[EVENTS];
+        this.explosions = new EntityExplodeEvent[EVENTS];
+        this.clicks = new PlayerInteractEvent[EVENTS];
+        BlockFace[] faces = {BlockFace.NORTH, BlockFace.SOUTH, BlockFace.EAST, BlockFace.WEST, BlockFace.UP, BlockFace.DOWN};
+        for (int i = 0; i < EVENTS; i++) {
+            Block away = this.awayFromSigns(random);
+            this.physics[i] = new BlockPhysicsEvent(away, 0);
+            int x = random.nextInt(32) * SPACING;
+            int z = random.nextInt(32) * SPACING;
+            // the sign or the block it stands on
+            this.physicsAtSigns[i] = new BlockPhysicsEvent(this.world.getBlockAt(x, SIGN_Y - random.nextInt(2), z), 0);
+            this.pistonExtends[i] = new BlockPistonExtendEvent(away, 12, faces[random.nextInt(faces.length)]);
+            this.pistonExtends[i].getBlocks();
+            this.pistonRetracts[i] = new BlockPistonRetractEvent(away, faces[random.nextInt(faces.length)]);
+            List<Block> blasted = new ArrayList<>();
+            for (int b = 0; b < 40; b++) {
+                blasted.add(this.awayFromSigns(random));
+            }
+            this.explosions[i] = new EntityExplodeEvent(null, null, blasted, 0.3f);
+            this.clicks[i] = new PlayerInteractEvent(null, Action.RIGHT_CLICK_BLOCK, null, away, BlockFace.UP);
+        }
+    }
+
+    /**
+     * A block of the signs' area that is not a sign, nor next to one
+     */
+    protected Block awayFromSigns(Random random) {
+        while (true) {
+            int x = random.nextInt(32 * SPACING);
+            int y = SIGN_Y - 20 + random.nextInt(40);
+            int z = random.nextInt(32 * SPACING);
+            if (Math.abs(y - SIGN_Y) > 14 || (x % SPACING > 1 && x % SPACING < SPACING - 1 && z % SPACING > 1 && z % SPACING < SPACING - 1)) {
+                return this.world.getBlockAt(x, y, z);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.folder.delete();
+    }
+
+    protected int next() {
+        this.next = (this.next + 1) & (EVENTS - 1);
+        return this.next;
+    }
+
+    @Benchmark
+    public boolean physics() {
+        BlockPhysicsEvent event = this.physics[this.next()];
+        this.listener.onBlockBlockPhysics(event);
+        return event.isCancelled();
+    }
+
+    /**
+     * The event gets cancelled, which is logged
+     */
+    @Benchmark
+    public boolean physicsAtSign() {
+        BlockPhysicsEvent event = this.physicsAtSigns[this.next()];
+        event.setCancelled(false);
+        this.listener.onBlockBlockPhysics(event);
+        return event.isCancelled();
+    }
+
+    @Benchmark
+    public boolean pistonExtend() {
+        BlockPistonExtendEvent event = this.pistonExtends[this.next()];
+        event.setCancelled(false);
+        this.listener.onBlockBlockPistonExtend(event);
+        return event.isCancelled();
+    }
+
+    @Benchmark
+    public boolean pistonRetract() {
+        BlockPistonRetractEvent event = this.pistonRetracts[this.next()];
+        event.setCancelled(false);
+        this.listener.onBlockBlockPistonRetract(event);
+        return event.isCancelled();
+    }
+
+    @Benchmark
+    public int explosion() {
+        EntityExplodeEvent event = this.explosions[this.next()];
+        this.listener.onBlockEntityExplode(event);
+        return event.blockList().size();
+    }
+
+    @Benchmark
+    public boolean click() {
+        PlayerInteractEvent event = this.clicks[this.next()];
+        this.listener.playerInteractEvent(event);
+        return event.isCancelled();
+    }
+}
@@ -0,0 +1,125 @@
+package net.amunak.bukkit.mineauction.sign;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import net.amunak.bukkit.mineauction.MineAuction;
+import net.amunak.bukkit.mineauction.TestPlugin;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares loading a world's signs from the binary storage format with
+ * loading them from the Java serialized map of older versions, both into a
+ * {@link SignIndex}. File sizes are printed once per fork.
+ *
+ * Run with: ant bench -Dbench.args="SignStorageBenchmark"
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SignStorageBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    protected int signs;
+    protected SignStorage storage;
+    protected File folder;
+    protected File binary;
+    protected File serialized;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.folder = Files.createTempDirectory("signs").toFile();
+        MineAuction plugin = TestPlugin.create(this.folder);
+        plugin.config = new YamlConfiguration();
+        this.storage = new SignStorage(plugin);
+        UUID world = UUID.randomUUID();
+        Random random = new Random(42);
+        SignIndex index = new SignIndex();
+        HashMap<SignStorage.SimplifiedLocation, SignType> legacy = new HashMap<>();
+        while (index.size() < this.signs) {
+            int x = random.nextInt(20000) - 10000;
+            int y = random.nextInt(256);
+            int z = random.nextInt(20000) - 10000;
+            SignType type = SignType.values()[random.nextInt(SignType.values().length)];
+            if (index.put(world, x, y, z, type) == null) {
+                legacy.put(new SignStorage.SimplifiedLocation(world, x, y, z), type);
+            }
+        }
+        List<SignIndex.Entry> entries = new ArrayList<>(index.entries(world));
+        this.binary = new File(this.folder, "binary.dat");
+        SignStorageFormat.write(entries, this.binary);
+        this.serialized = new File(this.folder, "serialized.bin");
+        try (ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(this.serialized))) {
+            output.writeObject(legacy);
+        }
+        System.out.println("size of " + this.signs + " signs: binary " + this.binary.length()
+                + " B, java serialization " + this.serialized.length() + " B");
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.binary.delete();
+        this.serialized.delete();
+        this.folder.delete();
+    }
+
+    @Benchmark
+    public SignIndex loadBinary() throws IOException {
+        SignIndex index = new SignIndex();
+        SignStorageFormat.read(this.binary, index);
+        return index;
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public SignIndex loadSerialized() throws IOException, ClassNotFoundException {
+        SignIndex index = new SignIndex();
+        try (ObjectInputStream stream = new ObjectInputStream(new FileInputStream(this.serialized))) {
+            this.storage.loadSerializedStorage((HashMap<SignStorage.SimplifiedLocation, SignType>) stream.readObject(), index);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,152 @@
+package net.amunak.bukkit.mineauction.sign;
+
+/**
+ * Copyright 2013 Jiří Barouš
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import net.amunak.bukkit.mineauction.MineAuction;
+import net.amunak.bukkit.mineauction.TestPlugin;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of saving the sign storage and loading it back, in every mode
+ *
+ * @author Jiri Barous (Amunak) < http://amunak.net >
+ */
+public class SignStorageTest {
+
+    protected final static UUID[] WORLDS = {new UUID(1, 1), new UUID(2, 2)};
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    protected static MineAuction plugin(File dataFolder, SignStorage.Mode mode) {
+        MineAuction plugin = TestPlugin.create(dataFolder);
+        plugin.config = new YamlConfiguration();
+        plugin.config.set("options.signs.storage.mode", mode.getName());
+        // compact the journal a few times on the way
+        plugin.config.set("options.signs.storage.journal.compactThreshold", 700L);
+        return plugin;
+    }
+
+    /**
+     * Makes random changes to the storage and the same changes to the
+     * expected contents, syncing now and then
+     */
+    protected static void change(Random random, SignStorage storage, Map<String, SignType> expected, int count) {
+        for (int i = 0; i < count; i++) {
+            UUID world = WORLDS[random.nextInt(WORLDS.length)];
+            // a small area, so that signs get replaced and removed
+            int x = random.nextInt(200) - 100;
+            int y = random.nextInt(256);
+            int z = random.nextInt(200) - 100;
+            String key = world + ":" + x + "," + y + "," + z;
+            if (random.nextInt(4) == 0) {
+                storage.removeItem(world, x, y, z);
+                expected.remove(key);
+            } else {
+                SignType type = SignType.values()[random.nextInt(SignType.values().length)];
+                storage.addItem(world, x, y, z, type);
+                expected.put(key, type);
+            }
+            if (random.nextInt(500) == 0) {
+                storage.flush();
+            }
+        }
+    }
+
+    protected static Map<String, SignType> contents(SignIndex index) {
+        Map<String, SignType> contents = new HashMap<>();
+        for (SignIndex.Entry entry : index.entries()) {
+            contents.put(entry.world + ":" + entry.x + "," + entry.y + "," + entry.z, entry.type);
+        }
+        return contents;
+    }
+
+    protected static SignStorage open(MineAuction plugin) {
+        SignStorage storage = new SignStorage(plugin);
+        for (UUID world : WORLDS) {
+            storage.loadShard(world);
+        }
+        return storage;
+    }
+
+    @Test
+    public void savesAndReloadsEveryMode() throws IOException {
+        for (SignStorage.Mode mode : SignStorage.Mode.values()) {
+            MineAuction plugin = plugin(this.folder.newFolder(mode.getName()), mode);
+            Random random = new Random(42);
+            Map<String, SignType> expected = new HashMap<>();
+            SignStorage storage = open(plugin);
+            change(random, storage, expected, 5000);
+            storage.close();
+
+            // again on top of what was written, then with a world unloaded
+            // and loaded again
+            storage = open(plugin);
+            assertEquals(mode.getName(), expected, contents(storage.getIndex()));
+            change(random, storage, expected, 3000);
+            storage.unloadShard(WORLDS[0]);
+            assertFalse(storage.isShardLoaded(WORLDS[0]));
+            storage.loadShard(WORLDS[0]);
+            assertEquals(mode.getName(), expected, contents(storage.getIndex()));
+            change(random, storage, expected, 3000);
+            storage.close();
+
+            storage = open(plugin);
+            assertEquals(mode.getName(), expected, contents(storage.getIndex()));
+            storage.close();
+        }
+    }
+
+    @Test
+    public void migratesSerializedStorage() throws IOException {
+        File dataFolder = this.folder.newFolder();
+        HashMap<SignStorage.SimplifiedLocation, SignType> legacy = new HashMap<>();
+        Map<String, SignType> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            UUID world = WORLDS[random.nextInt(WORLDS.length)];
+            int x = random.nextInt(2000) - 1000;
+            int y = random.nextInt(256);
+            int z = random.nextInt(2000) - 1000;
+            SignType type = SignType.values()[random.nextInt(SignType.values().length)];
+            legacy.put(new SignStorage.SimplifiedLocation(world, x, y, z), type);
+            expected.put(world + ":" + x + "," + y + "," + z, type);
+        }
+        MineAuction plugin = plugin(dataFolder, SignStorage.Mode.JOURNAL);
+        SignStorage storage = new SignStorage(plugin);
+        try (ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(storage.getLegacyDataFilePath()))) {
+            output.writeObject(legacy);
+        }
+        assertTrue(storage.migrateUnshardedStorage());
+        assertFalse(storage.getLegacyDataFilePath().exists());
+        assertTrue(new File(storage.getLegacyDataFilePath().getPath() + ".migrated").exists());
+        storage = open(plugin);
+        assertEquals(expected, contents(storage.getIndex()));
+        storage.close();
+    }
+}